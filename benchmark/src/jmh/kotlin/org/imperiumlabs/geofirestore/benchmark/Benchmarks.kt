@@ -0,0 +1,7 @@
+package org.imperiumlabs.geofirestore.benchmark
+
+// The seed of the random locations, the same locations are used by every run
+const val SEED = 42L
+
+// The number of locations processed by every invocation
+const val LOCATIONS = 1024
@@ -0,0 +1,75 @@
+package org.imperiumlabs.geofirestore.benchmark
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.imperiumlabs.geofirestore.core.PackedRanges
+import org.imperiumlabs.geofirestore.region.CircleRegion
+import org.imperiumlabs.geofirestore.util.GeoUtils
+import org.openjdk.jmh.annotations.*
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Benchmarks of the per-document work done on the events of a query: the distance
+ * filter and the lookup of the document geohash in the planned ranges.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class DistanceFilterBenchmark {
+
+    private val center = GeoLocation(45.0, 9.0)
+    private val region = CircleRegion(center, 10.0)
+    private val queries = GeoHashQuery.queriesAtLocation(center, 10000.0)
+    private val ranges = PackedRanges(queries)
+
+    private lateinit var latitudes: DoubleArray
+    private lateinit var longitudes: DoubleArray
+    private lateinit var hashes: Array<GeoHash>
+
+    @Setup
+    fun setup() {
+        //Documents read by the ranges of the query, about half of them are inside the circle
+        val random = Random(SEED)
+        latitudes = DoubleArray(LOCATIONS) { 45.0 + (random.nextDouble() * 2 - 1) * 0.13 }
+        longitudes = DoubleArray(LOCATIONS) { 9.0 + (random.nextDouble() * 2 - 1) * 0.18 }
+        hashes = Array(LOCATIONS) { GeoHash(latitudes[it], longitudes[it]) }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOCATIONS)
+    fun distance(): Int {
+        var inside = 0
+        for (i in 0 until LOCATIONS)
+            if (GeoUtils.distance(latitudes[i], longitudes[i], center.latitude, center.longitude) <= 10000.0) inside++
+        return inside
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOCATIONS)
+    fun regionContains(): Int {
+        var inside = 0
+        for (i in 0 until LOCATIONS)
+            if (region.containsLocation(latitudes[i], longitudes[i])) inside++
+        return inside
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOCATIONS)
+    fun rangesContain(): Int {
+        var inside = 0
+        for (hash in hashes)
+            if (queries.any { it.containsGeoHash(hash) }) inside++
+        return inside
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOCATIONS)
+    fun packedRangesContain(): Int {
+        var inside = 0
+        for (hash in hashes)
+            if (ranges.contains(hash)) inside++
+        return inside
+    }
+}
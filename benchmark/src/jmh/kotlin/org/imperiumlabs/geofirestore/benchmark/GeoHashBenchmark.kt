@@ -0,0 +1,57 @@
+package org.imperiumlabs.geofirestore.benchmark
+
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.util.Base32Utils
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+/**
+ * Benchmarks of the geohash encoding and of the base32 conversions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class GeoHashBenchmark {
+
+    @Param("10", "22")
+    @JvmField
+    var precision = 0
+
+    private lateinit var latitudes: DoubleArray
+    private lateinit var longitudes: DoubleArray
+    private lateinit var hashes: Array<String>
+
+    @Setup
+    fun setup() {
+        val random = Random(SEED)
+        latitudes = DoubleArray(LOCATIONS) { random.nextDouble() * 180 - 90 }
+        longitudes = DoubleArray(LOCATIONS) { random.nextDouble() * 360 - 180 }
+        hashes = Array(LOCATIONS) { GeoHash(latitudes[it], longitudes[it], precision).geoHashString }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOCATIONS)
+    fun encode(blackhole: Blackhole) {
+        for (i in 0 until LOCATIONS)
+            blackhole.consume(GeoHash(latitudes[i], longitudes[i], precision).geoHashString)
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOCATIONS)
+    fun parse(blackhole: Blackhole) {
+        for (hash in hashes)
+            blackhole.consume(GeoHash(hash))
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOCATIONS)
+    fun base32Decode(blackhole: Blackhole) {
+        for (hash in hashes) {
+            var value = 0
+            for (char in hash) value = value xor Base32Utils.base32CharToValue(char)
+            blackhole.consume(value)
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.imperiumlabs.geofirestore.benchmark
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.imperiumlabs.geofirestore.core.IndexPlanner
+import org.imperiumlabs.geofirestore.region.PolygonRegion
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Benchmarks of the range planning of circles and polygons at many radii, latitudes and longitudes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class QueryPlanningBenchmark {
+
+    // The radius of the circle, in meters
+    @Param("100", "1000", "10000", "100000", "1000000", "10000000")
+    @JvmField
+    var radius = 0.0
+
+    @Param("0", "45", "70", "85", "89.9")
+    @JvmField
+    var latitude = 0.0
+
+    // 179.5 puts the circles across the antimeridian
+    @Param("9.0", "179.5")
+    @JvmField
+    var longitude = 0.0
+
+    private lateinit var center: GeoLocation
+    private lateinit var polygon: PolygonRegion
+    private lateinit var queries: Set<GeoHashQuery>
+
+    @Setup
+    fun setup() {
+        center = GeoLocation(latitude, longitude)
+        //A narrow triangle inscribed in the circle
+        val delta = Math.min(radius / 111000, 10.0)
+        val west = Math.min(longitude, 180.0 - delta)
+        polygon = PolygonRegion(listOf(
+                GeoLocation(Math.max(-90.0, latitude - delta), west),
+                GeoLocation(Math.max(-90.0, latitude - delta), west + delta),
+                GeoLocation(Math.min(90.0, latitude + delta), west + delta / 10)))
+        queries = GeoHashQuery.queriesAtLocation(center, radius)
+    }
+
+    @Benchmark
+    fun circle() = GeoHashQuery.queriesAtLocation(center, radius)
+
+    @Benchmark
+    fun polygon() = polygon.queries()
+
+    @Benchmark
+    fun indexPlan() = IndexPlanner.plan(queries, 10, listOf(3, 5, 7))
+}
@@ -0,0 +1,181 @@
+package org.imperiumlabs.geofirestore.admin
+
+import com.google.api.core.ApiFunction
+import com.google.api.core.ApiFuture
+import com.google.api.core.ApiFutures
+import com.google.cloud.firestore.CollectionReference
+import com.google.cloud.firestore.DocumentSnapshot
+import com.google.cloud.firestore.FieldValue
+import com.google.cloud.firestore.GeoPoint
+import com.google.cloud.firestore.Query
+import com.google.cloud.firestore.QuerySnapshot
+import com.google.cloud.firestore.SetOptions
+import com.google.cloud.firestore.WriteResult
+import com.google.common.util.concurrent.MoreExecutors
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.IndexPlanner
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.imperiumlabs.geofirestore.core.QueryCostModel
+import org.imperiumlabs.geofirestore.region.CircleRegion
+import org.imperiumlabs.geofirestore.region.GeoRegion
+
+/**
+ * A GeoFirestore for the back-end servers using the Firebase Admin SDK, it writes and reads the
+ * same fields as the GeoFirestore of the Android library with the geohash, the regions and the
+ * query planner of geofirestore-core.
+ *
+ * The locations are written with the field "g", the location field and the geohash prefix fields,
+ * and the regions are read with one-shot queries filtered by the exact distance. The counters of
+ * the cells and the timestamps of LocationTtl are not written. The AdminGeoFirestore class is
+ * thread safe once configured.
+ *
+ * @param collectionReference The collection of the documents
+ */
+class AdminGeoFirestore(val collectionReference: CollectionReference) {
+
+    /**
+     * The model used to choose between alternative plans of the queries, it should
+     * be set with the expected number of documents of the collection.
+     */
+    var costModel = QueryCostModel.DEFAULT
+
+    /**
+     * The field holding the location of the documents, "l" by default.
+     */
+    var locationField = "l"
+
+    /**
+     * The precision of the geohash written in the field "g" of the documents, it must be the same
+     * precision of the other writers of the collection.
+     *
+     * @throws IllegalArgumentException If the precision is not valid or is smaller than an index precision
+     */
+    var precision = GeoHash.DEFAULT_PRECISION
+        set(value) {
+            if (value < 1 || value > GeoHash.MAX_PRECISION)
+                throw IllegalArgumentException("Precision of GeoHash must be between 1 and ${GeoHash.MAX_PRECISION}!")
+            if (indexPrecisions.any { it > value })
+                throw IllegalArgumentException("Precision of GeoHash must not be smaller than the index precisions!")
+            field = value
+        }
+
+    /**
+     * The precisions of the geohash prefixes written together with the field "g", they must be
+     * the same prefixes of the other writers of the collection.
+     *
+     * @throws IllegalArgumentException If a precision is not between 1 and the precision of the geohash
+     */
+    var indexPrecisions: Set<Int> = emptySet()
+        set(value) {
+            if (value.any { it < 1 || it > precision })
+                throw IllegalArgumentException("Index precisions must be between 1 and $precision!")
+            field = value.toSortedSet()
+        }
+
+    /**
+     * Sets the location of a document, merging the geohash fields with its other fields.
+     *
+     * @param documentID The documentID of the document to save the location for
+     * @param latitude The latitude of the location
+     * @param longitude The longitude of the location
+     * @return The future of the write
+     * @throws IllegalArgumentException If the coordinates are not valid
+     */
+    fun setLocation(documentID: String, latitude: Double, longitude: Double): ApiFuture<WriteResult> {
+        val geoHash = GeoHash(GeoLocation(latitude, longitude), precision).geoHashString
+        //Create a Map with the fields to add
+        val updates = HashMap<String, Any>()
+        updates[IndexQuery.GEOHASH_FIELD] = geoHash
+        updates[locationField] = GeoPoint(latitude, longitude)
+        for (indexPrecision in indexPrecisions)
+            updates[IndexQuery.fieldForPrecision(indexPrecision)] = geoHash.substring(0, indexPrecision)
+        return collectionReference.document(documentID).set(updates, SetOptions.merge())
+    }
+
+    /**
+     * Removes the location of a document, its other fields are kept.
+     *
+     * @param documentID The documentID of the document to remove the location from
+     * @return The future of the write
+     */
+    fun removeLocation(documentID: String): ApiFuture<WriteResult> {
+        //Create a Map with the fields to remove
+        val updates = HashMap<String, Any>()
+        updates[IndexQuery.GEOHASH_FIELD] = FieldValue.delete()
+        updates[locationField] = FieldValue.delete()
+        for (indexPrecision in indexPrecisions)
+            updates[IndexQuery.fieldForPrecision(indexPrecision)] = FieldValue.delete()
+        return collectionReference.document(documentID).set(updates, SetOptions.merge())
+    }
+
+    /**
+     * Get the location of a document.
+     *
+     * @param documentSnapshot The snapshot of the document
+     * @return The location of the document or null if it is missing or not valid
+     */
+    fun locationOf(documentSnapshot: DocumentSnapshot): GeoLocation? =
+            when (val value = documentSnapshot.get(locationField)) {
+                is GeoPoint ->
+                    if (GeoLocation.coordinatesValid(value.latitude, value.longitude)) GeoLocation(value.latitude, value.longitude) else null
+                is List<*> -> GeoLocation.coordinatesFromList(value)?.let { GeoLocation(it[0], it[1]) }
+                else -> null
+            }
+
+    /**
+     * Plan the queries needed to read all the documents inside a region, using the
+     * cheapest geohash field for the size of the region.
+     *
+     * @param region The region to read
+     * @return The list of queries to execute
+     */
+    fun planQueries(region: GeoRegion) = IndexPlanner.plan(region.queries(), precision, indexPrecisions, costModel)
+
+    /**
+     * Build the Firestore Query for an IndexQuery.
+     *
+     * @param query The planned query
+     * @return The query of the collection
+     */
+    fun buildQuery(query: IndexQuery): Query {
+        val range = query.range
+        if (range != null)
+            return collectionReference.orderBy(query.field).startAt(range.startValue).endAt(range.endValue)
+        return collectionReference.whereIn(query.field, query.values!!)
+    }
+
+    /**
+     * Read once the documents within a radius of a center.
+     *
+     * @param latitude The latitude of the center
+     * @param longitude The longitude of the center
+     * @param radius The radius in kilometers
+     * @return The future of the documents inside the circle
+     * @throws IllegalArgumentException If the center or the radius are not valid
+     */
+    fun getAtLocation(latitude: Double, longitude: Double, radius: Double) =
+            getInRegion(CircleRegion(GeoLocation(latitude, longitude), radius, costModel))
+
+    /**
+     * Read once the documents inside a region, the planned queries run concurrently and their
+     * results are filtered by the exact region.
+     *
+     * @param region The region to read
+     * @return The future of the documents inside the region, each one returned once
+     */
+    fun getInRegion(region: GeoRegion): ApiFuture<List<DocumentSnapshot>> {
+        val snapshots = planQueries(region).map { buildQuery(it).get() }
+        return ApiFutures.transform(ApiFutures.allAsList(snapshots), ApiFunction<List<QuerySnapshot>, List<DocumentSnapshot>> {
+            val documents = LinkedHashMap<String, DocumentSnapshot>()
+            for (snapshot in it) {
+                for (doc in snapshot.documents) {
+                    val location = locationOf(doc)
+                    if (location != null && region.containsLocation(location.latitude, location.longitude))
+                        documents[doc.id] = doc
+                }
+            }
+            ArrayList(documents.values)
+        }, MoreExecutors.directExecutor())
+    }
+}
@@ -0,0 +1,72 @@
+package org.imperiumlabs.geofirestore.admin
+
+import com.google.api.core.ApiFuture
+import com.google.cloud.firestore.CollectionReference
+import com.google.cloud.firestore.DocumentReference
+import com.google.cloud.firestore.DocumentSnapshot
+import com.google.cloud.firestore.GeoPoint
+import com.google.cloud.firestore.SetOptions
+import com.google.cloud.firestore.WriteResult
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.IndexPlanner
+import org.imperiumlabs.geofirestore.region.CircleRegion
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.mockito.ArgumentCaptor
+import org.mockito.Mockito
+
+/**
+ * Tests of the fields written and read by AdminGeoFirestore, against a mocked collection.
+ */
+class AdminGeoFirestoreTest {
+
+    @Suppress("UNCHECKED_CAST")
+    private val document = Mockito.mock(DocumentReference::class.java).also {
+        Mockito.`when`(it.set(Mockito.anyMap(), Mockito.any(SetOptions::class.java))).thenReturn(Mockito.mock(ApiFuture::class.java) as ApiFuture<WriteResult>)
+    }
+    private val geoFirestore = AdminGeoFirestore(Mockito.mock(CollectionReference::class.java).also {
+        Mockito.`when`(it.document("doc")).thenReturn(document)
+    }).also {
+        it.indexPrecisions = setOf(4)
+    }
+
+    @Test
+    fun locationsAreWrittenWithTheGeoHashFields() {
+        geoFirestore.setLocation("doc", 45.0, 9.0)
+
+        val geoHash = GeoHash(GeoLocation(45.0, 9.0), GeoHash.DEFAULT_PRECISION).geoHashString
+        val fields = writtenFields()
+        assertEquals(setOf("g", "l", "g4"), fields.keys)
+        assertEquals(geoHash, fields["g"])
+        assertEquals(geoHash.substring(0, 4), fields["g4"])
+    }
+
+    @Test
+    fun locationsAreReadFromGeoPointsAndLists() {
+        assertEquals(GeoLocation(45.0, 9.0), geoFirestore.locationOf(snapshotWith(listOf(45.0, 9))))
+        assertEquals(GeoLocation(45.0, 9.0), geoFirestore.locationOf(snapshotWith(GeoPoint(45.0, 9.0))))
+        assertNull(geoFirestore.locationOf(snapshotWith(listOf(95.0, 9.0))))
+        assertNull(geoFirestore.locationOf(snapshotWith(listOf(45.0, 9.0, 0.0))))
+        assertNull(geoFirestore.locationOf(snapshotWith("45,9")))
+    }
+
+    @Test
+    fun queriesArePlannedByTheCore() {
+        val region = CircleRegion(GeoLocation(45.0, 9.0), 50.0, geoFirestore.costModel)
+        assertEquals(IndexPlanner.plan(region.queries(), GeoHash.DEFAULT_PRECISION, setOf(4), geoFirestore.costModel),
+                geoFirestore.planQueries(region))
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun writtenFields(): Map<String, Any> {
+        val fields = ArgumentCaptor.forClass(Map::class.java)
+        Mockito.verify(document).set(fields.capture() as Map<String, Any>?, Mockito.any(SetOptions::class.java))
+        return fields.value as Map<String, Any>
+    }
+
+    private fun snapshotWith(location: Any): DocumentSnapshot = Mockito.mock(DocumentSnapshot::class.java).also {
+        Mockito.`when`(it.get("l")).thenReturn(location)
+    }
+}
@@ -23,6 +23,22 @@ class GeoLocation(
                     latitude <= 90 &&
                     longitude >= -180 &&
                     longitude <= 180
+
+        /**
+         * Parse the coordinates of a location stored as a list of latitude and longitude, as
+         * read from a document. The numbers are read as primitive doubles, no location is created.
+         *
+         * @param value The list holding the latitude and the longitude
+         * @return The latitude and the longitude or null if the list doesn't hold exactly two
+         * numbers forming valid geo coordinates
+         */
+        @JvmStatic
+        fun coordinatesFromList(value: List<*>): DoubleArray? {
+            if (value.size != 2) return null
+            val latitude = (value[0] as? Number)?.toDouble() ?: return null
+            val longitude = (value[1] as? Number)?.toDouble() ?: return null
+            return if (coordinatesValid(latitude, longitude)) doubleArrayOf(latitude, longitude) else null
+        }
     }
 
     /**
@@ -16,9 +16,13 @@ class GeoHash {
     var geoHashString: String
         private set
 
+    //The GeoHash packed by PackedGeoHash, NOT_PACKED if it is too long
+    var packed: Long
+        private set
+
     companion object {
         // The default precision of a geohash
-        private const val DEFAULT_PRECISION = 10
+        const val DEFAULT_PRECISION = 10
 
         // The maximal precision of a geohash
         const val MAX_PRECISION = 22
@@ -50,6 +54,7 @@ class GeoHash {
 
         //The supplied data are valid... start creating the geo hash
         this.geoHashString = makeGeoHash(latitude, longitude, precision)
+        this.packed = PackedGeoHash.pack(geoHashString)
     }
 
     //Constructor with hash string
@@ -57,6 +62,7 @@ class GeoHash {
         if (!Base32Utils.isValidBase32String(hash))
             throw IllegalArgumentException("Not a valid geoHashString: $hash")
         this.geoHashString = hash
+        this.packed = PackedGeoHash.pack(hash)
     }
 
     /*
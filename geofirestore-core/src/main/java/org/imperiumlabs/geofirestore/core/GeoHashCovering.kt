@@ -0,0 +1,209 @@
+package org.imperiumlabs.geofirestore.core
+
+import org.imperiumlabs.geofirestore.region.GeoRegion
+import org.imperiumlabs.geofirestore.util.Base32Utils
+import org.imperiumlabs.geofirestore.util.GeoUtils
+
+/**
+ * Computes the set of GeoHashQuery needed to cover an arbitrary GeoRegion.
+ *
+ * The covering is built from the geohash cells that intersect the region: the finest
+ * precision whose cells can be joined in at most a given number of queries is used, so
+ * the number of documents read is proportional to the area of the region rather
+ * than to the area of its enclosing circle.
+ */
+object GeoHashCovering {
+
+    // The default maximal number of queries generated for a region
+    const val DEFAULT_MAX_QUERIES = 16
+
+    // The finest precision used to cover a region
+    const val MAX_COVERING_PRECISION = 10
+
+    // The maximal number of cells examined for a single precision
+    private const val MAX_CELLS_PER_PRECISION = 4096
+
+    // The maximal number of cells of a range measured one by one
+    private const val MAX_RANGE_CELLS = 32
+
+    /**
+     * Cover a region with at most maxQueries queries.
+     *
+     * @param region The region to cover
+     * @param maxQueries The maximal number of queries to generate; the covering at the
+     *                   coarsest precision is returned even if it needs more queries
+     * @return The set of queries covering the region
+     */
+    fun cover(region: GeoRegion, maxQueries: Int = DEFAULT_MAX_QUERIES): Set<GeoHashQuery> {
+        var best: Set<GeoHashQuery>? = null
+        for (precision in 1..MAX_COVERING_PRECISION) {
+            val cells = cellsIntersecting(region, precision) ?: break
+            val queries = queriesForCells(cells)
+            if (best != null && queries.size > maxQueries) break
+            best = queries
+        }
+        return best ?: emptySet()
+    }
+
+    /**
+     * Get all the geohash cells of the given precision intersecting a region.
+     *
+     * @param region The region to cover
+     * @param precision The length of the geohash of the cells
+     * @return The sorted list of geohashes of the cells or null if too many cells must be examined
+     */
+    fun cellsIntersecting(region: GeoRegion, precision: Int): List<String>? {
+        val bits = precision * Base32Utils.BITS_PER_BASE32_CHAR
+        val lonBits = (bits + 1) / 2
+        val latBits = bits / 2
+        val cellWidth = 360.0 / (1L shl lonBits)
+        val cellHeight = 180.0 / (1L shl latBits)
+
+        val cells = sortedSetOf<String>()
+        var examinedCells = 0L
+        for (box in region.boundingBoxes) {
+            val minX = cellIndex(box.west + 180, cellWidth, lonBits)
+            val maxX = cellIndex(box.east + 180, cellWidth, lonBits)
+            val minY = cellIndex(box.south + 90, cellHeight, latBits)
+            val maxY = cellIndex(box.north + 90, cellHeight, latBits)
+            examinedCells += (maxX - minX + 1) * (maxY - minY + 1)
+            if (examinedCells > MAX_CELLS_PER_PRECISION) return null
+
+            for (x in minX..maxX) {
+                for (y in minY..maxY) {
+                    val west = x * cellWidth - 180
+                    val south = y * cellHeight - 90
+                    if (region.intersectsCell(south, west, south + cellHeight, west + cellWidth))
+                        cells.add(geoHashForCell(x, y, lonBits, latBits, precision))
+                }
+            }
+        }
+        return cells.toList()
+    }
+
+    /**
+     * Join a sorted list of geohash cells of the same precision in the smallest
+     * set of queries, consecutive cells are covered by a single query.
+     *
+     * @param cells The sorted geohashes of the cells
+     * @return The set of queries covering exactly the cells
+     */
+    fun queriesForCells(cells: List<String>): Set<GeoHashQuery> {
+        val queries = HashSet<GeoHashQuery>()
+        var first: String? = null
+        var last: String? = null
+        for (cell in cells) {
+            if (first == null || last == null || nextCell(last) != cell) {
+                if (first != null && last != null) queries.add(GeoHashQuery(first, "$last~"))
+                first = cell
+            }
+            last = cell
+        }
+        if (first != null && last != null) queries.add(GeoHashQuery(first, "$last~"))
+        return queries
+    }
+
+    /**
+     * Decode the rectangle covered by a geohash.
+     *
+     * @param hash The geohash of the cell
+     * @return The bounds of the cell as [south, west, north, east]
+     */
+    fun cellBounds(hash: String): DoubleArray {
+        var south = -90.0
+        var north = 90.0
+        var west = -180.0
+        var east = 180.0
+        var evenBit = true
+        for (char in hash) {
+            val value = Base32Utils.base32CharToValue(char)
+            for (bit in Base32Utils.BITS) {
+                if (evenBit) {
+                    val mid = (west + east) / 2
+                    if (value and bit != 0) west = mid else east = mid
+                } else {
+                    val mid = (south + north) / 2
+                    if (value and bit != 0) south = mid else north = mid
+                }
+                evenBit = !evenBit
+            }
+        }
+        return doubleArrayOf(south, west, north, east)
+    }
+
+    /**
+     * Get the cell following a cell of the same precision in the geohash order.
+     *
+     * @param cell The geohash of the cell
+     * @return The geohash of the next cell or null if the cell is the last one
+     */
+    fun nextCell(cell: String): String? {
+        val chars = cell.toCharArray()
+        for (i in chars.indices.reversed()) {
+            val value = Base32Utils.base32CharToValue(chars[i])
+            if (value < 31) {
+                chars[i] = Base32Utils.valueToBase32Char(value + 1)
+                return String(chars)
+            }
+            chars[i] = Base32Utils.valueToBase32Char(0)
+        }
+        return null
+    }
+
+    /**
+     * Compute the distance from a location to the nearest cell read by a range. The range is
+     * split in the cells at the precision of its start value, a range with more than
+     * MAX_RANGE_CELLS cells is measured from the cell of the common prefix of its bounds.
+     *
+     * @param latitude The latitude of the location
+     * @param longitude The longitude of the location
+     * @param range The range of geohashes
+     * @return The distance in meters, 0 if the location is inside a cell of the range
+     */
+    fun distanceToRange(latitude: Double, longitude: Double, range: GeoHashQuery): Double {
+        var distance = Double.MAX_VALUE
+        var cell: String? = range.startValue
+        var count = 0
+        while (cell != null && cell < range.endValue) {
+            if (count++ == MAX_RANGE_CELLS) {
+                val prefix = range.startValue.commonPrefixWith(range.endValue)
+                return distanceToCell(latitude, longitude, prefix)
+            }
+            distance = Math.min(distance, distanceToCell(latitude, longitude, cell))
+            cell = nextCell(cell)
+        }
+        return distance
+    }
+
+    private fun distanceToCell(latitude: Double, longitude: Double, cell: String): Double {
+        val bounds = cellBounds(cell)
+        return GeoUtils.distanceToBoundingBox(latitude, longitude, bounds[0], bounds[1], bounds[2], bounds[3])
+    }
+
+    /*
+     * Get the index of the cell containing an offset from the origin of the grid, an offset on
+     * the border of two cells is in the lower one like in the geohash
+     */
+    private fun cellIndex(offset: Double, cellSize: Double, bits: Int) =
+            Math.max(0L, Math.min((1L shl bits) - 1, Math.ceil(offset / cellSize).toLong() - 1))
+
+    /*
+     * Build the geohash of the cell at column x and row y interleaving the bits
+     * of the two indexes, the longitude takes the even bits
+     */
+    private fun geoHashForCell(x: Long, y: Long, lonBits: Int, latBits: Int, precision: Int): String {
+        val buffer = CharArray(precision)
+        var lonBit = lonBits - 1
+        var latBit = latBits - 1
+        for (i in 0 until precision) {
+            var value = 0
+            for (j in 0 until Base32Utils.BITS_PER_BASE32_CHAR) {
+                val evenBit = ((i * Base32Utils.BITS_PER_BASE32_CHAR) + j) % 2 == 0
+                val set = if (evenBit) (x shr lonBit--) and 1L else (y shr latBit--) and 1L
+                if (set == 1L) value = value or Base32Utils.BITS[j]
+            }
+            buffer[i] = Base32Utils.valueToBase32Char(value)
+        }
+        return String(buffer)
+    }
+}
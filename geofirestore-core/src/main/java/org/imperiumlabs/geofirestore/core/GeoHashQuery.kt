@@ -1,6 +1,7 @@
 package org.imperiumlabs.geofirestore.core
 
 import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.region.CircleRegion
 import org.imperiumlabs.geofirestore.util.Base32Utils
 import org.imperiumlabs.geofirestore.util.Constants
 import org.imperiumlabs.geofirestore.util.GeoUtils
@@ -8,7 +9,23 @@ import java.util.HashSet
 
 // FULLY TESTED
 
-class GeoHashQuery(var startValue: String, var endValue: String) {
+class GeoHashQuery(startValue: String, endValue: String) {
+
+    var startValue = startValue
+        set(value) {
+            field = value
+            startPacked = PackedGeoHash.pack(value)
+        }
+
+    var endValue = endValue
+        set(value) {
+            field = value
+            endPacked = PackedGeoHash.pack(value)
+        }
+
+    //The bounds packed by PackedGeoHash, used to compare the geohashes without comparing strings
+    private var startPacked = PackedGeoHash.pack(startValue)
+    private var endPacked = PackedGeoHash.pack(endValue)
 
 
     object Utils {
@@ -37,6 +54,13 @@ class GeoHashQuery(var startValue: String, var endValue: String) {
 
     companion object {
 
+        // The latitude above which the geohash cells are too narrow to be sampled from the bounding box
+        private const val POLAR_LATITUDE = 80.0
+
+        // The query reading every document with a geohash
+        @JvmField
+        val FULL_SCAN = GeoHashQuery("", "~")
+
         fun queryForGeoHash(geohash: GeoHash, bits: Int): GeoHashQuery {
             var hash = geohash.geoHashString
             val precision = (Math.ceil(bits.toDouble() / Base32Utils.BITS_PER_BASE32_CHAR)).toInt()
@@ -54,7 +78,19 @@ class GeoHashQuery(var startValue: String, var endValue: String) {
             return GeoHashQuery(startHash, endHash)
         }
 
-        fun queriesAtLocation(location: GeoLocation, radius: Double): Set<GeoHashQuery> {
+        @JvmOverloads
+        fun queriesAtLocation(location: GeoLocation, radius: Double,
+                              costModel: QueryCostModel = QueryCostModel.DEFAULT): Set<GeoHashQuery> {
+            if (radius > GeoUtils.MAX_SUPPORTED_RADIUS * 1000)
+                return globalQueriesAtLocation(location, radius, costModel)
+
+            //A circle near a pole or across the antimeridian can't be planned sampling its bounding box,
+            //cover the polar cap or the two sides of the antimeridian with cells instead
+            val circle = CircleRegion(location, radius / 1000)
+            if (circle.crossesAntimeridian || circle.containsPole ||
+                    Math.abs(circle.boundingBox.north) > POLAR_LATITUDE || Math.abs(circle.boundingBox.south) > POLAR_LATITUDE)
+                return GeoHashCovering.cover(circle)
+
             val queryBits = Math.max(1, Utils.bitsForBoundingBox(location, radius))
             val geoHashPrecision = Math.ceil(queryBits.toDouble() / Base32Utils.BITS_PER_BASE32_CHAR).toInt()
 
@@ -115,6 +151,27 @@ class GeoHashQuery(var startValue: String, var endValue: String) {
 
             return queries
         }
+
+        /**
+         * Plan a circle too large for the bounding box planner, the cheapest plan between the coarse
+         * 1 and 2 characters geohash cells intersecting the circle and a scan of the full collection
+         * is chosen.
+         *
+         * @param location The center of the circle
+         * @param radius The radius of the circle, in meters
+         * @param costModel The model used to compare the plans
+         * @return The set of queries covering the circle
+         */
+        fun globalQueriesAtLocation(location: GeoLocation, radius: Double, costModel: QueryCostModel): Set<GeoHashQuery> {
+            val circle = CircleRegion(location, radius / 1000)
+            val plans = arrayListOf(setOf(FULL_SCAN))
+            for (precision in 1..2) {
+                GeoHashCovering.cellsIntersecting(circle, precision)?.let {
+                    plans.add(GeoHashCovering.queriesForCells(it))
+                }
+            }
+            return costModel.cheapest(*plans.toTypedArray())
+        }
     }
 
     private fun isPrefix(other: GeoHashQuery) =
@@ -142,7 +199,30 @@ class GeoHashQuery(var startValue: String, var endValue: String) {
                 else -> throw IllegalArgumentException("Can't join these two queries: $this, $other")
             }
 
+    /**
+     * Compute the fraction of the geohash space covered by this query.
+     *
+     * @return The covered fraction, between 0 and 1
+     */
+    fun coveredFraction() = fractionOf(endValue) - fractionOf(startValue)
+
+    /*
+     * Position of a geohash bound in the geohash space, "~" is past every base32 character
+     */
+    private fun fractionOf(bound: String): Double {
+        var fraction = 0.0
+        var scale = 1.0
+        for (char in bound) {
+            scale /= 32
+            fraction += scale * (if (char == '~') 32 else Base32Utils.base32CharToValue(char))
+        }
+        return fraction
+    }
+
     fun containsGeoHash(hash: GeoHash): Boolean {
+        val packed = hash.packed
+        if (packed != PackedGeoHash.NOT_PACKED && startPacked != PackedGeoHash.NOT_PACKED && endPacked != PackedGeoHash.NOT_PACKED)
+            return startPacked <= packed && endPacked > packed
         val hashStr = hash.geoHashString
         return this.startValue <= hashStr && this.endValue > hashStr
     }
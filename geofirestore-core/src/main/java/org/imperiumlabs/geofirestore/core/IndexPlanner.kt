@@ -0,0 +1,78 @@
+package org.imperiumlabs.geofirestore.core
+
+import org.imperiumlabs.geofirestore.util.Base32Utils
+
+/**
+ * Translates the GeoHashQuery of a region in the cheapest set of IndexQuery for the
+ * geohash fields stored in the documents.
+ *
+ * The documents always store the geohash at full precision in the field "g" and may store
+ * some of its prefixes in the fields "g1", "g2", ... ; a group of cells can be read from a
+ * prefix field with an equality lookup, which needs fewer and more selective index scans
+ * than a range scan for each of them.
+ */
+object IndexPlanner {
+
+    // The maximal number of values of a single equality lookup
+    const val MAX_LOOKUP_VALUES = 10
+
+    // The maximal number of cells a range is expanded to
+    private const val MAX_EXPANDED_CELLS = 16 * MAX_LOOKUP_VALUES
+
+    /**
+     * Plan the queries needed to read the given geohash ranges.
+     *
+     * @param queries The ranges to read
+     * @param precision The precision of the geohash stored in the field "g"
+     * @param indexPrecisions The precisions of the stored prefix fields
+     * @param costModel The model used to compare the alternative plans
+     * @return The cheapest list of queries reading every range
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun plan(queries: Set<GeoHashQuery>, precision: Int = GeoHash.DEFAULT_PRECISION,
+             indexPrecisions: Collection<Int> = emptyList(), costModel: QueryCostModel = QueryCostModel.DEFAULT): List<IndexQuery> {
+        var best = queries.map { IndexQuery.range(truncate(it, precision)) }.distinct()
+        var bestCost = cost(best, costModel)
+        for (indexPrecision in indexPrecisions) {
+            val cells = expand(queries, indexPrecision) ?: continue
+            val plan = cells.chunked(MAX_LOOKUP_VALUES).map { IndexQuery.prefixes(indexPrecision, it) }
+            val planCost = cost(plan, costModel)
+            if (planCost < bestCost) {
+                best = plan
+                bestCost = planCost
+            }
+        }
+        return best
+    }
+
+    /*
+     * Estimate the cost of a list of queries
+     */
+    private fun cost(plan: List<IndexQuery>, costModel: QueryCostModel) =
+            plan.size * costModel.queryCost + costModel.estimateReads(plan.flatMap { it.queries }.toSet())
+
+    /*
+     * Limit a range to the precision of the stored geohashes, the truncated range reads a superset of the documents
+     */
+    private fun truncate(query: GeoHashQuery, precision: Int): GeoHashQuery {
+        if (query.startValue.length <= precision && query.endValue.length <= precision) return query
+        val end = if (query.endValue.length > precision) query.endValue.substring(0, precision) + "~" else query.endValue
+        return GeoHashQuery(query.startValue.take(precision), end)
+    }
+
+    /*
+     * Get the sorted cells of a given precision overlapping the ranges or null if they are too many
+     */
+    private fun expand(queries: Set<GeoHashQuery>, precision: Int): List<String>? {
+        val cells = sortedSetOf<String>()
+        for (query in queries) {
+            var cell: String? = query.startValue.take(precision).padEnd(precision, Base32Utils.valueToBase32Char(0))
+            while (cell != null && cell < query.endValue) {
+                if (cells.add(cell) && cells.size > MAX_EXPANDED_CELLS) return null
+                cell = GeoHashCovering.nextCell(cell)
+            }
+        }
+        return cells.toList()
+    }
+}
@@ -0,0 +1,70 @@
+package org.imperiumlabs.geofirestore.core
+
+/**
+ * An IndexQuery is a single database query of a plan, it reads the documents either with a
+ * range scan on the full precision geohash field or with an equality lookup of a set of
+ * prefixes on one of the geohash prefix fields.
+ */
+class IndexQuery private constructor(
+        // The name of the field the query runs on
+        val field: String,
+        // The range scanned on the field or null for an equality lookup
+        val range: GeoHashQuery?,
+        // The prefixes looked up on the field or null for a range scan
+        val values: List<String>?) {
+
+    companion object {
+        // The name of the field storing the full precision geohash
+        const val GEOHASH_FIELD = "g"
+
+        /**
+         * Create a range scan on the full precision geohash field.
+         *
+         * @param range The range of geohashes to read
+         * @return The new IndexQuery
+         */
+        @JvmStatic
+        fun range(range: GeoHashQuery) = IndexQuery(GEOHASH_FIELD, range, null)
+
+        /**
+         * Create an equality lookup on a geohash prefix field.
+         *
+         * @param precision The precision of the prefix field
+         * @param values The prefixes to look up
+         * @return The new IndexQuery
+         */
+        @JvmStatic
+        fun prefixes(precision: Int, values: List<String>) = IndexQuery(fieldForPrecision(precision), null, ArrayList(values))
+
+        /**
+         * Get the name of the field storing the geohash prefix of a given precision.
+         *
+         * @param precision The length of the prefix
+         * @return The name of the field
+         */
+        @JvmStatic
+        fun fieldForPrecision(precision: Int) = "$GEOHASH_FIELD$precision"
+    }
+
+    /**
+     * The ranges of geohashes read by this query.
+     */
+    val queries: Set<GeoHashQuery> by lazy {
+        if (range != null) setOf(range) else values!!.map { GeoHashQuery(it, "$it~") }.toSet()
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (other == null || other !is IndexQuery) return false
+        return field == other.field && range == other.range && values == other.values
+    }
+
+    override fun hashCode(): Int {
+        var result = field.hashCode()
+        result = 31 * result + (range?.hashCode() ?: 0)
+        result = 31 * result + (values?.hashCode() ?: 0)
+        return result
+    }
+
+    override fun toString() =
+            if (range != null) "IndexQuery(field='$field', range=$range)" else "IndexQuery(field='$field', values=$values)"
+}
@@ -0,0 +1,74 @@
+package org.imperiumlabs.geofirestore.core
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.util.GeoUtils
+import java.util.ArrayDeque
+
+/**
+ * Estimates the velocity of a moving location from its recent positions and predicts
+ * where it will be, e.g. the center of a GeoQuery following a vehicle.
+ *
+ * The velocity is the displacement between the oldest and the newest position inside the
+ * time window divided by the elapsed time, so it follows a steady heading and ignores the
+ * positions older than the window. The MotionEstimator class is not thread safe.
+ *
+ * @param windowMillis The time window of the positions used to estimate the velocity, in milliseconds
+ */
+class MotionEstimator(val windowMillis: Long) {
+
+    companion object {
+        // The displacement, in meters, below which the location is considered still
+        private const val MIN_DISPLACEMENT = 1.0
+    }
+
+    private class Sample(val timeMillis: Long, val latitude: Double, val longitude: Double)
+
+    private val samples = ArrayDeque<Sample>()
+
+    /**
+     * Add a position of the location, the positions must be added in chronological order.
+     *
+     * @param timeMillis The time of the position, in milliseconds
+     * @param latitude The latitude of the position
+     * @param longitude The longitude of the position
+     */
+    fun addSample(timeMillis: Long, latitude: Double, longitude: Double) {
+        samples.addLast(Sample(timeMillis, latitude, longitude))
+        while (samples.size > 2 && samples.first.timeMillis < timeMillis - windowMillis)
+            samples.removeFirst()
+    }
+
+    /**
+     * Forget all the positions.
+     */
+    fun clear() {
+        samples.clear()
+    }
+
+    /**
+     * Predict the position of the location after some time, assuming it keeps its velocity.
+     *
+     * @param lookaheadMillis The time after the newest position, in milliseconds
+     * @param maxDistance The maximal distance of the prediction from the newest position, in meters
+     * @return The predicted position or null if the location is still or its velocity is unknown
+     */
+    fun predict(lookaheadMillis: Long, maxDistance: Double): GeoLocation? {
+        if (samples.size < 2) return null
+        val first = samples.first
+        val last = samples.last
+        val elapsed = last.timeMillis - first.timeMillis
+        if (elapsed <= 0 || elapsed > windowMillis) return null
+        if (GeoUtils.distance(first.latitude, first.longitude, last.latitude, last.longitude) < MIN_DISPLACEMENT)
+            return null
+        //Extrapolate the displacement in degrees, the longitude is wrapped across the antimeridian
+        var factor = lookaheadMillis.toDouble() / elapsed
+        val deltaLatitude = last.latitude - first.latitude
+        val deltaLongitude = GeoUtils.wrapLongitude(last.longitude - first.longitude)
+        val distance = GeoUtils.distance(last.latitude, last.longitude,
+                last.latitude + deltaLatitude * factor, last.longitude + deltaLongitude * factor)
+        if (distance > maxDistance)
+            factor *= maxDistance / distance
+        val latitude = Math.max(-90.0, Math.min(90.0, last.latitude + deltaLatitude * factor))
+        return GeoLocation(latitude, GeoUtils.wrapLongitude(last.longitude + deltaLongitude * factor))
+    }
+}
@@ -0,0 +1,51 @@
+package org.imperiumlabs.geofirestore.core
+
+import org.imperiumlabs.geofirestore.util.Base32Utils
+
+/**
+ * Packs geohashes and query bounds in a Long preserving their lexicographic order, so a
+ * geohash is compared with the ranges of a query without comparing strings.
+ *
+ * Every character is a digit in base 34: 0 pads the strings shorter than MAX_LENGTH, the
+ * base32 characters are 1 to 32 and the "~" closing a range is 33. Strings longer than
+ * MAX_LENGTH can't be packed and are compared as strings.
+ */
+object PackedGeoHash {
+
+    // The longest string, including a closing "~", that can be packed
+    const val MAX_LENGTH = 12
+
+    // The value returned for the strings that can't be packed
+    const val NOT_PACKED = -1L
+
+    // The base of the digits of a packed string
+    private const val RADIX = 34L
+
+    // The digit of the "~" closing a range
+    private const val TILDE = 33L
+
+    /**
+     * Pack a geohash or a query bound.
+     *
+     * @param hash The geohash or the bound
+     * @return The packed value or NOT_PACKED if the string is too long or not valid
+     */
+    @JvmStatic
+    fun pack(hash: String): Long {
+        if (hash.length > MAX_LENGTH) return NOT_PACKED
+        var packed = 0L
+        for (char in hash) {
+            val digit = when (char) {
+                '~' -> TILDE
+                else -> {
+                    val value = Base32Utils.base32CharToValueOrInvalid(char)
+                    if (value == -1) return NOT_PACKED
+                    value + 1L
+                }
+            }
+            packed = packed * RADIX + digit
+        }
+        for (i in hash.length until MAX_LENGTH) packed *= RADIX
+        return packed
+    }
+}
@@ -0,0 +1,96 @@
+package org.imperiumlabs.geofirestore.core
+
+import java.util.Arrays
+
+/**
+ * The ranges of a query plan packed by PackedGeoHash, merged and sorted so the membership of a
+ * geohash is a binary search without allocations.
+ *
+ * The ranges whose bounds can't be packed are kept apart and compared as strings, as are the
+ * geohashes longer than PackedGeoHash.MAX_LENGTH.
+ */
+class PackedRanges(queries: Collection<GeoHashQuery>) {
+
+    // The starts of the merged ranges, sorted
+    private val starts: LongArray
+
+    // The ends, excluded, of the merged ranges
+    private val ends: LongArray
+
+    // The ranges that can't be packed
+    private val unpacked: List<GeoHashQuery>
+
+    // All the ranges, used for the geohashes that can't be packed
+    private val queries: List<GeoHashQuery> = ArrayList(queries)
+
+    init {
+        val packed = ArrayList<LongArray>()
+        val unpacked = ArrayList<GeoHashQuery>()
+        for (query in queries) {
+            val start = PackedGeoHash.pack(query.startValue)
+            val end = PackedGeoHash.pack(query.endValue)
+            if (start == PackedGeoHash.NOT_PACKED || end == PackedGeoHash.NOT_PACKED) unpacked.add(query)
+            else if (start < end) packed.add(longArrayOf(start, end))
+        }
+        packed.sortBy { it[0] }
+
+        //Join the overlapping and the adjacent ranges
+        val starts = LongArray(packed.size)
+        val ends = LongArray(packed.size)
+        var size = 0
+        for (range in packed) {
+            if (size > 0 && range[0] <= ends[size - 1]) {
+                ends[size - 1] = Math.max(ends[size - 1], range[1])
+            } else {
+                starts[size] = range[0]
+                ends[size] = range[1]
+                size++
+            }
+        }
+        this.starts = starts.copyOf(size)
+        this.ends = ends.copyOf(size)
+        this.unpacked = unpacked
+    }
+
+    /**
+     * The number of ranges after merging the overlapping ones.
+     */
+    val size get() = starts.size + unpacked.size
+
+    /**
+     * Check if a geohash is inside one of the ranges.
+     *
+     * @param hash The geohash to check
+     * @return True if the geohash is inside the ranges
+     */
+    fun contains(hash: GeoHash): Boolean {
+        val packed = hash.packed
+        if (packed == PackedGeoHash.NOT_PACKED) return queries.any { it.containsGeoHash(hash) }
+        //The last range starting before the geohash is the only one that can contain it
+        val index = Arrays.binarySearch(starts, packed)
+        val candidate = if (index >= 0) index else -index - 2
+        if (candidate >= 0 && packed < ends[candidate]) return true
+        for (query in unpacked) if (query.containsGeoHash(hash)) return true
+        return false
+    }
+
+    /**
+     * Remove from a map the values whose geohash is outside the ranges, as the documents
+     * left out by a new plan.
+     *
+     * @param values The map to clean up
+     * @param geoHashOf The function returning the geohash of a value
+     * @return The number of removed values
+     */
+    fun <K, V> removeOutside(values: MutableMap<K, V>, geoHashOf: (V) -> GeoHash): Int {
+        var removed = 0
+        val iterator = values.values.iterator()
+        while (iterator.hasNext()) {
+            if (!contains(geoHashOf(iterator.next()))) {
+                iterator.remove()
+                removed++
+            }
+        }
+        return removed
+    }
+}
@@ -0,0 +1,50 @@
+package org.imperiumlabs.geofirestore.core
+
+/**
+ * A QueryCostModel estimates the cost of a set of GeoHashQuery and is used by the
+ * planner to choose between alternative plans for the same area.
+ *
+ * The documents are assumed to be uniformly distributed over the geohash space, so the
+ * expected reads of a query are proportional to the fraction of the space it covers.
+ */
+class QueryCostModel @JvmOverloads constructor(
+        // The expected number of documents with a location in the collection
+        val documentCount: Long = DEFAULT_DOCUMENT_COUNT,
+        // The cost of running one more query, expressed in document reads
+        val queryCost: Double = DEFAULT_QUERY_COST) {
+
+    companion object {
+        // The default expected number of documents in a collection
+        const val DEFAULT_DOCUMENT_COUNT = 100000L
+
+        // The default cost of a single query, round trip and listener included
+        const val DEFAULT_QUERY_COST = 50.0
+
+        @JvmField
+        val DEFAULT = QueryCostModel()
+    }
+
+    /**
+     * Estimate the number of documents read by a set of queries.
+     *
+     * @param queries The queries to execute
+     * @return The expected number of documents read
+     */
+    fun estimateReads(queries: Set<GeoHashQuery>) = queries.sumByDouble { it.coveredFraction() } * documentCount
+
+    /**
+     * Estimate the cost of a set of queries.
+     *
+     * @param queries The queries to execute
+     * @return The expected cost of the queries, in document reads
+     */
+    fun estimateCost(queries: Set<GeoHashQuery>) = queries.size * queryCost + estimateReads(queries)
+
+    /**
+     * Choose the cheapest between alternative plans.
+     *
+     * @param plans The sets of queries covering the same area
+     * @return The plan with the lowest estimated cost
+     */
+    fun cheapest(vararg plans: Set<GeoHashQuery>) = plans.minBy { estimateCost(it) }!!
+}
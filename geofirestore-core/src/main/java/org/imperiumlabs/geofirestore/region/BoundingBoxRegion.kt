@@ -0,0 +1,58 @@
+package org.imperiumlabs.geofirestore.region
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.core.GeoHashCovering
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+
+/**
+ * A GeoRegion delimited by two parallels and two meridians.
+ */
+class BoundingBoxRegion(
+        // The southern latitude in the range of [-90, 90]
+        val south: Double,
+        // The western longitude in the range of [-180, 180]
+        val west: Double,
+        // The northern latitude in the range of [-90, 90]
+        val north: Double,
+        // The eastern longitude in the range of [-180, 180]
+        val east: Double) : GeoRegion {
+
+    /**
+     * Creates a new BoundingBoxRegion with the given corners.
+     *
+     * @throws IllegalArgumentException If the corners are not valid geo coordinates
+     */
+    init {
+        if (!GeoLocation.coordinatesValid(south, west) || !GeoLocation.coordinatesValid(north, east))
+            throw IllegalArgumentException("Not a valid bounding box: [$south, $west, $north, $east]")
+        if (south > north || west > east)
+            throw IllegalArgumentException("The south-west corner must precede the north-east corner")
+    }
+
+    override val boundingBox: BoundingBoxRegion
+        get() = this
+
+    override fun containsLocation(latitude: Double, longitude: Double) =
+            latitude in south..north && longitude in west..east
+
+    override fun intersectsCell(south: Double, west: Double, north: Double, east: Double) =
+            south <= this.north && north >= this.south && west <= this.east && east >= this.west
+
+    override fun queries() = GeoHashCovering.cover(this)
+
+    override fun toString() = "BoundingBoxRegion($south, $west, $north, $east)"
+
+    override fun equals(other: Any?): Boolean {
+        if (other == null || other !is BoundingBoxRegion) return false
+        return south.compareTo(other.south) == 0 && west.compareTo(other.west) == 0 &&
+                north.compareTo(other.north) == 0 && east.compareTo(other.east) == 0
+    }
+
+    override fun hashCode(): Int {
+        var result = south.hashCode()
+        result = 31 * result + west.hashCode()
+        result = 31 * result + north.hashCode()
+        result = 31 * result + east.hashCode()
+        return result
+    }
+}
@@ -0,0 +1,73 @@
+package org.imperiumlabs.geofirestore.region
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.imperiumlabs.geofirestore.core.QueryCostModel
+import org.imperiumlabs.geofirestore.util.GeoUtils
+
+/**
+ * A GeoRegion delimited by a circle on the surface of the earth.
+ */
+class CircleRegion @JvmOverloads constructor(
+        // The center of the circle
+        val center: GeoLocation,
+        // The radius of the circle, in kilometers
+        val radius: Double,
+        // The model used to plan the circles too large for the bounding box planner
+        private val costModel: QueryCostModel = QueryCostModel.DEFAULT) : GeoRegion {
+
+    private val radiusInMeters = radius * 1000
+
+    // The latitude of the parallels enclosing the circle and its longitude extension on each side of the center
+    private val north = Math.min(90.0, center.latitude + GeoUtils.distanceToLatitudeDegrees(radiusInMeters))
+    private val south = Math.max(-90.0, center.latitude - GeoUtils.distanceToLatitudeDegrees(radiusInMeters))
+    private val longitudeDelta = Math.max(
+            GeoUtils.distanceToLongitudeDegrees(radiusInMeters, north),
+            GeoUtils.distanceToLongitudeDegrees(radiusInMeters, south))
+
+    /**
+     * True if the circle contains the north or the south pole, in this case
+     * it covers every longitude between its southern and northern parallel.
+     */
+    val containsPole: Boolean
+        get() = north >= 90.0 || south <= -90.0 || longitudeDelta >= 180.0
+
+    /**
+     * True if the circle crosses the antimeridian without containing a pole.
+     */
+    val crossesAntimeridian: Boolean
+        get() = !containsPole &&
+                (center.longitude - longitudeDelta < -180.0 || center.longitude + longitudeDelta > 180.0)
+
+    override val boundingBox: BoundingBoxRegion by lazy {
+        if (containsPole || crossesAntimeridian)
+            BoundingBoxRegion(south, -180.0, north, 180.0)
+        else
+            BoundingBoxRegion(south, center.longitude - longitudeDelta, north, center.longitude + longitudeDelta)
+    }
+
+    override val boundingBoxes: List<BoundingBoxRegion> by lazy {
+        if (crossesAntimeridian) {
+            val west = GeoUtils.wrapLongitude(center.longitude - longitudeDelta)
+            val east = GeoUtils.wrapLongitude(center.longitude + longitudeDelta)
+            listOf(BoundingBoxRegion(south, west, north, 180.0), BoundingBoxRegion(south, -180.0, north, east))
+        } else listOf(boundingBox)
+    }
+
+    override fun containsLocation(latitude: Double, longitude: Double) =
+            GeoUtils.distance(latitude, longitude, center.latitude, center.longitude) <= radiusInMeters
+
+    override fun intersectsCell(south: Double, west: Double, north: Double, east: Double) =
+            GeoUtils.distanceToBoundingBox(center.latitude, center.longitude, south, west, north, east) <= radiusInMeters
+
+    override fun queries(): Set<GeoHashQuery> = GeoHashQuery.queriesAtLocation(center, radiusInMeters, costModel)
+
+    override fun toString() = "CircleRegion($center, $radius)"
+
+    override fun equals(other: Any?): Boolean {
+        if (other == null || other !is CircleRegion) return false
+        return center == other.center && radius.compareTo(other.radius) == 0
+    }
+
+    override fun hashCode() = 31 * center.hashCode() + radius.hashCode()
+}
@@ -0,0 +1,52 @@
+package org.imperiumlabs.geofirestore.region
+
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+
+/**
+ * A GeoRegion is an area of the globe that can be queried with GeoFirestore.
+ *
+ * Every region produces its own covering of GeoHashQuery and is able to tell
+ * if a location obtained from the database is inside it.
+ */
+interface GeoRegion {
+
+    /**
+     * The smallest latitude/longitude rectangle containing the region.
+     */
+    val boundingBox: BoundingBoxRegion
+
+    /**
+     * The rectangles covering the region, a region crossing the antimeridian
+     * is covered by a rectangle on each side of it.
+     */
+    val boundingBoxes: List<BoundingBoxRegion>
+        get() = listOf(boundingBox)
+
+    /**
+     * Checks if a location is inside this region.
+     *
+     * @param latitude The latitude of the location
+     * @param longitude The longitude of the location
+     * @return True if the location is inside this region
+     */
+    fun containsLocation(latitude: Double, longitude: Double): Boolean
+
+    /**
+     * Checks if a geohash cell may intersect this region, false positives are allowed
+     * but a cell intersecting the region must never be excluded.
+     *
+     * @param south The southern latitude of the cell
+     * @param west The western longitude of the cell
+     * @param north The northern latitude of the cell
+     * @param east The eastern longitude of the cell
+     * @return True if the cell intersects this region
+     */
+    fun intersectsCell(south: Double, west: Double, north: Double, east: Double): Boolean
+
+    /**
+     * Get the set of GeoHashQuery covering this region.
+     *
+     * @return The queries that must be executed to retrieve all the documents inside this region
+     */
+    fun queries(): Set<GeoHashQuery>
+}
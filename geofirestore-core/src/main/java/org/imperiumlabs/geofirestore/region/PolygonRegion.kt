@@ -0,0 +1,108 @@
+package org.imperiumlabs.geofirestore.region
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.core.GeoHashCovering
+
+/**
+ * A GeoRegion delimited by a simple polygon.
+ *
+ * The edges of the polygon are straight lines in the latitude/longitude plane,
+ * the polygon must not cross the antimeridian.
+ */
+class PolygonRegion(vertices: List<GeoLocation>) : GeoRegion {
+
+    // The vertices of the polygon, the last vertex is implicitly joined to the first one
+    val vertices: List<GeoLocation> = ArrayList(vertices)
+
+    private val latitudes = DoubleArray(vertices.size) { vertices[it].latitude }
+    private val longitudes = DoubleArray(vertices.size) { vertices[it].longitude }
+
+    /**
+     * Creates a new PolygonRegion with the given vertices.
+     *
+     * @throws IllegalArgumentException If the polygon has less than three vertices
+     */
+    init {
+        if (vertices.size < 3)
+            throw IllegalArgumentException("A polygon must have at least three vertices")
+    }
+
+    override val boundingBox = BoundingBoxRegion(latitudes.min()!!, longitudes.min()!!, latitudes.max()!!, longitudes.max()!!)
+
+    override fun containsLocation(latitude: Double, longitude: Double): Boolean {
+        if (!boundingBox.containsLocation(latitude, longitude)) return false
+        //Count the crossings of a ray cast from the location toward the east
+        var inside = false
+        var j = latitudes.size - 1
+        for (i in latitudes.indices) {
+            if ((latitudes[i] > latitude) != (latitudes[j] > latitude) &&
+                    longitude < (longitudes[j] - longitudes[i]) * (latitude - latitudes[i]) / (latitudes[j] - latitudes[i]) + longitudes[i])
+                inside = !inside
+            j = i
+        }
+        return inside
+    }
+
+    override fun intersectsCell(south: Double, west: Double, north: Double, east: Double): Boolean {
+        if (!boundingBox.intersectsCell(south, west, north, east)) return false
+        //A corner of the cell inside the polygon
+        if (containsLocation(south, west)) return true
+        //A vertex of the polygon inside the cell
+        for (i in latitudes.indices)
+            if (latitudes[i] in south..north && longitudes[i] in west..east) return true
+        //An edge of the polygon crossing an edge of the cell
+        var j = latitudes.size - 1
+        for (i in latitudes.indices) {
+            if (segmentsIntersect(latitudes[i], longitudes[i], latitudes[j], longitudes[j], south, west, north, west) ||
+                    segmentsIntersect(latitudes[i], longitudes[i], latitudes[j], longitudes[j], north, west, north, east) ||
+                    segmentsIntersect(latitudes[i], longitudes[i], latitudes[j], longitudes[j], north, east, south, east) ||
+                    segmentsIntersect(latitudes[i], longitudes[i], latitudes[j], longitudes[j], south, east, south, west))
+                return true
+            j = i
+        }
+        return false
+    }
+
+    override fun queries() = GeoHashCovering.cover(this)
+
+    /*
+     * Check if the segment (a1, a2) intersects the segment (b1, b2), segments touching
+     * at a point or overlapping on the same line intersect
+     */
+    private fun segmentsIntersect(a1Lat: Double, a1Lon: Double, a2Lat: Double, a2Lon: Double,
+                                  b1Lat: Double, b1Lon: Double, b2Lat: Double, b2Lon: Double): Boolean {
+        val d1 = orientation(b1Lat, b1Lon, b2Lat, b2Lon, a1Lat, a1Lon)
+        val d2 = orientation(b1Lat, b1Lon, b2Lat, b2Lon, a2Lat, a2Lon)
+        val d3 = orientation(a1Lat, a1Lon, a2Lat, a2Lon, b1Lat, b1Lon)
+        val d4 = orientation(a1Lat, a1Lon, a2Lat, a2Lon, b2Lat, b2Lon)
+        if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0)))
+            return true
+        //An end of a segment on the other segment
+        return (d1 == 0.0 && onSegment(b1Lat, b1Lon, b2Lat, b2Lon, a1Lat, a1Lon)) ||
+                (d2 == 0.0 && onSegment(b1Lat, b1Lon, b2Lat, b2Lon, a2Lat, a2Lon)) ||
+                (d3 == 0.0 && onSegment(a1Lat, a1Lon, a2Lat, a2Lon, b1Lat, b1Lon)) ||
+                (d4 == 0.0 && onSegment(a1Lat, a1Lon, a2Lat, a2Lon, b2Lat, b2Lon))
+    }
+
+    /*
+     * Check if a point on the line of the segment (p1, p2) lies between its ends
+     */
+    private fun onSegment(p1Lat: Double, p1Lon: Double, p2Lat: Double, p2Lon: Double, pLat: Double, pLon: Double) =
+            pLat >= Math.min(p1Lat, p2Lat) && pLat <= Math.max(p1Lat, p2Lat) &&
+                    pLon >= Math.min(p1Lon, p2Lon) && pLon <= Math.max(p1Lon, p2Lon)
+
+    /*
+     * Sign of the cross product between the vectors (p1, p2) and (p1, p3)
+     */
+    private fun orientation(p1Lat: Double, p1Lon: Double, p2Lat: Double, p2Lon: Double, p3Lat: Double, p3Lon: Double) =
+            (p2Lon - p1Lon) * (p3Lat - p1Lat) - (p2Lat - p1Lat) * (p3Lon - p1Lon)
+
+    override fun toString() = "PolygonRegion($vertices)"
+
+    override fun equals(other: Any?): Boolean {
+        if (other == null || other !is PolygonRegion) return false
+        return vertices == other.vertices
+    }
+
+    override fun hashCode() = vertices.hashCode()
+}
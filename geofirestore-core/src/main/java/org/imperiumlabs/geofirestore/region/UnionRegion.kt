@@ -0,0 +1,70 @@
+package org.imperiumlabs.geofirestore.region
+
+import org.imperiumlabs.geofirestore.core.GeoHashCovering
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.imperiumlabs.geofirestore.util.Base32Utils
+
+/**
+ * A GeoRegion made of the union of some regions, e.g. many small zones read by a single GeoQuery.
+ *
+ * The queries of the union are the queries of its regions, the ranges overlapping or adjacent to
+ * the range of another region are merged with it so that a document is never read twice.
+ */
+class UnionRegion(regions: Collection<GeoRegion>) : GeoRegion {
+
+    // The regions of the union
+    val regions: List<GeoRegion> = ArrayList(regions)
+
+    /**
+     * Creates a new UnionRegion with the given regions.
+     *
+     * @throws IllegalArgumentException If there are no regions
+     */
+    init {
+        if (regions.isEmpty())
+            throw IllegalArgumentException("A union must have at least one region")
+    }
+
+    override val boundingBoxes = this.regions.flatMap { it.boundingBoxes }
+
+    override val boundingBox = BoundingBoxRegion(
+            boundingBoxes.map { it.south }.min()!!, boundingBoxes.map { it.west }.min()!!,
+            boundingBoxes.map { it.north }.max()!!, boundingBoxes.map { it.east }.max()!!)
+
+    override fun containsLocation(latitude: Double, longitude: Double) =
+            regions.any { it.containsLocation(latitude, longitude) }
+
+    override fun intersectsCell(south: Double, west: Double, north: Double, east: Double) =
+            regions.any { it.intersectsCell(south, west, north, east) }
+
+    override fun queries(): Set<GeoHashQuery> {
+        //Sorted by start, a range starting before the end of the previous one or right after it is merged with it
+        val sorted = regions.flatMap { it.queries() }.sortedBy { it.startValue }
+        val queries = HashSet<GeoHashQuery>()
+        var merged: GeoHashQuery? = null
+        for (query in sorted) {
+            val last = merged
+            merged = when {
+                last == null -> query
+                query.startValue <= last.endValue || isAdjacent(last.endValue, query.startValue) ->
+                    if (query.endValue > last.endValue) GeoHashQuery(last.startValue, query.endValue) else last
+                else -> {
+                    queries.add(last)
+                    query
+                }
+            }
+        }
+        merged?.let { queries.add(it) }
+        return queries
+    }
+
+    /*
+     * Check if a range starts right after the end of another one: the end "abc~" is followed by the
+     * cell "abd" and by its first cells at the finer precisions, e.g. "abd00"
+     */
+    private fun isAdjacent(end: String, start: String): Boolean {
+        if (!end.endsWith("~")) return false
+        val next = GeoHashCovering.nextCell(end.dropLast(1)) ?: return false
+        return start.startsWith(next) && start.drop(next.length).all { it == Base32Utils.valueToBase32Char(0) }
+    }
+}
@@ -12,6 +12,9 @@ object Base32Utils {
     //String representing the Base32 character map
     private const val BASE32_CHARS = "0123456789bcdefghjkmnpqrstuvwxyz"
 
+    //Value of every ASCII character, -1 for the characters not in the Base32 character map
+    private val BASE32_VALUES = IntArray(128) { BASE32_CHARS.indexOf(it.toChar()) }
+
     /*
      * This method convert a given value to his corresponding Base32 character
      */
@@ -25,17 +28,21 @@ object Base32Utils {
      * This method convert a given Base32 character to his corresponding value
      */
     fun base32CharToValue(base32Char: Char): Int {
-        val value = BASE32_CHARS.indexOf(base32Char)
+        val value = base32CharToValueOrInvalid(base32Char)
         if (value == -1)
             throw IllegalArgumentException("Not a valid base32 char: $base32Char")
         return value
     }
 
+    /*
+     * This method convert a given Base32 character to his corresponding value, -1 if it is not valid
+     */
+    fun base32CharToValueOrInvalid(base32Char: Char) =
+            if (base32Char.toInt() < BASE32_VALUES.size) BASE32_VALUES[base32Char.toInt()] else -1
+
     /*
      * This method check if a given geo hash is valid
      */
     fun isValidBase32String(string: String) =
-            if (string.isNotEmpty())
-                string.matches("^[$BASE32_CHARS]*$".toRegex())
-            else false
+            string.isNotEmpty() && string.all { base32CharToValueOrInvalid(it) != -1 }
 }
@@ -0,0 +1,29 @@
+package org.imperiumlabs.geofirestore.util
+
+/**
+ * The source of the current time, e.g. of the expiration of the locations and of the motion
+ * of a GeoQuery. It can be replaced by a clock moved manually to test the code depending on
+ * the time without waiting.
+ */
+interface Clock {
+
+    companion object {
+        // The clock of the system
+        @JvmField
+        val SYSTEM: Clock = object : Clock {
+            override fun currentTimeMillis() = System.currentTimeMillis()
+
+            override fun nanoTime() = System.nanoTime()
+        }
+    }
+
+    /**
+     * @return The current time, in milliseconds since the epoch
+     */
+    fun currentTimeMillis(): Long
+
+    /**
+     * @return The current time of a monotonic source, in nanoseconds, to measure elapsed times
+     */
+    fun nanoTime(): Long
+}
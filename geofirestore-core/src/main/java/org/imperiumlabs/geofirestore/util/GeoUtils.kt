@@ -1,13 +1,14 @@
 package org.imperiumlabs.geofirestore.util
 
-import org.imperiumlabs.geofirestore.GeoFirestore
 import org.imperiumlabs.geofirestore.GeoLocation
+import java.util.logging.Logger
 
 // FULLY TESTED
 
 object GeoUtils {
 
-    private const val MAX_SUPPORTED_RADIUS = 8587
+    // The largest radius, in kilometers, that can be planned sampling the bounding box of a circle
+    const val MAX_SUPPORTED_RADIUS = 8587
 
     fun distance(location1: GeoLocation, location2: GeoLocation) =
             distance(location1.latitude, location1.longitude, location2.latitude, location2.longitude)
@@ -24,6 +25,33 @@ object GeoUtils {
         return radius * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a))
     }
 
+    /*
+     * Compute the distance in meters between a location and the closest point of a latitude/longitude
+     * rectangle; the distance is zero if the location is inside the rectangle
+     */
+    fun distanceToBoundingBox(latitude: Double, longitude: Double,
+                              south: Double, west: Double, north: Double, east: Double): Double {
+        if (longitude in west..east)
+            return distance(latitude, longitude, Math.max(south, Math.min(north, latitude)), longitude)
+        //The closest point lies on the west or on the east meridian of the rectangle
+        return Math.min(
+                distanceToMeridian(latitude, longitude, west, south, north),
+                distanceToMeridian(latitude, longitude, east, south, north))
+    }
+
+    /*
+     * Compute the distance in meters between a location and a segment [south, north] of a meridian
+     */
+    private fun distanceToMeridian(latitude: Double, longitude: Double,
+                                   meridian: Double, south: Double, north: Double): Double {
+        val lat = Math.toRadians(latitude)
+        val lonDelta = Math.toRadians(longitude - meridian)
+        //Latitude of the point of the whole meridian closest to the location
+        val closest = Math.toDegrees(Math.atan2(Math.sin(lat), Math.cos(lat) * Math.cos(lonDelta)))
+        val clamped = Math.max(south, Math.min(north, Math.max(-90.0, Math.min(90.0, closest))))
+        return distance(latitude, longitude, clamped, meridian)
+    }
+
     fun distanceToLatitudeDegrees(distance: Double) = distance / Constants.METERS_PER_DEGREE_LATITUDE
 
     fun distanceToLongitudeDegrees(distance: Double, latitude: Double): Double {
@@ -44,9 +72,10 @@ object GeoUtils {
         return if (adjusted > 0) (adjusted % 360.0) - 180 else 180 - (-adjusted % 360)
     }
 
+    @Deprecated("Radii bigger than MAX_SUPPORTED_RADIUS are planned by GeoHashQuery.globalQueriesAtLocation")
     fun capRadius(radius: Double): Double {
         if (radius > MAX_SUPPORTED_RADIUS) {
-            GeoFirestore.LOGGER.warning("The radius is bigger than $MAX_SUPPORTED_RADIUS and hence we'll use that value")
+            Logger.getLogger("GeoFirestore").warning("The radius is bigger than $MAX_SUPPORTED_RADIUS and hence we'll use that value")
             return MAX_SUPPORTED_RADIUS.toDouble()
         }
         return radius
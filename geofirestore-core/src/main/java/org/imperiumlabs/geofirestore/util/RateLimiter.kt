@@ -0,0 +1,43 @@
+package org.imperiumlabs.geofirestore.util
+
+/**
+ * A rate limiter reserving permits at a steady rate, without blocking the caller.
+ *
+ * Every reservation returns how long to wait before using its permits, the reservations are
+ * spaced so that on average no more than permitsPerSecond permits are used every second. A
+ * limiter idle for a while doesn't accumulate permits for a later burst.
+ * The RateLimiter class is thread safe.
+ *
+ * @param permitsPerSecond The maximal rate of the permits
+ * @throws IllegalArgumentException If the rate is not positive
+ */
+class RateLimiter(val permitsPerSecond: Double) {
+
+    // The time the next permits are free, in nanoseconds
+    private var nextFreeNanos = 0L
+    private var started = false
+
+    init {
+        if (permitsPerSecond.isNaN() || permitsPerSecond <= 0)
+            throw IllegalArgumentException("The rate of a RateLimiter must be positive!")
+    }
+
+    /**
+     * Reserve some permits.
+     *
+     * @param permits The number of permits to reserve
+     * @param nowNanos The current time, in nanoseconds
+     * @return The time to wait before using the permits, in milliseconds
+     */
+    @Synchronized
+    @JvmOverloads
+    fun reserve(permits: Int, nowNanos: Long = System.nanoTime()): Long {
+        if (!started || nowNanos - nextFreeNanos > 0) {
+            nextFreeNanos = nowNanos
+            started = true
+        }
+        val delayNanos = nextFreeNanos - nowNanos
+        nextFreeNanos += (permits * 1e9 / permitsPerSecond).toLong()
+        return delayNanos / 1_000_000
+    }
+}
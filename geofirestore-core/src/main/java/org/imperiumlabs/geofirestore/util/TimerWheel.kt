@@ -0,0 +1,104 @@
+package org.imperiumlabs.geofirestore.util
+
+/**
+ * A hashed timer wheel of deadlines by key.
+ *
+ * Every key is kept in the slot of its deadline, a slot covers tickMillis and the wheel turns
+ * every slots ticks, so advancing the wheel examines only the keys of the elapsed slots instead
+ * of every key. A deadline after a whole turn stays in its slot until its turn comes. Scheduling
+ * again a key replaces its deadline. The TimerWheel class is not thread safe.
+ *
+ * @param tickMillis The time covered by a slot, in milliseconds
+ * @param slots The number of slots of the wheel
+ * @throws IllegalArgumentException If the tick or the number of slots is not positive
+ */
+class TimerWheel @JvmOverloads constructor(val tickMillis: Long, private val slots: Int = DEFAULT_SLOTS) {
+
+    companion object {
+        // The default number of slots of the wheel
+        const val DEFAULT_SLOTS = 512
+    }
+
+    private class Entry(val deadlineMillis: Long, val slot: Int)
+
+    private val buckets = Array(slots) { HashSet<String>() }
+    private val entries = HashMap<String, Entry>()
+    // The last tick advanced, -1 before the first advance
+    private var lastTick = -1L
+
+    init {
+        if (tickMillis <= 0 || slots <= 0)
+            throw IllegalArgumentException("The tick and the slots of a TimerWheel must be positive!")
+    }
+
+    // The number of scheduled keys
+    val size: Int
+        get() = entries.size
+
+    /**
+     * Schedule a key, replacing its previous deadline.
+     *
+     * @param key The key to schedule
+     * @param deadlineMillis The time the key expires, in milliseconds
+     */
+    fun schedule(key: String, deadlineMillis: Long) {
+        val entry = Entry(deadlineMillis, slotOf(deadlineMillis))
+        entries.put(key, entry)?.let { buckets[it.slot].remove(key) }
+        buckets[entry.slot].add(key)
+    }
+
+    /**
+     * Cancel the deadline of a key.
+     *
+     * @param key The key to cancel
+     */
+    fun cancel(key: String) {
+        entries.remove(key)?.let { buckets[it.slot].remove(key) }
+    }
+
+    /**
+     * Remove every key.
+     */
+    fun clear() {
+        buckets.forEach { it.clear() }
+        entries.clear()
+    }
+
+    /**
+     * Advance the wheel up to a time and remove the expired keys.
+     *
+     * @param nowMillis The current time, in milliseconds
+     * @return The keys whose deadline is not after nowMillis
+     */
+    fun advance(nowMillis: Long): List<String> {
+        val nowTick = nowMillis / tickMillis
+        //The last tick is examined again, its later deadlines may have been left there
+        val ticks = if (lastTick < 0) slots.toLong() else Math.min(slots.toLong(), nowTick - lastTick + 1)
+        val expired = ArrayList<String>()
+        for (i in 0 until ticks) {
+            val bucket = buckets[slotOfTick(nowTick - i)]
+            val iterator = bucket.iterator()
+            while (iterator.hasNext()) {
+                val key = iterator.next()
+                if (entries.getValue(key).deadlineMillis <= nowMillis) {
+                    iterator.remove()
+                    entries.remove(key)
+                    expired.add(key)
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, nowTick)
+        return expired
+    }
+
+    /*
+     * Get the slot of a deadline, a deadline already passed goes in the slot of the last tick
+     * so that it's not missed until the next turn
+     */
+    private fun slotOf(deadlineMillis: Long) = slotOfTick(Math.max(deadlineMillis / tickMillis, lastTick))
+
+    /*
+     * Get the slot of a tick, also for the ticks before the epoch
+     */
+    private fun slotOfTick(tick: Long) = (((tick % slots) + slots) % slots).toInt()
+}
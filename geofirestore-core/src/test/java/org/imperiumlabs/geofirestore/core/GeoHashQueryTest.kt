@@ -0,0 +1,205 @@
+package org.imperiumlabs.geofirestore.core
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.region.CircleRegion
+import org.imperiumlabs.geofirestore.util.Base32Utils
+import org.imperiumlabs.geofirestore.util.Constants
+import org.imperiumlabs.geofirestore.util.GeoUtils
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Property based tests of GeoHashQuery.queriesAtLocation, the planned queries are compared
+ * against a brute force coverage of random circles on the whole globe, including the
+ * areas around the poles and across the antimeridian.
+ */
+class GeoHashQueryTest {
+
+    companion object {
+        private const val SEED = 42L
+        private const val CIRCLES = 500
+        private const val POINTS_PER_CIRCLE = 200
+
+        // Earth's mean radius in meters
+        private const val EARTH_RADIUS = (Constants.EARTH_EQ_RADIUS + Constants.EARTH_POLAR_RADIUS) / 2
+
+        // The maximal ratio between the area read by the planned queries and the brute force coverage
+        private const val MAX_AREA_RATIO = 16.0
+
+        // The maximal number of queries planned for a circle
+        private const val MAX_QUERIES = 16
+    }
+
+    @Test
+    fun plannedQueriesContainEveryPointOfTheCircle() {
+        forRandomCircles { center, radius, queries ->
+            for (point in randomPointsInCircle(center, radius)) {
+                val hash = GeoHash(point.latitude, point.longitude, GeoHash.MAX_PRECISION)
+                assertTrue("$point inside the circle $center, $radius is not covered by $queries",
+                        queries.any { it.containsGeoHash(hash) })
+            }
+        }
+    }
+
+    @Test
+    fun plannedQueriesReadABoundedArea() {
+        forRandomCircles { center, radius, queries ->
+            //The brute force coverage reads every cell intersecting the circle at the precision of the plan
+            val precision = queries.map { it.startValue.length }.max()!!
+            val bruteForceArea = GeoHashCovering.cellsIntersecting(CircleRegion(center, radius / 1000), precision)!!
+                    .sumByDouble { cellArea(GeoHashCovering.cellBounds(it)) }
+            val plannedArea = queries.sumByDouble { rangeArea(it) }
+            assertTrue("$queries for the circle $center, $radius read ${plannedArea / bruteForceArea} times the brute force area",
+                    plannedArea <= MAX_AREA_RATIO * bruteForceArea)
+            assertTrue("${queries.size} queries planned for the circle $center, $radius",
+                    queries.size <= MAX_QUERIES)
+        }
+    }
+
+    @Test
+    fun globalQueriesChooseTheCheapestPlan() {
+        val center = GeoLocation(45.0, 9.0)
+        //Beyond the radius of the bounding box planner, the radii were capped to it before
+        val radius = 10000 * 1000.0
+        assertTrue(radius > GeoUtils.MAX_SUPPORTED_RADIUS * 1000)
+
+        //A small collection is read with a single scan, a large one with the coarse cells intersecting the circle
+        val scan = GeoHashQuery.queriesAtLocation(center, radius, QueryCostModel(100))
+        assertEquals(setOf(GeoHashQuery.FULL_SCAN), scan)
+        val largeCollection = QueryCostModel(1000000000)
+        val cells = GeoHashQuery.queriesAtLocation(center, radius, largeCollection)
+        assertTrue("$cells", cells.all { it.startValue.length in 1..2 })
+        assertTrue(largeCollection.estimateCost(cells) < largeCollection.estimateCost(scan))
+
+        for (queries in listOf(scan, cells)) {
+            for (point in randomPointsInCircle(center, radius)) {
+                val hash = GeoHash(point.latitude, point.longitude, GeoHash.MAX_PRECISION)
+                assertTrue("$point inside the circle is not covered by $queries", queries.any { it.containsGeoHash(hash) })
+            }
+        }
+    }
+
+    @Test
+    fun packedComparisonMatchesStringComparison() {
+        forRandomCircles { center, radius, queries ->
+            for (point in randomPointsInCircle(center, radius * 2)) {
+                val hash = GeoHash(point.latitude, point.longitude, GeoHash.DEFAULT_PRECISION)
+                for (query in queries) {
+                    val expected = query.startValue <= hash.geoHashString && query.endValue > hash.geoHashString
+                    assertEquals("$hash in $query", expected, query.containsGeoHash(hash))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun packedRangesMatchTheQueries() {
+        forRandomCircles { center, radius, queries ->
+            val ranges = PackedRanges(queries)
+            for (point in randomPointsInCircle(center, radius * 2)) {
+                for (precision in intArrayOf(GeoHash.DEFAULT_PRECISION, GeoHash.MAX_PRECISION)) {
+                    val hash = GeoHash(point.latitude, point.longitude, precision)
+                    assertEquals("$hash in $queries", queries.any { it.containsGeoHash(hash) }, ranges.contains(hash))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun rangesContainingTheCenterAreAtZeroDistance() {
+        //At 20km the range containing the center doesn't start with the cell of the center
+        val hash = GeoHash(45.0, 9.0, GeoHash.MAX_PRECISION)
+        val range = GeoHashQuery.queriesAtLocation(GeoLocation(45.0, 9.0), 20000.0).single { it.containsGeoHash(hash) }
+        assertTrue(range.toString(), !hash.geoHashString.startsWith(range.startValue))
+        assertEquals(0.0, GeoHashCovering.distanceToRange(45.0, 9.0, range), 0.0)
+
+        forRandomCircles { center, _, queries ->
+            val centerHash = GeoHash(center.latitude, center.longitude, GeoHash.MAX_PRECISION)
+            for (query in queries) {
+                val distance = GeoHashCovering.distanceToRange(center.latitude, center.longitude, query)
+                if (query.containsGeoHash(centerHash)) assertEquals("$center in $query", 0.0, distance, 0.0)
+                else assertTrue("$center outside $query", distance < Double.MAX_VALUE)
+            }
+        }
+    }
+
+    /*
+     * Run the block on random circles, one third of them is placed near a pole and
+     * one third near the antimeridian
+     */
+    private fun forRandomCircles(block: (GeoLocation, Double, Set<GeoHashQuery>) -> Unit) {
+        val random = Random(SEED)
+        for (i in 0 until CIRCLES) {
+            val latitude = when (i % 3) {
+                0 -> (random.nextDouble() * 2 - 1) * 90
+                1 -> (if (random.nextBoolean()) 1 else -1) * (90 - random.nextDouble() * 5)
+                else -> (random.nextDouble() * 2 - 1) * 80
+            }
+            val longitude = when (i % 3) {
+                2 -> (if (random.nextBoolean()) 1 else -1) * (180 - random.nextDouble() * 5)
+                else -> (random.nextDouble() * 2 - 1) * 180
+            }
+            //Radius between 10m and 2000km with a log-uniform distribution
+            val radius = Math.pow(10.0, 1 + random.nextDouble() * 5.3)
+            val center = GeoLocation(latitude, longitude)
+            block(center, radius, GeoHashQuery.queriesAtLocation(center, radius))
+        }
+    }
+
+    /*
+     * Generate random points inside a circle, the points on its border are included
+     */
+    private fun randomPointsInCircle(center: GeoLocation, radius: Double): List<GeoLocation> {
+        val random = Random(center.hashCode().toLong())
+        return List(POINTS_PER_CIRCLE) { i ->
+            val distance = if (i % 4 == 0) radius * 0.999 else radius * Math.sqrt(random.nextDouble())
+            destination(center, random.nextDouble() * 2 * Math.PI, distance)
+        }
+    }
+
+    /*
+     * Compute the location at a given distance and bearing from a start location
+     */
+    private fun destination(start: GeoLocation, bearing: Double, distance: Double): GeoLocation {
+        val angular = distance / EARTH_RADIUS
+        val lat1 = Math.toRadians(start.latitude)
+        val lon1 = Math.toRadians(start.longitude)
+        val lat2 = Math.asin(Math.sin(lat1) * Math.cos(angular) + Math.cos(lat1) * Math.sin(angular) * Math.cos(bearing))
+        val lon2 = lon1 + Math.atan2(Math.sin(bearing) * Math.sin(angular) * Math.cos(lat1),
+                Math.cos(angular) - Math.sin(lat1) * Math.sin(lat2))
+        val longitude = ((Math.toDegrees(lon2) + 540) % 360) - 180
+        return GeoLocation(Math.max(-90.0, Math.min(90.0, Math.toDegrees(lat2))), Math.max(-180.0, Math.min(180.0, longitude)))
+    }
+
+    private fun cellArea(bounds: DoubleArray) =
+            EARTH_RADIUS * EARTH_RADIUS * Math.toRadians(bounds[3] - bounds[1]) *
+                    (Math.sin(Math.toRadians(bounds[2])) - Math.sin(Math.toRadians(bounds[0])))
+
+    /*
+     * Compute the area read by a query summing the area of the cells between its start and end value
+     */
+    private fun rangeArea(query: GeoHashQuery): Double {
+        var area = 0.0
+        var cell: String? = query.startValue
+        while (cell != null && cell < query.endValue) {
+            area += cellArea(GeoHashCovering.cellBounds(cell))
+            cell = nextCell(cell)
+        }
+        return area
+    }
+
+    private fun nextCell(cell: String): String? {
+        val chars = cell.toCharArray()
+        for (i in chars.indices.reversed()) {
+            val value = Base32Utils.base32CharToValue(chars[i])
+            if (value < 31) {
+                chars[i] = Base32Utils.valueToBase32Char(value + 1)
+                return String(chars)
+            }
+            chars[i] = Base32Utils.valueToBase32Char(0)
+        }
+        return null
+    }
+}
@@ -0,0 +1,80 @@
+package org.imperiumlabs.geofirestore.core
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.util.Base32Utils
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Tests of IndexPlanner choosing between the range scans of the field "g" and the
+ * lookups of the prefix fields.
+ */
+class IndexPlannerTest {
+
+    companion object {
+        private const val SEED = 42L
+        private const val CIRCLES = 200
+        private const val HASHES_PER_QUERY = 20
+    }
+
+    @Test
+    fun rangesAreTruncatedToThePrecision() {
+        val plan = IndexPlanner.plan(setOf(GeoHashQuery("u0nd9hx", "u0nd9hz")), 5)
+        assertEquals(listOf(IndexQuery.range(GeoHashQuery("u0nd9", "u0nd9~"))), plan)
+        assertEquals(IndexQuery.GEOHASH_FIELD, plan[0].field)
+    }
+
+    @Test
+    fun scatteredCellsAreLookedUpOnThePrefixField() {
+        val cells = listOf("u0n0", "u0n2", "u0n8", "u0nb", "u0nd", "u0nf", "u0nu")
+        val queries = cells.map { GeoHashQuery(it, "$it~") }.toSet()
+
+        //Without prefix fields every cell is a range scan, with them a single lookup reads all the cells
+        assertEquals(cells.size, IndexPlanner.plan(queries).size)
+        val plan = IndexPlanner.plan(queries, GeoHash.DEFAULT_PRECISION, setOf(4))
+        assertEquals(listOf(IndexQuery.prefixes(4, cells)), plan)
+        assertEquals("g4", plan[0].field)
+        assertEquals(queries, plan[0].queries)
+    }
+
+    @Test
+    fun largeRangesAreScanned() {
+        //The range holds 32 cells of precision 3, four lookups cost more than a single scan
+        val range = GeoHashQuery("u0", "u0~")
+        assertEquals(listOf(IndexQuery.range(range)), IndexPlanner.plan(setOf(range), GeoHash.DEFAULT_PRECISION, setOf(3)))
+        //The range holds too many cells of precision 4 to be expanded
+        assertEquals(listOf(IndexQuery.range(range)), IndexPlanner.plan(setOf(range), GeoHash.DEFAULT_PRECISION, setOf(4)))
+    }
+
+    @Test
+    fun plansReadEveryRange() {
+        val random = Random(SEED)
+        for (i in 0 until CIRCLES) {
+            val center = GeoLocation((random.nextDouble() * 2 - 1) * 80, (random.nextDouble() * 2 - 1) * 180)
+            //Radius between 10m and 1000km with a log-uniform distribution
+            val radius = Math.pow(10.0, 1 + random.nextDouble() * 5)
+            val queries = GeoHashQuery.queriesAtLocation(center, radius)
+            val plan = IndexPlanner.plan(queries, GeoHash.DEFAULT_PRECISION, setOf(3, 4, 5, 6))
+            assertTrue("$plan", plan.all { it.values == null || it.values!!.size <= IndexPlanner.MAX_LOOKUP_VALUES })
+
+            val planned = plan.flatMap { it.queries }
+            for (query in queries) {
+                for (hash in randomHashesIn(random, query).filter { query.containsGeoHash(it) }) {
+                    assertTrue("$hash of $query is not read by $plan", planned.any { it.containsGeoHash(hash) })
+                }
+            }
+        }
+    }
+
+    /*
+     * Generate random geohashes at the default precision starting with the start value of a range
+     */
+    private fun randomHashesIn(random: Random, query: GeoHashQuery) = List(HASHES_PER_QUERY) {
+        val prefix = query.startValue.take(GeoHash.DEFAULT_PRECISION)
+        GeoHash(prefix + String(CharArray(GeoHash.DEFAULT_PRECISION - prefix.length) {
+            Base32Utils.valueToBase32Char(random.nextInt(32))
+        }))
+    }
+}
@@ -0,0 +1,58 @@
+package org.imperiumlabs.geofirestore.core
+
+import org.imperiumlabs.geofirestore.util.GeoUtils
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+/**
+ * Tests of the velocity estimated by MotionEstimator from the positions of a moving center.
+ */
+class MotionEstimatorTest {
+
+    @Test
+    fun steadyHeadingIsExtrapolated() {
+        val motion = MotionEstimator(10_000)
+        motion.addSample(0, 45.0, 9.0)
+        motion.addSample(1_000, 45.0, 9.001)
+        motion.addSample(2_000, 45.0, 9.002)
+
+        val predicted = motion.predict(3_000, 10_000.0)!!
+        assertEquals(45.0, predicted.latitude, 1e-9)
+        assertEquals(9.005, predicted.longitude, 1e-9)
+    }
+
+    @Test
+    fun predictionIsCappedAtTheMaxDistance() {
+        val motion = MotionEstimator(10_000)
+        motion.addSample(0, 0.0, 0.0)
+        motion.addSample(1_000, 0.01, 0.0)
+
+        val predicted = motion.predict(60_000, 500.0)!!
+        assertEquals(500.0, GeoUtils.distance(0.01, 0.0, predicted.latitude, predicted.longitude), 1.0)
+        assertEquals(0.0, predicted.longitude, 1e-9)
+    }
+
+    @Test
+    fun motionAcrossTheAntimeridian() {
+        val motion = MotionEstimator(10_000)
+        motion.addSample(0, 0.0, 179.999)
+        motion.addSample(1_000, 0.0, -179.999)
+
+        val predicted = motion.predict(1_000, 10_000.0)!!
+        assertEquals(-179.997, predicted.longitude, 1e-9)
+    }
+
+    @Test
+    fun stillOrStaleCentersAreNotPredicted() {
+        val motion = MotionEstimator(10_000)
+        motion.addSample(0, 45.0, 9.0)
+        assertNull(motion.predict(1_000, 1_000.0))
+        motion.addSample(1_000, 45.0, 9.0)
+        assertNull(motion.predict(1_000, 1_000.0))
+        motion.clear()
+        motion.addSample(0, 45.0, 9.0)
+        motion.addSample(20_000, 45.0, 9.1)
+        assertNull(motion.predict(1_000, 1_000.0))
+    }
+}
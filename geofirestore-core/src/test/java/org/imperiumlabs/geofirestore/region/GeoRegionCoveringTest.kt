@@ -0,0 +1,167 @@
+package org.imperiumlabs.geofirestore.region
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHashCovering
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Property based tests of the covering of BoundingBoxRegion and PolygonRegion, every location
+ * inside a random region must be read by its queries, including the locations on the borders
+ * of the geohash cells.
+ */
+class GeoRegionCoveringTest {
+
+    companion object {
+        private const val SEED = 42L
+        private const val REGIONS = 300
+        private const val POINTS_PER_REGION = 200
+    }
+
+    @Test
+    fun queriesContainEveryPointOfTheBoxes() {
+        val random = Random(SEED)
+        for (i in 0 until REGIONS) {
+            val box = randomBox(random)
+            val queries = box.queries()
+            for (point in randomPoints(random, box) + corners(box)) {
+                assertTrue("$point is not inside $box", box.containsLocation(point.latitude, point.longitude))
+                assertCovered(point, box, queries)
+            }
+        }
+    }
+
+    @Test
+    fun queriesContainEveryPointOfThePolygons() {
+        val random = Random(SEED)
+        for (i in 0 until REGIONS) {
+            val polygon = randomPolygon(random)
+            val queries = polygon.queries()
+            for (point in randomPoints(random, polygon.boundingBox) + polygon.vertices) {
+                if (polygon.containsLocation(point.latitude, point.longitude)) assertCovered(point, polygon, queries)
+            }
+        }
+    }
+
+    @Test
+    fun polygonsTouchingACellAreCovered() {
+        //The southern edge of the triangle lies on the border between two cells of precision 1
+        val triangle = PolygonRegion(listOf(GeoLocation(0.0, 10.0), GeoLocation(0.0, 40.0), GeoLocation(30.0, 25.0)))
+        assertTrue(triangle.containsLocation(0.0, 25.0))
+        assertTrue(triangle.intersectsCell(-45.0, 0.0, 0.0, 45.0))
+        assertCovered(GeoLocation(0.0, 25.0), triangle, triangle.queries())
+
+        //An edge through a corner of the cell and an edge collinear with the border of the cell
+        val corner = PolygonRegion(listOf(GeoLocation(10.0, 35.0), GeoLocation(-10.0, 55.0), GeoLocation(20.0, 60.0)))
+        assertTrue(corner.intersectsCell(-45.0, 0.0, 0.0, 45.0))
+        val collinear = PolygonRegion(listOf(GeoLocation(10.0, 45.0), GeoLocation(-50.0, 45.0), GeoLocation(-20.0, 60.0)))
+        assertTrue(collinear.intersectsCell(-45.0, 0.0, 0.0, 45.0))
+    }
+
+    @Test
+    fun queriesForCellsReadExactlyTheCells() {
+        val random = Random(SEED)
+        for (i in 0 until REGIONS) {
+            val box = randomBox(random)
+            val cells = GeoHashCovering.cellsIntersecting(box, 3) ?: continue
+            val queries = GeoHashCovering.queriesForCells(cells)
+            //Every cell between the first and the last one is read only if it intersects the region
+            var cell: String? = cells.firstOrNull() ?: continue
+            while (cell != null && cell <= cells.last()) {
+                assertEquals("$cell in $queries", cell in cells, queries.any { it.startValue <= cell!! && it.endValue > cell!! })
+                cell = GeoHashCovering.nextCell(cell)
+            }
+        }
+    }
+
+    @Test
+    fun unionQueriesReadEveryDocumentOnce() {
+        val random = Random(SEED)
+        for (i in 0 until REGIONS) {
+            //Boxes around the same location, overlapping or next to each other
+            val first = randomBox(random)
+            val boxes = listOf(first) + List(1 + random.nextInt(3)) {
+                val south = first.south + (random.nextDouble() - 0.5) * (first.north - first.south) * 2
+                val west = first.west + (random.nextDouble() - 0.5) * (first.east - first.west) * 2
+                BoundingBoxRegion(Math.max(-90.0, south), Math.max(-180.0, west),
+                        Math.min(90.0, south + first.north - first.south), Math.min(180.0, west + first.east - first.west))
+            }
+            val union = UnionRegion(boxes)
+            val queries = union.queries().sortedBy { it.startValue }
+            for ((previous, next) in queries.zipWithNext()) {
+                assertTrue("$previous and $next overlap in $queries", previous.endValue < next.startValue)
+                val following = GeoHashCovering.nextCell(previous.endValue.dropLast(1))
+                assertTrue("$previous and $next are adjacent in $queries", following == null || !next.startValue.startsWith(following) ||
+                        next.startValue.length > following.length && next.startValue.drop(following.length).any { it != '0' })
+            }
+            for (box in boxes) {
+                for (point in randomPoints(random, box) + corners(box)) assertCovered(point, union, queries.toSet())
+            }
+        }
+
+        //The ranges of two cells following each other are merged in a single range
+        val cell = GeoHash(45.0, 9.0, 3).geoHashString
+        val union = UnionRegion(listOf(cell, GeoHashCovering.nextCell(cell)!!).map {
+            val bounds = GeoHashCovering.cellBounds(it)
+            BoundingBoxRegion(bounds[0] + 1e-9, bounds[1] + 1e-9, bounds[2] - 1e-9, bounds[3] - 1e-9)
+        })
+        assertEquals(2, union.regions.sumBy { it.queries().size })
+        assertEquals(1, union.queries().size)
+    }
+
+    private fun assertCovered(point: GeoLocation, region: GeoRegion, queries: Set<GeoHashQuery>) {
+        val hash = GeoHash(point.latitude, point.longitude, GeoHash.MAX_PRECISION)
+        assertTrue("$point inside $region is not covered by $queries", queries.any { it.containsGeoHash(hash) })
+    }
+
+    /*
+     * Generate a random box, one third of them has its borders on the borders of geohash cells
+     */
+    private fun randomBox(random: Random): BoundingBoxRegion {
+        val size = Math.pow(10.0, -3 + random.nextDouble() * 4.5)
+        var south = (random.nextDouble() * 2 - 1) * (90 - size)
+        var west = (random.nextDouble() * 2 - 1) * (180 - size)
+        if (random.nextInt(3) == 0) {
+            //Round to the cells of precision 3, 1.40625 by 1.40625 degrees
+            south = Math.floor(south / 1.40625) * 1.40625
+            west = Math.floor(west / 1.40625) * 1.40625
+        }
+        return BoundingBoxRegion(south, west, Math.min(90.0, south + size), Math.min(180.0, west + size))
+    }
+
+    /*
+     * Generate a random star shaped polygon, one third of them has a horizontal edge
+     * on the border of geohash cells
+     */
+    private fun randomPolygon(random: Random): PolygonRegion {
+        val size = Math.pow(10.0, -3 + random.nextDouble() * 4.5)
+        val latitude = (random.nextDouble() * 2 - 1) * (80 - size)
+        val longitude = (random.nextDouble() * 2 - 1) * (170 - size)
+        val count = 3 + random.nextInt(8)
+        val vertices = List(count) { i ->
+            val angle = 2 * Math.PI * (i + random.nextDouble() * 0.8) / count
+            val distance = size * (0.3 + random.nextDouble() * 0.7)
+            GeoLocation(latitude + distance * Math.sin(angle), longitude + distance * Math.cos(angle))
+        }
+        if (random.nextInt(3) != 0) return PolygonRegion(vertices)
+        //Cut the polygon with the parallel of a border of the cells of precision 3
+        val border = Math.floor(latitude / 1.40625) * 1.40625
+        return PolygonRegion(vertices.map { GeoLocation(Math.max(border, it.latitude), it.longitude) })
+    }
+
+    private fun randomPoints(random: Random, box: BoundingBoxRegion) = List(POINTS_PER_REGION) { i ->
+        val latitude = box.south + random.nextDouble() * (box.north - box.south)
+        val longitude = box.west + random.nextDouble() * (box.east - box.west)
+        //Move one point out of four on the borders of the cells of precision 3 inside the box
+        if (i % 4 != 0) return@List GeoLocation(latitude, longitude)
+        val border = Math.ceil(box.south / 1.40625) * 1.40625
+        GeoLocation(if (border <= box.north) border else latitude, longitude)
+    }
+
+    private fun corners(box: BoundingBoxRegion) = listOf(GeoLocation(box.south, box.west), GeoLocation(box.south, box.east),
+            GeoLocation(box.north, box.west), GeoLocation(box.north, box.east))
+}
@@ -0,0 +1,28 @@
+package org.imperiumlabs.geofirestore.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Tests of the delays of the reservations of RateLimiter.
+ */
+class RateLimiterTest {
+
+    private val second = 1_000_000_000L
+
+    @Test
+    fun reservationsAreSpacedByTheRate() {
+        val limiter = RateLimiter(100.0)
+        assertEquals(0L, limiter.reserve(50, 10 * second))
+        assertEquals(500L, limiter.reserve(50, 10 * second))
+        assertEquals(900L, limiter.reserve(10, 10 * second + 100_000_000L))
+    }
+
+    @Test
+    fun idleTimeIsNotAccumulated() {
+        val limiter = RateLimiter(10.0)
+        assertEquals(0L, limiter.reserve(10, 0))
+        assertEquals(0L, limiter.reserve(10, 60 * second))
+        assertEquals(1000L, limiter.reserve(1, 60 * second))
+    }
+}
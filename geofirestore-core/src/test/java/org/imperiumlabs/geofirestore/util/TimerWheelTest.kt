@@ -0,0 +1,42 @@
+package org.imperiumlabs.geofirestore.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/**
+ * Tests of the deadlines expired by TimerWheel, also after whole turns of the wheel.
+ */
+class TimerWheelTest {
+
+    @Test
+    fun keysExpireAtTheirDeadline() {
+        val wheel = TimerWheel(100, 8)
+        wheel.schedule("a", 250)
+        wheel.schedule("b", 5_000)
+        wheel.schedule("c", 120)
+
+        assertEquals(emptyList<String>(), wheel.advance(100))
+        assertEquals(listOf("c"), wheel.advance(199))
+        assertEquals(listOf("a"), wheel.advance(300))
+        //b is in the slot of 250 many turns later
+        assertEquals(emptyList<String>(), wheel.advance(1_250))
+        assertEquals(1, wheel.size)
+        assertEquals(listOf("b"), wheel.advance(10_000))
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun rescheduledAndCancelledKeys() {
+        val wheel = TimerWheel(100, 8)
+        wheel.advance(1_000)
+        wheel.schedule("a", 1_100)
+        wheel.schedule("a", 1_500)
+        wheel.schedule("b", 1_100)
+        wheel.cancel("b")
+        //A deadline already passed expires on the next advance
+        wheel.schedule("c", 500)
+
+        assertEquals(listOf("c"), wheel.advance(1_100))
+        assertEquals(listOf("a"), wheel.advance(1_500))
+    }
+}
@@ -1,12 +1,32 @@
 package org.imperiumlabs.geofirestore
 
-import com.google.android.gms.tasks.Task
-import com.google.android.gms.tasks.Tasks
 import com.google.firebase.firestore.*
+import org.imperiumlabs.geofirestore.backend.FirestoreBackend
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreBackend
+import org.imperiumlabs.geofirestore.backend.MergedBackend
+import org.imperiumlabs.geofirestore.backend.SourceReferences
+import org.imperiumlabs.geofirestore.cache.LocalGeoIndex
+import org.imperiumlabs.geofirestore.cache.PersistentGeoCache
+import org.imperiumlabs.geofirestore.cluster.GeoCellCount
+import org.imperiumlabs.geofirestore.cluster.GeoCellCounters
 import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHashCovering
 import org.imperiumlabs.geofirestore.core.GeoHashQuery
-import org.imperiumlabs.geofirestore.extension.mapNotNullManyTo
-import org.imperiumlabs.geofirestore.util.GeoUtils
+import org.imperiumlabs.geofirestore.core.IndexPlanner
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.imperiumlabs.geofirestore.core.QueryCostModel
+import org.imperiumlabs.geofirestore.metrics.GeoQueryMetrics
+import org.imperiumlabs.geofirestore.region.CircleRegion
+import org.imperiumlabs.geofirestore.region.GeoRegion
+import org.imperiumlabs.geofirestore.util.Clock
+import java.io.IOException
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.logging.Logger
 
 
@@ -22,32 +42,17 @@ class GeoFirestore(val collectionReference: CollectionReference) {
         /**
          * Build a GeoPoint from a DocumentSnapshot
          *
-         * This model takes as a input a DocumentSnapshot and tries to extract the parameter "l",
+         * This model takes as a input a DocumentSnapshot and reads only the parameter "l",
          * if it is of type List we extract latitude and longitude and create a valid GeoPoint,
          * if it is already a GeoPoint we return it, in every other case we return null.
          *
          * @param documentSnapshot The DocumentSnapshot from which to get the Location Data
          * @return Nullable GeoPoint with the location of the documentSnapshot
          */
-        fun getLocationValue(documentSnapshot: DocumentSnapshot): GeoPoint? {
-            return try {
-                when (val locationDataRaw = documentSnapshot.data!!["l"]) {
-                    is List<*> -> {
-                        val latitudeObj = locationDataRaw[0] as Double
-                        val longitudeObj = locationDataRaw[1] as Double
-                        if (locationDataRaw.size == 2 && GeoLocation.coordinatesValid(latitudeObj, longitudeObj))
-                            GeoPoint(latitudeObj, longitudeObj)
-                        else null
-                    }
-                    is GeoPoint -> locationDataRaw
-                    else -> null
-                }
-            } catch (e: NullPointerException) {
-                null
-            } catch (e: ClassCastException) {
-                null
-            }
-        }
+        fun getLocationValue(documentSnapshot: DocumentSnapshot) = LocationExtractor.DEFAULT.location(documentSnapshot)
+
+        // The delay between a change of the persistent cache and its save, in milliseconds
+        const val CACHE_SAVE_DELAY_MILLIS = 2000L
     }
 
     /**
@@ -92,9 +97,244 @@ class GeoFirestore(val collectionReference: CollectionReference) {
         fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?)
     }
 
+    /**
+     * A callback that can be used to retrieve the counts of some geohash cells or an error.
+     */
+    interface CellCountsCallback {
+
+        /**
+         * Called once the counters of the cells are read. On success, the parameter
+         * error will be null; in case of an error, the error will be passed to this.
+         *
+         * @param counts The counts of the cells with at least one document
+         * @param exception The exception or null if no exception occurred
+         */
+        fun onComplete(counts: List<GeoCellCount>?, exception: Exception?)
+    }
+
     //Instance of the EventRaiser
     private var mEventRaiser: EventRaiser
 
+    //Number of events raised but not yet run
+    private val pendingEvents = AtomicInteger()
+
+    //Thread running the delayed tasks of the queries, created on first use
+    private val defaultScheduler: ScheduledExecutorService by lazy {
+        Executors.newSingleThreadScheduledExecutor { r -> Thread(r, "GeoFirestore").apply { isDaemon = true } }
+    }
+    private var customScheduler: ScheduledExecutorService? = null
+
+    //Thread reading and writing the file of the persistent cache, created on first use
+    private val cacheIOExecutor: Executor by lazy {
+        Executors.newSingleThreadExecutor { r -> Thread(r, "GeoFirestore-cache").apply { isDaemon = true } }
+    }
+
+    /**
+     * The executor running the delayed tasks of the queries, by default a background thread of
+     * this GeoFirestore created on first use. It must run the tasks in order and it is replaced
+     * together with the clock e.g. by a scheduler moving the time manually in the tests.
+     */
+    var scheduler: ScheduledExecutorService
+        get() = customScheduler ?: defaultScheduler
+        set(value) {
+            customScheduler = value
+        }
+
+    /**
+     * The clock of the expiration of the locations and of the cached ranges, of the motion of the
+     * centers and of the notifications of the result sets, the system clock by default.
+     */
+    var clock: Clock = Clock.SYSTEM
+        set(value) {
+            field = value
+            firestoreBackend.clock = value
+            sourceBackends.forEach { it.clock = value }
+        }
+
+    //The backend of the Firestore collection, used also to build the queries
+    private val firestoreBackend = FirestoreBackend(collectionReference, Executor { r -> scheduler.execute(r) })
+
+    /**
+     * The executor processing the snapshots and the results of the reads from Firestore: the
+     * locations are parsed, hashed and filtered on it and only the final events are passed to the
+     * EventRaiser. It must run the tasks in order; by default it is a background thread of this
+     * GeoFirestore, null processes the snapshots on the main thread.
+     */
+    var snapshotExecutor: Executor?
+        get() = firestoreBackend.executor
+        set(value) {
+            firestoreBackend.executor = value
+            sourceBackends.forEach { it.executor = value }
+        }
+
+    //The backends of the sources read by the queries, the collection by default
+    private var sourceBackends = listOf(firestoreBackend)
+
+    /**
+     * The Firestore queries the documents are read from, by default the collection. They can be
+     * e.g. a collection group or the collections of the shards of a dataset: every planned query
+     * runs on each source and the documents are merged in the events and in the single ready
+     * signal of the queries. The documentIDs must be unique across the sources: a document with
+     * the same ID as another one read by the queries is skipped and reported with onGeoQueryError.
+     * The locations are still written to the collection. Setting the sources replaces the backend.
+     *
+     * @throws IllegalArgumentException If there are no sources
+     */
+    var sources: List<Query>
+        get() = sourceBackends.map { it.source }
+        set(value) {
+            if (value.isEmpty())
+                throw IllegalArgumentException("GeoFirestore needs at least one source!")
+            //The backends of many sources share the references of their documents, to detect the IDs colliding across them
+            val references = SourceReferences<DocumentReference>()
+            sourceBackends = value.map { source ->
+                if (value.size == 1 && source === collectionReference) firestoreBackend
+                else FirestoreBackend(collectionReference, firestoreBackend.executor, source, references).also {
+                    it.locationTtl = locationTtl
+                    it.clock = clock
+                }
+            }
+            backend = if (sourceBackends.size == 1) sourceBackends[0] else MergedBackend(sourceBackends)
+        }
+
+    /**
+     * The backend used to read, listen to and write the documents, by default the Firestore
+     * collection; it can be replaced e.g. by an in-memory collection to load test the queries.
+     */
+    var backend: GeoFirestoreBackend = firestoreBackend
+
+    /**
+     * The metrics recording the work done by this GeoFirestore and by its queries.
+     */
+    var metrics: GeoQueryMetrics = GeoQueryMetrics.NONE
+
+    /**
+     * The model used to choose between alternative plans of the queries, it should
+     * be set with the expected number of documents of the collection.
+     */
+    var costModel = QueryCostModel.DEFAULT
+
+    /**
+     * The in-memory index used to answer the one-shot queries without reading again the
+     * areas already read, it is filled with the results of every query; null disables it.
+     */
+    var localIndex: LocalGeoIndex? = null
+
+    /**
+     * The on-device cache of the documents read by the queries, shown by the queries before their
+     * ranges are read again from the server; null disables it. It is loaded on the cache thread as
+     * soon as it is set and saved on the cache thread CACHE_SAVE_DELAY_MILLIS after it changes.
+     */
+    var persistentCache: PersistentGeoCache? = null
+        set(value) {
+            field = value
+            if (value != null) executeCacheIO(Runnable { value.load(clock.currentTimeMillis()) })
+        }
+
+    /**
+     * The time to live of the locations, written with a timestamp by setLocation; null disables it
+     * and the locations never expire.
+     */
+    var locationTtl: LocationTtl? = null
+        set(value) {
+            field = value
+            firestoreBackend.locationTtl = value
+            sourceBackends.forEach { it.locationTtl = value }
+        }
+
+    //True while a save of the persistent cache is scheduled
+    private val cacheSaveScheduled = AtomicBoolean()
+
+    /**
+     * The extractor reading the location of the documents, it reads the field locationField.
+     */
+    var locationExtractor = LocationExtractor.DEFAULT
+        private set
+
+    /**
+     * The field holding the location of the documents, "l" by default.
+     */
+    var locationField: String
+        get() = locationExtractor.locationField
+        set(value) {
+            locationExtractor = LocationExtractor(value)
+        }
+
+    /**
+     * When the new queries call onGeoQueryReady, SERVER by default: once every planned query has
+     * a snapshot confirmed by the server.
+     */
+    var readyPolicy = ReadyPolicy.SERVER
+
+    /**
+     * The maximal number of planned queries the new queries load at once, nearest to the center
+     * first, 0 by default for no limit.
+     *
+     * @throws IllegalArgumentException If the limit is negative
+     */
+    var maxRangesInFlight = 0
+        set(value) {
+            if (value < 0)
+                throw IllegalArgumentException("The maximal number of ranges in flight can't be negative!")
+            field = value
+        }
+
+    /**
+     * If true the geohash stored in the field "g" of the documents read by the queries is checked
+     * against their location, and encoded again when it doesn't match. False by default, the
+     * stored geohash is trusted and the location is encoded only when "g" is missing.
+     */
+    var verifyStoredGeoHash = false
+
+    /**
+     * The precision of the geohash written in the field "g" of the documents, every document
+     * of the collection must be written with the same precision.
+     *
+     * @throws IllegalArgumentException If the precision is not valid or is smaller than an index precision
+     */
+    var precision = GeoHash.DEFAULT_PRECISION
+        set(value) {
+            if (value < 1 || value > GeoHash.MAX_PRECISION)
+                throw IllegalArgumentException("Precision of GeoHash must be between 1 and ${GeoHash.MAX_PRECISION}!")
+            if (indexPrecisions.any { it > value })
+                throw IllegalArgumentException("Precision of GeoHash must not be smaller than the index precisions!")
+            if ((cellCounters?.maxLevel ?: 0) > value)
+                throw IllegalArgumentException("Precision of GeoHash must not be smaller than the counter levels!")
+            field = value
+        }
+
+    /**
+     * The precisions of the geohash prefixes written together with the field "g", the prefix of
+     * precision n is written in the field "gn" and lets the coarse queries use equality lookups
+     * instead of range scans. Every document of the collection must be written with the same prefixes.
+     *
+     * @throws IllegalArgumentException If a precision is not between 1 and the precision of the geohash
+     */
+    var indexPrecisions: Set<Int> = emptySet()
+        set(value) {
+            if (value.any { it < 1 || it > precision })
+                throw IllegalArgumentException("Index precisions must be between 1 and $precision!")
+            field = value.toSortedSet()
+        }
+
+    /**
+     * The counters of the documents of every geohash cell kept by the server, null to not count
+     * the documents. When set, setLocation and removeLocation update the counters of the old and
+     * of the new cell in the same transaction as the location. Every write of the collection must
+     * update the counters, or they drift from the real number of documents.
+     *
+     * The transaction needs the network: while the counters are set, setLocation and removeLocation
+     * fail offline instead of being queued, and every write reads the previous location once more.
+     *
+     * @throws IllegalArgumentException If a level is bigger than the precision of the geohash
+     */
+    var cellCounters: GeoCellCounters? = null
+        set(value) {
+            if (value != null && value.maxLevel > precision)
+                throw IllegalArgumentException("Counter levels must be between 1 and $precision!")
+            field = value
+        }
+
     init {
         try {
             this.mEventRaiser = AndroidEventRaiser()
@@ -113,6 +353,8 @@ class GeoFirestore(val collectionReference: CollectionReference) {
     /**
      * Sets the location of a document.
      *
+     * With cellCounters set the write is a transaction, it fails offline.
+     *
      * @param documentID The documentID of the document to save the location for
      * @param location The location of this document
      */
@@ -133,17 +375,20 @@ class GeoFirestore(val collectionReference: CollectionReference) {
             completionCallback?.onComplete(NullPointerException("Document ID is null"))
             return
         }
-        //Get the DocumentReference for this documentID
-        val docRef = this.getRefForDocumentID(documentID)
-        val geoHash = GeoHash(GeoLocation(location.latitude, location.longitude))
+        val geoHash = GeoHash(GeoLocation(location.latitude, location.longitude), precision)
         //Create a Map with the fields to add
         val updates = HashMap<String, Any>()
         updates["g"] = geoHash.geoHashString
-        updates["l"] = location
-        //Update the DocumentReference with the location data
-        docRef.set(updates, SetOptions.merge())
-                .addOnSuccessListener { completionCallback?.onComplete(null) }
-                .addOnFailureListener { completionCallback?.onComplete(it) }
+        updates[locationField] = location
+        for (indexPrecision in indexPrecisions)
+            updates[IndexQuery.fieldForPrecision(indexPrecision)] = geoHash.geoHashString.substring(0, indexPrecision)
+        locationTtl?.let { updates[it.timestampField] = FieldValue.serverTimestamp() }
+        //Update the document with the location data and, if they are enabled, the counters of its cells
+        val counters = cellCounters
+        if (counters != null)
+            this.backend.setFieldsAndCounters(documentID, updates, geoHash.geoHashString, counters, completionCallback)
+        else
+            this.backend.setFields(documentID, updates, completionCallback)
     }
 
     /**
@@ -158,6 +403,8 @@ class GeoFirestore(val collectionReference: CollectionReference) {
     /**
      * Removes the location of a document from this GeoFirestore.
      *
+     * With cellCounters set the write is a transaction, it fails offline.
+     *
      * @param documentID The documentID of the document to remove from this GeoFirestore
      * @param completionCallback A completion listener that is called once the location is successfully removed
      *                           from the server or an error occurred
@@ -170,12 +417,16 @@ class GeoFirestore(val collectionReference: CollectionReference) {
         //Crate a Map with the fields to remove
         val updates = HashMap<String, Any>()
         updates["g"] = FieldValue.delete()
-        updates["l"] = FieldValue.delete()
-        //Remove the relative locations fields from the DocumentReference
-        val docRef = this.getRefForDocumentID(documentID)
-        docRef.set(updates, SetOptions.merge())
-                .addOnSuccessListener { completionCallback?.onComplete(null) }
-                .addOnFailureListener { completionCallback?.onComplete(it) }
+        updates[locationField] = FieldValue.delete()
+        for (indexPrecision in indexPrecisions)
+            updates[IndexQuery.fieldForPrecision(indexPrecision)] = FieldValue.delete()
+        locationTtl?.let { updates[it.timestampField] = FieldValue.delete() }
+        //Remove the relative locations fields from the document and the document from the counters of its cells
+        val counters = cellCounters
+        if (counters != null)
+            this.backend.setFieldsAndCounters(documentID, updates, null, counters, completionCallback)
+        else
+            this.backend.setFields(documentID, updates, completionCallback)
     }
 
     /**
@@ -185,67 +436,247 @@ class GeoFirestore(val collectionReference: CollectionReference) {
      * @param callback The callback that is called once the location is retrieved
      */
     fun getLocation(documentID: String, callback: LocationCallback) {
-        this.getRefForDocumentID(documentID).get()
-                .addOnFailureListener { callback.onComplete(location = null, exception = it) }
-                .addOnSuccessListener { snap ->
-                    getLocationValue(snap).also { geoPoint ->
-                        if (geoPoint != null)
-                            callback.onComplete(location = geoPoint, exception = null)
-                        else
-                            callback.onComplete(location = null, exception = NullPointerException("Location doesn't exist"))
+        this.backend.getDocument(documentID, object : GeoFirestoreBackend.DocumentCallback {
+            override fun onComplete(documentSnapshot: DocumentSnapshot?, exception: Exception?) {
+                val geoPoint = documentSnapshot?.let { locationExtractor.location(it) }
+                raiseEvent(Runnable {
+                    when {
+                        exception != null -> callback.onComplete(location = null, exception = exception)
+                        geoPoint != null -> callback.onComplete(location = geoPoint, exception = null)
+                        else -> callback.onComplete(location = null, exception = NullPointerException("Location doesn't exist"))
                     }
-                }
+                })
+            }
+        })
     }
 
     /**
      * Returns a new Query object centered at the given location and with the given radius.
      *
      * @param center The center of the query
-     * @param radius The radius of the query, in kilometers. The maximum radius that is
-     *               supported is about 8587km. If a radius bigger than this is passed we'll cap it.
+     * @param radius The radius of the query, in kilometers. Radii bigger than about 8587km are planned
+     *               with coarse geohash cells or with a scan of the whole collection.
      * @return The new GeoQuery object
      */
-    fun queryAtLocation(center: GeoPoint, radius: Double) = GeoQuery(this, center, GeoUtils.capRadius(radius))
+    fun queryAtLocation(center: GeoPoint, radius: Double) = GeoQuery(this, center, radius)
+
+    /**
+     * Returns a new Query object for the given region.
+     *
+     * @param region The region of the query
+     * @return The new GeoQuery object
+     */
+    fun queryInRegion(region: GeoRegion) = GeoQuery(this, region)
 
     /**
      * Returns a new SingleGeoQuery object centered at a given location and with the given radius.
      *
      * @param center The center of the query
-     * @param radius The radius of the query, in kilometers. The maximum radius that is
-     *               supported is about 8587km. If a radius bigger than this is passed we'll cap it.
+     * @param radius The radius of the query, in kilometers. Radii bigger than about 8587km are planned
+     *               with coarse geohash cells or with a scan of the whole collection.
      * @return The new SingleGeoQuery object
      */
     fun getAtLocation(center: GeoPoint, radius: Double, callback: SingleGeoQueryDataEventCallback) {
-        //Get the resultTasks from Firebase Queries generated from GeoHashQueries
-        val resultTasks = arrayListOf<Task<QuerySnapshot>>().apply {
-            GeoHashQuery.queriesAtLocation(GeoLocation(center.latitude, center.longitude), radius)
-                    .forEach {
-                        this.add(this@GeoFirestore.collectionReference
-                                .orderBy("g")
-                                .startAt(it.startValue)
-                                .endAt(it.endValue)
-                                .get())
-                    }
+        this.getInRegion(CircleRegion(GeoLocation(center.latitude, center.longitude), radius, costModel), callback)
+    }
+
+    /**
+     * Gets all the documents inside the given region. The documents are filtered on the
+     * snapshotExecutor and the callback is run by the EventRaiser. If only some of the planned
+     * queries fail, the callback gets the documents of the others together with the exception.
+     *
+     * @param region The region of the query
+     * @param callback The callback that is called once the documents are retrieved
+     */
+    fun getInRegion(region: GeoRegion, callback: SingleGeoQueryDataEventCallback) {
+        //Answer from the local index the ranges already read, only the missing ones are read from Firestore
+        val cachedSnapshots = arrayListOf<DocumentSnapshot>()
+        val missingQueries = HashSet<GeoHashQuery>()
+        val now = clock.currentTimeMillis()
+        for (query in region.queries()) {
+            val cached = localIndex?.get(query, now)
+            if (cached != null) cachedSnapshots.addAll(cached) else missingQueries.add(query)
         }
-        //Await the completion of all the resultTasks
-        Tasks.whenAllComplete(resultTasks)
-                .addOnFailureListener { e ->
+        if (missingQueries.isEmpty()) {
+            //Filter and notify like the documents read, the callback is never run by getInRegion itself
+            val filter = Runnable {
+                val documentsInRegion = filterInRegion(region, cachedSnapshots, emptyList())
+                raiseEvent(Runnable { callback.onComplete(documentsInRegion, null) })
+            }
+            snapshotExecutor?.execute(filter) ?: filter.run()
+            return
+        }
+        //Read the queries planned for the missing ranges
+        val plan = IndexPlanner.plan(missingQueries, precision, indexPrecisions, costModel)
+        metrics.onQueriesPlanned(plan.size)
+        this.backend.getRanges(plan, object : SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                if (documentSnapshots == null) {
                     //Some error occurred, notify it to the listeners
                     GeoFirestore.LOGGER.warning("Failed retrieving data for geo query")
-                    callback.onComplete(null, e)
+                    raiseEvent(Runnable { callback.onComplete(null, exception) })
+                    return
                 }
-                .addOnSuccessListener { tasks ->
-                    //Data retrieved, extract it from the tasks and pass it to the listeners
-                    val documentSnapshots = arrayListOf<DocumentSnapshot>()
-                    tasks.mapNotNullManyTo(documentSnapshots) { (it.result as? QuerySnapshot)?.documents }
-                    callback.onComplete(documentSnapshots, null)
+                //Data retrieved, keep only the documents inside the region, the partial results are not cached
+                if (exception == null)
+                    localIndex?.put(missingQueries, documentSnapshots, locationExtractor, clock.currentTimeMillis())
+                else
+                    GeoFirestore.LOGGER.warning("Failed retrieving part of the data for geo query")
+                metrics.onDocumentsRead(documentSnapshots.size)
+                val documentsInRegion = filterInRegion(region, cachedSnapshots, documentSnapshots)
+                raiseEvent(Runnable { callback.onComplete(documentsInRegion, exception) })
+            }
+        })
+    }
+
+    /**
+     * Gets the number of documents of the geohash cells of a level intersecting a region, reading
+     * only the cellCounters of the cells. The cells are partly outside the region, so the counts are
+     * an approximation of its density meant for heatmaps and clusters. The callback is run by the EventRaiser.
+     *
+     * @param region The region to count
+     * @param level The length of the geohash of the cells, one of the levels of cellCounters
+     * @param callback The callback that is called once the counts are retrieved
+     * @throws IllegalStateException If the cellCounters are not set
+     * @throws IllegalArgumentException If the level is not counted or the region has too many cells of the level
+     */
+    fun getCellCounts(region: GeoRegion, level: Int, callback: CellCountsCallback) {
+        val counters = cellCounters ?: throw IllegalStateException("The cell counters are not enabled!")
+        if (level !in counters.levels)
+            throw IllegalArgumentException("The cells of level $level are not counted!")
+        val cells = GeoHashCovering.cellsIntersecting(region, level)
+                ?: throw IllegalArgumentException("The region has too many cells of level $level!")
+        if (cells.isEmpty()) {
+            raiseEvent(Runnable { callback.onComplete(emptyList(), null) })
+            return
+        }
+        val ranges = counters.counterRanges(GeoHashCovering.queriesForCells(cells))
+        metrics.onQueriesPlanned(ranges.size)
+        this.backend.getCounters(counters, ranges, object : CellCountsCallback {
+            override fun onComplete(counts: List<GeoCellCount>?, exception: Exception?) {
+                if (counts == null) {
+                    GeoFirestore.LOGGER.warning("Failed retrieving the cell counters")
+                    raiseEvent(Runnable { callback.onComplete(null, exception) })
+                    return
+                }
+                //The ranges are exactly the cells intersecting the region
+                metrics.onDocumentsRead(counts.size)
+                val sortedCounts = counts.sortedBy { it.geoHash }
+                raiseEvent(Runnable { callback.onComplete(sortedCounts, exception) })
+            }
+        })
+    }
+
+    /*
+     * Keep only one snapshot for every document inside the region, the stale locations are skipped.
+     * The documents just read outside the region are reported as discarded, the location of every
+     * document is extracted once
+     */
+    private fun filterInRegion(region: GeoRegion, cachedSnapshots: List<DocumentSnapshot>,
+                               readSnapshots: List<DocumentSnapshot>): List<DocumentSnapshot> {
+        val documents = LinkedHashMap<String, DocumentSnapshot>()
+        val now = clock.currentTimeMillis()
+        var discarded = 0
+        for (snapshots in arrayOf(cachedSnapshots, readSnapshots)) {
+            for (doc in snapshots) {
+                val location = locationExtractor.location(doc)
+                if (location == null || !region.containsLocation(location.latitude, location.longitude)) {
+                    if (snapshots === readSnapshots) discarded++
+                } else if (!isStale(doc, now)) {
+                    documents[doc.id] = doc
                 }
+            }
+        }
+        if (discarded > 0) metrics.onDocumentsDiscarded(discarded)
+        return ArrayList(documents.values)
+    }
+
+    /**
+     * Get the time the location of a document expires.
+     *
+     * @param documentSnapshot The snapshot of the document
+     * @return The time in milliseconds or null if locationTtl is not set or the document has no timestamp
+     */
+    fun expirationOf(documentSnapshot: DocumentSnapshot): Long? {
+        val ttl = locationTtl ?: return null
+        return locationExtractor.timestampMillis(documentSnapshot, ttl.timestampField)?.plus(ttl.ttlMillis)
     }
 
+    /*
+     * Check if the location of a document is expired
+     */
+    private fun isStale(documentSnapshot: DocumentSnapshot, now: Long) = expirationOf(documentSnapshot)?.let { it <= now } ?: false
+
+    /**
+     * Plan the queries needed to read all the documents inside a region, using the
+     * cheapest geohash field for the size of the region.
+     *
+     * @param region The region to read
+     * @return The list of queries to execute
+     */
+    fun planQueries(region: GeoRegion) = IndexPlanner.plan(region.queries(), precision, indexPrecisions, costModel)
+
+    /**
+     * Build the Firestore Query for an IndexQuery.
+     *
+     * @param query The planned query
+     * @return The Firestore Query reading the documents of the planned query
+     */
+    fun buildQuery(query: IndexQuery) = firestoreBackend.buildQuery(query)
+
     /**
      * Raise an event from the EventRaiser
      *
      * @param r The Runnable to pass to the EventRaiser
+     * @param eventRaiser The EventRaiser to use instead of the default one, null to use the default one
+     */
+    @JvmOverloads
+    fun raiseEvent(r: Runnable, eventRaiser: EventRaiser? = null) {
+        metrics.onEventQueueDepth(pendingEvents.incrementAndGet())
+        (eventRaiser ?: this.mEventRaiser).raiseEvent(Runnable {
+            try {
+                r.run()
+            } finally {
+                metrics.onEventQueueDepth(pendingEvents.decrementAndGet())
+            }
+        })
+    }
+
+    /**
+     * Run a task after a delay on the background thread of GeoFirestore, the task must
+     * be short and must raise its events with raiseEvent.
+     *
+     * @param r The task to run
+     * @param delayMillis The delay, in milliseconds
+     * @return The future of the task, used to cancel it
      */
-    fun raiseEvent(r: Runnable) { this.mEventRaiser.raiseEvent(r) }
+    fun schedule(r: Runnable, delayMillis: Long): ScheduledFuture<*> =
+            this.scheduler.schedule(r, delayMillis, TimeUnit.MILLISECONDS)
+
+    /**
+     * Run a task reading or writing the file of the persistent cache on the cache thread of
+     * GeoFirestore, in order; the file never delays the snapshots and the tasks of the scheduler.
+     *
+     * @param r The task to run
+     */
+    fun executeCacheIO(r: Runnable) = this.cacheIOExecutor.execute(r)
+
+    /**
+     * Save the persistent cache after CACHE_SAVE_DELAY_MILLIS on the cache thread of
+     * GeoFirestore, the changes made in the meantime are saved together.
+     */
+    fun schedulePersistentCacheSave() {
+        val cache = persistentCache ?: return
+        if (!cacheSaveScheduled.compareAndSet(false, true)) return
+        schedule(Runnable {
+            executeCacheIO(Runnable {
+                cacheSaveScheduled.set(false)
+                try {
+                    cache.save()
+                } catch (e: IOException) {
+                    LOGGER.warning("Failed saving the cache ${cache.file.path}: $e")
+                }
+            })
+        }, CACHE_SAVE_DELAY_MILLIS)
+    }
 }
@@ -6,35 +6,54 @@ package org.imperiumlabs.geofirestore;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.Task;
-import com.google.firebase.firestore.CollectionReference;
-import com.google.firebase.firestore.DocumentChange;
 import com.google.firebase.firestore.DocumentSnapshot;
-import com.google.firebase.firestore.EventListener;
-import com.google.firebase.firestore.FirebaseFirestoreException;
 import com.google.firebase.firestore.GeoPoint;
 import com.google.firebase.firestore.ListenerRegistration;
 import com.google.firebase.firestore.Query;
-import com.google.firebase.firestore.QuerySnapshot;
 
+import org.imperiumlabs.geofirestore.backend.GeoDocumentChange;
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreBackend;
+import org.imperiumlabs.geofirestore.backend.RangeListener;
+import org.imperiumlabs.geofirestore.cache.CachedDocument;
+import org.imperiumlabs.geofirestore.cache.LocalGeoIndex;
+import org.imperiumlabs.geofirestore.cache.PersistentGeoCache;
 import org.imperiumlabs.geofirestore.listeners.EventListenerBridge;
+import org.imperiumlabs.geofirestore.listeners.EventOrigin;
+import org.imperiumlabs.geofirestore.listeners.GeoQueryCacheListener;
 import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener;
 import org.imperiumlabs.geofirestore.listeners.GeoQueryEventListener;
+import org.imperiumlabs.geofirestore.listeners.GeoQueryProgressListener;
+import org.imperiumlabs.geofirestore.listeners.GeoQueryReadyListener;
+import org.imperiumlabs.geofirestore.listeners.GeoQueryResultSetListener;
+import org.imperiumlabs.geofirestore.metrics.GeoQueryEventType;
+import org.imperiumlabs.geofirestore.metrics.GeoQueryMetrics;
 import org.imperiumlabs.geofirestore.core.GeoHash;
+import org.imperiumlabs.geofirestore.core.GeoHashCovering;
 import org.imperiumlabs.geofirestore.core.GeoHashQuery;
+import org.imperiumlabs.geofirestore.core.IndexQuery;
+import org.imperiumlabs.geofirestore.core.MotionEstimator;
+import org.imperiumlabs.geofirestore.core.PackedRanges;
+import org.imperiumlabs.geofirestore.region.BoundingBoxRegion;
+import org.imperiumlabs.geofirestore.region.CircleRegion;
+import org.imperiumlabs.geofirestore.region.GeoRegion;
 import org.imperiumlabs.geofirestore.util.GeoUtils;
+import org.imperiumlabs.geofirestore.util.TimerWheel;
 
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ScheduledFuture;
+import kotlin.jvm.functions.Function1;
 
 // TODO: 05/05/19 Android Studio show error for javadoc in @throws IllegalArgumentException
 /**
- * A GeoQuery object can be used for geo queries in a given circle. The GeoQuery class is thread safe.
+ * A GeoQuery object can be used for geo queries in a given circle or in a given GeoRegion.
+ * The GeoQuery class is thread safe.
  */
 public class GeoQuery {
     private static final int KILOMETER_TO_METER = 1000;
@@ -44,26 +63,144 @@ public class GeoQuery {
         final boolean inGeoQuery;
         final GeoHash geoHash;
         final DocumentSnapshot documentSnapshot;
+        EventOrigin origin;
+        // The time the location expires, null if it never expires
+        final Long expiration;
 
-        LocationInfo(GeoPoint location, boolean inGeoQuery, DocumentSnapshot documentSnapshot) {
+        LocationInfo(GeoPoint location, boolean inGeoQuery, GeoHash geoHash, DocumentSnapshot documentSnapshot, EventOrigin origin,
+                     Long expiration) {
             this.location = location;
             this.inGeoQuery = inGeoQuery;
-            this.geoHash = new GeoHash(new GeoLocation(location.getLatitude(), location.getLongitude()));
+            this.geoHash = geoHash;
             this.documentSnapshot = documentSnapshot;
+            this.origin = origin;
+            this.expiration = expiration;
         }
     }
 
-    private static class GeoHashQueryListener {
-        final ListenerRegistration childAddedListener;
-        final ListenerRegistration childRemovedListener;
-        final ListenerRegistration childChangedListener;
+    /*
+     * The listener of a planned query, stored before the backend attaches it so that the batches
+     * a backend delivers while attaching are processed, and those of a replaced listener are not
+     */
+    private static class RangeHandle implements ListenerRegistration {
+        private ListenerRegistration registration;
+        private boolean removed;
+        // true once the range failed, it doesn't hold a slot of the ranges in flight anymore
+        boolean failed;
 
-        GeoHashQueryListener(ListenerRegistration childAddedListener,
-                             ListenerRegistration childRemovedListener,
-                             ListenerRegistration childChangedListener){
-            this.childAddedListener = childAddedListener;
-            this.childRemovedListener = childRemovedListener;
-            this.childChangedListener = childChangedListener;
+        void attach(ListenerRegistration registration) {
+            if (this.removed) {
+                registration.remove();
+            } else {
+                this.registration = registration;
+            }
+        }
+
+        @Override
+        public void remove() {
+            this.removed = true;
+            if (this.registration != null) {
+                this.registration.remove();
+            }
+        }
+    }
+
+    /*
+     * Notifies a GeoQueryResultSetListener of the changes of the result set, the events of the
+     * query are received immediately and collapsed in at most one notification every interval
+     */
+    private final class ResultSetNotifier implements GeoQueryDataEventListener {
+        final GeoQueryResultSetListener listener;
+        final long intervalMillis;
+        final boolean sortedByDistance;
+        boolean pending;
+        long lastNotification;
+        long notifiedVersion = -1;
+
+        ResultSetNotifier(GeoQueryResultSetListener listener, long intervalMillis, boolean sortedByDistance) {
+            this.listener = listener;
+            this.intervalMillis = intervalMillis;
+            this.sortedByDistance = sortedByDistance;
+        }
+
+        private void resultSetChanged() {
+            if (this.pending) {
+                return;
+            }
+            this.pending = true;
+            long delay = Math.max(0, this.lastNotification + this.intervalMillis - GeoQuery.this.geoFirestore.getClock().currentTimeMillis());
+            GeoQuery.this.geoFirestore.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    notifyResultSet();
+                }
+            }, delay);
+        }
+
+        private void notifyResultSet() {
+            synchronized (GeoQuery.this) {
+                this.pending = false;
+                if (!GeoQuery.this.eventListeners.contains(this)) {
+                    return;
+                }
+                final GeoQueryResultSet resultSet = GeoQuery.this.getResultSet(this.sortedByDistance);
+                if (resultSet.getVersion() == this.notifiedVersion) {
+                    return;
+                }
+                this.lastNotification = GeoQuery.this.geoFirestore.getClock().currentTimeMillis();
+                this.notifiedVersion = resultSet.getVersion();
+                GeoQuery.this.geoFirestore.raiseEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResultSetChanged(resultSet);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onDocumentEntered(@NonNull DocumentSnapshot documentSnapshot, @NonNull GeoPoint location) {
+            resultSetChanged();
+        }
+
+        @Override
+        public void onDocumentExited(@NonNull DocumentSnapshot documentSnapshot) {
+            resultSetChanged();
+        }
+
+        @Override
+        public void onDocumentMoved(@NonNull DocumentSnapshot documentSnapshot, @NonNull GeoPoint location) {
+            resultSetChanged();
+        }
+
+        @Override
+        public void onDocumentChanged(@NonNull DocumentSnapshot documentSnapshot, @NonNull GeoPoint location) {
+            resultSetChanged();
+        }
+
+        @Override
+        public void onGeoQueryReady() {
+            resultSetChanged();
+        }
+
+        @Override
+        public void onGeoQueryError(@NonNull final Exception exception) {
+            GeoQuery.this.geoFirestore.raiseEvent(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onGeoQueryError(exception);
+                }
+            });
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ResultSetNotifier && this.listener.equals(((ResultSetNotifier) other).listener);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.listener.hashCode();
         }
     }
 
@@ -71,45 +208,128 @@ public class GeoQuery {
 
     private final Map<String, LocationInfo> locationInfos = new HashMap<>();
     private Set<GeoHashQuery> queries;
-    private final Map<GeoHashQuery, Query> firestoreQueries = new HashMap<>();
-    private final Map<GeoHashQuery, GeoHashQueryListener> handles = new HashMap<>();
-    private final Set<GeoHashQuery> outstandingQueries = new HashSet<>();
+    private PackedRanges ranges;
+    private Set<IndexQuery> indexQueries;
+    // The queries listened to ahead of the motion of the center, not part of the plan of the region
+    private Set<IndexQuery> prefetchQueries = new HashSet<>();
+    private final Map<IndexQuery, RangeHandle> handles = new HashMap<>();
+    // The listened queries without a first snapshot
+    private final Set<IndexQuery> outstandingQueries = new HashSet<>();
+    // The listened queries without a snapshot confirmed by the server
+    private final Set<IndexQuery> unconfirmedQueries = new HashSet<>();
+    // The planned queries waiting for a listener, nearest to the center first
+    private final List<IndexQuery> queuedQueries = new ArrayList<>();
+    // The planned queries nearest to the center
+    private Set<IndexQuery> innerQueries = new HashSet<>();
+    // The maximal number of listened queries without a first snapshot or an error, 0 for no limit
+    private int maxRangesInFlight;
 
     private final Set<GeoQueryDataEventListener> eventListeners = new HashSet<>();
+    private final Map<GeoQueryDataEventListener, EventRaiser> eventRaisers = new HashMap<>();
+    private final Set<GeoQueryCacheListener> cacheListeners = new HashSet<>();
+    private final Set<GeoQueryReadyListener> readyListeners = new HashSet<>();
+    private final Set<GeoQueryProgressListener> progressListeners = new HashSet<>();
+    // The documents restored from the persistent cache and not yet reconciled with the live snapshots
+    private final Map<String, CachedDocument> cachedDocuments = new HashMap<>();
+    // Whether the documents are restored once the persistent cache is loaded
+    private boolean cacheRestoreScheduled;
+    // The expirations of the locations inside the query and the next sweep of the stale ones
+    private TimerWheel expirations;
+    private ScheduledFuture<?> expirationSweep;
 
     private GeoPoint center;
     private double radius;
+    private GeoRegion region;
+    // The time the queries were last attached, zero once the query is ready
+    private long attachTime;
+    private ReadyPolicy readyPolicy;
+    // The limits of the predictive prefetch and the motion of the center, null if it is disabled
+    private PredictivePrefetch predictivePrefetch;
+    private MotionEstimator motion;
+    // True until the ready signals of the last setup of the queries are fired
+    private boolean cacheReadyPending;
+    private boolean serverReadyPending;
+    private boolean innerReadyPending;
+    // The version of the documents inside the query and the last result sets built
+    private long resultVersion;
+    private GeoQueryResultSet resultSet;
+    private GeoQueryResultSet sortedResultSet;
 
 
     /**
      * Creates a new GeoQuery object centered at the given location and with the given radius.
      * @param geoFirestore The GeoFirestore object this GeoQuery uses
      * @param center The center of this query
-     * @param radius The radius of the query, in kilometers. The maximum radius that is
-     * supported is about 8587km. If a radius bigger than this is passed we'll cap it.
+     * @param radius The radius of the query, in kilometers. Radii bigger than about 8587km are planned
+     * with coarse geohash cells or with a scan of the whole collection.
      */
     GeoQuery(GeoFirestore geoFirestore, GeoPoint center, double radius) {
         this.geoFirestore = geoFirestore;
+        this.readyPolicy = geoFirestore.getReadyPolicy();
+        this.maxRangesInFlight = geoFirestore.getMaxRangesInFlight();
         this.center = center;
         this.radius = radius * KILOMETER_TO_METER; // Convert from kilometers to meters.
+        this.region = circleRegion();
+    }
+
+    /**
+     * Creates a new GeoQuery object for the given region.
+     * @param geoFirestore The GeoFirestore object this GeoQuery uses
+     * @param region The region of this query
+     */
+    GeoQuery(GeoFirestore geoFirestore, GeoRegion region) {
+        this.geoFirestore = geoFirestore;
+        this.readyPolicy = geoFirestore.getReadyPolicy();
+        this.maxRangesInFlight = geoFirestore.getMaxRangesInFlight();
+        setRegionInternal(region);
+    }
+
+    private CircleRegion circleRegion() {
+        return new CircleRegion(new GeoLocation(center.getLatitude(), center.getLongitude()), radius / KILOMETER_TO_METER,
+                geoFirestore.getCostModel());
+    }
+
+    private void setRegionInternal(GeoRegion region) {
+        this.region = region;
+        if (region instanceof CircleRegion) {
+            CircleRegion circle = (CircleRegion) region;
+            this.center = new GeoPoint(circle.getCenter().getLatitude(), circle.getCenter().getLongitude());
+            this.radius = circle.getRadius() * KILOMETER_TO_METER;
+        } else {
+            // Use the circle enclosing the bounding box of the region
+            BoundingBoxRegion box = region.getBoundingBox();
+            this.center = new GeoPoint((box.getSouth() + box.getNorth()) / 2, (box.getWest() + box.getEast()) / 2);
+            this.radius = Math.max(
+                    GeoUtils.INSTANCE.distance(center.getLatitude(), center.getLongitude(), box.getSouth(), box.getWest()),
+                    GeoUtils.INSTANCE.distance(center.getLatitude(), center.getLongitude(), box.getNorth(), box.getEast()));
+        }
     }
 
     private boolean locationIsInQuery(GeoPoint location) {
-        return GeoUtils.INSTANCE.distance(new GeoLocation(location.getLatitude(), location.getLongitude()), new GeoLocation(center.getLatitude(), center.getLongitude())) <= this.radius;
+        return this.region.containsLocation(location.getLatitude(), location.getLongitude());
     }
 
-    private void updateLocationInfo(final DocumentSnapshot documentSnapshot, final GeoPoint location) {
+    private void updateLocationInfo(final DocumentSnapshot documentSnapshot, final GeoPoint location, EventOrigin origin) {
         String documentID = documentSnapshot.getId();
+        removeCachedDocument(documentID);
         LocationInfo oldInfo = this.locationInfos.get(documentID);
 
         boolean isNew = oldInfo == null;
         final boolean changedLocation = oldInfo != null && !oldInfo.location.equals(location);
         boolean wasInQuery = oldInfo != null && oldInfo.inGeoQuery;
 
-        boolean isInQuery = this.locationIsInQuery(location);
+        // a stale location is not inside the query
+        Long expiration = this.geoFirestore.expirationOf(documentSnapshot);
+        boolean isInQuery = this.locationIsInQuery(location) && (expiration == null || expiration > this.geoFirestore.getClock().currentTimeMillis());
+        GeoQueryMetrics metrics = this.geoFirestore.getMetrics();
+        if (isNew && !isInQuery) {
+            metrics.onDocumentsDiscarded(1);
+        }
         if ((isNew || !wasInQuery) && isInQuery) {
+            this.resultVersion++;
             for (final GeoQueryDataEventListener listener: this.eventListeners) {
-                this.geoFirestore.raiseEvent(new Runnable() {
+                metrics.onEventDispatched(GeoQueryEventType.ENTERED);
+                this.raiseEvent(listener, new Runnable() {
                     @Override
                     public void run() {
                         listener.onDocumentEntered(documentSnapshot, location);
@@ -117,8 +337,13 @@ public class GeoQuery {
                 });
             }
         } else if (!isNew && isInQuery) {
+            this.resultVersion++;
             for (final GeoQueryDataEventListener listener: this.eventListeners) {
-                this.geoFirestore.raiseEvent(new Runnable() {
+                if (changedLocation) {
+                    metrics.onEventDispatched(GeoQueryEventType.MOVED);
+                }
+                metrics.onEventDispatched(GeoQueryEventType.CHANGED);
+                this.raiseEvent(listener, new Runnable() {
                     @Override
                     public void run() {
                         if (changedLocation) {
@@ -130,8 +355,10 @@ public class GeoQuery {
                 });
             }
         } else if (wasInQuery && !isInQuery) {
+            this.resultVersion++;
             for (final GeoQueryDataEventListener listener: this.eventListeners) {
-                this.geoFirestore.raiseEvent(new Runnable() {
+                metrics.onEventDispatched(GeoQueryEventType.EXITED);
+                this.raiseEvent(listener, new Runnable() {
                     @Override
                     public void run() {
                         listener.onDocumentExited(documentSnapshot);
@@ -139,205 +366,663 @@ public class GeoQuery {
                 });
             }
         }
-        LocationInfo newInfo = new LocationInfo(location, this.locationIsInQuery(location), documentSnapshot);
+        LocationInfo newInfo = new LocationInfo(location, isInQuery, this.geoHashOf(documentSnapshot, location), documentSnapshot, origin,
+                expiration);
         this.locationInfos.put(documentID, newInfo);
+        if (isInQuery && expiration != null) {
+            scheduleExpiration(documentID, expiration);
+        } else if (this.expirations != null) {
+            this.expirations.cancel(documentID);
+        }
     }
 
-    private boolean geoHashQueriesContainGeoHash(GeoHash geoHash) {
-        if (this.queries == null) {
-            return false;
+    /*
+     * Schedule the exit of a location once it expires, the expirations are swept every
+     * sweep interval of the time to live while some location is scheduled
+     */
+    private void scheduleExpiration(String documentID, long expiration) {
+        LocationTtl ttl = this.geoFirestore.getLocationTtl();
+        if (this.expirations == null || this.expirations.getTickMillis() != ttl.getSweepIntervalMillis()) {
+            this.expirations = new TimerWheel(ttl.getSweepIntervalMillis());
+            for (Map.Entry<String, LocationInfo> entry: this.locationInfos.entrySet()) {
+                LocationInfo info = entry.getValue();
+                if (info.inGeoQuery && info.expiration != null) {
+                    this.expirations.schedule(entry.getKey(), info.expiration);
+                }
+            }
         }
-        for (GeoHashQuery query: this.queries) {
-            if (query.containsGeoHash(geoHash)) {
-                return true;
+        this.expirations.schedule(documentID, expiration);
+        if (this.expirationSweep == null) {
+            scheduleExpirationSweep(ttl.getSweepIntervalMillis());
+        }
+    }
+
+    private void scheduleExpirationSweep(long delayMillis) {
+        this.expirationSweep = this.geoFirestore.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (GeoQuery.this) {
+                    GeoQuery.this.expirationSweep = null;
+                    GeoQuery.this.sweepExpirations();
+                }
             }
+        }, delayMillis);
+    }
+
+    /*
+     * Notify as exited the locations expired since the last sweep, without reading them again,
+     * and forget them until their document changes
+     */
+    private void sweepExpirations() {
+        if (this.expirations == null) {
+            return;
         }
-        return false;
+        long now = this.geoFirestore.getClock().currentTimeMillis();
+        GeoQueryMetrics metrics = this.geoFirestore.getMetrics();
+        for (String documentID: this.expirations.advance(now)) {
+            final LocationInfo info = this.locationInfos.get(documentID);
+            if (info == null || !info.inGeoQuery || info.expiration == null || info.expiration > now) {
+                continue;
+            }
+            this.locationInfos.remove(documentID);
+            this.resultVersion++;
+            for (final GeoQueryDataEventListener listener: this.eventListeners) {
+                metrics.onEventDispatched(GeoQueryEventType.EXITED);
+                this.raiseEvent(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDocumentExited(info.documentSnapshot);
+                    }
+                });
+            }
+        }
+        LocationTtl ttl = this.geoFirestore.getLocationTtl();
+        if (this.expirations.getSize() > 0 && ttl != null) {
+            scheduleExpirationSweep(ttl.getSweepIntervalMillis());
+        }
+    }
+
+    /*
+     * Get the geohash of a document, the one stored in the document is used when
+     * available instead of encoding again the location
+     */
+    private GeoHash geoHashOf(DocumentSnapshot documentSnapshot, GeoPoint location) {
+        GeoHash geoHash = this.geoFirestore.getLocationExtractor().geoHash(documentSnapshot);
+        if (geoHash == null) {
+            return new GeoHash(new GeoLocation(location.getLatitude(), location.getLongitude()));
+        }
+        if (this.geoFirestore.getVerifyStoredGeoHash()) {
+            GeoHash encoded = new GeoHash(new GeoLocation(location.getLatitude(), location.getLongitude()),
+                    geoHash.getGeoHashString().length());
+            if (!encoded.equals(geoHash)) {
+                GeoFirestore.LOGGER.warning("The geohash of " + documentSnapshot.getId()
+                        + " doesn't match its location: " + geoHash.getGeoHashString() + " instead of " + encoded.getGeoHashString());
+                return encoded;
+            }
+        }
+        return geoHash;
+    }
+
+    private boolean geoHashQueriesContainGeoHash(GeoHash geoHash) {
+        return this.ranges != null && this.ranges.contains(geoHash);
     }
 
     private void reset() {
-        for(Map.Entry<GeoHashQuery, Query> entry: this.firestoreQueries.entrySet()) {
-            GeoHashQueryListener handle = handles.get(entry.getKey());
-            handle.childAddedListener.remove();
-            handle.childRemovedListener.remove();
-            handle.childChangedListener.remove();
+        for (RangeHandle handle: this.handles.values()) {
+            handle.remove();
         }
 
         this.locationInfos.clear();
+        this.cachedDocuments.clear();
+        if (this.expirationSweep != null) {
+            this.expirationSweep.cancel(false);
+            this.expirationSweep = null;
+        }
+        this.expirations = null;
+        this.resultVersion++;
         this.queries = null;
-        this.firestoreQueries.clear();
+        this.ranges = null;
+        this.indexQueries = null;
+        this.prefetchQueries = new HashSet<>();
+        this.innerQueries = new HashSet<>();
+        this.queuedQueries.clear();
+        if (this.motion != null) {
+            this.motion.clear();
+        }
         this.handles.clear();
         this.outstandingQueries.clear();
+        this.unconfirmedQueries.clear();
+    }
+
+    private void raiseEvent(GeoQueryDataEventListener listener, Runnable r) {
+        this.geoFirestore.raiseEvent(r, this.eventRaisers.get(listener));
     }
 
     private boolean hasListeners() {
         return !this.eventListeners.isEmpty();
     }
 
-    private boolean canFireReady() {
-        return this.outstandingQueries.isEmpty();
+    private boolean isReady(EventOrigin origin) {
+        Set<IndexQuery> pendingQueries = (origin == EventOrigin.CACHE) ? this.outstandingQueries : this.unconfirmedQueries;
+        if (this.prefetchQueries.isEmpty()) {
+            return pendingQueries.isEmpty();
+        }
+        // the queries listened to ahead of the center don't delay the ready signals
+        for (IndexQuery query: pendingQueries) {
+            if (!this.prefetchQueries.contains(query)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Check if the ready policy of the query calls onGeoQueryReady for the ready signal of an origin
+     */
+    private boolean policyFiresReady(EventOrigin origin) {
+        switch (this.readyPolicy) {
+            case CACHE:
+                return origin == EventOrigin.CACHE;
+            case SERVER:
+                return origin == EventOrigin.SERVER;
+            default:
+                return true;
+        }
+    }
+
+    /*
+     * The origin of the snapshots the progress signals wait for: the cache with ReadyPolicy.CACHE,
+     * the server otherwise, so onGeoQueryFullyReady is never called before onGeoQueryReady
+     */
+    private EventOrigin progressOrigin() {
+        return (this.readyPolicy == ReadyPolicy.CACHE) ? EventOrigin.CACHE : EventOrigin.SERVER;
+    }
+
+    /*
+     * Check if every query nearest to the center has a snapshot of the origin of the progress signals
+     */
+    private boolean isInnerReady() {
+        Set<IndexQuery> pendingQueries = (progressOrigin() == EventOrigin.CACHE) ? this.outstandingQueries : this.unconfirmedQueries;
+        for (IndexQuery query: this.innerQueries) {
+            if (pendingQueries.contains(query)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fireFullyReady() {
+        for (final GeoQueryProgressListener listener: this.progressListeners) {
+            this.geoFirestore.raiseEvent(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onGeoQueryFullyReady();
+                }
+            });
+        }
     }
 
     private void checkAndFireReady() {
-        if (canFireReady()) {
-            for (final GeoQueryDataEventListener listener: this.eventListeners) {
+        if (this.innerReadyPending && isInnerReady()) {
+            this.innerReadyPending = false;
+            for (final GeoQueryProgressListener listener: this.progressListeners) {
                 this.geoFirestore.raiseEvent(new Runnable() {
                     @Override
                     public void run() {
-                        listener.onGeoQueryReady();
+                        listener.onGeoQueryInnerReady();
                     }
                 });
             }
         }
+        if (this.cacheReadyPending && isReady(EventOrigin.CACHE)) {
+            this.cacheReadyPending = false;
+            // the cached documents not received from Firestore are gone
+            for (String documentID: new ArrayList<>(this.cachedDocuments.keySet())) {
+                removeCachedDocument(documentID);
+            }
+            if (progressOrigin() == EventOrigin.CACHE) {
+                fireFullyReady();
+            }
+            fireReady(EventOrigin.CACHE);
+        }
+        if (this.serverReadyPending && isReady(EventOrigin.SERVER)) {
+            this.serverReadyPending = false;
+            if (progressOrigin() == EventOrigin.SERVER) {
+                fireFullyReady();
+            }
+            fireReady(EventOrigin.SERVER);
+        }
     }
 
-    private void addValueToReadyListener(final Query firestore, final GeoHashQuery query) {
-        firestore.get().addOnCompleteListener(new OnCompleteListener<QuerySnapshot>() {
-            @Override
-            public void onComplete(@NonNull final Task<QuerySnapshot> task) {
-                if (task.isSuccessful()){
+    private void fireReady(final EventOrigin origin) {
+        for (final GeoQueryReadyListener listener: this.readyListeners) {
+            this.geoFirestore.raiseEvent(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onGeoQueryReady(origin);
+                }
+            });
+        }
+        if (!policyFiresReady(origin)) {
+            return;
+        }
+        GeoQueryMetrics metrics = this.geoFirestore.getMetrics();
+        if (this.attachTime != 0) {
+            metrics.onQueryReady(this.geoFirestore.getClock().nanoTime() - this.attachTime);
+            this.attachTime = 0;
+        }
+        for (final GeoQueryDataEventListener listener: this.eventListeners) {
+            metrics.onEventDispatched(GeoQueryEventType.READY);
+            this.raiseEvent(listener, new Runnable() {
+                @Override
+                public void run() {
+                    listener.onGeoQueryReady();
+                }
+            });
+        }
+    }
 
-                    synchronized (GeoQuery.this) {
-                        GeoQuery.this.outstandingQueries.remove(query);
-                        GeoQuery.this.checkAndFireReady();
+    /*
+     * Create the listener of the changes of a planned query, the query is ready once its
+     * first batch of changes, containing all its documents, is processed
+     */
+    private RangeListener rangeListener(final IndexQuery query, final RangeHandle handle) {
+        return new RangeListener() {
+            @Override
+            public void onChanges(@NonNull List<GeoDocumentChange> changes, boolean fromCache) {
+                synchronized (GeoQuery.this) {
+                    if (GeoQuery.this.handles.get(query) != handle) {
+                        return;
                     }
-
-                }else{
-
-                    synchronized (GeoQuery.this) {
-                        for (final GeoQueryDataEventListener listener : GeoQuery.this.eventListeners) {
-                            GeoQuery.this.geoFirestore.raiseEvent(new Runnable() {
-                                @Override
-                                public void run() {
-                                    listener.onGeoQueryError(task.getException());
-                                }
-                            });
+                    EventOrigin origin = fromCache ? EventOrigin.CACHE : EventOrigin.SERVER;
+                    boolean firstChanges = GeoQuery.this.outstandingQueries.remove(query);
+                    int documentsRead = 0;
+                    for (GeoDocumentChange change: changes) {
+                        switch (change.getType()) {
+                            case ADDED:
+                                documentsRead++;
+                                childAdded(change.getDocument(), origin);
+                                break;
+                            case MODIFIED:
+                                documentsRead++;
+                                childChanged(change.getDocument(), origin);
+                                break;
+                            case REMOVED:
+                                childRemoved(change.getDocument());
+                                break;
+                        }
+                    }
+                    GeoQuery.this.geoFirestore.getMetrics().onDocumentsRead(documentsRead);
+                    boolean confirmed = !fromCache && GeoQuery.this.unconfirmedQueries.remove(query);
+                    if (confirmed) {
+                        // only the ranges read from the server are complete, the snapshots from the
+                        // local cache of Firestore may be partial or stale
+                        List<DocumentSnapshot> documents = GeoQuery.this.confirmLocations(query);
+                        LocalGeoIndex localIndex = GeoQuery.this.geoFirestore.getLocalIndex();
+                        if (localIndex != null) {
+                            localIndex.put(query.getQueries(), documents, GeoQuery.this.geoFirestore.getLocationExtractor(),
+                                    GeoQuery.this.geoFirestore.getClock().currentTimeMillis());
+                        }
+                        PersistentGeoCache persistentCache = GeoQuery.this.geoFirestore.getPersistentCache();
+                        if (persistentCache != null) {
+                            persistentCache.put(query.getQueries(), documents, GeoQuery.this.geoFirestore.getLocationExtractor(),
+                                    GeoQuery.this.geoFirestore.getClock().currentTimeMillis());
+                            GeoQuery.this.geoFirestore.schedulePersistentCacheSave();
                         }
                     }
+                    if (firstChanges) {
+                        GeoQuery.this.attachQueuedQueries();
+                    }
+                    if (firstChanges || confirmed) {
+                        GeoQuery.this.checkAndFireReady();
+                    }
+                }
+            }
 
+            @Override
+            public void onError(@NonNull final Exception exception) {
+                synchronized (GeoQuery.this) {
+                    // a range failing before its first snapshot lets the queued queries attach
+                    if (GeoQuery.this.handles.get(query) == handle && !handle.failed) {
+                        handle.failed = true;
+                        GeoQuery.this.attachQueuedQueries();
+                    }
+                    for (final GeoQueryDataEventListener listener : GeoQuery.this.eventListeners) {
+                        GeoQuery.this.geoFirestore.getMetrics().onEventDispatched(GeoQueryEventType.ERROR);
+                        GeoQuery.this.raiseEvent(listener, new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onGeoQueryError(exception);
+                            }
+                        });
+                    }
                 }
             }
-        });
+        };
     }
 
-    private void setupQueries() {
-        Set<GeoHashQuery> oldQueries = (queries == null) ? new HashSet<GeoHashQuery>() : queries;
-        Set<GeoHashQuery> newQueries = GeoHashQuery.Companion.queriesAtLocation(new GeoLocation(center.getLatitude(), center.getLongitude()), radius);
-        this.queries = newQueries;
+    /*
+     * Plan the queries for the current region and the queries ahead of the motion of the center,
+     * and remove the listeners of the queries that are not part of the new plans, the previously
+     * listened queries are returned
+     */
+    private Set<IndexQuery> planQueries() {
+        Set<IndexQuery> oldQueries = (indexQueries == null) ? new HashSet<IndexQuery>() : new HashSet<>(indexQueries);
+        oldQueries.addAll(this.prefetchQueries);
+        Set<IndexQuery> newQueries = new HashSet<>(this.geoFirestore.planQueries(this.region));
+        Set<GeoHashQuery> geoHashQueries = new HashSet<>();
+        for (IndexQuery query: newQueries) {
+            geoHashQueries.addAll(query.getQueries());
+        }
+        this.indexQueries = newQueries;
+        this.queries = geoHashQueries;
+        this.prefetchQueries = planPrefetchQueries(newQueries);
+        // the documents of the prefetched ranges are kept, ready to enter the query
+        Set<GeoHashQuery> listenedRanges = new HashSet<>(geoHashQueries);
+        for (IndexQuery query: this.prefetchQueries) {
+            listenedRanges.addAll(query.getQueries());
+        }
+        this.ranges = new PackedRanges(listenedRanges);
+        this.geoFirestore.getMetrics().onQueriesPlanned(newQueries.size() + this.prefetchQueries.size());
 
-        for (GeoHashQuery query: oldQueries) {
-            if (!newQueries.contains(query)) {
-                GeoHashQueryListener handle = handles.get(firestoreQueries.get(query));
+        for (IndexQuery query: oldQueries) {
+            if (!newQueries.contains(query) && !this.prefetchQueries.contains(query)) {
+                RangeHandle handle = handles.remove(query);
                 if (handle != null) {
-                    handle.childAddedListener.remove();
-                    handle.childRemovedListener.remove();
-                    handle.childChangedListener.remove();
+                    handle.remove();
                 }
-                firestoreQueries.remove(query);
                 outstandingQueries.remove(query);
+                unconfirmedQueries.remove(query);
             }
         }
-        for (final GeoHashQuery query: newQueries) {
-            if (!oldQueries.contains(query)) {
-                outstandingQueries.add(query);
-                CollectionReference collectionReference = this.geoFirestore.getCollectionReference();
+        return oldQueries;
+    }
 
-                Query firestoreQuery = collectionReference.orderBy("g").startAt(query.getStartValue()).endAt(query.getEndValue());
+    /*
+     * Plan the queries of the circle where the center is predicted to be, the ones nearest to
+     * the current center first, up to the maximal number of listeners of the predictive prefetch
+     */
+    private Set<IndexQuery> planPrefetchQueries(Set<IndexQuery> plannedQueries) {
+        Set<IndexQuery> prefetch = new HashSet<>();
+        if (this.predictivePrefetch == null || !(this.region instanceof CircleRegion)) {
+            return prefetch;
+        }
+        GeoLocation predictedCenter = this.motion.predict(this.predictivePrefetch.getLookaheadMillis(),
+                this.predictivePrefetch.getMaxLookahead() * KILOMETER_TO_METER);
+        if (predictedCenter == null) {
+            return prefetch;
+        }
+        CircleRegion predictedRegion = new CircleRegion(predictedCenter, this.radius / KILOMETER_TO_METER,
+                this.geoFirestore.getCostModel());
+        List<IndexQuery> candidates = new ArrayList<>();
+        final Map<IndexQuery, Double> distances = new HashMap<>();
+        for (IndexQuery query: this.geoFirestore.planQueries(predictedRegion)) {
+            if (!plannedQueries.contains(query)) {
+                candidates.add(query);
+                distances.put(query, distanceFromCenter(query));
+            }
+        }
+        Collections.sort(candidates, new Comparator<IndexQuery>() {
+            @Override
+            public int compare(IndexQuery query1, IndexQuery query2) {
+                return Double.compare(distances.get(query1), distances.get(query2));
+            }
+        });
+        prefetch.addAll(candidates.subList(0, Math.min(candidates.size(), this.predictivePrefetch.getMaxListeners())));
+        return prefetch;
+    }
 
-                ListenerRegistration childAddedListener = firestoreQuery.addSnapshotListener(new EventListener<QuerySnapshot>() {
-                    @Override
-                    public void onEvent(@Nullable QuerySnapshot queryDocumentSnapshots, @Nullable FirebaseFirestoreException e) {
-                        if (queryDocumentSnapshots != null && e == null){
-                            for(final DocumentChange docChange: queryDocumentSnapshots.getDocumentChanges()){
-                                if (docChange.getType() == DocumentChange.Type.ADDED){
-                                    childAdded(docChange.getDocument());
-                                }
-                            }
-                        }
-                    }
-                });
-                ListenerRegistration childRemovedListener = firestoreQuery.addSnapshotListener(new EventListener<QuerySnapshot>() {
-                    @Override
-                    public void onEvent(@Nullable QuerySnapshot queryDocumentSnapshots, @Nullable FirebaseFirestoreException e) {
-                        if (queryDocumentSnapshots != null && e == null){
-                            for(final DocumentChange docChange: queryDocumentSnapshots.getDocumentChanges()){
-                                if (docChange.getType() == DocumentChange.Type.REMOVED){
-                                    childRemoved(docChange.getDocument());
-                                }
-                            }
-                        }
-                    }
-                });
-                ListenerRegistration childChangedListener = firestoreQuery.addSnapshotListener(new EventListener<QuerySnapshot>() {
-                    @Override
-                    public void onEvent(@Nullable QuerySnapshot queryDocumentSnapshots, @Nullable FirebaseFirestoreException e) {
-                        if (queryDocumentSnapshots != null && e == null){
-                            for(final DocumentChange docChange: queryDocumentSnapshots.getDocumentChanges()){
-                                if (docChange.getType() == DocumentChange.Type.MODIFIED){
-                                    childChanged(docChange.getDocument());
-                                }
-                            }
-                        }
-                    }
-                });
+    /*
+     * Compute the distance in meters between the center and the nearest cell read by a query
+     */
+    private double distanceFromCenter(IndexQuery query) {
+        double distance = Double.MAX_VALUE;
+        for (GeoHashQuery range: query.getQueries()) {
+            distance = Math.min(distance, GeoHashCovering.INSTANCE.distanceToRange(this.center.getLatitude(),
+                    this.center.getLongitude(), range));
+        }
+        return distance;
+    }
+
+    /*
+     * Sort the planned queries by the distance of their nearest cell from the center, followed
+     * by the queries ahead of the center, and find the inner queries at the minimal distance
+     */
+    private List<IndexQuery> prioritizeQueries() {
+        final Map<IndexQuery, Double> distances = new HashMap<>();
+        List<IndexQuery> planned = new ArrayList<>(this.indexQueries);
+        List<IndexQuery> prefetch = new ArrayList<>(this.prefetchQueries);
+        double innerDistance = Double.MAX_VALUE;
+        for (IndexQuery query: planned) {
+            double distance = distanceFromCenter(query);
+            distances.put(query, distance);
+            innerDistance = Math.min(innerDistance, distance);
+        }
+        for (IndexQuery query: prefetch) {
+            distances.put(query, distanceFromCenter(query));
+        }
+        Comparator<IndexQuery> byDistance = new Comparator<IndexQuery>() {
+            @Override
+            public int compare(IndexQuery query1, IndexQuery query2) {
+                return Double.compare(distances.get(query1), distances.get(query2));
+            }
+        };
+        Collections.sort(planned, byDistance);
+        Collections.sort(prefetch, byDistance);
+        this.innerQueries = new HashSet<>();
+        for (IndexQuery query: planned) {
+            if (distances.get(query) <= innerDistance) {
+                this.innerQueries.add(query);
+            }
+        }
+        planned.addAll(prefetch);
+        return planned;
+    }
+
+    /*
+     * Attach the listeners of the queued queries in their order, as long as the number of
+     * listened queries without a first snapshot or an error is below the limit
+     */
+    private void attachQueuedQueries() {
+        // a backend may deliver the first batch while attaching, attaching more queries from there
+        while (!this.queuedQueries.isEmpty() && (this.maxRangesInFlight == 0 || rangesInFlight() < this.maxRangesInFlight)) {
+            IndexQuery query = this.queuedQueries.remove(0);
+            RangeHandle handle = new RangeHandle();
+            handles.put(query, handle);
+            handle.attach(this.geoFirestore.getBackend().addRangeListener(query, rangeListener(query, handle)));
+        }
+    }
+
+    private int rangesInFlight() {
+        int inFlight = 0;
+        for (Map.Entry<IndexQuery, RangeHandle> handle: this.handles.entrySet()) {
+            if (this.outstandingQueries.contains(handle.getKey()) && !handle.getValue().failed) {
+                inFlight++;
+            }
+        }
+        return inFlight;
+    }
+
+    /*
+     * Record the position of the center for the predictive prefetch
+     */
+    private void recordMotion() {
+        if (this.motion != null) {
+            this.motion.addSample(this.geoFirestore.getClock().currentTimeMillis(), this.center.getLatitude(), this.center.getLongitude());
+        }
+    }
 
-                GeoHashQueryListener handle = new GeoHashQueryListener(childAddedListener, childRemovedListener, childChangedListener);
-                handles.put(query, handle);
-                addValueToReadyListener(firestoreQuery, query);
-                firestoreQueries.put(query, firestoreQuery);
+    private void setupQueries() {
+        long startTime = this.geoFirestore.getClock().nanoTime();
+        this.attachTime = startTime;
+        this.cacheReadyPending = true;
+        this.serverReadyPending = true;
+        this.innerReadyPending = true;
+        Set<IndexQuery> oldQueries = planQueries();
+        this.queuedQueries.clear();
+        for (IndexQuery query: prioritizeQueries()) {
+            if (!handles.containsKey(query)) {
+                if (!oldQueries.contains(query)) {
+                    outstandingQueries.add(query);
+                    unconfirmedQueries.add(query);
+                }
+                this.queuedQueries.add(query);
             }
         }
+        attachQueuedQueries();
         for (Map.Entry<String, LocationInfo> info: this.locationInfos.entrySet()) {
             LocationInfo oldLocationInfo = info.getValue();
 
             if (oldLocationInfo != null) {
-                updateLocationInfo(oldLocationInfo.documentSnapshot, oldLocationInfo.location);
+                updateLocationInfo(oldLocationInfo.documentSnapshot, oldLocationInfo.location, oldLocationInfo.origin);
             }
         }
         // remove locations that are not part of the geo query anymore
-        Iterator<Map.Entry<String, LocationInfo>> it = this.locationInfos.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, LocationInfo> entry = it.next();
-            if (!this.geoHashQueriesContainGeoHash(entry.getValue().geoHash)) {
-                it.remove();
+        this.ranges.removeOutside(this.locationInfos, new Function1<LocationInfo, GeoHash>() {
+            @Override
+            public GeoHash invoke(LocationInfo info) {
+                return info.geoHash;
             }
-        }
+        });
+
+        restoreCachedDocuments();
 
+        this.geoFirestore.getMetrics().onReplan(this.geoFirestore.getClock().nanoTime() - startTime);
         checkAndFireReady();
     }
 
-    private void childAdded(DocumentSnapshot documentSnapshot) {
-        GeoPoint location = GeoFirestore.Companion.getLocationValue(documentSnapshot);
+    /*
+     * Notify the documents of the persistent cache inside the query that are not known yet,
+     * and remove the cached documents left out by the new plan
+     */
+    private void restoreCachedDocuments() {
+        for (CachedDocument document: new ArrayList<>(this.cachedDocuments.values())) {
+            if (!this.locationIsInQuery(document.getLocation())) {
+                removeCachedDocument(document.getDocumentID());
+            }
+        }
+        PersistentGeoCache persistentCache = this.geoFirestore.getPersistentCache();
+        if (persistentCache == null || this.outstandingQueries.isEmpty()) {
+            return;
+        }
+        if (!persistentCache.isLoaded()) {
+            scheduleCacheRestore(persistentCache);
+            return;
+        }
+        for (final CachedDocument document: persistentCache.get(this.queries)) {
+            String documentID = document.getDocumentID();
+            if (this.locationInfos.containsKey(documentID) || this.cachedDocuments.containsKey(documentID)
+                    || !this.locationIsInQuery(document.getLocation())) {
+                continue;
+            }
+            this.cachedDocuments.put(documentID, document);
+            for (final GeoQueryCacheListener listener: this.cacheListeners) {
+                this.geoFirestore.raiseEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onCachedDocumentEntered(document);
+                    }
+                });
+            }
+        }
+    }
+
+    /*
+     * Restore the cached documents on the cache thread of GeoFirestore once the persistent
+     * cache is loaded, its file is never read holding the query
+     */
+    private void scheduleCacheRestore(final PersistentGeoCache persistentCache) {
+        if (this.cacheRestoreScheduled) {
+            return;
+        }
+        this.cacheRestoreScheduled = true;
+        this.geoFirestore.executeCacheIO(new Runnable() {
+            @Override
+            public void run() {
+                persistentCache.load(GeoQuery.this.geoFirestore.getClock().currentTimeMillis());
+                synchronized (GeoQuery.this) {
+                    GeoQuery.this.cacheRestoreScheduled = false;
+                    if (GeoQuery.this.hasListeners()) {
+                        GeoQuery.this.restoreCachedDocuments();
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+     * Remove a document restored from the persistent cache once it is reconciled
+     */
+    private void removeCachedDocument(final String documentID) {
+        if (this.cachedDocuments.remove(documentID) == null) {
+            return;
+        }
+        for (final GeoQueryCacheListener listener: this.cacheListeners) {
+            this.geoFirestore.raiseEvent(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onCachedDocumentRemoved(documentID);
+                }
+            });
+        }
+    }
+
+    private void childAdded(DocumentSnapshot documentSnapshot, EventOrigin origin) {
+        GeoPoint location = this.geoFirestore.getLocationExtractor().location(documentSnapshot);
         if (location != null) {
-            this.updateLocationInfo(documentSnapshot, location);
+            this.updateLocationInfo(documentSnapshot, location, origin);
         }
     }
 
-    private void childChanged(DocumentSnapshot documentSnapshot) {
-        GeoPoint location = GeoFirestore.Companion.getLocationValue(documentSnapshot);
+    private void childChanged(DocumentSnapshot documentSnapshot, EventOrigin origin) {
+        GeoPoint location = this.geoFirestore.getLocationExtractor().location(documentSnapshot);
         if (location != null) {
-            this.updateLocationInfo(documentSnapshot, location);
+            this.updateLocationInfo(documentSnapshot, location, origin);
         }
     }
 
+    /*
+     * Mark as confirmed by the server the documents read by a query, the documents of its
+     * ranges are returned
+     */
+    private List<DocumentSnapshot> confirmLocations(IndexQuery query) {
+        List<DocumentSnapshot> documents = new ArrayList<>();
+        for (LocationInfo info: this.locationInfos.values()) {
+            for (GeoHashQuery range: query.getQueries()) {
+                if (range.containsGeoHash(info.geoHash)) {
+                    documents.add(info.documentSnapshot);
+                    if (info.origin == EventOrigin.CACHE) {
+                        info.origin = EventOrigin.SERVER;
+                        this.resultVersion++;
+                    }
+                    break;
+                }
+            }
+        }
+        return documents;
+    }
+
     private void childRemoved(DocumentSnapshot documentSnapshot) {
         final String documentID = documentSnapshot.getId();
         final LocationInfo info = this.locationInfos.get(documentID);
         if (info != null) {
-            this.geoFirestore.getRefForDocumentID(documentID).get().addOnCompleteListener(new OnCompleteListener<DocumentSnapshot>() {
+            this.geoFirestore.getMetrics().onChildRemovedLookup();
+            this.geoFirestore.getBackend().getDocument(documentID, new GeoFirestoreBackend.DocumentCallback() {
                 @Override
-                public void onComplete(@NonNull Task<DocumentSnapshot> task) {
-                    if (task.isSuccessful()){
+                public void onComplete(@Nullable DocumentSnapshot documentSnapshot, @Nullable Exception exception) {
+                    if (exception == null) {
 
                         synchronized (GeoQuery.this) {
-                            GeoPoint location = GeoFirestore.Companion.getLocationValue(task.getResult());
-                            GeoHash hash = (location != null) ? new GeoHash(new GeoLocation(location.getLatitude(), location.getLongitude())) : null;
+                            GeoPoint location = (documentSnapshot != null) ? GeoQuery.this.geoFirestore.getLocationExtractor().location(documentSnapshot) : null;
+                            GeoHash hash = (location != null) ? GeoQuery.this.geoHashOf(documentSnapshot, location) : null;
                             if (hash == null || !GeoQuery.this.geoHashQueriesContainGeoHash(hash)) {
                                 final LocationInfo locInfo = locationInfos.remove(documentID);
                                 if (locInfo != null && locInfo.inGeoQuery) {
+                                    GeoQuery.this.resultVersion++;
 
                                     for (final GeoQueryDataEventListener listener: GeoQuery.this.eventListeners) {
-                                        GeoQuery.this.geoFirestore.raiseEvent(new Runnable() {
+                                        GeoQuery.this.geoFirestore.getMetrics().onEventDispatched(GeoQueryEventType.EXITED);
+                                        GeoQuery.this.raiseEvent(listener, new Runnable() {
                                             @Override
                                             public void run() {
                                                 listener.onDocumentExited(locInfo.documentSnapshot);
@@ -374,10 +1059,26 @@ public class GeoQuery {
      * @param listener The listener to add
      */
     public synchronized void addGeoQueryDataEventListener(final GeoQueryDataEventListener listener) {
+        addGeoQueryDataEventListener(listener, null);
+    }
+
+    /**
+     * Adds a new GeoQueryDataEventListener to this GeoQuery, notified with the given EventRaiser
+     * instead of the one of GeoFirestore.
+     *
+     * @throws IllegalArgumentException If this listener was already added
+     *
+     * @param listener The listener to add
+     * @param eventRaiser The EventRaiser running the events of the listener, null to use the one of GeoFirestore
+     */
+    public synchronized void addGeoQueryDataEventListener(final GeoQueryDataEventListener listener, @Nullable EventRaiser eventRaiser) {
         if (eventListeners.contains(listener)) {
             throw new IllegalArgumentException("Added the same listener twice to a GeoQuery!");
         }
         eventListeners.add(listener);
+        if (eventRaiser != null) {
+            eventRaisers.put(listener, eventRaiser);
+        }
         if (this.queries == null) {
             this.setupQueries();
         } else {
@@ -385,7 +1086,8 @@ public class GeoQuery {
                 final LocationInfo info = entry.getValue();
 
                 if (info.inGeoQuery) {
-                    this.geoFirestore.raiseEvent(new Runnable() {
+                    this.geoFirestore.getMetrics().onEventDispatched(GeoQueryEventType.ENTERED);
+                    this.raiseEvent(listener, new Runnable() {
                         @Override
                         public void run() {
                             listener.onDocumentEntered(info.documentSnapshot, info.location);
@@ -393,11 +1095,68 @@ public class GeoQuery {
                     });
                 }
             }
-            if (this.canFireReady()) {
+            for (EventOrigin origin: EventOrigin.values()) {
+                if (policyFiresReady(origin) && isReady(origin)) {
+                    this.geoFirestore.getMetrics().onEventDispatched(GeoQueryEventType.READY);
+                    this.raiseEvent(listener, new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onGeoQueryReady();
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a new GeoQueryResultSetListener to this GeoQuery, notified with the current documents
+     * inside the query at most once every interval.
+     *
+     * @throws IllegalArgumentException If this listener was already added
+     *
+     * @param listener The listener to add
+     * @param intervalMillis The minimal time between two notifications, in milliseconds
+     * @param sortedByDistance True to notify the documents sorted by increasing distance from the center
+     */
+    public synchronized void addGeoQueryResultSetListener(final GeoQueryResultSetListener listener,
+                                                          long intervalMillis, boolean sortedByDistance) {
+        addGeoQueryDataEventListener(new ResultSetNotifier(listener, intervalMillis, sortedByDistance),
+                ImmediateEventRaiser.INSTANCE);
+    }
+
+    /**
+     * Removes a result set listener.
+     *
+     * @throws IllegalArgumentException If the listener was removed already or never added
+     *
+     * @param listener The listener to remove
+     */
+    public synchronized void removeGeoQueryResultSetListener(GeoQueryResultSetListener listener) {
+        removeGeoQueryEventListener(new ResultSetNotifier(listener, 0, false));
+    }
+
+    /**
+     * Adds a listener of the ready signals of the local cache and of the server, the signals
+     * already reached by the query are notified immediately.
+     *
+     * @throws IllegalArgumentException If the listener was already added
+     *
+     * @param listener The listener to add
+     */
+    public synchronized void addGeoQueryReadyListener(final GeoQueryReadyListener listener) {
+        if (!readyListeners.add(listener)) {
+            throw new IllegalArgumentException("Added the same listener twice to a GeoQuery!");
+        }
+        if (this.queries == null) {
+            return;
+        }
+        for (final EventOrigin origin: EventOrigin.values()) {
+            if (isReady(origin)) {
                 this.geoFirestore.raiseEvent(new Runnable() {
                     @Override
                     public void run() {
-                        listener.onGeoQueryReady();
+                        listener.onGeoQueryReady(origin);
                     }
                 });
             }
@@ -405,35 +1164,187 @@ public class GeoQuery {
     }
 
     /**
-     * Get the Firestore query(s) for this GeoQuery.
+     * Removes a listener of the ready signals.
      *
-     * @return The Firestore query(s) for this GeoQuery
+     * @throws IllegalArgumentException If the listener was removed already or never added
+     *
+     * @param listener The listener to remove
      */
-    public ArrayList<Query> getQueries() {
-        Set<GeoHashQuery> oldQueries = (queries == null) ? new HashSet<GeoHashQuery>() : queries;
-        Set<GeoHashQuery> newQueries = GeoHashQuery.Companion.queriesAtLocation(new GeoLocation(center.getLatitude(), center.getLongitude()), radius);
-        this.queries = newQueries;
+    public synchronized void removeGeoQueryReadyListener(GeoQueryReadyListener listener) {
+        if (!readyListeners.remove(listener)) {
+            throw new IllegalArgumentException("Trying to remove listener that was removed or not added!");
+        }
+    }
 
-        for (GeoHashQuery query: oldQueries) {
-            if (!newQueries.contains(query)) {
-                GeoHashQueryListener handle = handles.get(firestoreQueries.get(query));
-                if (handle != null) {
-                    handle.childAddedListener.remove();
-                    handle.childRemovedListener.remove();
-                    handle.childChangedListener.remove();
+    /**
+     * Adds a listener of the progress of the loading of the planned queries, the signals already
+     * reached by the query are notified immediately.
+     *
+     * @throws IllegalArgumentException If the listener was already added
+     *
+     * @param listener The listener to add
+     */
+    public synchronized void addGeoQueryProgressListener(final GeoQueryProgressListener listener) {
+        if (!progressListeners.add(listener)) {
+            throw new IllegalArgumentException("Added the same listener twice to a GeoQuery!");
+        }
+        if (this.queries == null) {
+            return;
+        }
+        if (isInnerReady()) {
+            this.geoFirestore.raiseEvent(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onGeoQueryInnerReady();
+                }
+            });
+        }
+        if (isReady(progressOrigin())) {
+            this.geoFirestore.raiseEvent(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onGeoQueryFullyReady();
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes a listener of the progress of the loading.
+     *
+     * @throws IllegalArgumentException If the listener was removed already or never added
+     *
+     * @param listener The listener to remove
+     */
+    public synchronized void removeGeoQueryProgressListener(GeoQueryProgressListener listener) {
+        if (!progressListeners.remove(listener)) {
+            throw new IllegalArgumentException("Trying to remove listener that was removed or not added!");
+        }
+    }
+
+    /**
+     * Returns the maximal number of planned queries this query loads at once.
+     * @return The maximal number of queries without a first snapshot, 0 for no limit
+     */
+    public synchronized int getMaxRangesInFlight() {
+        return maxRangesInFlight;
+    }
+
+    /**
+     * Sets the maximal number of planned queries this query loads at once. The queries are
+     * listened to by increasing distance of their nearest cell from the center, and the next
+     * one is attached as soon as one of the loading queries has its first snapshot, so the
+     * documents near the center are received first on slow networks.
+     *
+     * @throws IllegalArgumentException If the limit is negative
+     *
+     * @param maxRangesInFlight The maximal number of queries without a first snapshot, 0 for no limit
+     */
+    public synchronized void setMaxRangesInFlight(int maxRangesInFlight) {
+        if (maxRangesInFlight < 0) {
+            throw new IllegalArgumentException("The maximal number of ranges in flight can't be negative!");
+        }
+        this.maxRangesInFlight = maxRangesInFlight;
+        if (this.hasListeners()) {
+            attachQueuedQueries();
+        }
+    }
+
+    /**
+     * Returns when this query calls onGeoQueryReady.
+     * @return The ready policy of this query
+     */
+    public synchronized ReadyPolicy getReadyPolicy() {
+        return readyPolicy;
+    }
+
+    /**
+     * Sets when this query calls onGeoQueryReady, it applies from the next update of the query criteria.
+     * @param readyPolicy The new ready policy
+     */
+    public synchronized void setReadyPolicy(ReadyPolicy readyPolicy) {
+        this.readyPolicy = readyPolicy;
+    }
+
+    /**
+     * Adds a listener of the documents restored from the persistent cache of GeoFirestore, the
+     * cached documents not yet reconciled are notified immediately. The listener should be added
+     * before the first event listener to receive every cached document.
+     *
+     * @throws IllegalArgumentException If the listener was already added
+     *
+     * @param listener The listener to add
+     */
+    public synchronized void addGeoQueryCacheListener(final GeoQueryCacheListener listener) {
+        if (!cacheListeners.add(listener)) {
+            throw new IllegalArgumentException("Added the same listener twice to a GeoQuery!");
+        }
+        for (final CachedDocument document: this.cachedDocuments.values()) {
+            this.geoFirestore.raiseEvent(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onCachedDocumentEntered(document);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes a listener of the cached documents.
+     *
+     * @throws IllegalArgumentException If the listener was removed already or never added
+     *
+     * @param listener The listener to remove
+     */
+    public synchronized void removeGeoQueryCacheListener(GeoQueryCacheListener listener) {
+        if (!cacheListeners.remove(listener)) {
+            throw new IllegalArgumentException("Trying to remove listener that was removed or not added!");
+        }
+    }
+
+    /**
+     * Get an immutable snapshot of the documents currently inside this query, it is built
+     * only once for every version of the documents.
+     *
+     * @param sortedByDistance True to sort the documents by increasing distance from the center of the query
+     * @return The current result set
+     */
+    public synchronized GeoQueryResultSet getResultSet(boolean sortedByDistance) {
+        if (this.resultSet == null || this.resultSet.getVersion() != this.resultVersion) {
+            List<GeoQueryResultSet.Result> results = new ArrayList<>();
+            for (LocationInfo info: this.locationInfos.values()) {
+                if (info.inGeoQuery) {
+                    double distance = GeoUtils.INSTANCE.distance(info.location.getLatitude(), info.location.getLongitude(),
+                            this.center.getLatitude(), this.center.getLongitude());
+                    results.add(new GeoQueryResultSet.Result(info.documentSnapshot, info.location, distance, info.origin));
                 }
-                firestoreQueries.remove(query);
-                outstandingQueries.remove(query);
             }
+            this.resultSet = new GeoQueryResultSet(this.resultVersion, Collections.unmodifiableList(results));
+            this.sortedResultSet = null;
         }
+        if (!sortedByDistance) {
+            return this.resultSet;
+        }
+        if (this.sortedResultSet == null) {
+            this.sortedResultSet = this.resultSet.sortedByDistance();
+        }
+        return this.sortedResultSet;
+    }
+
+    /**
+     * Get the Firestore query(s) for this GeoQuery.
+     *
+     * @return The Firestore query(s) for this GeoQuery
+     */
+    public ArrayList<Query> getQueries() {
+        Set<IndexQuery> oldQueries = planQueries();
+        Set<IndexQuery> newQueries = this.indexQueries;
 
         ArrayList<Query> queries = new ArrayList<Query>();
-        for (final GeoHashQuery query: newQueries) {
+        for (final IndexQuery query: newQueries) {
             if (!oldQueries.contains(query)) {
                 outstandingQueries.add(query);
-                CollectionReference collectionReference = this.geoFirestore.getCollectionReference();
-                Query firestoreQuery = collectionReference.orderBy("g").startAt(query.getStartValue()).endAt(query.getEndValue());
-                queries.add(firestoreQuery);
+                queries.add(this.geoFirestore.buildQuery(query));
             }
         }
         return queries;
@@ -462,6 +1373,7 @@ public class GeoQuery {
             throw new IllegalArgumentException("Trying to remove listener that was removed or not added!");
         }
         eventListeners.remove(listener);
+        eventRaisers.remove(listener);
         if (!this.hasListeners()) {
             reset();
         }
@@ -472,11 +1384,38 @@ public class GeoQuery {
      */
     public synchronized void removeAllListeners() {
         eventListeners.clear();
+        eventRaisers.clear();
+        cacheListeners.clear();
+        readyListeners.clear();
+        progressListeners.clear();
         reset();
     }
 
     /**
-     * Returns the current center of this query.
+     * Returns the current region of this query.
+     * @return The current region
+     */
+    public synchronized GeoRegion getRegion() {
+        return region;
+    }
+
+    /**
+     * Sets the new region of this query and triggers new events if necessary.
+     * @param region The new region
+     */
+    public synchronized void setRegion(GeoRegion region) {
+        setRegionInternal(region);
+        if (this.motion != null) {
+            this.motion.clear();
+        }
+        if (this.hasListeners()) {
+            this.setupQueries();
+        }
+    }
+
+    /**
+     * Returns the current center of this query, for a query that is not circular this is
+     * the center of the bounding box of its region.
      * @return The current center
      */
     public synchronized GeoPoint getCenter() {
@@ -485,17 +1424,21 @@ public class GeoQuery {
 
     /**
      * Sets the new center of this query and triggers new events if necessary.
+     * A query that is not circular is replaced by the circle enclosing its region.
      * @param center The new center
      */
     public synchronized void setCenter(GeoPoint center) {
         this.center = center;
+        this.region = circleRegion();
+        recordMotion();
         if (this.hasListeners()) {
             this.setupQueries();
         }
     }
 
     /**
-     * Returns the radius of the query, in kilometers.
+     * Returns the radius of the query, in kilometers, for a query that is not circular this is
+     * the radius of the circle enclosing its region.
      * @return The radius of this query, in kilometers
      */
     public synchronized double getRadius() {
@@ -505,12 +1448,14 @@ public class GeoQuery {
 
     /**
      * Sets the radius of this query, in kilometers, and triggers new events if necessary.
-     * @param radius The radius of the query, in kilometers. The maximum radius that is
-     * supported is about 8587km. If a radius bigger than this is passed we'll cap it.
+     * A query that is not circular is replaced by a circle centered in its current center.
+     * @param radius The radius of the query, in kilometers. Radii bigger than about 8587km are planned
+     * with coarse geohash cells or with a scan of the whole collection.
      */
     public synchronized void setRadius(double radius) {
         // convert to meters
-        this.radius = GeoUtils.INSTANCE.capRadius(radius) * KILOMETER_TO_METER;
+        this.radius = radius * KILOMETER_TO_METER;
+        this.region = circleRegion();
         if (this.hasListeners()) {
             this.setupQueries();
         }
@@ -519,15 +1464,41 @@ public class GeoQuery {
     /**
      * Sets the center and radius (in kilometers) of this query, and triggers new events if necessary.
      * @param center The new center
-     * @param radius The radius of the query, in kilometers. The maximum radius that is
-     * supported is about 8587km. If a radius bigger than this is passed we'll cap it.
+     * @param radius The radius of the query, in kilometers. Radii bigger than about 8587km are planned
+     * with coarse geohash cells or with a scan of the whole collection.
      */
     public synchronized void setLocation(GeoPoint center, double radius) {
         this.center = center;
         // convert radius to meters
-        this.radius = GeoUtils.INSTANCE.capRadius(radius) * KILOMETER_TO_METER;
+        this.radius = radius * KILOMETER_TO_METER;
+        this.region = circleRegion();
+        recordMotion();
         if (this.hasListeners()) {
             this.setupQueries();
         }
     }
+
+    /**
+     * Returns the limits of the predictive prefetch of this query.
+     * @return The limits of the predictive prefetch or null if it is disabled
+     */
+    public synchronized PredictivePrefetch getPredictivePrefetch() {
+        return predictivePrefetch;
+    }
+
+    /**
+     * Enables the predictive prefetch of this query, for a circle following a moving center with
+     * setCenter. The velocity of the center is estimated from the recent calls of setCenter and
+     * the ranges ahead of the motion are listened to before the circle arrives, so the documents
+     * at the leading edge enter the query as soon as it moves. The prefetched queries don't delay
+     * onGeoQueryReady. The listeners ahead of the center are attached on the next setCenter.
+     * @param predictivePrefetch The limits of the predictive prefetch or null to disable it
+     */
+    public synchronized void setPredictivePrefetch(@Nullable PredictivePrefetch predictivePrefetch) {
+        this.predictivePrefetch = predictivePrefetch;
+        this.motion = (predictivePrefetch != null) ? new MotionEstimator(predictivePrefetch.getWindowMillis()) : null;
+        if (predictivePrefetch == null && !this.prefetchQueries.isEmpty() && this.hasListeners()) {
+            this.setupQueries();
+        }
+    }
 }
\ No newline at end of file
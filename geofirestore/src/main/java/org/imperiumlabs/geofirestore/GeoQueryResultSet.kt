@@ -0,0 +1,40 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.listeners.EventOrigin
+
+/**
+ * An immutable snapshot of the documents inside the search area of a GeoQuery.
+ *
+ * @param version The version of the result set, it increases every time the documents inside the query change
+ * @param results The documents inside the query
+ */
+class GeoQueryResultSet(val version: Long, val results: List<Result>) {
+
+    /**
+     * A document inside the search area of a GeoQuery.
+     *
+     * @param documentSnapshot The snapshot of the document
+     * @param location The location of the document
+     * @param distance The distance of the document from the center of the query, in meters
+     * @param origin The origin of the last snapshot of the document
+     */
+    data class Result @JvmOverloads constructor(val documentSnapshot: DocumentSnapshot, val location: GeoPoint, val distance: Double,
+                                                val origin: EventOrigin = EventOrigin.SERVER)
+
+    /**
+     * The number of documents inside the query.
+     */
+    val size: Int
+        get() = results.size
+
+    /**
+     * Get the result set with the documents sorted by increasing distance from the center of the query.
+     *
+     * @return The sorted result set with the same version
+     */
+    fun sortedByDistance() = GeoQueryResultSet(version, results.sortedBy { it.distance })
+
+    override fun toString() = "GeoQueryResultSet(version=$version, size=$size)"
+}
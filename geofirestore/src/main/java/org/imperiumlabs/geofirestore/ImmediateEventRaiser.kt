@@ -0,0 +1,9 @@
+package org.imperiumlabs.geofirestore
+
+/**
+ * The EventRaiser running the events immediately on the thread raising them.
+ */
+object ImmediateEventRaiser: EventRaiser {
+
+    override fun raiseEvent(r: Runnable) = r.run()
+}
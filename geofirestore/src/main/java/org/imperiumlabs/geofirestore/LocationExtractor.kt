@@ -0,0 +1,78 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.Timestamp
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHash.Companion.MAX_PRECISION
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.imperiumlabs.geofirestore.util.Base32Utils
+import java.util.Date
+
+/**
+ * Extracts the location and the stored geohash of the documents reading only their fields,
+ * without converting the whole document to a Map.
+ *
+ * The location can be stored as a GeoPoint or as a List with latitude and longitude, every
+ * other value is ignored; no exception is thrown for missing or malformed fields.
+ */
+class LocationExtractor @JvmOverloads constructor(
+        // The field holding the location of the documents
+        val locationField: String = DEFAULT_LOCATION_FIELD) {
+
+    companion object {
+        // The default field holding the location of the documents
+        const val DEFAULT_LOCATION_FIELD = "l"
+
+        /**
+         * The extractor reading the location from the field "l".
+         */
+        @JvmField
+        val DEFAULT = LocationExtractor()
+    }
+
+    /**
+     * Get the location of a document.
+     *
+     * @param documentSnapshot The snapshot of the document
+     * @return The location of the document or null if it is missing or not valid
+     */
+    fun location(documentSnapshot: DocumentSnapshot): GeoPoint? =
+            when (val value = documentSnapshot.get(locationField)) {
+                is GeoPoint -> value
+                is List<*> -> locationFromList(value)
+                else -> null
+            }
+
+    /**
+     * Get the geohash stored in the field "g" of a document, so that it doesn't
+     * need to be computed again from the location.
+     *
+     * @param documentSnapshot The snapshot of the document
+     * @return The stored geohash or null if it is missing or not valid
+     */
+    fun geoHash(documentSnapshot: DocumentSnapshot): GeoHash? {
+        val value = documentSnapshot.get(IndexQuery.GEOHASH_FIELD) as? String ?: return null
+        return if (value.length <= MAX_PRECISION && Base32Utils.isValidBase32String(value)) GeoHash(value) else null
+    }
+
+    /**
+     * Get the time stored in a timestamp field of a document.
+     *
+     * @param documentSnapshot The snapshot of the document
+     * @param field The field holding the timestamp, a Timestamp or a Date
+     * @return The time in milliseconds or null if it is missing or not valid, e.g. a pending server timestamp
+     */
+    fun timestampMillis(documentSnapshot: DocumentSnapshot, field: String): Long? =
+            when (val value = documentSnapshot.get(field)) {
+                is Timestamp -> value.seconds * 1000 + value.nanoseconds / 1_000_000
+                is Date -> value.time
+                else -> null
+            }
+
+    /*
+     * Build the location from a list of latitude and longitude
+     */
+    private fun locationFromList(value: List<*>): GeoPoint? =
+            GeoLocation.coordinatesFromList(value)?.let { GeoPoint(it[0], it[1]) }
+}
@@ -0,0 +1,36 @@
+package org.imperiumlabs.geofirestore
+
+/**
+ * The time to live of the locations, for devices that stop updating their location without removing it.
+ *
+ * setLocation writes the server timestamp in timestampField together with the location, and a
+ * location older than ttlMillis is stale: the GeoQuery notifies it as exited without reading it
+ * again, and the one-shot queries skip it. The documents without a timestamp never expire.
+ *
+ * @throws IllegalArgumentException If the time to live or the sweep interval is not positive
+ */
+class LocationTtl @JvmOverloads constructor(
+        // The time a location is valid after its timestamp, in milliseconds
+        val ttlMillis: Long,
+        // The field holding the time the location was written
+        val timestampField: String = DEFAULT_TIMESTAMP_FIELD,
+        // True to skip the stale documents already in the Firestore queries. Firestore doesn't allow a range
+        // on the geohash and on the timestamp in the same query, so only the lookups of the geohash prefix
+        // fields are filtered, and they need a composite index on the prefix field and on timestampField
+        val serverFilter: Boolean = false,
+        // The interval between the checks of the stale locations of a GeoQuery, in milliseconds
+        val sweepIntervalMillis: Long = DEFAULT_SWEEP_INTERVAL_MILLIS) {
+
+    companion object {
+        // The default field holding the time the location was written
+        const val DEFAULT_TIMESTAMP_FIELD = "t"
+
+        // The default interval between the checks of the stale locations, in milliseconds
+        const val DEFAULT_SWEEP_INTERVAL_MILLIS = 1000L
+    }
+
+    init {
+        if (ttlMillis <= 0 || sweepIntervalMillis <= 0)
+            throw IllegalArgumentException("The time to live and the sweep interval must be positive!")
+    }
+}
@@ -0,0 +1,33 @@
+package org.imperiumlabs.geofirestore
+
+/**
+ * The limits of the predictive prefetch of a GeoQuery following a moving center.
+ *
+ * The velocity of the center is estimated from the setCenter calls of the last windowMillis,
+ * and the ranges of the circle where the center is predicted after lookaheadMillis are listened
+ * to before it arrives, at most maxLookahead km ahead and with at most maxListeners extra listeners.
+ *
+ * @throws IllegalArgumentException If a limit is not positive
+ */
+class PredictivePrefetch @JvmOverloads constructor(
+        // How far ahead in time the center is predicted, in milliseconds
+        val lookaheadMillis: Long = DEFAULT_LOOKAHEAD_MILLIS,
+        // The maximal distance of the predicted center from the current one, in kilometers
+        val maxLookahead: Double = DEFAULT_MAX_LOOKAHEAD,
+        // The maximal number of listeners attached ahead of the center
+        val maxListeners: Int = DEFAULT_MAX_LISTENERS,
+        // The time window of the setCenter calls used to estimate the velocity, in milliseconds
+        val windowMillis: Long = DEFAULT_WINDOW_MILLIS) {
+
+    companion object {
+        const val DEFAULT_LOOKAHEAD_MILLIS = 30_000L
+        const val DEFAULT_MAX_LOOKAHEAD = 2.0
+        const val DEFAULT_MAX_LISTENERS = 4
+        const val DEFAULT_WINDOW_MILLIS = 10_000L
+    }
+
+    init {
+        if (lookaheadMillis <= 0 || maxLookahead <= 0 || maxListeners <= 0 || windowMillis <= 0)
+            throw IllegalArgumentException("The limits of the predictive prefetch must be positive!")
+    }
+}
@@ -0,0 +1,22 @@
+package org.imperiumlabs.geofirestore
+
+/**
+ * When a GeoQuery calls onGeoQueryReady on its GeoQueryDataEventListener.
+ */
+enum class ReadyPolicy {
+    /**
+     * Ready once every planned query has a snapshot, possibly from the local cache of Firestore.
+     */
+    CACHE,
+
+    /**
+     * Ready once every planned query has a snapshot confirmed by the server.
+     */
+    SERVER,
+
+    /**
+     * Ready twice: once every planned query has a snapshot, possibly from the local cache, and
+     * again once every snapshot is confirmed by the server.
+     */
+    CACHE_THEN_SERVER
+}
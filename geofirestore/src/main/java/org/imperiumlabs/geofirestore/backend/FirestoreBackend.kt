@@ -0,0 +1,260 @@
+package org.imperiumlabs.geofirestore.backend
+
+import com.google.android.gms.tasks.OnCompleteListener
+import com.google.android.gms.tasks.Task
+import com.google.android.gms.tasks.Tasks
+import com.google.firebase.firestore.*
+import com.google.firebase.Timestamp
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.LocationExtractor
+import org.imperiumlabs.geofirestore.LocationTtl
+import org.imperiumlabs.geofirestore.cluster.GeoCellCount
+import org.imperiumlabs.geofirestore.cluster.GeoCellCounters
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.imperiumlabs.geofirestore.extension.mapNotNullManyTo
+import org.imperiumlabs.geofirestore.util.Clock
+import java.util.Date
+import java.util.concurrent.Executor
+
+/**
+ * The GeoFirestoreBackend reading and writing the documents of a Firestore collection.
+ *
+ * The snapshots of the listeners and the results of the reads are delivered on the executor,
+ * so that they are parsed, hashed and filtered off the main thread. The documents can be read
+ * from another source than the collection, e.g. a collection group; the documents of such a
+ * source are read again by getDocument through the references seen in its snapshots, a document
+ * with the same ID as another one read by a listener is reported as an error and skipped, and
+ * the writes always go to the collection.
+ */
+class FirestoreBackend @JvmOverloads constructor(
+        private val collectionReference: CollectionReference,
+        // The executor delivering the snapshots and the results of the reads, null to deliver them on the main thread
+        var executor: Executor? = null,
+        // The query the documents are read from, the collection by default
+        val source: Query = collectionReference,
+        // The references of the documents read from the source, shared by the backends of merged sources,
+        // null for the collection alone whose documentIDs are unique
+        private val references: SourceReferences<DocumentReference>? =
+                if (source === collectionReference) null else SourceReferences()): GeoFirestoreBackend {
+
+    /**
+     * The time to live of the locations, with serverFilter the lookups of the geohash prefixes
+     * read only the documents with a timestamp newer than the time to live.
+     */
+    var locationTtl: LocationTtl? = null
+
+    /**
+     * The clock of the time to live of the locations, the system clock by default.
+     */
+    var clock: Clock = Clock.SYSTEM
+
+    /**
+     * Build the Firestore Query for an IndexQuery.
+     *
+     * @param query The planned query
+     * @return The Firestore Query reading the documents of the planned query
+     */
+    fun buildQuery(query: IndexQuery): Query {
+        val range = query.range
+        if (range != null)
+            return this.source.orderBy(query.field).startAt(range.startValue).endAt(range.endValue)
+        val lookup = this.source.whereIn(query.field, query.values!!)
+        //A range on the timestamp can only be added to the equality lookups
+        val ttl = locationTtl?.takeIf { it.serverFilter } ?: return lookup
+        return lookup.whereGreaterThan(ttl.timestampField, Timestamp(Date(clock.currentTimeMillis() - ttl.ttlMillis)))
+    }
+
+    override fun addRangeListener(query: IndexQuery, listener: RangeListener): ListenerRegistration {
+        //The metadata changes are needed to know when the server confirms a snapshot from the cache,
+        //but only the changes of the documents are notified so that the echoes of the writes are skipped
+        //The documentIDs whose references are acquired by this listener
+        val members = HashSet<String>()
+        //The server filter keeps the time to live of when the listener attached, the documents stale since are skipped
+        val ttl = locationTtl?.takeIf { it.serverFilter && query.range == null }
+        val snapshotListener = EventListener<QuerySnapshot> { snapshot, e ->
+            if (e != null)
+                listener.onError(e)
+            else if (snapshot != null)
+                listener.onChanges(snapshot.getDocumentChanges(MetadataChanges.EXCLUDE).mapNotNull {
+                    if (ttl != null && it.type != DocumentChange.Type.REMOVED && isStale(it.document, ttl)) null
+                    else if (track(it, members, listener)) GeoDocumentChange(it.type, it.document) else null
+                }, snapshot.metadata.isFromCache)
+        }
+        val executor = this.executor
+        val registration = if (executor != null)
+            buildQuery(query).addSnapshotListener(executor, MetadataChanges.INCLUDE, snapshotListener)
+        else
+            buildQuery(query).addSnapshotListener(MetadataChanges.INCLUDE, snapshotListener)
+        val references = this.references ?: return registration
+        return ListenerRegistration {
+            registration.remove()
+            synchronized(members) {
+                members.forEach { references.release(it) }
+                members.clear()
+            }
+        }
+    }
+
+    override fun getRanges(queries: List<IndexQuery>, callback: GeoFirestore.SingleGeoQueryDataEventCallback) {
+        val resultTasks = arrayListOf<Task<QuerySnapshot>>().apply {
+            queries.forEach { this.add(buildQuery(it).get()) }
+        }
+        //Await the completion of all the resultTasks
+        onComplete(Tasks.whenAllComplete(resultTasks), OnCompleteListener { allTasks ->
+            val tasks = allTasks.result
+            if (!allTasks.isSuccessful || tasks == null) {
+                callback.onComplete(null, allTasks.exception)
+                return@OnCompleteListener
+            }
+            val documentSnapshots = arrayListOf<DocumentSnapshot>()
+            tasks.filter { it.isSuccessful }.mapNotNullManyTo(documentSnapshots) { (it.result as? QuerySnapshot)?.documents }
+            val error = tasks.firstOrNull { !it.isSuccessful }?.exception
+            val references = this.references
+            if (references == null) {
+                callback.onComplete(documentSnapshots, error)
+                return@OnCompleteListener
+            }
+            //The documents colliding with another one with the same ID are skipped and reported
+            val paths = HashMap<String, String>()
+            var collision: Exception? = null
+            val documents = documentSnapshots.filter {
+                val path = it.reference.path
+                val otherPath = paths.getOrPut(it.id) { path }
+                val unique = otherPath == path && references.remember(it.id, path, it.reference)
+                if (!unique && collision == null)
+                    collision = collisionOf(it.id, if (otherPath != path) otherPath else references[it.id]?.path, path)
+                unique
+            }
+            callback.onComplete(documents, error ?: collision)
+        })
+    }
+
+    override fun getDocument(documentID: String, callback: GeoFirestoreBackend.DocumentCallback) {
+        val reference = references?.get(documentID) ?: this.collectionReference.document(documentID)
+        onComplete(reference.get(), OnCompleteListener { task ->
+            if (task.isSuccessful) {
+                //A deleted document of the source is not looked up again
+                if (task.result?.exists() != true) references?.forget(documentID)
+                callback.onComplete(task.result, null)
+            } else {
+                callback.onComplete(null, task.exception)
+            }
+        })
+    }
+
+    override fun setFields(documentID: String, fields: Map<String, Any>, completionCallback: GeoFirestore.CompletionCallback?) {
+        this.collectionReference.document(documentID).set(fields, SetOptions.merge())
+                .addOnSuccessListener { completionCallback?.onComplete(null) }
+                .addOnFailureListener { completionCallback?.onComplete(it) }
+    }
+
+    override fun setFieldsInBatch(writes: Map<String, Map<String, Any>>, completionCallback: GeoFirestore.CompletionCallback?) {
+        val batch = this.collectionReference.firestore.batch()
+        for ((documentID, fields) in writes)
+            batch.set(this.collectionReference.document(documentID), fields, SetOptions.merge())
+        batch.commit()
+                .addOnSuccessListener { completionCallback?.onComplete(null) }
+                .addOnFailureListener { completionCallback?.onComplete(it) }
+    }
+
+    override fun getPage(startAfterDocumentID: String?, pageSize: Int, callback: GeoFirestore.SingleGeoQueryDataEventCallback) {
+        val ordered = this.collectionReference.orderBy(FieldPath.documentId())
+        val query = if (startAfterDocumentID != null) ordered.startAfter(startAfterDocumentID) else ordered
+        onComplete(query.limit(pageSize.toLong()).get(), OnCompleteListener { task ->
+            if (task.isSuccessful)
+                callback.onComplete(task.result?.documents ?: emptyList(), null)
+            else
+                callback.onComplete(null, task.exception)
+        })
+    }
+
+    override fun setFieldsAndCounters(documentID: String, fields: Map<String, Any>, geoHash: String?,
+                                      counters: GeoCellCounters, completionCallback: GeoFirestore.CompletionCallback?) {
+        val firestore = this.collectionReference.firestore
+        val document = this.collectionReference.document(documentID)
+        //The previous geohash is read in the same transaction, so that a concurrent move is never counted twice
+        firestore.runTransaction(Transaction.Function<Void?> { transaction ->
+            val previous = transaction.get(document)
+            val increments = counters.increments(previous.getString(IndexQuery.GEOHASH_FIELD), geoHash)
+            transaction.set(document, fields, SetOptions.merge())
+            for ((counterID, increment) in increments) {
+                val counter = hashMapOf<String, Any>(
+                        GeoCellCounters.COUNT_FIELD to FieldValue.increment(increment),
+                        GeoCellCounters.GEOHASH_FIELD to GeoCellCounters.geoHashOf(counterID)!!)
+                transaction.set(firestore.collection(counters.collectionPath).document(counterID), counter, SetOptions.merge())
+            }
+            null
+        }).addOnSuccessListener { completionCallback?.onComplete(null) }
+                .addOnFailureListener { completionCallback?.onComplete(it) }
+    }
+
+    override fun getCounters(counters: GeoCellCounters, ranges: List<GeoHashQuery>, callback: GeoFirestore.CellCountsCallback) {
+        val collection = this.collectionReference.firestore.collection(counters.collectionPath)
+        val resultTasks = ranges.map {
+            collection.orderBy(FieldPath.documentId()).startAt(it.startValue).endAt(it.endValue).get()
+        }
+        onComplete(Tasks.whenAllComplete(resultTasks), OnCompleteListener { allTasks ->
+            val tasks = allTasks.result
+            if (!allTasks.isSuccessful || tasks == null) {
+                callback.onComplete(null, allTasks.exception)
+                return@OnCompleteListener
+            }
+            val counts = arrayListOf<GeoCellCount>()
+            for (task in tasks.filter { it.isSuccessful }) {
+                for (doc in (task.result as? QuerySnapshot)?.documents ?: continue) {
+                    val cell = GeoCellCounters.geoHashOf(doc.id) ?: continue
+                    val count = doc.getLong(GeoCellCounters.COUNT_FIELD) ?: 0L
+                    if (count > 0) counts.add(GeoCellCount(cell, count))
+                }
+            }
+            callback.onComplete(counts, tasks.firstOrNull { !it.isSuccessful }?.exception)
+        })
+    }
+
+    /*
+     * Acquire or release the reference of a changed document read by a listener from a source that
+     * is not the collection, false if the change must be skipped as its document collides with another one
+     */
+    private fun track(change: DocumentChange, members: MutableSet<String>, listener: RangeListener): Boolean {
+        val references = this.references ?: return true
+        val document = change.document
+        synchronized(members) {
+            when {
+                change.type == DocumentChange.Type.REMOVED -> {
+                    if (!members.remove(document.id)) return false
+                    references.release(document.id)
+                }
+                document.id in members -> {}
+                references.acquire(document.id, document.reference.path, document.reference) -> members.add(document.id)
+                else -> {
+                    listener.onError(collisionOf(document.id, references[document.id]?.path, document.reference.path))
+                    return false
+                }
+            }
+        }
+        return true
+    }
+
+    /*
+     * Check if the timestamp of a document is older than the time to live, a pending server timestamp is not
+     */
+    private fun isStale(document: DocumentSnapshot, ttl: LocationTtl) =
+            LocationExtractor.DEFAULT.timestampMillis(document, ttl.timestampField)
+                    ?.let { it + ttl.ttlMillis <= clock.currentTimeMillis() } ?: false
+
+    private fun collisionOf(documentID: String, path: String?, otherPath: String) =
+            IllegalStateException("The documents $path and $otherPath have the same ID $documentID, " +
+                    "the documentIDs of the sources must be unique!")
+
+    /*
+     * Add a listener to a task, run on the executor if there is one
+     */
+    private fun <T> onComplete(task: Task<T>, listener: OnCompleteListener<T>) {
+        val executor = this.executor
+        if (executor != null)
+            task.addOnCompleteListener(executor, listener)
+        else
+            task.addOnCompleteListener(listener)
+    }
+}
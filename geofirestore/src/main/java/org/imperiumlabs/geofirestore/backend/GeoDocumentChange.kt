@@ -0,0 +1,12 @@
+package org.imperiumlabs.geofirestore.backend
+
+import com.google.firebase.firestore.DocumentChange
+import com.google.firebase.firestore.DocumentSnapshot
+
+/**
+ * A change of a document read by a planned query.
+ *
+ * @param type The type of the change
+ * @param document The snapshot of the document after the change, or before it if the document was removed
+ */
+class GeoDocumentChange(val type: DocumentChange.Type, val document: DocumentSnapshot)
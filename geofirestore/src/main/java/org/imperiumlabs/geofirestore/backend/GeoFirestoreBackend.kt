@@ -0,0 +1,112 @@
+package org.imperiumlabs.geofirestore.backend
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.ListenerRegistration
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.cluster.GeoCellCounters
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.imperiumlabs.geofirestore.core.IndexQuery
+
+/**
+ * The layer used by GeoFirestore and GeoQuery to read, listen to and write the documents
+ * of the collection.
+ *
+ * FirestoreBackend is the default implementation, another implementation can replace
+ * Firestore, e.g. an in-memory collection used to load test the queries.
+ */
+interface GeoFirestoreBackend {
+
+    /**
+     * A callback that can be used to retrieve a single document or an error.
+     */
+    interface DocumentCallback {
+        /**
+         * Called once the document is fetched. On success, the parameter exception will be null.
+         *
+         * @param documentSnapshot The snapshot of the document, it doesn't exist if the document was deleted
+         * @param exception The exception or null if no exception occurred
+         */
+        fun onComplete(documentSnapshot: DocumentSnapshot?, exception: Exception?)
+    }
+
+    /**
+     * Listen to the changes of the documents read by a planned query. The first batch of
+     * changes contains every document of the query as added, it may be delivered before
+     * addRangeListener returns.
+     *
+     * @param query The planned query
+     * @param listener The listener notified of the changes
+     * @return The registration used to remove the listener
+     */
+    fun addRangeListener(query: IndexQuery, listener: RangeListener): ListenerRegistration
+
+    /**
+     * Read once the documents of some planned queries.
+     *
+     * If only some of the queries fail the documents of the others are returned
+     * together with the exception.
+     *
+     * @param queries The planned queries
+     * @param callback The callback called with the documents of all the queries
+     */
+    fun getRanges(queries: List<IndexQuery>, callback: GeoFirestore.SingleGeoQueryDataEventCallback)
+
+    /**
+     * Read once a document.
+     *
+     * @param documentID The documentID of the document to read
+     * @param callback The callback called with the document
+     */
+    fun getDocument(documentID: String, callback: DocumentCallback)
+
+    /**
+     * Merge some fields in a document, a field set to FieldValue.delete() is removed.
+     *
+     * @param documentID The documentID of the document to write
+     * @param fields The fields to merge in the document
+     * @param completionCallback A listener that is called once the fields are saved or an error occurred
+     */
+    fun setFields(documentID: String, fields: Map<String, Any>, completionCallback: GeoFirestore.CompletionCallback?)
+
+    /**
+     * Merge the fields of many documents in a single atomic batch, a field set to
+     * FieldValue.delete() is removed.
+     *
+     * @param writes The fields to merge by documentID, at most 500 documents
+     * @param completionCallback A listener that is called once the batch is saved or an error occurred
+     */
+    fun setFieldsInBatch(writes: Map<String, Map<String, Any>>, completionCallback: GeoFirestore.CompletionCallback?)
+
+    /**
+     * Read once a page of the documents of the collection in order of documentID.
+     *
+     * @param startAfterDocumentID The documentID the page starts after, null for the first page
+     * @param pageSize The maximal number of documents of the page
+     * @param callback The callback called with the documents of the page, fewer than pageSize on the last page
+     */
+    fun getPage(startAfterDocumentID: String?, pageSize: Int, callback: GeoFirestore.SingleGeoQueryDataEventCallback)
+
+    /**
+     * Merge some fields in a document and update the counters of the cells of its previous and
+     * of its new geohash atomically, so that a document moving between two cells is counted once.
+     *
+     * @param documentID The documentID of the document to write
+     * @param fields The fields to merge in the document
+     * @param geoHash The new geohash of the document, null if its location is removed
+     * @param counters The configuration of the counters
+     * @param completionCallback A listener that is called once the fields are saved or an error occurred
+     */
+    fun setFieldsAndCounters(documentID: String, fields: Map<String, Any>, geoHash: String?,
+                             counters: GeoCellCounters, completionCallback: GeoFirestore.CompletionCallback?)
+
+    /**
+     * Read once the counters in some ranges of documentIDs, only the cells with at least one
+     * document are returned. If only some of the ranges fail the counts of the others are
+     * returned together with the exception.
+     *
+     * @param counters The configuration of the counters
+     * @param ranges The ranges of documentIDs of the counters
+     * @param callback The callback called with the counts of the cells
+     */
+    fun getCounters(counters: GeoCellCounters, ranges: List<GeoHashQuery>, callback: GeoFirestore.CellCountsCallback)
+}
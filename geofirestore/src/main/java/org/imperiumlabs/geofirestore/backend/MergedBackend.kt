@@ -0,0 +1,179 @@
+package org.imperiumlabs.geofirestore.backend
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.ListenerRegistration
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.cluster.GeoCellCounters
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A GeoFirestoreBackend reading the documents of many sources as a single collection, e.g. the
+ * collections of the shards of a dataset.
+ *
+ * Every planned query runs on each source and the changes are merged in a single listener: its
+ * first batch contains the documents of every source and is delivered once all the sources have
+ * a snapshot, so a GeoQuery is ready once, and its batches are from the cache until every source
+ * is confirmed by the server. A source failing before its first snapshot reports its error and
+ * doesn't hold back the others. The documentIDs must be unique across the sources, as GeoQuery
+ * identifies the documents by ID; FirestoreBackends sharing their SourceReferences reject the
+ * colliding documents. The writes, the pages and the counters go to the first source.
+ * The MergedBackend class is thread safe.
+ *
+ * @param sources The backends of the sources, the first one is written
+ * @throws IllegalArgumentException If there are no sources
+ */
+class MergedBackend(val sources: List<GeoFirestoreBackend>): GeoFirestoreBackend {
+
+    /*
+     * The listeners of a planned query on every source, merged in a single listener
+     */
+    private inner class MergedRegistration(private val listener: RangeListener): ListenerRegistration {
+        val registrations = ArrayList<ListenerRegistration>()
+        // The sources with a first snapshot or failed, and the sources whose last snapshot is from the cache
+        private val delivered = BooleanArray(sources.size)
+        private val fromCache = BooleanArray(sources.size)
+        // The changes received before every source has a first snapshot
+        private val firstChanges = ArrayList<GeoDocumentChange>()
+        private var merged = false
+        // True if the last batch delivered to the listener was from the cache
+        private var deliveredFromCache = false
+        @Volatile
+        private var active = true
+
+        fun sourceListener(source: Int) = object : RangeListener {
+            override fun onChanges(changes: List<GeoDocumentChange>, fromCache: Boolean) {
+                //The changes are delivered under the lock so that the batches of the sources stay in order
+                synchronized(this@MergedRegistration) {
+                    if (!active) return
+                    this@MergedRegistration.fromCache[source] = fromCache
+                    deliver(source, changes)
+                }
+            }
+
+            override fun onError(exception: Exception) {
+                synchronized(this@MergedRegistration) {
+                    if (!active) return
+                    listener.onError(exception)
+                    //A failed source has no snapshot, the others must not wait for it
+                    this@MergedRegistration.fromCache[source] = false
+                    deliver(source, emptyList())
+                }
+            }
+        }
+
+        /*
+         * Deliver the changes of a source, buffering them until every source has a first snapshot or failed;
+         * an empty batch is delivered only when it confirms with the server the merged snapshot from the cache
+         */
+        private fun deliver(source: Int, changes: List<GeoDocumentChange>) {
+            var batch = changes
+            val cached = fromCache.any { it }
+            if (!merged) {
+                firstChanges.addAll(changes)
+                delivered[source] = true
+                if (delivered.any { !it }) return
+                merged = true
+                batch = ArrayList(firstChanges)
+                firstChanges.clear()
+            } else if (batch.isEmpty() && (cached || !deliveredFromCache)) {
+                return
+            }
+            deliveredFromCache = cached
+            listener.onChanges(batch, cached)
+        }
+
+        //Not synchronized, the listener may be removed while a batch is delivered
+        override fun remove() {
+            active = false
+            registrations.forEach { it.remove() }
+        }
+    }
+
+    init {
+        if (sources.isEmpty())
+            throw IllegalArgumentException("A MergedBackend needs at least one source!")
+    }
+
+    override fun addRangeListener(query: IndexQuery, listener: RangeListener): ListenerRegistration {
+        val registration = MergedRegistration(listener)
+        sources.forEachIndexed { i, source ->
+            registration.registrations.add(source.addRangeListener(query, registration.sourceListener(i)))
+        }
+        return registration
+    }
+
+    override fun getRanges(queries: List<IndexQuery>, callback: GeoFirestore.SingleGeoQueryDataEventCallback) {
+        val remaining = AtomicInteger(sources.size)
+        val documents = ArrayList<DocumentSnapshot>()
+        var error: Exception? = null
+        var failed = 0
+        for (source in sources) {
+            source.getRanges(queries, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+                override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                    synchronized(documents) {
+                        documentSnapshots?.let { documents.addAll(it) } ?: failed++
+                        if (error == null) error = exception
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        synchronized(documents) {
+                            //The documents of the sources read are returned together with the error of the others
+                            if (failed == sources.size) callback.onComplete(null, error)
+                            else callback.onComplete(documents, error)
+                        }
+                    }
+                }
+            })
+        }
+    }
+
+    /**
+     * Read once a document from the sources in order, the first existing one is returned.
+     *
+     * @param documentID The documentID of the document to read
+     * @param callback The callback called with the document
+     */
+    override fun getDocument(documentID: String, callback: GeoFirestoreBackend.DocumentCallback) {
+        getDocument(documentID, 0, null, callback)
+    }
+
+    override fun setFields(documentID: String, fields: Map<String, Any>, completionCallback: GeoFirestore.CompletionCallback?) {
+        sources[0].setFields(documentID, fields, completionCallback)
+    }
+
+    override fun setFieldsInBatch(writes: Map<String, Map<String, Any>>, completionCallback: GeoFirestore.CompletionCallback?) {
+        sources[0].setFieldsInBatch(writes, completionCallback)
+    }
+
+    override fun getPage(startAfterDocumentID: String?, pageSize: Int, callback: GeoFirestore.SingleGeoQueryDataEventCallback) {
+        sources[0].getPage(startAfterDocumentID, pageSize, callback)
+    }
+
+    override fun setFieldsAndCounters(documentID: String, fields: Map<String, Any>, geoHash: String?,
+                                      counters: GeoCellCounters, completionCallback: GeoFirestore.CompletionCallback?) {
+        sources[0].setFieldsAndCounters(documentID, fields, geoHash, counters, completionCallback)
+    }
+
+    override fun getCounters(counters: GeoCellCounters, ranges: List<GeoHashQuery>, callback: GeoFirestore.CellCountsCallback) {
+        sources[0].getCounters(counters, ranges, callback)
+    }
+
+    /*
+     * Read a document from a source and from the following ones until it exists, when it
+     * doesn't exist in any source the error of a source that couldn't be read is returned
+     */
+    private fun getDocument(documentID: String, source: Int, lastException: Exception?, callback: GeoFirestoreBackend.DocumentCallback) {
+        sources[source].getDocument(documentID, object : GeoFirestoreBackend.DocumentCallback {
+            override fun onComplete(documentSnapshot: DocumentSnapshot?, exception: Exception?) {
+                val error = exception ?: lastException
+                when {
+                    documentSnapshot?.exists() == true -> callback.onComplete(documentSnapshot, null)
+                    source < sources.size - 1 -> getDocument(documentID, source + 1, error, callback)
+                    error != null -> callback.onComplete(null, error)
+                    else -> callback.onComplete(documentSnapshot, null)
+                }
+            }
+        })
+    }
+}
@@ -0,0 +1,24 @@
+package org.imperiumlabs.geofirestore.backend
+
+/**
+ * GeoFirestoreBackend notifies with this interface the changes of the documents of a planned query.
+ */
+interface RangeListener {
+
+    /**
+     * Called with a batch of changes of the documents of the query, the changes of the metadata
+     * only, as the server confirmation of a local write, are not included. A batch can be empty
+     * when only the origin of the snapshot changed.
+     *
+     * @param changes The documents added, modified or removed from the query, in order
+     * @param fromCache True if the snapshot comes from the local cache and is not confirmed by the server
+     */
+    fun onChanges(changes: List<GeoDocumentChange>, fromCache: Boolean)
+
+    /**
+     * Called if the query failed, no more changes are notified after an error.
+     *
+     * @param exception The exception that occurred
+     */
+    fun onError(exception: Exception)
+}
@@ -0,0 +1,99 @@
+package org.imperiumlabs.geofirestore.backend
+
+/**
+ * The references of the documents read from sources that are not the collection, e.g. a
+ * collection group or the collections of shards, by documentID, so that a document can be read
+ * again knowing only its ID.
+ *
+ * A reference is kept while at least one listener reads its document, and then among the
+ * maxReleased most recently released ones, as a document leaving a listener is read again right
+ * after. GeoQuery identifies the documents by ID, so a document with the ID of another document
+ * read by a listener but with a different path is rejected. The SourceReferences class is thread safe.
+ *
+ * @param maxReleased The number of released references kept
+ */
+class SourceReferences<R> @JvmOverloads constructor(private val maxReleased: Int = 1000) {
+
+    private class Reference<R>(val path: String, val reference: R) {
+        // The number of listeners reading the document
+        var listeners = 0
+    }
+
+    private val acquired = HashMap<String, Reference<R>>()
+    private val released = object : LinkedHashMap<String, Reference<R>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Reference<R>>) = size > maxReleased
+    }
+
+    /**
+     * The number of references of the documents read by the listeners.
+     */
+    val size: Int
+        @Synchronized get() = acquired.size
+
+    /**
+     * Record that a listener reads a document.
+     *
+     * @param documentID The ID of the document
+     * @param path The path of the document
+     * @param reference The reference of the document
+     * @return False if a listener reads another document with the same ID, the document is not recorded
+     */
+    @Synchronized
+    fun acquire(documentID: String, path: String, reference: R): Boolean {
+        val entry = acquired[documentID] ?: Reference(path, reference).also {
+            released.remove(documentID)
+            acquired[documentID] = it
+        }
+        if (entry.path != path) return false
+        entry.listeners++
+        return true
+    }
+
+    /**
+     * Record that a listener doesn't read a document anymore.
+     *
+     * @param documentID The ID of the document acquired by the listener
+     */
+    @Synchronized
+    fun release(documentID: String) {
+        val entry = acquired[documentID] ?: return
+        if (--entry.listeners > 0) return
+        acquired.remove(documentID)
+        released[documentID] = entry
+    }
+
+    /**
+     * Record a document read once, it's kept as a released reference.
+     *
+     * @param documentID The ID of the document
+     * @param path The path of the document
+     * @param reference The reference of the document
+     * @return False if a listener reads another document with the same ID
+     */
+    @Synchronized
+    fun remember(documentID: String, path: String, reference: R): Boolean {
+        val entry = acquired[documentID]
+        if (entry != null) return entry.path == path
+        released[documentID] = Reference(path, reference)
+        return true
+    }
+
+    /**
+     * Get the reference of a document.
+     *
+     * @param documentID The ID of the document
+     * @return The reference or null if the document is not known
+     */
+    @Synchronized
+    operator fun get(documentID: String): R? = (acquired[documentID] ?: released[documentID])?.reference
+
+    /**
+     * Forget a released reference, e.g. of a deleted document.
+     *
+     * @param documentID The ID of the document
+     */
+    @Synchronized
+    fun forget(documentID: String) {
+        released.remove(documentID)
+    }
+}
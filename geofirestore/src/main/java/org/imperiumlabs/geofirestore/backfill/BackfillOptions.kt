@@ -0,0 +1,43 @@
+package org.imperiumlabs.geofirestore.backfill
+
+/**
+ * The configuration of a GeoBackfill.
+ *
+ * The collection is read in pages of pageSize documents, the locations of a page are hashed on
+ * workers threads and written with batches of at most batchSize documents, at most
+ * maxWritesPerSecond documents every second.
+ *
+ * @throws IllegalArgumentException If a size or the number of workers is not positive, if a batch
+ *                                  has more than 500 documents or if the rate is negative
+ */
+class BackfillOptions @JvmOverloads constructor(
+        // The field holding the existing location of the documents, as a GeoPoint or a [latitude, longitude] List
+        val sourceField: String,
+        // The number of documents read in a page
+        val pageSize: Int = DEFAULT_PAGE_SIZE,
+        // The maximal number of documents written in a batch
+        val batchSize: Int = MAX_BATCH_SIZE,
+        // The number of threads hashing the locations
+        val workers: Int = Runtime.getRuntime().availableProcessors(),
+        // The maximal number of documents written every second, 0 for no limit
+        val maxWritesPerSecond: Double = 0.0,
+        // True to write also the documents whose geohash fields are already up to date
+        val overwrite: Boolean = false) {
+
+    companion object {
+        // The default number of documents read in a page
+        const val DEFAULT_PAGE_SIZE = 500
+
+        // The maximal number of writes of a Firestore batch
+        const val MAX_BATCH_SIZE = 500
+    }
+
+    init {
+        if (pageSize <= 0 || batchSize <= 0 || workers <= 0)
+            throw IllegalArgumentException("The page size, the batch size and the workers must be positive!")
+        if (batchSize > MAX_BATCH_SIZE)
+            throw IllegalArgumentException("A batch can't write more than $MAX_BATCH_SIZE documents!")
+        if (maxWritesPerSecond.isNaN() || maxWritesPerSecond < 0)
+            throw IllegalArgumentException("The maximal rate of the writes can't be negative!")
+    }
+}
@@ -0,0 +1,23 @@
+package org.imperiumlabs.geofirestore.backfill
+
+/**
+ * The progress of a GeoBackfill after a page of documents is written.
+ */
+data class BackfillProgress(
+        // The number of documents read
+        val documentsRead: Long,
+        // The number of documents written with their geohash fields
+        val documentsWritten: Long,
+        // The number of documents without a valid location or already up to date
+        val documentsSkipped: Long,
+        // The documentID of the last document written or skipped, where the backfill can be resumed
+        val checkpoint: String?,
+        // The time since the backfill was started, in milliseconds
+        val elapsedMillis: Long) {
+
+    /**
+     * The number of documents processed every second.
+     */
+    val documentsPerSecond: Double
+        get() = if (elapsedMillis > 0) documentsRead * 1000.0 / elapsedMillis else 0.0
+}
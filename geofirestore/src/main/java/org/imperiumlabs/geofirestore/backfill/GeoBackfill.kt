@@ -0,0 +1,267 @@
+package org.imperiumlabs.geofirestore.backfill
+
+import com.google.firebase.firestore.DocumentSnapshot
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.LocationExtractor
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.imperiumlabs.geofirestore.listeners.GeoBackfillListener
+import org.imperiumlabs.geofirestore.util.RateLimiter
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Writes the geohash fields of every document of an existing collection, for the collections
+ * whose documents already have a location in another field.
+ *
+ * The collection is read in pages ordered by documentID, the next page is read while the current
+ * one is written. The locations of a page are hashed on a pool of worker threads and the fields
+ * "g", the location field and the geohash prefix fields of GeoFirestore are merged with batched
+ * writes, limited to a maximal rate. The documents already up to date are skipped, so a backfill
+ * can be run again safely, and after every page the documentID of its last document is reported
+ * as the checkpoint a stopped backfill can be resumed from. The counters of the cells and the
+ * timestamps of LocationTtl are not written. The GeoBackfill class is thread safe.
+ *
+ * @param geoFirestore The GeoFirestore of the collection, its backend reads and writes the documents
+ * @param options The configuration of the backfill
+ */
+class GeoBackfill(private val geoFirestore: GeoFirestore, val options: BackfillOptions) {
+
+    /*
+     * The state of a started backfill, replaced when the backfill is started again
+     */
+    private inner class Run(var checkpoint: String?) {
+        val startTime = System.nanoTime()
+        val extractor = LocationExtractor(options.sourceField)
+        val precision = geoFirestore.precision
+        val indexPrecisions = geoFirestore.indexPrecisions
+        val locationField = geoFirestore.locationField
+        val rateLimiter = if (options.maxWritesPerSecond > 0) RateLimiter(options.maxWritesPerSecond) else null
+        val workers: ExecutorService = Executors.newFixedThreadPool(options.workers) { r ->
+            Thread(r, "GeoBackfill").apply { isDaemon = true }
+        }
+        var documentsRead = 0L
+        var documentsWritten = 0L
+        var documentsSkipped = 0L
+        // True while a page is hashed and written
+        var writing = false
+        // The page read ahead while the previous one is written, or the error reading it
+        var nextPage: List<DocumentSnapshot>? = null
+        var nextPageError: Exception? = null
+
+        fun progress() = BackfillProgress(documentsRead, documentsWritten, documentsSkipped, checkpoint,
+                (System.nanoTime() - startTime) / 1_000_000)
+    }
+
+    private val listeners = ArrayList<GeoBackfillListener>()
+    private var run: Run? = null
+
+    /**
+     * Whether the backfill is running.
+     */
+    val isRunning: Boolean
+        @Synchronized get() = run != null
+
+    /**
+     * Adds a listener of the progress of the backfill.
+     *
+     * @param listener The listener to add
+     * @throws IllegalArgumentException If this listener was already added
+     */
+    @Synchronized
+    fun addGeoBackfillListener(listener: GeoBackfillListener) {
+        if (listeners.contains(listener))
+            throw IllegalArgumentException("Added the same listener twice to a GeoBackfill!")
+        listeners.add(listener)
+    }
+
+    /**
+     * Removes a listener of the progress of the backfill.
+     *
+     * @param listener The listener to remove
+     * @throws IllegalArgumentException If the listener was removed already or never added
+     */
+    @Synchronized
+    fun removeGeoBackfillListener(listener: GeoBackfillListener) {
+        if (!listeners.remove(listener))
+            throw IllegalArgumentException("Trying to remove listener that was removed or not added!")
+    }
+
+    /**
+     * Start the backfill, from the beginning of the collection or after a checkpoint.
+     *
+     * @param checkpoint The checkpoint of the progress of a previous backfill, null to start from the first document
+     * @throws IllegalStateException If the backfill is already running
+     */
+    @Synchronized
+    @JvmOverloads
+    fun start(checkpoint: String? = null) {
+        if (run != null)
+            throw IllegalStateException("The backfill is already running!")
+        val run = Run(checkpoint)
+        this.run = run
+        readPage(run, checkpoint)
+    }
+
+    /**
+     * Stop the backfill, the page being written is completed but no more listeners are called.
+     * It can be resumed from the checkpoint of the last progress.
+     */
+    @Synchronized
+    fun cancel() {
+        run?.let { finish(it) }
+    }
+
+    /*
+     * Read the page after a documentID, it's processed as soon as the previous page is written
+     */
+    private fun readPage(run: Run, startAfterDocumentID: String?) {
+        geoFirestore.backend.getPage(startAfterDocumentID, options.pageSize, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                synchronized(this@GeoBackfill) {
+                    if (this@GeoBackfill.run !== run) return
+                    if (run.writing) {
+                        run.nextPage = documentSnapshots
+                        run.nextPageError = exception
+                    } else {
+                        processPage(run, documentSnapshots, exception)
+                    }
+                }
+            }
+        })
+    }
+
+    /*
+     * Hash the locations of a page on the workers, reading the next page meanwhile
+     */
+    private fun processPage(run: Run, page: List<DocumentSnapshot>?, exception: Exception?) {
+        if (page == null) {
+            fail(run, exception ?: IllegalStateException("The page of the backfill can't be read!"))
+            return
+        }
+        if (page.isEmpty()) {
+            complete(run)
+            return
+        }
+        run.writing = true
+        if (page.size >= options.pageSize)
+            readPage(run, page.last().id)
+        val updates = arrayOfNulls<Map<String, Any>>(page.size)
+        val chunkSize = (page.size + options.workers - 1) / options.workers
+        val chunks = (page.size + chunkSize - 1) / chunkSize
+        val remaining = AtomicInteger(chunks)
+        for (chunk in 0 until chunks) {
+            run.workers.execute {
+                for (i in chunk * chunkSize until Math.min(page.size, (chunk + 1) * chunkSize))
+                    updates[i] = updatesOf(run, page[i])
+                if (remaining.decrementAndGet() == 0)
+                    writePage(run, page, updates)
+            }
+        }
+    }
+
+    /*
+     * Write the updates of a page with batches, every batch waits for the rate limiter
+     */
+    private fun writePage(run: Run, page: List<DocumentSnapshot>, updates: Array<Map<String, Any>?>) {
+        val batches = ArrayList<Map<String, Map<String, Any>>>()
+        var batch = LinkedHashMap<String, Map<String, Any>>()
+        for (i in page.indices) {
+            batch[page[i].id] = updates[i] ?: continue
+            if (batch.size == options.batchSize) {
+                batches.add(batch)
+                batch = LinkedHashMap()
+            }
+        }
+        if (batch.isNotEmpty()) batches.add(batch)
+        val written = batches.sumBy { it.size }
+        if (batches.isEmpty()) {
+            pageWritten(run, page, written, null)
+            return
+        }
+        val remaining = AtomicInteger(batches.size)
+        var error: Exception? = null
+        val completion = object : GeoFirestore.CompletionCallback {
+            override fun onComplete(exception: Exception?) {
+                synchronized(remaining) {
+                    if (error == null) error = exception
+                }
+                if (remaining.decrementAndGet() == 0)
+                    pageWritten(run, page, written, synchronized(remaining) { error })
+            }
+        }
+        for (writes in batches) {
+            val write = Runnable { geoFirestore.backend.setFieldsInBatch(writes, completion) }
+            val delayMillis = run.rateLimiter?.reserve(writes.size) ?: 0L
+            if (delayMillis > 0) geoFirestore.schedule(write, delayMillis) else write.run()
+        }
+    }
+
+    /*
+     * Record the progress of a written page and continue with the page read ahead
+     */
+    private fun pageWritten(run: Run, page: List<DocumentSnapshot>, written: Int, exception: Exception?) {
+        synchronized(this) {
+            if (this.run !== run) return
+            run.writing = false
+            if (exception != null) {
+                fail(run, exception)
+                return
+            }
+            run.documentsRead += page.size
+            run.documentsWritten += written
+            run.documentsSkipped += page.size - written
+            run.checkpoint = page.last().id
+            val progress = run.progress()
+            for (listener in listeners)
+                geoFirestore.raiseEvent(Runnable { listener.onBackfillProgress(progress) })
+            if (page.size < options.pageSize) {
+                complete(run)
+            } else if (run.nextPage != null || run.nextPageError != null) {
+                val nextPage = run.nextPage
+                val nextPageError = run.nextPageError
+                run.nextPage = null
+                run.nextPageError = null
+                processPage(run, nextPage, nextPageError)
+            }
+        }
+    }
+
+    /*
+     * Compute the geohash fields of a document, null if it has no valid location or if the
+     * fields are already up to date
+     */
+    private fun updatesOf(run: Run, documentSnapshot: DocumentSnapshot): Map<String, Any>? {
+        val location = run.extractor.location(documentSnapshot) ?: return null
+        val geoHash = GeoHash(GeoLocation(location.latitude, location.longitude), run.precision).geoHashString
+        val updates = HashMap<String, Any>()
+        updates[IndexQuery.GEOHASH_FIELD] = geoHash
+        updates[run.locationField] = location
+        for (indexPrecision in run.indexPrecisions)
+            updates[IndexQuery.fieldForPrecision(indexPrecision)] = geoHash.substring(0, indexPrecision)
+        if (!options.overwrite && updates.all { (field, value) -> documentSnapshot.get(field) == value })
+            return null
+        return updates
+    }
+
+    private fun complete(run: Run) {
+        val progress = run.progress()
+        finish(run)
+        for (listener in listeners)
+            geoFirestore.raiseEvent(Runnable { listener.onBackfillComplete(progress) })
+    }
+
+    private fun fail(run: Run, exception: Exception) {
+        val progress = run.progress()
+        finish(run)
+        for (listener in listeners)
+            geoFirestore.raiseEvent(Runnable { listener.onBackfillError(exception, progress) })
+    }
+
+    private fun finish(run: Run) {
+        run.workers.shutdown()
+        this.run = null
+    }
+}
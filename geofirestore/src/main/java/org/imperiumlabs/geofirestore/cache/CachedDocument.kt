@@ -0,0 +1,17 @@
+package org.imperiumlabs.geofirestore.cache
+
+import com.google.firebase.firestore.GeoPoint
+
+/**
+ * A document restored from a PersistentGeoCache, it may be stale until the live
+ * snapshots of its range are received.
+ */
+data class CachedDocument(
+        // The ID of the document
+        val documentID: String,
+        // The location of the document when it was read
+        val location: GeoPoint,
+        // The geohash of the document
+        val geoHash: String,
+        // The time the document was read from the server, in milliseconds since the epoch
+        val readAt: Long)
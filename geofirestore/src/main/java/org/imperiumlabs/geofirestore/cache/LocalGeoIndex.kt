@@ -0,0 +1,142 @@
+package org.imperiumlabs.geofirestore.cache
+
+import com.google.firebase.firestore.DocumentSnapshot
+import org.imperiumlabs.geofirestore.LocationExtractor
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+
+/**
+ * A LocalGeoIndex keeps in memory the documents of the geohash ranges already read from
+ * Firestore, so that repeated or overlapping queries can be answered without reading them again.
+ *
+ * A range is answered locally only if it is contained in a range fully read from the server
+ * less than ttlMillis ago; the least recently used ranges are evicted when the index holds
+ * more than maxDocuments documents. The LocalGeoIndex class is thread safe.
+ */
+class LocalGeoIndex @JvmOverloads constructor(
+        // The maximal number of documents kept in the index
+        val maxDocuments: Int = DEFAULT_MAX_DOCUMENTS,
+        // The time after which a range must be read again from the server, in milliseconds
+        val ttlMillis: Long = DEFAULT_TTL_MILLIS) {
+
+    companion object {
+        // The default maximal number of documents kept in the index
+        const val DEFAULT_MAX_DOCUMENTS = 10000
+
+        // The default time to live of a range, one minute
+        const val DEFAULT_TTL_MILLIS = 60000L
+    }
+
+    private class CachedRange(val fetchedAt: Long, val documents: List<IndexedDocument>)
+
+    private class IndexedDocument(val geoHash: String, val documentSnapshot: DocumentSnapshot)
+
+    // The cached ranges in least recently used order
+    private val ranges = LinkedHashMap<GeoHashQuery, CachedRange>(16, 0.75f, true)
+    private var documentCount = 0
+
+    /**
+     * The number of ranges answered by the index.
+     */
+    var hitCount = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * The number of ranges that had to be read from the server.
+     */
+    var missCount = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * The number of document reads saved answering ranges from the index.
+     */
+    var savedReads = 0L
+        @Synchronized get
+        private set
+
+    /**
+     * Get the documents of a range if it is contained in a fresh cached range.
+     *
+     * @param query The range to look up
+     * @param nowMillis The current time, in milliseconds
+     * @return The documents inside the range or null if the range must be read from the server
+     */
+    @Synchronized
+    @JvmOverloads
+    fun get(query: GeoHashQuery, nowMillis: Long = System.currentTimeMillis()): List<DocumentSnapshot>? {
+        var found: Map.Entry<GeoHashQuery, CachedRange>? = null
+        val it = ranges.entries.iterator()
+        while (it.hasNext()) {
+            val entry = it.next()
+            if (nowMillis - entry.value.fetchedAt > ttlMillis) {
+                documentCount -= entry.value.documents.size
+                it.remove()
+            } else if (found == null && entry.key.startValue <= query.startValue && entry.key.endValue >= query.endValue) {
+                found = entry
+            }
+        }
+        if (found == null) {
+            missCount++
+            return null
+        }
+        //Touch the range to mark it as recently used
+        ranges[found.key]
+        val documents = found.value.documents
+                .filter { query.startValue <= it.geoHash && query.endValue > it.geoHash }
+                .map { it.documentSnapshot }
+        hitCount++
+        savedReads += documents.size
+        return documents
+    }
+
+    /**
+     * Store the documents read for a set of ranges, every document of the ranges must be included.
+     *
+     * @param queries The ranges fully read from the server
+     * @param documentSnapshots The documents read for the ranges
+     * @param locationExtractor The extractor reading the location of the documents
+     * @param nowMillis The current time, in milliseconds
+     */
+    @Synchronized
+    @JvmOverloads
+    fun put(queries: Collection<GeoHashQuery>, documentSnapshots: List<DocumentSnapshot>,
+            locationExtractor: LocationExtractor = LocationExtractor.DEFAULT, nowMillis: Long = System.currentTimeMillis()) {
+        //Index the documents at full precision so that they can be matched against ranges of any precision
+        val documents = documentSnapshots.mapNotNull { snapshot ->
+            locationExtractor.location(snapshot)?.let {
+                IndexedDocument(GeoHash(it.latitude, it.longitude, GeoHash.MAX_PRECISION).geoHashString, snapshot)
+            }
+        }
+        for (query in queries) {
+            //Drop the ranges replaced by the new one
+            val it = ranges.entries.iterator()
+            while (it.hasNext()) {
+                val entry = it.next()
+                if (query.startValue <= entry.key.startValue && query.endValue >= entry.key.endValue) {
+                    documentCount -= entry.value.documents.size
+                    it.remove()
+                }
+            }
+            val rangeDocuments = documents.filter { query.startValue <= it.geoHash && query.endValue > it.geoHash }
+            ranges[query] = CachedRange(nowMillis, rangeDocuments)
+            documentCount += rangeDocuments.size
+        }
+        //Evict the least recently used ranges
+        val it = ranges.entries.iterator()
+        while (documentCount > maxDocuments && it.hasNext()) {
+            documentCount -= it.next().value.documents.size
+            it.remove()
+        }
+    }
+
+    /**
+     * Remove every range from the index.
+     */
+    @Synchronized
+    fun clear() {
+        ranges.clear()
+        documentCount = 0
+    }
+}
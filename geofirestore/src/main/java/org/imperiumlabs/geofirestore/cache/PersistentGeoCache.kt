@@ -0,0 +1,246 @@
+package org.imperiumlabs.geofirestore.cache
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.LocationExtractor
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+
+/**
+ * A PersistentGeoCache keeps in a binary file the ID, the location and the geohash of the documents
+ * of the ranges recently read, so that after a restart the queries can show them before their
+ * ranges are read again from the server.
+ *
+ * The file is read by load and written by save, they must be called on a background thread:
+ * GeoFirestore loads the cache as soon as it is set and saves it after it changes. Until the file is
+ * loaded the cache holds only the ranges stored since, and it is not saved. The ranges older than
+ * ttlMillis are dropped and the least recently used ranges are evicted when the cache holds more
+ * than maxDocuments documents. The PersistentGeoCache class is thread safe.
+ */
+class PersistentGeoCache @JvmOverloads constructor(
+        // The file storing the cache
+        val file: File,
+        // The maximal number of documents kept in the cache
+        val maxDocuments: Int = DEFAULT_MAX_DOCUMENTS,
+        // The time after which a range is dropped from the cache, in milliseconds
+        val ttlMillis: Long = DEFAULT_TTL_MILLIS) {
+
+    companion object {
+        // The default maximal number of documents kept in the cache
+        const val DEFAULT_MAX_DOCUMENTS = 5000
+
+        // The default time to live of a range, one week
+        const val DEFAULT_TTL_MILLIS = 7 * 24 * 3600 * 1000L
+
+        // The first bytes of the file, "GFC" and the version of the format
+        private const val MAGIC = 0x47464301
+    }
+
+    private class CachedRange(val readAt: Long, val documents: List<CachedDocument>)
+
+    // The cached ranges in least recently used order
+    private val ranges = LinkedHashMap<GeoHashQuery, CachedRange>(16, 0.75f, true)
+    private var documentCount = 0
+    private var loaded = false
+    private var dirty = false
+
+    // Held while the file is written, so that the reads and the writes of the cache don't wait for it
+    private val fileLock = Any()
+
+    /**
+     * Whether the file was read, once loaded the cache is saved.
+     */
+    val isLoaded: Boolean
+        @Synchronized get() = loaded
+
+    /**
+     * Read the cache from its file, the ranges stored before it was loaded replace the ones read.
+     * A missing or corrupted file leaves the cache with the ranges stored before.
+     *
+     * @param nowMillis The current time, in milliseconds
+     */
+    @JvmOverloads
+    fun load(nowMillis: Long = System.currentTimeMillis()) {
+        if (isLoaded) return
+        val read = LinkedHashMap<GeoHashQuery, CachedRange>()
+        var corrupted = false
+        if (file.exists()) {
+            try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    if (input.readInt() != MAGIC) throw IOException("Not a GeoFirestore cache file")
+                    repeat(input.readInt()) {
+                        val query = GeoHashQuery(input.readUTF(), input.readUTF())
+                        val readAt = input.readLong()
+                        val documents = List(input.readInt()) {
+                            CachedDocument(input.readUTF(), GeoPoint(input.readDouble(), input.readDouble()), input.readUTF(), readAt)
+                        }
+                        if (nowMillis - readAt <= ttlMillis) read[query] = CachedRange(readAt, documents)
+                    }
+                }
+            } catch (e: IOException) {
+                GeoFirestore.LOGGER.warning("Discarding the cache ${file.path}: $e")
+                read.clear()
+                corrupted = true
+            }
+        }
+        synchronized(this) {
+            if (loaded) return
+            loaded = true
+            //The ranges read are older than the ones stored in the meantime
+            val stored = LinkedHashMap(ranges)
+            ranges.clear()
+            for ((query, range) in read) {
+                if (stored.keys.none { it.startValue <= query.startValue && it.endValue >= query.endValue })
+                    ranges[query] = range
+            }
+            ranges.putAll(stored)
+            documentCount = ranges.values.sumBy { it.documents.size }
+            evict(nowMillis)
+            if (corrupted) dirty = true
+        }
+    }
+
+    /**
+     * Write the cache to its file if it was loaded and it changed since it was last written, the
+     * file is replaced only once it has been fully written.
+     *
+     * @throws IOException If the file can't be written
+     */
+    @Throws(IOException::class)
+    fun save() {
+        synchronized(fileLock) {
+            //Copy the ranges, the file is written without holding the cache
+            val copy = synchronized(this) {
+                if (!dirty || !loaded) return
+                dirty = false
+                ranges.entries.map { it.key to it.value }
+            }
+            try {
+                write(copy)
+            } catch (e: IOException) {
+                synchronized(this) { dirty = true }
+                throw e
+            }
+        }
+    }
+
+    /*
+     * Write the ranges to a temporary file and then replace the file with it
+     */
+    private fun write(ranges: List<Pair<GeoHashQuery, CachedRange>>) {
+        val temporary = File(file.path + ".tmp")
+        DataOutputStream(BufferedOutputStream(FileOutputStream(temporary))).use { output ->
+            output.writeInt(MAGIC)
+            output.writeInt(ranges.size)
+            for ((query, range) in ranges) {
+                output.writeUTF(query.startValue)
+                output.writeUTF(query.endValue)
+                output.writeLong(range.readAt)
+                output.writeInt(range.documents.size)
+                for (document in range.documents) {
+                    output.writeUTF(document.documentID)
+                    output.writeDouble(document.location.latitude)
+                    output.writeDouble(document.location.longitude)
+                    output.writeUTF(document.geoHash)
+                }
+            }
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete()
+            throw IOException("Can't replace ${file.path}")
+        }
+    }
+
+    /**
+     * Get the cached documents inside a set of ranges, the documents of every cached range
+     * overlapping the ranges are returned.
+     *
+     * @param queries The ranges to look up
+     * @return The cached documents inside the ranges, each document is returned once
+     */
+    @Synchronized
+    fun get(queries: Collection<GeoHashQuery>): List<CachedDocument> {
+        val documents = LinkedHashMap<String, CachedDocument>()
+        for ((range, cachedRange) in ranges.entries.toList()) {
+            if (queries.none { it.startValue < range.endValue && range.startValue < it.endValue }) continue
+            //Touch the range to mark it as recently used
+            ranges[range]
+            for (document in cachedRange.documents) {
+                if (queries.any { it.startValue <= document.geoHash && it.endValue > document.geoHash }) {
+                    val other = documents[document.documentID]
+                    if (other == null || other.readAt < document.readAt) documents[document.documentID] = document
+                }
+            }
+        }
+        return ArrayList(documents.values)
+    }
+
+    /**
+     * Store the documents read for a set of ranges, every document of the ranges must be included.
+     *
+     * @param queries The ranges fully read from the server
+     * @param documentSnapshots The documents read for the ranges
+     * @param locationExtractor The extractor reading the location of the documents
+     * @param nowMillis The current time, in milliseconds
+     */
+    @Synchronized
+    @JvmOverloads
+    fun put(queries: Collection<GeoHashQuery>, documentSnapshots: List<DocumentSnapshot>,
+            locationExtractor: LocationExtractor = LocationExtractor.DEFAULT, nowMillis: Long = System.currentTimeMillis()) {
+        val documents = documentSnapshots.mapNotNull { snapshot ->
+            locationExtractor.location(snapshot)?.let {
+                val geoHash = locationExtractor.geoHash(snapshot) ?: GeoHash(it.latitude, it.longitude, GeoHash.MAX_PRECISION)
+                CachedDocument(snapshot.id, it, geoHash.geoHashString, nowMillis)
+            }
+        }
+        for (query in queries) {
+            //Drop the ranges replaced by the new one
+            val it = ranges.entries.iterator()
+            while (it.hasNext()) {
+                val entry = it.next()
+                if (query.startValue <= entry.key.startValue && query.endValue >= entry.key.endValue) {
+                    documentCount -= entry.value.documents.size
+                    it.remove()
+                }
+            }
+            val rangeDocuments = documents.filter { query.startValue <= it.geoHash && query.endValue > it.geoHash }
+            ranges[query] = CachedRange(nowMillis, rangeDocuments)
+            documentCount += rangeDocuments.size
+        }
+        evict(nowMillis)
+        dirty = true
+    }
+
+    /*
+     * Drop the expired ranges and evict the least recently used ones
+     */
+    private fun evict(now: Long) {
+        val it = ranges.entries.iterator()
+        while (it.hasNext()) {
+            val range = it.next().value
+            if (documentCount > maxDocuments || now - range.readAt > ttlMillis) {
+                documentCount -= range.documents.size
+                it.remove()
+            }
+        }
+    }
+
+    /**
+     * Remove every range from the cache, the file is emptied by the next save.
+     */
+    @Synchronized
+    fun clear() {
+        ranges.clear()
+        documentCount = 0
+        dirty = true
+    }
+}
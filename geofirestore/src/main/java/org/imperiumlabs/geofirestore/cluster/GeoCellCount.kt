@@ -0,0 +1,9 @@
+package org.imperiumlabs.geofirestore.cluster
+
+/**
+ * The number of documents of a geohash cell read from its server counter.
+ *
+ * @param geoHash The geohash of the cell
+ * @param count The number of documents inside the cell
+ */
+data class GeoCellCount(val geoHash: String, val count: Long)
@@ -0,0 +1,93 @@
+package org.imperiumlabs.geofirestore.cluster
+
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+
+/**
+ * The configuration of the aggregate counters kept by the server for every geohash cell.
+ *
+ * Every counter is a document of the collection collectionPath with the number of documents
+ * of the cell in the field "count" and the geohash of the cell in the field "g", its documentID
+ * is the level followed by "_" and the geohash, e.g. "4_u0nd". The counters are updated with
+ * FieldValue.increment together with the location of a document, so that the density of a
+ * region is read with one document per cell instead of one per location. The previous location is
+ * read in a transaction, so the writes of the locations fail offline while the counters are enabled.
+ *
+ * @param collectionPath The path of the collection of the counters
+ * @param levels The lengths of the geohash of the counted cells
+ * @throws IllegalArgumentException If a level is not between 1 and GeoHash.MAX_PRECISION
+ */
+class GeoCellCounters(val collectionPath: String, levels: Set<Int>) {
+
+    companion object {
+        // The field with the number of documents of a cell
+        const val COUNT_FIELD = "count"
+
+        // The field with the geohash of a cell
+        const val GEOHASH_FIELD = "g"
+
+        /**
+         * Get the documentID of the counter of a cell.
+         *
+         * @param geoHash The geohash of the cell
+         * @return The documentID of the counter
+         */
+        @JvmStatic
+        fun counterID(geoHash: String) = "${geoHash.length}_$geoHash"
+
+        /**
+         * Get the geohash of the cell of a counter.
+         *
+         * @param counterID The documentID of the counter
+         * @return The geohash of the cell or null if the documentID isn't a counter
+         */
+        @JvmStatic
+        fun geoHashOf(counterID: String): String? {
+            val separator = counterID.indexOf('_')
+            if (separator < 1) return null
+            val geoHash = counterID.substring(separator + 1)
+            return if (counterID.substring(0, separator) == geoHash.length.toString()) geoHash else null
+        }
+    }
+
+    // The sorted lengths of the geohash of the counted cells
+    val levels: Set<Int> = levels.toSortedSet()
+
+    // The longest counted level, the geohash of the documents is encoded at least with this precision
+    val maxLevel: Int
+
+    init {
+        if (levels.isEmpty() || levels.any { it < 1 || it > GeoHash.MAX_PRECISION })
+            throw IllegalArgumentException("Counter levels must be between 1 and ${GeoHash.MAX_PRECISION}!")
+        this.maxLevel = levels.max()!!
+    }
+
+    /**
+     * Compute the increments of the counters for a document moving from a cell to another,
+     * the counters of the cells shared by the two geohashes are left unchanged.
+     *
+     * @param oldGeoHash The geohash of the previous location or null if the document had no location
+     * @param newGeoHash The geohash of the new location or null if the location is removed
+     * @return The increment of every changed counter by documentID
+     */
+    fun increments(oldGeoHash: String?, newGeoHash: String?): Map<String, Long> {
+        val increments = LinkedHashMap<String, Long>()
+        for (level in levels) {
+            val oldCell = oldGeoHash?.takeIf { it.length >= level }?.substring(0, level)
+            val newCell = newGeoHash?.takeIf { it.length >= level }?.substring(0, level)
+            if (oldCell == newCell) continue
+            if (oldCell != null) increments[counterID(oldCell)] = -1L
+            if (newCell != null) increments[counterID(newCell)] = 1L
+        }
+        return increments
+    }
+
+    /**
+     * Convert the queries covering some cells to the ranges of documentIDs of their counters.
+     *
+     * @param queries The queries covering the cells, all of the same level
+     * @return The ranges of documentIDs of the counters
+     */
+    fun counterRanges(queries: Collection<GeoHashQuery>): List<GeoHashQuery> =
+            queries.map { GeoHashQuery(counterID(it.startValue), "${it.startValue.length}_${it.endValue}") }
+}
@@ -0,0 +1,12 @@
+package org.imperiumlabs.geofirestore.cluster
+
+import com.google.firebase.firestore.GeoPoint
+
+/**
+ * The documents of a GeoQuery inside a geohash cell.
+ *
+ * @param geoHash The geohash of the cell
+ * @param count The number of documents inside the cell, zero if the cell was emptied
+ * @param centroid The centroid of the locations of the documents, null if the cell is empty
+ */
+data class GeoCluster(val geoHash: String, val count: Int, val centroid: GeoPoint?)
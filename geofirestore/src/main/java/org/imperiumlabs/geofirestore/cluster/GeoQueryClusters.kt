@@ -0,0 +1,225 @@
+package org.imperiumlabs.geofirestore.cluster
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.LocationExtractor
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHashCovering
+import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener
+import org.imperiumlabs.geofirestore.region.GeoRegion
+import org.imperiumlabs.geofirestore.util.Base32Utils
+
+/**
+ * Clusters the documents of a GeoQuery by geohash prefix, for every precision from 1 to
+ * maxPrecision, keeping the count and the centroid of every cluster as documents enter,
+ * exit and move. Every event updates one cluster for each precision.
+ *
+ * The clusters changed since the last call of drainChanges are tracked for every precision, so
+ * that only their markers are redrawn. Add it to a query with an ImmediateEventRaiser to update
+ * the clusters off the main thread. The GeoQueryClusters class is thread safe.
+ */
+class GeoQueryClusters @JvmOverloads constructor(
+        // The precision of the finest clusters
+        val maxPrecision: Int = DEFAULT_MAX_PRECISION): GeoQueryDataEventListener {
+
+    companion object {
+        // The default precision of the finest clusters, cells of about 40m
+        const val DEFAULT_MAX_PRECISION = 8
+
+        // The number of clusters across a map tile
+        private const val CLUSTERS_PER_TILE_BITS = 2
+
+        /**
+         * Get the precision of the clusters for a zoom level of a web mercator map, about
+         * four clusters across a tile.
+         *
+         * @param zoom The zoom level of the map
+         * @param maxPrecision The precision of the finest clusters
+         * @return The precision of the clusters to show
+         */
+        @JvmStatic
+        fun precisionForZoom(zoom: Double, maxPrecision: Int): Int {
+            val longitudeBits = zoom + CLUSTERS_PER_TILE_BITS
+            for (precision in 1..maxPrecision) {
+                if ((precision * Base32Utils.BITS_PER_BASE32_CHAR + 1) / 2 >= longitudeBits) return precision
+            }
+            return maxPrecision
+        }
+    }
+
+    /*
+     * The sum of the unit vectors of the locations of a cluster, their mean is the centroid
+     * also for the clusters across the antimeridian
+     */
+    private class Accumulator {
+        var count = 0
+        var x = 0.0
+        var y = 0.0
+        var z = 0.0
+
+        fun add(vector: DoubleArray, sign: Int) {
+            count += sign
+            x += sign * vector[0]
+            y += sign * vector[1]
+            z += sign * vector[2]
+        }
+
+        fun centroid(): GeoPoint? {
+            if (count == 0) return null
+            val latitude = Math.toDegrees(Math.atan2(z, Math.sqrt(x * x + y * y)))
+            val longitude = Math.toDegrees(Math.atan2(y, x))
+            return GeoPoint(Math.max(-90.0, Math.min(90.0, latitude)), longitude)
+        }
+    }
+
+    private class Member(val geoHash: String, val vector: DoubleArray)
+
+    private val members = HashMap<String, Member>()
+    // The clusters of every precision, the index is the precision minus one
+    private val clusters = Array(maxPrecision) { HashMap<String, Accumulator>() }
+    private val changes = Array(maxPrecision) { HashSet<String>() }
+
+    init {
+        if (maxPrecision < 1 || maxPrecision > GeoHash.MAX_PRECISION)
+            throw IllegalArgumentException("The precision must be between 1 and ${GeoHash.MAX_PRECISION}")
+    }
+
+    /**
+     * The number of documents clustered.
+     */
+    val size: Int
+        @Synchronized get() = members.size
+
+    /**
+     * Get the clusters of a precision.
+     *
+     * @param precision The length of the geohash prefix of the clusters
+     * @param region The region of the map shown, null for the clusters of the whole query
+     * @return The non empty clusters intersecting the region
+     */
+    @Synchronized
+    @JvmOverloads
+    fun clusters(precision: Int, region: GeoRegion? = null): List<GeoCluster> {
+        val result = ArrayList<GeoCluster>()
+        for ((geoHash, accumulator) in clustersOf(precision)) {
+            if (region == null || intersects(region, geoHash)) result.add(GeoCluster(geoHash, accumulator.count, accumulator.centroid()))
+        }
+        return result
+    }
+
+    /**
+     * Get the clusters of a zoom level of a web mercator map.
+     *
+     * @param zoom The zoom level of the map
+     * @param region The region of the map shown, null for the clusters of the whole query
+     * @return The non empty clusters intersecting the region
+     */
+    @JvmOverloads
+    fun clustersForZoom(zoom: Double, region: GeoRegion? = null) = clusters(precisionForZoom(zoom, maxPrecision), region)
+
+    /**
+     * Get the clusters of a precision changed since the last call for the same precision, the
+     * clusters emptied in the meantime have count zero.
+     *
+     * @param precision The length of the geohash prefix of the clusters
+     * @return The changed clusters
+     */
+    @Synchronized
+    fun drainChanges(precision: Int): List<GeoCluster> {
+        val clusters = clustersOf(precision)
+        val changed = changes[precision - 1]
+        val result = changed.map { geoHash ->
+            val accumulator = clusters[geoHash]
+            GeoCluster(geoHash, accumulator?.count ?: 0, accumulator?.centroid())
+        }
+        changed.clear()
+        return result
+    }
+
+    @Synchronized
+    override fun onDocumentEntered(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+        add(documentSnapshot, location)
+    }
+
+    @Synchronized
+    override fun onDocumentExited(documentSnapshot: DocumentSnapshot) {
+        remove(documentSnapshot.id)
+    }
+
+    @Synchronized
+    override fun onDocumentMoved(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+        remove(documentSnapshot.id)
+        add(documentSnapshot, location)
+    }
+
+    override fun onDocumentChanged(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+        //The location changes are notified by onDocumentMoved
+    }
+
+    override fun onGeoQueryReady() {
+        //No-op
+    }
+
+    override fun onGeoQueryError(exception: Exception) {
+        //No-op
+    }
+
+    /**
+     * Remove every document from the clusters, every cluster is reported as changed.
+     */
+    @Synchronized
+    fun clear() {
+        for (precision in 1..maxPrecision) {
+            changes[precision - 1].addAll(clusters[precision - 1].keys)
+            clusters[precision - 1].clear()
+        }
+        members.clear()
+    }
+
+    private fun clustersOf(precision: Int): Map<String, Accumulator> {
+        if (precision < 1 || precision > maxPrecision)
+            throw IllegalArgumentException("The precision must be between 1 and $maxPrecision")
+        return clusters[precision - 1]
+    }
+
+    /*
+     * Add a document to its cluster of every precision
+     */
+    private fun add(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+        val storedHash = LocationExtractor.DEFAULT.geoHash(documentSnapshot)?.geoHashString
+        val geoHash = if (storedHash != null && storedHash.length >= maxPrecision) storedHash
+                      else GeoHash(location.latitude, location.longitude, maxPrecision).geoHashString
+        val member = Member(geoHash, unitVector(location))
+        members.put(documentSnapshot.id, member)?.let { update(it, -1) }
+        update(member, 1)
+    }
+
+    /*
+     * Remove a document from its cluster of every precision
+     */
+    private fun remove(documentID: String) {
+        members.remove(documentID)?.let { update(it, -1) }
+    }
+
+    private fun update(member: Member, sign: Int) {
+        for (precision in 1..maxPrecision) {
+            val prefix = member.geoHash.substring(0, precision)
+            val precisionClusters = clusters[precision - 1]
+            val accumulator = precisionClusters.getOrPut(prefix) { Accumulator() }
+            accumulator.add(member.vector, sign)
+            if (accumulator.count == 0) precisionClusters.remove(prefix)
+            changes[precision - 1].add(prefix)
+        }
+    }
+
+    private fun unitVector(location: GeoPoint): DoubleArray {
+        val latitude = Math.toRadians(location.latitude)
+        val longitude = Math.toRadians(location.longitude)
+        return doubleArrayOf(Math.cos(latitude) * Math.cos(longitude), Math.cos(latitude) * Math.sin(longitude), Math.sin(latitude))
+    }
+
+    private fun intersects(region: GeoRegion, geoHash: String): Boolean {
+        val bounds = GeoHashCovering.cellBounds(geoHash)
+        return region.intersectsCell(bounds[0], bounds[1], bounds[2], bounds[3])
+    }
+}
@@ -2,7 +2,13 @@ package org.imperiumlabs.geofirestore.extension
 
 import com.google.firebase.firestore.DocumentSnapshot
 import com.google.firebase.firestore.GeoPoint
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
 import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.cluster.GeoCellCount
+import org.imperiumlabs.geofirestore.region.GeoRegion
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
 
 /*
  * This file contains a series of extension functions
@@ -59,8 +65,8 @@ fun GeoFirestore.setLocation(documentID: String?, location: GeoPoint, completion
  * Returns a new SingleGeoQuery object centered at a given location and with the given radius.
  *
  * @param center The center of the query
- * @param radius The radius of the query, in kilometers. The maximum radius that is
- *               supported is about 8587km. If a radius bigger than this is passed we'll cap it.
+ * @param radius The radius of the query, in kilometers. Radii bigger than about 8587km are planned
+ *               with coarse geohash cells or with a scan of the whole collection.
  * @return The new SingleGeoQuery object
  */
 fun GeoFirestore.getAtLocation(center: GeoPoint, radius: Double, callback: (p0: List<DocumentSnapshot>?, p1: Exception?)->Unit) {
@@ -69,4 +75,96 @@ fun GeoFirestore.getAtLocation(center: GeoPoint, radius: Double, callback: (p0:
             callback(documentSnapshots, exception)
         }
     })
-}
\ No newline at end of file
+}
+
+/**
+ * Gets all the documents inside the given region.
+ *
+ * @param region The region of the query
+ * @param callback The Lambda function that is called once the documents are retrieved
+ */
+fun GeoFirestore.getInRegion(region: GeoRegion, callback: (p0: List<DocumentSnapshot>?, p1: Exception?)->Unit) {
+    this.getInRegion(region, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+        override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+            callback(documentSnapshots, exception)
+        }
+    })
+}
+
+/**
+ * Gets the number of documents of the geohash cells of a level intersecting a region.
+ *
+ * @param region The region to count
+ * @param level The length of the geohash of the cells
+ * @param callback The Lambda function that is called once the counts are retrieved
+ */
+fun GeoFirestore.getCellCounts(region: GeoRegion, level: Int, callback: (counts: List<GeoCellCount>?, exception: Exception?)->Unit) {
+    this.getCellCounts(region, level, object : GeoFirestore.CellCountsCallback {
+        override fun onComplete(counts: List<GeoCellCount>?, exception: Exception?) {
+            callback(counts, exception)
+        }
+    })
+}
+
+/**
+ * Gets all the documents inside the circle centered at a given location and with the given radius,
+ * suspending until they are retrieved.
+ *
+ * @param center The center of the query
+ * @param radius The radius of the query, in kilometers. Radii bigger than about 8587km are planned
+ *               with coarse geohash cells or with a scan of the whole collection.
+ * @return The documents inside the circle
+ * @throws Exception If the documents can't be retrieved, even if only some of the planned queries fail
+ */
+suspend fun GeoFirestore.getAtLocation(center: GeoPoint, radius: Double): List<DocumentSnapshot> =
+        suspendCancellableCoroutine { continuation ->
+            this.getAtLocation(center, radius, resumeCallback(continuation))
+        }
+
+/**
+ * Gets all the documents inside the given region, suspending until they are retrieved.
+ *
+ * @param region The region of the query
+ * @return The documents inside the region
+ * @throws Exception If the documents can't be retrieved, even if only some of the planned queries fail
+ */
+suspend fun GeoFirestore.getInRegion(region: GeoRegion): List<DocumentSnapshot> =
+        suspendCancellableCoroutine { continuation ->
+            this.getInRegion(region, resumeCallback(continuation))
+        }
+
+/**
+ * Gets the number of documents of the geohash cells of a level intersecting a region,
+ * suspending until they are retrieved.
+ *
+ * @param region The region to count
+ * @param level The length of the geohash of the cells
+ * @return The counts of the cells with at least one document
+ * @throws Exception If the counters can't be retrieved
+ */
+suspend fun GeoFirestore.getCellCounts(region: GeoRegion, level: Int): List<GeoCellCount> =
+        suspendCancellableCoroutine { continuation ->
+            this.getCellCounts(region, level, object : GeoFirestore.CellCountsCallback {
+                override fun onComplete(counts: List<GeoCellCount>?, exception: Exception?) {
+                    if (!continuation.isActive) return
+                    if (exception != null || counts == null)
+                        continuation.resumeWithException(exception ?: NullPointerException("Counters not retrieved"))
+                    else
+                        continuation.resume(counts)
+                }
+            })
+        }
+
+/*
+ * Build the callback resuming a coroutine with the documents retrieved
+ */
+private fun resumeCallback(continuation: CancellableContinuation<List<DocumentSnapshot>>) =
+        object : GeoFirestore.SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                if (!continuation.isActive) return
+                if (exception != null || documentSnapshots == null)
+                    continuation.resumeWithException(exception ?: NullPointerException("Documents not retrieved"))
+                else
+                    continuation.resume(documentSnapshots)
+            }
+        }
@@ -0,0 +1,127 @@
+package org.imperiumlabs.geofirestore.extension
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.conflate
+import kotlinx.coroutines.flow.flowOn
+import org.imperiumlabs.geofirestore.GeoQuery
+import org.imperiumlabs.geofirestore.GeoQueryResultSet
+import org.imperiumlabs.geofirestore.ImmediateEventRaiser
+import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener
+import org.imperiumlabs.geofirestore.listeners.GeoQueryEvent
+import org.imperiumlabs.geofirestore.listeners.GeoQueryResultSetListener
+
+/*
+ * Send an event if the Flow is still collected, the events raised while the listener
+ * is being removed are discarded. When the buffer is full the Flow fails, as dropping
+ * an event would corrupt the view of the collector
+ */
+private fun <E> SendChannel<E>.offerIfOpen(event: E) {
+    try {
+        if (!isClosedForSend && !offer(event))
+            close(IllegalStateException("The buffer of the GeoQuery events is full, the collector is too slow!"))
+    } catch (e: ClosedSendChannelException) {
+        //The collection was cancelled
+    }
+}
+
+/**
+ * Get a cold Flow of the events of this GeoQuery.
+ *
+ * The listener of the query is added when the Flow is collected and removed when the
+ * collection is cancelled. The events are buffered as they are produced by the thread
+ * processing the snapshots, the collector receives them on its own dispatcher.
+ *
+ * Every event is a change of the documents inside the query, so no event is ever dropped: the
+ * thread processing the snapshots can't wait for the collector, and when a bounded buffer is
+ * full the Flow fails with an IllegalStateException. A collector interested only in the
+ * current documents should collect resultSetFlow instead.
+ *
+ * @param capacity The capacity of the buffer of the events: Channel.UNLIMITED keeps every
+ *                 event, with a bounded capacity the Flow fails once the buffer is full
+ * @param dispatcher The dispatcher adding and removing the listener, it also plans the queries
+ *                   and replays the documents already in the query
+ * @return The Flow of the events
+ * @throws IllegalArgumentException If the capacity is Channel.CONFLATED
+ */
+@ExperimentalCoroutinesApi
+fun GeoQuery.asFlow(capacity: Int = Channel.UNLIMITED,
+                    dispatcher: CoroutineDispatcher = Dispatchers.Default): Flow<GeoQueryEvent> {
+    if (capacity == Channel.CONFLATED)
+        throw IllegalArgumentException("The events of a GeoQuery can't be conflated, collect resultSetFlow instead!")
+    return eventFlow().buffer(capacity).flowOn(dispatcher)
+}
+
+/**
+ * Get a cold Flow of the documents inside this GeoQuery.
+ *
+ * The listener of the query is added when the Flow is collected and removed when the
+ * collection is cancelled. Every GeoQueryResultSet is a whole snapshot of the documents, so
+ * a slow collector only skips the intermediate ones and receives the latest. The Flow fails
+ * with the first error of the query.
+ *
+ * @param intervalMillis The minimal time between two result sets, in milliseconds
+ * @param sortedByDistance True to receive the documents sorted by increasing distance from the center
+ * @param dispatcher The dispatcher adding and removing the listener
+ * @return The Flow of the result sets
+ */
+@ExperimentalCoroutinesApi
+fun GeoQuery.resultSetFlow(intervalMillis: Long = 0, sortedByDistance: Boolean = false,
+                           dispatcher: CoroutineDispatcher = Dispatchers.Default): Flow<GeoQueryResultSet> = callbackFlow {
+    val listener = object : GeoQueryResultSetListener {
+        override fun onResultSetChanged(resultSet: GeoQueryResultSet) {
+            offerIfOpen(resultSet)
+        }
+
+        override fun onGeoQueryError(exception: Exception) {
+            close(exception)
+        }
+    }
+    addGeoQueryResultSetListener(listener, intervalMillis, sortedByDistance)
+    awaitClose { removeGeoQueryResultSetListener(listener) }
+}.conflate().flowOn(dispatcher)
+
+/*
+ * The Flow of the events of the query, sent from the thread processing the snapshots
+ */
+@ExperimentalCoroutinesApi
+private fun GeoQuery.eventFlow(): Flow<GeoQueryEvent> = callbackFlow {
+    val listener = object : GeoQueryDataEventListener {
+        override fun onDocumentEntered(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+            offerIfOpen(GeoQueryEvent.DocumentEntered(documentSnapshot, location))
+        }
+
+        override fun onDocumentExited(documentSnapshot: DocumentSnapshot) {
+            offerIfOpen(GeoQueryEvent.DocumentExited(documentSnapshot))
+        }
+
+        override fun onDocumentMoved(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+            offerIfOpen(GeoQueryEvent.DocumentMoved(documentSnapshot, location))
+        }
+
+        override fun onDocumentChanged(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+            offerIfOpen(GeoQueryEvent.DocumentChanged(documentSnapshot, location))
+        }
+
+        override fun onGeoQueryReady() {
+            offerIfOpen(GeoQueryEvent.Ready)
+        }
+
+        override fun onGeoQueryError(exception: Exception) {
+            offerIfOpen(GeoQueryEvent.Error(exception))
+        }
+    }
+    //The events are sent to the buffer from the thread processing the snapshots, without hopping to the main thread
+    addGeoQueryDataEventListener(listener, ImmediateEventRaiser)
+    awaitClose { removeGeoQueryEventListener(listener) }
+}
@@ -0,0 +1,11 @@
+package org.imperiumlabs.geofirestore.geofence
+
+import org.imperiumlabs.geofirestore.region.GeoRegion
+
+/**
+ * A fixed zone monitored by a GeoFenceMonitor.
+ *
+ * @param id The unique ID of the fence
+ * @param region The area of the fence, e.g. a CircleRegion or a PolygonRegion
+ */
+data class GeoFence(val id: String, val region: GeoRegion)
@@ -0,0 +1,81 @@
+package org.imperiumlabs.geofirestore.geofence
+
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHashCovering
+
+/**
+ * An index of fixed GeoFences by geohash cell.
+ *
+ * Every fence is indexed with the finest cells intersecting it that are at most maxCellsPerFence,
+ * so a location is checked only against the fences of the cells containing it: one lookup for
+ * every distinct precision of the cells, whatever the number of fences.
+ *
+ * @param fences The fences to index, with unique IDs
+ * @param maxCellsPerFence The maximal number of cells indexing a fence
+ * @throws IllegalArgumentException If two fences have the same ID
+ */
+class GeoFenceIndex @JvmOverloads constructor(
+        fences: Collection<GeoFence>,
+        maxCellsPerFence: Int = DEFAULT_MAX_CELLS_PER_FENCE) {
+
+    companion object {
+        // The default maximal number of cells indexing a fence
+        const val DEFAULT_MAX_CELLS_PER_FENCE = 32
+    }
+
+    // The indexed fences by ID
+    val fences: Map<String, GeoFence>
+
+    private val cells = HashMap<String, MutableList<GeoFence>>()
+    // The sorted distinct lengths of the indexed cells
+    private val precisions: IntArray
+
+    init {
+        val fencesByID = LinkedHashMap<String, GeoFence>()
+        val precisions = sortedSetOf<Int>()
+        for (fence in fences) {
+            if (fencesByID.put(fence.id, fence) != null)
+                throw IllegalArgumentException("Duplicated fence ID ${fence.id}")
+            val fenceCells = cellsOf(fence, maxCellsPerFence)
+            if (fenceCells.isEmpty()) continue
+            precisions.add(fenceCells.first().length)
+            for (cell in fenceCells)
+                cells.getOrPut(cell) { ArrayList(1) }.add(fence)
+        }
+        this.fences = fencesByID
+        this.precisions = precisions.toIntArray()
+    }
+
+    /**
+     * Get the fences containing a location.
+     *
+     * @param latitude The latitude of the location
+     * @param longitude The longitude of the location
+     * @return The fences containing the location
+     */
+    fun fencesAt(latitude: Double, longitude: Double): List<GeoFence> {
+        if (precisions.isEmpty()) return emptyList()
+        val geoHash = GeoHash(GeoLocation(latitude, longitude), precisions.last()).geoHashString
+        val result = ArrayList<GeoFence>()
+        for (precision in precisions) {
+            val candidates = cells[geoHash.substring(0, precision)] ?: continue
+            candidates.filterTo(result) { it.region.containsLocation(latitude, longitude) }
+        }
+        return result
+    }
+
+    /*
+     * Get the finest cells intersecting a fence that are at most maxCells, or the cells
+     * of precision one if there are more
+     */
+    private fun cellsOf(fence: GeoFence, maxCells: Int): List<String> {
+        var best: List<String>? = null
+        for (precision in 1..GeoHashCovering.MAX_COVERING_PRECISION) {
+            val cells = GeoHashCovering.cellsIntersecting(fence.region, precision) ?: break
+            if (best != null && cells.size > maxCells) break
+            best = cells
+        }
+        return best ?: emptyList()
+    }
+}
@@ -0,0 +1,233 @@
+package org.imperiumlabs.geofirestore.geofence
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.GeoQuery
+import org.imperiumlabs.geofirestore.ImmediateEventRaiser
+import org.imperiumlabs.geofirestore.listeners.GeoFenceEventListener
+import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener
+import org.imperiumlabs.geofirestore.region.UnionRegion
+import java.util.concurrent.ScheduledFuture
+
+/**
+ * Monitors which of many fixed GeoFences every document of a GeoFirestore is in.
+ *
+ * The monitor reads the union of the fences with a single GeoQuery, so the listeners and the reads
+ * are shared by all the fences, and checks every document only against the fences of the geohash
+ * cells containing it with a GeoFenceIndex. The cost of an update is independent of the number of
+ * fences. The fences entered, exited and dwelt in are notified to the GeoFenceEventListener with the
+ * EventRaiser of GeoFirestore. The GeoFenceMonitor class is thread safe.
+ *
+ * @param geoFirestore The GeoFirestore of the monitored documents
+ * @param fences The fences to monitor, with unique IDs
+ * @param dwellMillis The time a document must stay inside a fence before onFenceDwell, in
+ *                    milliseconds, zero to not notify the dwells
+ * @throws IllegalArgumentException If there are no fences or two fences have the same ID
+ */
+class GeoFenceMonitor @JvmOverloads constructor(
+        private val geoFirestore: GeoFirestore,
+        fences: Collection<GeoFence>,
+        val dwellMillis: Long = DEFAULT_DWELL_MILLIS): GeoQueryDataEventListener {
+
+    companion object {
+        // The default dwell time, 5 minutes
+        const val DEFAULT_DWELL_MILLIS = 5 * 60 * 1000L
+    }
+
+    /*
+     * A document inside a fence, with its last snapshot and location
+     */
+    private class Membership(var documentSnapshot: DocumentSnapshot, var location: GeoPoint) {
+        var dwell: ScheduledFuture<*>? = null
+    }
+
+    // The index of the monitored fences
+    val index = GeoFenceIndex(fences)
+
+    // The query reading the union of the fences
+    val query: GeoQuery = geoFirestore.queryInRegion(UnionRegion(fences.map { it.region }))
+
+    // The fences of every document, by documentID and by fence ID
+    private val memberships = HashMap<String, HashMap<String, Membership>>()
+    private val listeners = ArrayList<GeoFenceEventListener>()
+    private var ready = false
+    // Serializes the start and the stop of the query, it's never held by the events of the query
+    private val queryLock = Any()
+
+    /**
+     * Adds a new GeoFenceEventListener to this monitor, the first listener starts the query. A
+     * listener added later receives the fences the documents are currently in.
+     *
+     * @param listener The listener to add
+     * @throws IllegalArgumentException If this listener was already added
+     */
+    fun addGeoFenceEventListener(listener: GeoFenceEventListener) {
+        synchronized(queryLock) {
+            val start = synchronized(this) {
+                if (listeners.contains(listener))
+                    throw IllegalArgumentException("Added the same listener twice to a GeoFenceMonitor!")
+                listeners.add(listener)
+                for ((_, fences) in memberships) {
+                    for ((fenceID, membership) in fences) {
+                        val fence = index.fences.getValue(fenceID)
+                        val snapshot = membership.documentSnapshot
+                        val location = membership.location
+                        geoFirestore.raiseEvent(Runnable { listener.onFenceEntered(fence, snapshot, location) })
+                    }
+                }
+                if (ready)
+                    geoFirestore.raiseEvent(Runnable { listener.onGeoFenceMonitorReady() })
+                listeners.size == 1
+            }
+            if (start) query.addGeoQueryDataEventListener(this, ImmediateEventRaiser)
+        }
+    }
+
+    /**
+     * Removes a GeoFenceEventListener, the last listener stops the query and forgets the documents.
+     *
+     * @param listener The listener to remove
+     * @throws IllegalArgumentException If the listener was removed already or never added
+     */
+    fun removeGeoFenceEventListener(listener: GeoFenceEventListener) {
+        synchronized(queryLock) {
+            val stop = synchronized(this) {
+                if (!listeners.remove(listener))
+                    throw IllegalArgumentException("Trying to remove listener that was removed or not added!")
+                listeners.isEmpty()
+            }
+            if (stop) stop()
+        }
+    }
+
+    /**
+     * Removes all the GeoFenceEventListener, stopping the query.
+     */
+    fun removeAllListeners() {
+        synchronized(queryLock) {
+            val stop = synchronized(this) {
+                val hadListeners = listeners.isNotEmpty()
+                listeners.clear()
+                hadListeners
+            }
+            if (stop) stop()
+        }
+    }
+
+    /**
+     * Get the fences a document is currently in.
+     *
+     * @param documentID The ID of the document
+     * @return The fences containing the document
+     */
+    @Synchronized
+    fun fencesOf(documentID: String): List<GeoFence> =
+            memberships[documentID]?.keys?.map { index.fences.getValue(it) } ?: emptyList()
+
+    override fun onDocumentEntered(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+        update(documentSnapshot, location)
+    }
+
+    override fun onDocumentExited(documentSnapshot: DocumentSnapshot) {
+        synchronized(this) {
+            val fences = memberships.remove(documentSnapshot.id) ?: return
+            for ((fenceID, membership) in fences)
+                exit(index.fences.getValue(fenceID), membership, documentSnapshot)
+        }
+    }
+
+    override fun onDocumentMoved(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+        update(documentSnapshot, location)
+    }
+
+    override fun onDocumentChanged(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+        update(documentSnapshot, location)
+    }
+
+    override fun onGeoQueryReady() {
+        synchronized(this) {
+            ready = true
+            raise { it.onGeoFenceMonitorReady() }
+        }
+    }
+
+    override fun onGeoQueryError(exception: Exception) {
+        synchronized(this) {
+            raise { it.onGeoFenceMonitorError(exception) }
+        }
+    }
+
+    /*
+     * Stop the query and forget the documents, the pending dwells are cancelled
+     */
+    private fun stop() {
+        query.removeGeoQueryEventListener(this)
+        synchronized(this) {
+            for ((_, fences) in memberships)
+                for ((_, membership) in fences) membership.dwell?.cancel(false)
+            memberships.clear()
+            ready = false
+        }
+    }
+
+    /*
+     * Compare the fences containing the new location of a document with the fences it was in
+     */
+    private fun update(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+        val fences = index.fencesAt(location.latitude, location.longitude)
+        synchronized(this) {
+            val previous = memberships[documentSnapshot.id]
+            if (fences.isEmpty() && previous == null) return
+            val current = HashMap<String, Membership>()
+            for (fence in fences) {
+                var membership = previous?.remove(fence.id)
+                if (membership != null) {
+                    membership.documentSnapshot = documentSnapshot
+                    membership.location = location
+                } else {
+                    membership = Membership(documentSnapshot, location)
+                    membership.dwell = scheduleDwell(fence, documentSnapshot.id, membership)
+                    raise { it.onFenceEntered(fence, documentSnapshot, location) }
+                }
+                current[fence.id] = membership
+            }
+            //The fences left in previous don't contain the document anymore
+            previous?.forEach { (fenceID, membership) -> exit(index.fences.getValue(fenceID), membership, documentSnapshot) }
+            if (current.isEmpty()) memberships.remove(documentSnapshot.id) else memberships[documentSnapshot.id] = current
+        }
+    }
+
+    /*
+     * Notify a document leaving a fence, its pending dwell is cancelled
+     */
+    private fun exit(fence: GeoFence, membership: Membership, documentSnapshot: DocumentSnapshot) {
+        membership.dwell?.cancel(false)
+        raise { it.onFenceExited(fence, documentSnapshot) }
+    }
+
+    /*
+     * Schedule the dwell of a document entering a fence, it's notified only if the document is
+     * still in the fence after dwellMillis
+     */
+    private fun scheduleDwell(fence: GeoFence, documentID: String, membership: Membership): ScheduledFuture<*>? {
+        if (dwellMillis <= 0) return null
+        return geoFirestore.schedule(Runnable {
+            synchronized(this) {
+                if (memberships[documentID]?.get(fence.id) !== membership) return@Runnable
+                membership.dwell = null
+                val snapshot = membership.documentSnapshot
+                val location = membership.location
+                raise { it.onFenceDwell(fence, snapshot, location) }
+            }
+        }, dwellMillis)
+    }
+
+    /*
+     * Raise an event for every listener with the EventRaiser of GeoFirestore
+     */
+    private fun raise(event: (GeoFenceEventListener) -> Unit) {
+        for (listener in listeners)
+            geoFirestore.raiseEvent(Runnable { event(listener) })
+    }
+}
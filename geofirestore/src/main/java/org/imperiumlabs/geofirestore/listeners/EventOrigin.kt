@@ -0,0 +1,12 @@
+package org.imperiumlabs.geofirestore.listeners
+
+/**
+ * The origin of the documents and of the ready signals of a GeoQuery.
+ */
+enum class EventOrigin {
+    // Read from the local cache of Firestore, the server may not have confirmed it yet
+    CACHE,
+
+    // Confirmed by the server
+    SERVER
+}
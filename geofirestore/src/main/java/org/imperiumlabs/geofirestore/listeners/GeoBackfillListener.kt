@@ -0,0 +1,32 @@
+package org.imperiumlabs.geofirestore.listeners
+
+import org.imperiumlabs.geofirestore.backfill.BackfillProgress
+
+/**
+ * GeoBackfill notifies listeners with this interface about its progress.
+ */
+interface GeoBackfillListener {
+
+    /**
+     * Called after every page of documents is written.
+     *
+     * @param progress The progress of the backfill, with the checkpoint it can be resumed from
+     */
+    fun onBackfillProgress(progress: BackfillProgress)
+
+    /**
+     * Called once every document of the collection has been processed.
+     *
+     * @param progress The final progress of the backfill
+     */
+    fun onBackfillComplete(progress: BackfillProgress)
+
+    /**
+     * Called when a page can't be read or written, the backfill stops and can be resumed from
+     * the checkpoint of the progress: the documents after it may have been partially written.
+     *
+     * @param exception The exception that occurred
+     * @param progress The progress of the backfill before the failed page
+     */
+    fun onBackfillError(exception: Exception, progress: BackfillProgress)
+}
@@ -0,0 +1,51 @@
+package org.imperiumlabs.geofirestore.listeners
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.geofence.GeoFence
+
+/**
+ * GeoFenceMonitor notifies listeners with this interface about the documents entering,
+ * exiting and dwelling in its fences.
+ */
+interface GeoFenceEventListener {
+
+    /**
+     * Called when a document enters a fence.
+     *
+     * @param fence The fence entered
+     * @param documentSnapshot The snapshot of the document
+     * @param location The location of the document
+     */
+    fun onFenceEntered(fence: GeoFence, documentSnapshot: DocumentSnapshot, location: GeoPoint)
+
+    /**
+     * Called when a document leaves a fence, moving out of it or being removed.
+     *
+     * @param fence The fence exited
+     * @param documentSnapshot The last snapshot of the document
+     */
+    fun onFenceExited(fence: GeoFence, documentSnapshot: DocumentSnapshot)
+
+    /**
+     * Called once when a document stays inside a fence for the dwell time of the monitor.
+     *
+     * @param fence The fence the document dwells in
+     * @param documentSnapshot The last snapshot of the document
+     * @param location The last location of the document
+     */
+    fun onFenceDwell(fence: GeoFence, documentSnapshot: DocumentSnapshot, location: GeoPoint)
+
+    /**
+     * Called once the documents inside the fences have been loaded and the initial
+     * enter events have been fired.
+     */
+    fun onGeoFenceMonitorReady()
+
+    /**
+     * Called in case an error occurred while retrieving the documents.
+     *
+     * @param exception The exception that occurred
+     */
+    fun onGeoFenceMonitorError(exception: Exception)
+}
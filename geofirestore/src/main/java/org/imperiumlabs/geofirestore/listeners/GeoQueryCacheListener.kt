@@ -0,0 +1,27 @@
+package org.imperiumlabs.geofirestore.listeners
+
+import org.imperiumlabs.geofirestore.cache.CachedDocument
+
+/**
+ * GeoQuery notifies listeners with this interface about the documents restored from the
+ * PersistentGeoCache of GeoFirestore, before the live snapshots of their ranges are received.
+ */
+interface GeoQueryCacheListener {
+
+    /**
+     * Called for every cached document inside the query when the queries are set up, and for
+     * the cached documents not yet reconciled when the listener is added. The document may be stale.
+     *
+     * @param document The cached document
+     */
+    fun onCachedDocumentEntered(document: CachedDocument)
+
+    /**
+     * Called when a cached document is reconciled: either its live snapshot was received, and it is
+     * notified to the GeoQueryDataEventListener, or the query is ready without it, or it is no longer
+     * inside the query.
+     *
+     * @param documentID The ID of the cached document
+     */
+    fun onCachedDocumentRemoved(documentID: String)
+}
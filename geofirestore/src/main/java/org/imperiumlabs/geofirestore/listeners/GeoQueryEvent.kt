@@ -0,0 +1,41 @@
+package org.imperiumlabs.geofirestore.listeners
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+
+/**
+ * An event of a GeoQuery, emitted by the Flow of the query; every event corresponds
+ * to a method of GeoQueryDataEventListener.
+ */
+sealed class GeoQueryEvent {
+
+    /**
+     * A document entered the search area of the query.
+     */
+    data class DocumentEntered(val documentSnapshot: DocumentSnapshot, val location: GeoPoint): GeoQueryEvent()
+
+    /**
+     * A document exited the search area of the query.
+     */
+    data class DocumentExited(val documentSnapshot: DocumentSnapshot): GeoQueryEvent()
+
+    /**
+     * A document moved within the search area of the query.
+     */
+    data class DocumentMoved(val documentSnapshot: DocumentSnapshot, val location: GeoPoint): GeoQueryEvent()
+
+    /**
+     * A document changed within the search area of the query.
+     */
+    data class DocumentChanged(val documentSnapshot: DocumentSnapshot, val location: GeoPoint): GeoQueryEvent()
+
+    /**
+     * All the initial data of the query, or of its updated criteria, has been loaded.
+     */
+    object Ready: GeoQueryEvent()
+
+    /**
+     * An exception occurred while retrieving the locations of the query.
+     */
+    data class Error(val exception: Exception): GeoQueryEvent()
+}
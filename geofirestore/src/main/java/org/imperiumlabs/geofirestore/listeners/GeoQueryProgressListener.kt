@@ -0,0 +1,22 @@
+package org.imperiumlabs.geofirestore.listeners
+
+/**
+ * GeoQuery notifies listeners with this interface as its planned queries are loaded, nearest
+ * to the center first, so the documents around the center can be shown before the whole region.
+ */
+interface GeoQueryProgressListener {
+
+    /**
+     * Called once the queries nearest to the center, usually the ones of the cells containing
+     * it, have their first snapshot confirmed by the server, or possibly from the local cache of
+     * Firestore with ReadyPolicy.CACHE. It is called again every time the query criteria is updated.
+     */
+    fun onGeoQueryInnerReady()
+
+    /**
+     * Called after onGeoQueryInnerReady once every planned query has its first snapshot of the same
+     * origin, just before the onGeoQueryReady of that origin. It is called again every time the
+     * query criteria is updated.
+     */
+    fun onGeoQueryFullyReady()
+}
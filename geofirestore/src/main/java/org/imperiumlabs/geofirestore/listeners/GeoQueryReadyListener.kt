@@ -0,0 +1,18 @@
+package org.imperiumlabs.geofirestore.listeners
+
+/**
+ * GeoQuery notifies listeners with this interface when its documents are loaded from the local
+ * cache of Firestore and when they are confirmed by the server, whatever its ReadyPolicy.
+ */
+interface GeoQueryReadyListener {
+
+    /**
+     * Called once every planned query has a snapshot, with origin CACHE, and once every planned
+     * query has a snapshot confirmed by the server, with origin SERVER. When the snapshots come
+     * from the server directly both calls happen one after the other. Both are called again
+     * every time the query criteria is updated.
+     *
+     * @param origin The origin of the snapshots
+     */
+    fun onGeoQueryReady(origin: EventOrigin)
+}
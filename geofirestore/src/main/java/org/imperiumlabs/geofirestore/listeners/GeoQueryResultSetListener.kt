@@ -0,0 +1,24 @@
+package org.imperiumlabs.geofirestore.listeners
+
+import org.imperiumlabs.geofirestore.GeoQueryResultSet
+
+/**
+ * GeoQuery notifies listeners with this interface about the changes of the set of documents inside the query.
+ */
+interface GeoQueryResultSetListener {
+
+    /**
+     * Called with the current documents inside the query, once the query is ready and then when
+     * they change. The changes are collapsed: the method is called at most once for every interval
+     * of the listener, with the latest result set.
+     *
+     * @param resultSet The documents currently inside the query
+     */
+    fun onResultSetChanged(resultSet: GeoQueryResultSet)
+
+    /**
+     * Called in case an exception occurred while retrieving locations for a query, e.g. violating security rules.
+     * @param exception The exception that occurred while retrieving the query
+     */
+    fun onGeoQueryError(exception: Exception)
+}
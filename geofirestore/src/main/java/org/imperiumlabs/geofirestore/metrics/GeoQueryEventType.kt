@@ -0,0 +1,13 @@
+package org.imperiumlabs.geofirestore.metrics
+
+/**
+ * The types of the events dispatched by a GeoQuery.
+ */
+enum class GeoQueryEventType {
+    ENTERED,
+    EXITED,
+    MOVED,
+    CHANGED,
+    READY,
+    ERROR
+}
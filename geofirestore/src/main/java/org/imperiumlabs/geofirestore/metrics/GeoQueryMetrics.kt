@@ -0,0 +1,73 @@
+package org.imperiumlabs.geofirestore.metrics
+
+/**
+ * GeoFirestore and GeoQuery report with this interface the work done on the hot paths,
+ * an implementation can forward the values to a metrics registry.
+ *
+ * The methods are called on the threads delivering the Firestore results, so they
+ * must be cheap and thread safe. Extend NoOpGeoQueryMetrics to record only some of them.
+ */
+interface GeoQueryMetrics {
+
+    companion object {
+        /**
+         * The default metrics, it discards every value.
+         */
+        @JvmField
+        val NONE: GeoQueryMetrics = NoOpGeoQueryMetrics()
+    }
+
+    /**
+     * Called every time the queries of a region are planned.
+     *
+     * @param queryCount The number of Firestore queries of the plan
+     */
+    fun onQueriesPlanned(queryCount: Int)
+
+    /**
+     * Called when documents are read from Firestore.
+     *
+     * @param documentCount The number of documents read
+     */
+    fun onDocumentsRead(documentCount: Int)
+
+    /**
+     * Called when documents read from Firestore are discarded because they are outside the region.
+     *
+     * @param documentCount The number of documents discarded
+     */
+    fun onDocumentsDiscarded(documentCount: Int)
+
+    /**
+     * Called every time an event is dispatched to a listener.
+     *
+     * @param type The type of the event
+     */
+    fun onEventDispatched(type: GeoQueryEventType)
+
+    /**
+     * Called when a GeoQuery becomes ready after its queries are attached.
+     *
+     * @param nanos The time between the attach of the queries and the ready event, in nanoseconds
+     */
+    fun onQueryReady(nanos: Long)
+
+    /**
+     * Called every time a GeoQuery plans and attaches again its queries.
+     *
+     * @param nanos The time spent planning and attaching the queries, in nanoseconds
+     */
+    fun onReplan(nanos: Long)
+
+    /**
+     * Called when a removed document must be read again to know if it exited the query.
+     */
+    fun onChildRemovedLookup()
+
+    /**
+     * Called every time an event is queued or run by the EventRaiser.
+     *
+     * @param depth The number of events waiting to be run
+     */
+    fun onEventQueueDepth(depth: Int)
+}
@@ -0,0 +1,44 @@
+package org.imperiumlabs.geofirestore.metrics
+
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.DistributionSummary
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A GeoQueryMetrics recording the values in a Micrometer MeterRegistry.
+ *
+ * Micrometer is not a dependency of GeoFirestore, the application using
+ * this class must include micrometer-core.
+ */
+class MicrometerGeoQueryMetrics @JvmOverloads constructor(registry: MeterRegistry, prefix: String = "geofirestore") : GeoQueryMetrics {
+
+    private val queries = DistributionSummary.builder("$prefix.plan.queries").register(registry)
+    private val documentsRead = Counter.builder("$prefix.documents.read").register(registry)
+    private val documentsDiscarded = Counter.builder("$prefix.documents.discarded").register(registry)
+    private val events = GeoQueryEventType.values().associate {
+        it to Counter.builder("$prefix.events").tag("type", it.name.toLowerCase()).register(registry)
+    }
+    private val readyLatency = Timer.builder("$prefix.ready.latency").register(registry)
+    private val replanTime = Timer.builder("$prefix.replan.time").register(registry)
+    private val removedLookups = Counter.builder("$prefix.removed.lookups").register(registry)
+    private val eventQueueDepth = registry.gauge("$prefix.event.queue.depth", AtomicInteger(0))!!
+
+    override fun onQueriesPlanned(queryCount: Int) = queries.record(queryCount.toDouble())
+
+    override fun onDocumentsRead(documentCount: Int) = documentsRead.increment(documentCount.toDouble())
+
+    override fun onDocumentsDiscarded(documentCount: Int) = documentsDiscarded.increment(documentCount.toDouble())
+
+    override fun onEventDispatched(type: GeoQueryEventType) = events.getValue(type).increment()
+
+    override fun onQueryReady(nanos: Long) = readyLatency.record(nanos, TimeUnit.NANOSECONDS)
+
+    override fun onReplan(nanos: Long) = replanTime.record(nanos, TimeUnit.NANOSECONDS)
+
+    override fun onChildRemovedLookup() = removedLookups.increment()
+
+    override fun onEventQueueDepth(depth: Int) = eventQueueDepth.set(depth)
+}
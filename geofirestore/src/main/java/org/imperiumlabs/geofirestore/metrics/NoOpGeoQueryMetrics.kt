@@ -0,0 +1,23 @@
+package org.imperiumlabs.geofirestore.metrics
+
+/**
+ * A GeoQueryMetrics discarding every value.
+ */
+open class NoOpGeoQueryMetrics : GeoQueryMetrics {
+
+    override fun onQueriesPlanned(queryCount: Int) {}
+
+    override fun onDocumentsRead(documentCount: Int) {}
+
+    override fun onDocumentsDiscarded(documentCount: Int) {}
+
+    override fun onEventDispatched(type: GeoQueryEventType) {}
+
+    override fun onQueryReady(nanos: Long) {}
+
+    override fun onReplan(nanos: Long) {}
+
+    override fun onChildRemovedLookup() {}
+
+    override fun onEventQueueDepth(depth: Int) {}
+}
@@ -0,0 +1,188 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreBackend
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.backend.ManualClock
+import org.imperiumlabs.geofirestore.cache.LocalGeoIndex
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.imperiumlabs.geofirestore.listeners.GeoQueryEventListener
+import org.imperiumlabs.geofirestore.region.BoundingBoxRegion
+import org.imperiumlabs.geofirestore.region.PolygonRegion
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import java.util.Random
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of the one-shot queries and of the region queries of GeoFirestore against an InMemoryBackend.
+ */
+class GeoFirestoreGetInRegionTest {
+
+    companion object {
+        private const val SEED = 42L
+        private const val DOCUMENTS = 300
+        private val CENTER = GeoPoint(45.0, 9.0)
+    }
+
+    @get:Rule
+    val fixture = GeoFirestoreRule {
+        it.localIndex = LocalGeoIndex()
+    }
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun cachedResultsAreRaisedByTheEventRaiser() {
+        geoFirestore.setLocation("near", GeoPoint(45.001, 9.0))
+        geoFirestore.setLocation("far", GeoPoint(46.0, 9.0))
+        backend.awaitIdle()
+        //The snapshots are processed on the calling thread, the events are raised by the ThreadEventRaiser
+        geoFirestore.snapshotExecutor = Executor { it.run() }
+        assertEquals(listOf("near"), getAtLocation().take().first)
+
+        //The ranges are answered by the LocalGeoIndex, still the callback is not run by getAtLocation
+        val reads = backend.documentsRead.get()
+        val (documentIDs, thread) = getAtLocation().poll(5, TimeUnit.SECONDS)!!
+        assertEquals(listOf("near"), documentIDs)
+        assertNotEquals(Thread.currentThread(), thread)
+        assertEquals(reads, backend.documentsRead.get())
+        assertTrue(geoFirestore.localIndex!!.hitCount > 0)
+    }
+
+    @Test
+    fun cachedRangesExpireWithTheClock() {
+        val clock = ManualClock()
+        geoFirestore.clock = clock
+        geoFirestore.setLocation("near", GeoPoint(45.001, 9.0))
+        backend.awaitIdle()
+        assertEquals(listOf("near"), getAtLocation().poll(5, TimeUnit.SECONDS)!!.first)
+        val reads = backend.documentsRead.get()
+        assertEquals(listOf("near"), getAtLocation().poll(5, TimeUnit.SECONDS)!!.first)
+        assertEquals(reads, backend.documentsRead.get())
+
+        //The ranges of the LocalGeoIndex are read again once older than its time to live
+        clock.advance(LocalGeoIndex.DEFAULT_TTL_MILLIS + 1)
+        assertEquals(listOf("near"), getAtLocation().poll(5, TimeUnit.SECONDS)!!.first)
+        assertTrue(backend.documentsRead.get() > reads)
+    }
+
+    @Test
+    fun regionsReadTheDocumentsInside() {
+        //Random documents and documents on the border of two cells of precision 3, at latitude 45
+        val random = Random(SEED)
+        val locations = (List(DOCUMENTS) { GeoPoint(44.9 + random.nextDouble() * 0.2, 8.9 + random.nextDouble() * 0.2) } +
+                List(10) { GeoPoint(45.0, 8.95 + it * 0.01) })
+        locations.forEachIndexed { i, location -> geoFirestore.setLocation("doc$i", location) }
+        backend.awaitIdle()
+
+        val regions = listOf(BoundingBoxRegion(44.95, 8.95, 45.05, 9.05),
+                PolygonRegion(listOf(GeoLocation(45.0, 8.92), GeoLocation(45.0, 9.08), GeoLocation(45.08, 9.0))),
+                PolygonRegion(listOf(GeoLocation(44.93, 8.93), GeoLocation(45.06, 8.97), GeoLocation(45.02, 9.07), GeoLocation(44.96, 9.02))))
+        for (region in regions) {
+            val expected = locations.indices.filter { region.containsLocation(locations[it].latitude, locations[it].longitude) }
+                    .map { "doc$it" }.toSet()
+            assertTrue(expected.isNotEmpty())
+
+            val documents = LinkedBlockingQueue<Set<String>>()
+            geoFirestore.getInRegion(region, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+                override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                    documents.add(documentSnapshots!!.map { it.id }.toSet())
+                }
+            })
+            assertEquals("$region", expected, documents.poll(5, TimeUnit.SECONDS))
+
+            val query = geoFirestore.queryInRegion(region)
+            val ready = CountDownLatch(1)
+            query.addGeoQueryEventListener(object : GeoQueryEventListener {
+                override fun onKeyEntered(documentID: String, location: GeoPoint) {}
+                override fun onKeyExited(documentID: String) {}
+                override fun onKeyMoved(documentID: String, location: GeoPoint) {}
+                override fun onGeoQueryError(exception: Exception) {}
+
+                override fun onGeoQueryReady() {
+                    ready.countDown()
+                }
+            })
+            assertTrue(ready.await(5, TimeUnit.SECONDS))
+            assertEquals("$region", expected, query.getResultSet(false).results.map { it.documentSnapshot.id }.toSet())
+            query.removeAllListeners()
+        }
+    }
+
+    @Test
+    fun radiiAboveTheOldCapAreRead() {
+        //About 9450km south of the center, beyond the old cap of the radius at 8587km
+        geoFirestore.setLocation("far", GeoPoint(-40.0, 9.0))
+        backend.awaitIdle()
+        val query = geoFirestore.queryAtLocation(CENTER, 10000.0)
+        assertEquals(10000.0, query.radius, 0.0)
+
+        val documents = LinkedBlockingQueue<List<String>>()
+        geoFirestore.getAtLocation(CENTER, 10000.0, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                documents.add(documentSnapshots!!.map { it.id })
+            }
+        })
+        assertEquals(listOf("far"), documents.poll(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun partialFailuresAreNotified() {
+        val locations = listOf(GeoPoint(45.001, 9.001), GeoPoint(44.999, 8.999), GeoPoint(45.001, 8.999), GeoPoint(44.999, 9.001))
+        locations.forEachIndexed { i, location -> geoFirestore.setLocation("doc$i", location) }
+        backend.awaitIdle()
+        //The query of the first document fails, the others are read
+        val failure = IllegalStateException("offline")
+        val failedHash = GeoHash(locations[0].latitude, locations[0].longitude)
+        geoFirestore.backend = object : GeoFirestoreBackend by backend {
+            override fun getRanges(queries: List<IndexQuery>, callback: GeoFirestore.SingleGeoQueryDataEventCallback) {
+                val (failed, read) = queries.partition { query -> query.queries.any { it.containsGeoHash(failedHash) } }
+                assertEquals(1, failed.size)
+                backend.getRanges(read, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+                    override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                        callback.onComplete(documentSnapshots, failure)
+                    }
+                })
+            }
+        }
+
+        val results = LinkedBlockingQueue<Pair<Set<String>, Exception?>>()
+        val callback = object : GeoFirestore.SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                results.add(documentSnapshots!!.map { it.id }.toSet() to exception)
+            }
+        }
+        geoFirestore.getAtLocation(CENTER, 1.0, callback)
+        val (documentIDs, exception) = results.poll(5, TimeUnit.SECONDS)!!
+        assertEquals(failure, exception)
+        assertTrue(documentIDs.isNotEmpty() && "doc0" !in documentIDs)
+
+        //The partial results are not cached in the LocalGeoIndex
+        geoFirestore.backend = backend
+        geoFirestore.getAtLocation(CENTER, 1.0, callback)
+        assertEquals(List(locations.size) { "doc$it" }.toSet() to null, results.poll(5, TimeUnit.SECONDS))
+    }
+
+    /*
+     * Run a one-shot query around the center, recording the documents and the thread of the callback
+     */
+    private fun getAtLocation(): LinkedBlockingQueue<Pair<List<String>, Thread>> {
+        val results = LinkedBlockingQueue<Pair<List<String>, Thread>>()
+        geoFirestore.getAtLocation(CENTER, 1.0, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                results.add(documentSnapshots!!.map { it.id } to Thread.currentThread())
+            }
+        })
+        return results
+    }
+}
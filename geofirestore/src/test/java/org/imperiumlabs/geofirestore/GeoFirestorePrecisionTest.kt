@@ -0,0 +1,66 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreBackend
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of the precision of the geohash and of the prefix fields written by GeoFirestore.
+ */
+class GeoFirestorePrecisionTest {
+
+    @get:Rule
+    val fixture = GeoFirestoreRule()
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun prefixFieldsAreWritten() {
+        geoFirestore.precision = 6
+        geoFirestore.indexPrecisions = setOf(4, 2)
+        geoFirestore.setLocation("doc", GeoPoint(45.1, 9.1))
+        backend.awaitIdle()
+
+        val documents = LinkedBlockingQueue<DocumentSnapshot>()
+        backend.getDocument("doc", object : GeoFirestoreBackend.DocumentCallback {
+            override fun onComplete(documentSnapshot: DocumentSnapshot?, exception: Exception?) {
+                documents.add(documentSnapshot!!)
+            }
+        })
+        val document = documents.poll(5, TimeUnit.SECONDS)!!
+        val geoHash = GeoHash(45.1, 9.1, 6).geoHashString
+        assertEquals(geoHash, document.getString(IndexQuery.GEOHASH_FIELD))
+        assertEquals(geoHash.substring(0, 4), document.getString("g4"))
+        assertEquals(geoHash.substring(0, 2), document.getString("g2"))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun precisionMustBePositive() {
+        geoFirestore.precision = 0
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun precisionMustNotExceedTheMaximum() {
+        geoFirestore.precision = GeoHash.MAX_PRECISION + 1
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun indexPrecisionsMustNotExceedThePrecision() {
+        geoFirestore.precision = 6
+        geoFirestore.indexPrecisions = setOf(4, 7)
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun precisionMustNotBeSmallerThanTheIndexPrecisions() {
+        geoFirestore.indexPrecisions = setOf(5)
+        geoFirestore.precision = 4
+    }
+}
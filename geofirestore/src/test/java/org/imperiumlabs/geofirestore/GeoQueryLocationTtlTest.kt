@@ -0,0 +1,124 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.Timestamp
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import java.util.Date
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of the time to live of the locations against an InMemoryBackend.
+ */
+class GeoQueryLocationTtlTest {
+
+    companion object {
+        private const val TTL_MILLIS = 600L
+        private val CENTER = GeoPoint(45.0, 9.0)
+    }
+
+    @get:Rule
+    val fixture = GeoFirestoreRule {
+        it.locationTtl = LocationTtl(TTL_MILLIS, sweepIntervalMillis = 50)
+    }
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun staleLocationsExitWithoutReads() {
+        geoFirestore.setLocation("a", GeoPoint(45.001, 9.0))
+        backend.awaitIdle()
+        val query = geoFirestore.queryAtLocation(CENTER, 1.0)
+        val events = listen(query)
+        assertEquals("entered a", events.next())
+        assertEquals("ready", events.next())
+        backend.awaitIdle()
+        val reads = backend.documentsRead.get()
+
+        assertEquals("exited a", events.next())
+        assertEquals(reads, backend.documentsRead.get())
+        assertEquals(0, query.getResultSet(false).size)
+
+        //A new location of the document is fresh again
+        geoFirestore.setLocation("a", GeoPoint(45.002, 9.0))
+        assertEquals("entered a", events.next())
+    }
+
+    @Test
+    fun staleLocationsNeverEnter() {
+        writeWithTimestamp("old", GeoPoint(45.001, 9.0), System.currentTimeMillis() - 10 * TTL_MILLIS)
+        geoFirestore.setLocation("new", GeoPoint(45.0, 9.001))
+        backend.awaitIdle()
+
+        val events = listen(geoFirestore.queryAtLocation(CENTER, 1.0))
+        assertEquals("entered new", events.next())
+        assertEquals("ready", events.next())
+
+        val documents = LinkedBlockingQueue<List<String>>()
+        geoFirestore.getAtLocation(CENTER, 1.0, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                documents.add(documentSnapshots!!.map { it.id })
+            }
+        })
+        assertEquals(listOf("new"), documents.poll(5, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun documentsWithoutTimestampNeverExpire() {
+        writeWithTimestamp("untimed", GeoPoint(45.001, 9.0), null)
+        backend.awaitIdle()
+
+        val events = listen(geoFirestore.queryAtLocation(CENTER, 1.0))
+        assertEquals("entered untimed", events.next())
+        assertEquals("ready", events.next())
+        assertEquals(null, events.poll(3 * TTL_MILLIS, TimeUnit.MILLISECONDS))
+    }
+
+    /*
+     * Write a location with the given timestamp, or without one
+     */
+    private fun writeWithTimestamp(documentID: String, location: GeoPoint, timeMillis: Long?) {
+        val fields = hashMapOf<String, Any>(
+                "g" to GeoHash(GeoLocation(location.latitude, location.longitude)).geoHashString,
+                "l" to location)
+        timeMillis?.let { fields[LocationTtl.DEFAULT_TIMESTAMP_FIELD] = Timestamp(Date(it)) }
+        backend.setFields(documentID, fields, null)
+    }
+
+    private fun LinkedBlockingQueue<String>.next() = poll(10, TimeUnit.SECONDS)!!
+
+    /*
+     * Listen to a query, recording its events in order
+     */
+    private fun listen(query: GeoQuery): LinkedBlockingQueue<String> {
+        val events = LinkedBlockingQueue<String>()
+        query.addGeoQueryDataEventListener(object : GeoQueryDataEventListener {
+            override fun onDocumentEntered(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("entered ${documentSnapshot.id}")
+            }
+
+            override fun onDocumentExited(documentSnapshot: DocumentSnapshot) {
+                events.add("exited ${documentSnapshot.id}")
+            }
+
+            override fun onDocumentMoved(documentSnapshot: DocumentSnapshot, location: GeoPoint) {}
+            override fun onDocumentChanged(documentSnapshot: DocumentSnapshot, location: GeoPoint) {}
+
+            override fun onGeoQueryReady() {
+                events.add("ready")
+            }
+
+            override fun onGeoQueryError(exception: Exception) {
+                events.add("error $exception")
+            }
+        })
+        return events
+    }
+}
@@ -0,0 +1,105 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.backend.ManualClock
+import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of the predictive prefetch of a GeoQuery following a center moving east, against an
+ * InMemoryBackend with a latency much longer than the time allowed for the events.
+ */
+class GeoQueryPrefetchTest {
+
+    companion object {
+        private const val LATENCY_MILLIS = 1000L
+        private const val RADIUS = 0.5
+        private val AHEAD = GeoPoint(45.0, 9.03)
+    }
+
+    private val clock = ManualClock()
+
+    @get:Rule
+    val fixture = GeoFirestoreRule(InMemoryBackend(LATENCY_MILLIS)) {
+        it.clock = clock
+    }
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun documentsAheadAreWarm() {
+        val (query, events) = moveEast(PredictivePrefetch(lookaheadMillis = 10_000, maxLookahead = 2.0, maxListeners = 16))
+
+        query.center = AHEAD
+        assertEquals("entered ahead", events.poll(LATENCY_MILLIS / 4, TimeUnit.MILLISECONDS))
+    }
+
+    @Test
+    fun withoutPrefetchDocumentsAheadWaitForTheBackend() {
+        val (query, events) = moveEast(null)
+
+        query.center = AHEAD
+        assertEquals(null, events.poll(LATENCY_MILLIS / 4, TimeUnit.MILLISECONDS))
+        assertEquals("entered ahead", events.poll(LATENCY_MILLIS * 5, TimeUnit.MILLISECONDS))
+    }
+
+    @Test
+    fun extraListenersAreLimited() {
+        val planned = moveEast(null).first.let { query ->
+            backend.listenerCount.also { query.removeAllListeners() }
+        }
+        val query = moveEast(PredictivePrefetch(lookaheadMillis = 10_000, maxLookahead = 2.0, maxListeners = 1)).first
+        assertEquals(planned + 1, backend.listenerCount)
+
+        query.predictivePrefetch = null
+        assertEquals(planned, backend.listenerCount)
+    }
+
+    /*
+     * Write a document 2.4km east of the start and move a listened query toward it, 200ms
+     * apart on the clock; the snapshots of the queries are delivered before the events are recorded
+     */
+    private fun moveEast(prefetch: PredictivePrefetch?): Pair<GeoQuery, LinkedBlockingQueue<String>> {
+        geoFirestore.setLocation("ahead", AHEAD)
+        backend.awaitIdle()
+        val query = geoFirestore.queryAtLocation(GeoPoint(45.0, 9.0), RADIUS)
+        query.predictivePrefetch = prefetch
+        val events = listen(query)
+        for (step in 0..2) {
+            query.center = GeoPoint(45.0, 9.0 + step * 0.005)
+            clock.advance(200)
+        }
+        backend.awaitIdle()
+        events.clear()
+        return query to events
+    }
+
+    /*
+     * Listen to a query, recording its enter events and its errors
+     */
+    private fun listen(query: GeoQuery): LinkedBlockingQueue<String> {
+        val events = LinkedBlockingQueue<String>()
+        query.addGeoQueryDataEventListener(object : GeoQueryDataEventListener {
+            override fun onDocumentEntered(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("entered ${documentSnapshot.id}")
+            }
+
+            override fun onDocumentExited(documentSnapshot: DocumentSnapshot) {}
+            override fun onDocumentMoved(documentSnapshot: DocumentSnapshot, location: GeoPoint) {}
+            override fun onDocumentChanged(documentSnapshot: DocumentSnapshot, location: GeoPoint) {}
+            override fun onGeoQueryReady() {}
+
+            override fun onGeoQueryError(exception: Exception) {
+                events.add("error $exception")
+            }
+        })
+        return events
+    }
+}
@@ -0,0 +1,159 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import com.google.firebase.firestore.ListenerRegistration
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreBackend
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.backend.RangeListener
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener
+import org.imperiumlabs.geofirestore.listeners.EventOrigin
+import org.imperiumlabs.geofirestore.listeners.GeoQueryProgressListener
+import org.imperiumlabs.geofirestore.listeners.GeoQueryReadyListener
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Tests of the order the planned queries of a GeoQuery are loaded in, against an InMemoryBackend
+ * with latency.
+ */
+class GeoQueryRangePriorityTest {
+
+    companion object {
+        private const val LATENCY_MILLIS = 100L
+        private val CENTER = GeoPoint(44.99, 9.01)
+    }
+
+    @get:Rule
+    val fixture = GeoFirestoreRule(InMemoryBackend(LATENCY_MILLIS))
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun nearestQueriesLoadFirst() {
+        geoFirestore.maxRangesInFlight = 1
+        val (query, events) = writeLocationsAndListen()
+        assertEquals(1, backend.listenerCount)
+
+        assertEquals(listOf("entered center", "inner ready", "entered edge", "fully ready", "ready"),
+                (0 until 5).map { events.next() })
+        assertTrue(backend.listenerCount > 1)
+        assertEquals(1, query.maxRangesInFlight)
+    }
+
+    @Test
+    fun queriesContainingTheCenterOutsideTheirFirstCellLoadFirst() {
+        //At 20km the query containing the center starts with a cell away from it
+        geoFirestore.maxRangesInFlight = 1
+        geoFirestore.setLocation("center", GeoPoint(44.979, 9.021))
+        geoFirestore.setLocation("edge", GeoPoint(45.15, 9.0))
+        backend.awaitIdle()
+        val events = listen(geoFirestore.queryAtLocation(GeoPoint(44.98, 9.02), 20.0))
+
+        assertEquals(listOf("entered center", "inner ready"), (0 until 2).map { events.next() })
+        assertEquals(listOf("entered edge", "fully ready", "ready"), (0 until 3).map { events.next() }.sorted())
+    }
+
+    @Test
+    fun failedQueriesReleaseTheirSlot() {
+        geoFirestore.maxRangesInFlight = 1
+        //The nearest query fails before its first snapshot, the others load after it
+        val failed = AtomicBoolean()
+        geoFirestore.backend = object : GeoFirestoreBackend by backend {
+            override fun addRangeListener(query: IndexQuery, listener: RangeListener): ListenerRegistration {
+                if (failed.getAndSet(true)) return backend.addRangeListener(query, listener)
+                listener.onError(IllegalStateException("offline"))
+                return ListenerRegistration {}
+            }
+        }
+        val (_, events) = writeLocationsAndListen()
+
+        assertEquals(listOf("error java.lang.IllegalStateException: offline", "entered edge"),
+                (0 until 2).map { events.next() })
+    }
+
+    @Test
+    fun withoutLimitEveryQueryIsListened() {
+        val (query, events) = writeLocationsAndListen()
+        val planned = backend.listenerCount
+        assertTrue(planned > 1)
+
+        val order = (0 until 5).map { events.next() }
+        assertTrue(order.indexOf("inner ready") < order.indexOf("fully ready"))
+        assertEquals(listOf("entered center", "entered edge", "fully ready", "inner ready", "ready"), order.sorted())
+
+        query.maxRangesInFlight = 2
+        query.center = GeoPoint(44.99, 9.011)
+        assertEquals(planned, backend.listenerCount)
+    }
+
+    @Test
+    fun progressWaitsForTheServerWithTheDefaultPolicy() {
+        geoFirestore.backend = fixture.register(InMemoryBackend(LATENCY_MILLIS, cacheFirst = true))
+        val (query, events) = writeLocationsAndListen()
+        query.addGeoQueryReadyListener(object : GeoQueryReadyListener {
+            override fun onGeoQueryReady(origin: EventOrigin) {
+                events.add("ready $origin")
+            }
+        })
+
+        val order = (0 until 7).map { events.next() }
+        assertTrue(order.indexOf("ready CACHE") < order.indexOf("inner ready"))
+        assertEquals(listOf("fully ready", "ready", "ready SERVER"), order.takeLast(3).sorted())
+    }
+
+    /*
+     * Write a document at the center and one 2.8km north of it, in another planned query, and
+     * listen to a 3km circle
+     */
+    private fun writeLocationsAndListen(): Pair<GeoQuery, LinkedBlockingQueue<String>> {
+        geoFirestore.setLocation("center", GeoPoint(44.99, 9.0101))
+        geoFirestore.setLocation("edge", GeoPoint(45.015, 9.01))
+        backend.awaitIdle()
+        val query = geoFirestore.queryAtLocation(CENTER, 3.0)
+        return query to listen(query)
+    }
+
+    private fun LinkedBlockingQueue<String>.next() = poll(10, TimeUnit.SECONDS)!!
+
+    /*
+     * Listen to a query, recording its events in order
+     */
+    private fun listen(query: GeoQuery): LinkedBlockingQueue<String> {
+        val events = LinkedBlockingQueue<String>()
+        query.addGeoQueryProgressListener(object : GeoQueryProgressListener {
+            override fun onGeoQueryInnerReady() {
+                events.add("inner ready")
+            }
+
+            override fun onGeoQueryFullyReady() {
+                events.add("fully ready")
+            }
+        })
+        query.addGeoQueryDataEventListener(object : GeoQueryDataEventListener {
+            override fun onDocumentEntered(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("entered ${documentSnapshot.id}")
+            }
+
+            override fun onDocumentExited(documentSnapshot: DocumentSnapshot) {}
+            override fun onDocumentMoved(documentSnapshot: DocumentSnapshot, location: GeoPoint) {}
+            override fun onDocumentChanged(documentSnapshot: DocumentSnapshot, location: GeoPoint) {}
+
+            override fun onGeoQueryReady() {
+                events.add("ready")
+            }
+
+            override fun onGeoQueryError(exception: Exception) {
+                events.add("error $exception")
+            }
+        })
+        return events
+    }
+}
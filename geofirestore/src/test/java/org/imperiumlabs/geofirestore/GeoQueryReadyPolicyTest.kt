@@ -0,0 +1,106 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.listeners.EventOrigin
+import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener
+import org.imperiumlabs.geofirestore.listeners.GeoQueryReadyListener
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of the ready policies of GeoQuery against an InMemoryBackend answering first from the cache.
+ */
+class GeoQueryReadyPolicyTest {
+
+    companion object {
+        private const val LATENCY_MILLIS = 100L
+    }
+
+    @get:Rule
+    val fixture = GeoFirestoreRule(InMemoryBackend(LATENCY_MILLIS, cacheFirst = true))
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun cacheThenServerFiresTwoReadySignals() {
+        val query = writeLocationsAndQuery(ReadyPolicy.CACHE_THEN_SERVER)
+        val events = listen(query)
+
+        assertEquals(listOf("entered near0", "entered near1"), listOf(events.next(), events.next()).sorted())
+        assertEquals("ready CACHE", events.next())
+        assertEquals("ready", events.next())
+        assertEquals(EventOrigin.CACHE, query.getResultSet(false).results.map { it.origin }.distinct().single())
+        assertEquals("ready SERVER", events.next())
+        assertEquals("ready", events.next())
+        assertEquals(EventOrigin.SERVER, query.getResultSet(false).results.map { it.origin }.distinct().single())
+    }
+
+    @Test
+    fun serverPolicyWaitsForTheServer() {
+        val query = writeLocationsAndQuery(ReadyPolicy.SERVER)
+        val events = listen(query)
+
+        assertEquals(listOf("entered near0", "entered near1"), listOf(events.next(), events.next()).sorted())
+        assertEquals(listOf("ready CACHE", "ready SERVER", "ready"), listOf(events.next(), events.next(), events.next()))
+    }
+
+    @Test
+    fun cachePolicyIsReadyOnce() {
+        val query = writeLocationsAndQuery(ReadyPolicy.CACHE)
+        val events = listen(query)
+
+        assertEquals(listOf("entered near0", "entered near1"), listOf(events.next(), events.next()).sorted())
+        assertEquals(listOf("ready CACHE", "ready", "ready SERVER"), listOf(events.next(), events.next(), events.next()))
+        backend.awaitIdle()
+        assertEquals(null, events.poll(2 * LATENCY_MILLIS, TimeUnit.MILLISECONDS))
+    }
+
+    private fun writeLocationsAndQuery(readyPolicy: ReadyPolicy): GeoQuery {
+        geoFirestore.readyPolicy = readyPolicy
+        geoFirestore.setLocation("near0", GeoPoint(45.001, 9.0))
+        geoFirestore.setLocation("near1", GeoPoint(45.0, 9.002))
+        backend.awaitIdle()
+        return geoFirestore.queryAtLocation(GeoPoint(45.0, 9.0), 1.0)
+    }
+
+    private fun LinkedBlockingQueue<String>.next() = poll(10, TimeUnit.SECONDS)!!
+
+    /*
+     * Listen to a query, recording its events in order
+     */
+    private fun listen(query: GeoQuery): LinkedBlockingQueue<String> {
+        val events = LinkedBlockingQueue<String>()
+        query.addGeoQueryReadyListener(object : GeoQueryReadyListener {
+            override fun onGeoQueryReady(origin: EventOrigin) {
+                events.add("ready $origin")
+            }
+        })
+        query.addGeoQueryDataEventListener(object : GeoQueryDataEventListener {
+            override fun onDocumentEntered(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("entered ${documentSnapshot.id}")
+            }
+
+            override fun onDocumentExited(documentSnapshot: DocumentSnapshot) {}
+            override fun onDocumentMoved(documentSnapshot: DocumentSnapshot, location: GeoPoint) {}
+
+            override fun onDocumentChanged(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("changed ${documentSnapshot.id}")
+            }
+
+            override fun onGeoQueryReady() {
+                events.add("ready")
+            }
+
+            override fun onGeoQueryError(exception: Exception) {
+                events.add("error $exception")
+            }
+        })
+        return events
+    }
+}
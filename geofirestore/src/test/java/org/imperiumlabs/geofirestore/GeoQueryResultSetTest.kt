@@ -0,0 +1,71 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.ManualClock
+import org.imperiumlabs.geofirestore.listeners.GeoQueryResultSetListener
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of the result set of GeoQuery against an InMemoryBackend.
+ */
+class GeoQueryResultSetTest {
+
+    companion object {
+        private const val DOCUMENTS = 1000
+        private const val INTERVAL_MILLIS = 100L
+    }
+
+    private val clock = ManualClock()
+
+    @get:Rule
+    val fixture = GeoFirestoreRule {
+        it.clock = clock
+        it.scheduler = clock
+    }
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun burstsOfEventsAreCollapsedInFewNotifications() {
+        val resultSets = LinkedBlockingQueue<GeoQueryResultSet>()
+        val query = geoFirestore.queryAtLocation(GeoPoint(45.0, 9.0), 1.0)
+        query.addGeoQueryResultSetListener(object : GeoQueryResultSetListener {
+            override fun onResultSetChanged(resultSet: GeoQueryResultSet) {
+                resultSets.add(resultSet)
+            }
+
+            override fun onGeoQueryError(exception: Exception) {
+                throw exception
+            }
+        }, INTERVAL_MILLIS, true)
+
+        //Every document enters the query, the burst is notified at once
+        for (i in 0 until DOCUMENTS) geoFirestore.setLocation("doc$i", GeoPoint(45.0 + i * 0.000001, 9.0))
+        backend.awaitIdle()
+        clock.runDueTasks()
+        val entered = resultSets.poll(5, TimeUnit.SECONDS)!!
+        assertEquals(DOCUMENTS, entered.size)
+
+        //Every document moves inside the query, the burst is notified one interval after the last notification
+        for (i in 0 until DOCUMENTS) geoFirestore.setLocation("doc$i", GeoPoint(45.0 + i * 0.000002, 9.0))
+        backend.awaitIdle()
+        clock.advance(INTERVAL_MILLIS - 1)
+        assertNull(resultSets.poll(100, TimeUnit.MILLISECONDS))
+        clock.advance(1)
+        val moved = resultSets.poll(5, TimeUnit.SECONDS)!!
+
+        assertTrue(entered.version < moved.version)
+        assertEquals(query.getResultSet(true).version, moved.version)
+        assertEquals(DOCUMENTS, moved.size)
+        assertEquals(moved.results.sortedBy { it.distance }, moved.results)
+        assertTrue(resultSets.isEmpty())
+        query.removeAllListeners()
+    }
+}
@@ -0,0 +1,55 @@
+package org.imperiumlabs.geofirestore
+
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.mockito.Mockito
+
+/**
+ * Tests of LocationExtractor, reading the fields of the documents without converting them.
+ */
+class LocationExtractorTest {
+
+    private val location = GeoPoint(45.0, 9.0)
+
+    @Test
+    fun locationIsReadFromGeoPointOrList() {
+        assertEquals(location, LocationExtractor.DEFAULT.location(document("l" to location)))
+        assertEquals(location, LocationExtractor.DEFAULT.location(document("l" to listOf(45L, 9.0))))
+        assertEquals(location, LocationExtractor("position").location(document("position" to location)))
+    }
+
+    @Test
+    fun malformedLocationsAreNull() {
+        assertNull(LocationExtractor.DEFAULT.location(document()))
+        assertNull(LocationExtractor.DEFAULT.location(document("l" to "45,9")))
+        assertNull(LocationExtractor.DEFAULT.location(document("l" to listOf(45.0))))
+        assertNull(LocationExtractor.DEFAULT.location(document("l" to listOf("45", 9.0))))
+        assertNull(LocationExtractor.DEFAULT.location(document("l" to listOf(95.0, 9.0))))
+        assertNull(LocationExtractor.DEFAULT.location(InMemoryBackend.snapshot("deleted", null)))
+    }
+
+    @Test
+    fun storedGeoHashIsValidated() {
+        assertEquals(GeoHash("u0nd9h"), LocationExtractor.DEFAULT.geoHash(document("g" to "u0nd9h")))
+        assertNull(LocationExtractor.DEFAULT.geoHash(document("g" to "")))
+        assertNull(LocationExtractor.DEFAULT.geoHash(document("g" to "u0nd9a")))
+        assertNull(LocationExtractor.DEFAULT.geoHash(document("g" to 42L)))
+    }
+
+    @Test
+    fun wideDocumentsAreNotConverted() {
+        val fields = (0 until 200).map { "field$it" to "value $it" }
+        val wide = document(*fields.toTypedArray(), "l" to location, "g" to "u0nd9h")
+        LocationExtractor.DEFAULT.location(wide)
+        LocationExtractor.DEFAULT.geoHash(wide)
+
+        //Only the location and the geohash fields are read
+        Mockito.verify(wide, Mockito.never()).data
+    }
+
+    private fun document(vararg fields: Pair<String, Any>) = InMemoryBackend.snapshot("doc", mapOf(*fields))
+}
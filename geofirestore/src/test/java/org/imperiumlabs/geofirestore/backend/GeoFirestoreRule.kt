@@ -0,0 +1,52 @@
+package org.imperiumlabs.geofirestore.backend
+
+import com.google.firebase.firestore.CollectionReference
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.junit.rules.ExternalResource
+import org.mockito.Mockito
+
+/**
+ * A JUnit rule creating a GeoFirestore on an InMemoryBackend, used as the fixture of the
+ * tests of GeoQuery. Every backend of the rule is shut down after the test.
+ */
+class GeoFirestoreRule @JvmOverloads constructor(
+        // The backend of geoFirestore
+        val backend: InMemoryBackend = InMemoryBackend(),
+        // Run on geoFirestore after setting its backend
+        configure: (GeoFirestore) -> Unit = {}): ExternalResource() {
+
+    private val backends = LinkedHashSet<InMemoryBackend>()
+
+    // A GeoFirestore on a mocked collection reading and writing backend
+    val geoFirestore = geoFirestore(backend, configure)
+
+    /**
+     * Create another GeoFirestore on a mocked collection, its backend is shut down after the test.
+     *
+     * @param backend The backend read and written by the GeoFirestore
+     * @param configure Run on the GeoFirestore after setting its backend
+     * @return The new GeoFirestore
+     */
+    @JvmOverloads
+    fun geoFirestore(backend: InMemoryBackend, configure: (GeoFirestore) -> Unit = {}): GeoFirestore =
+            GeoFirestore(Mockito.mock(CollectionReference::class.java)).also {
+                register(backend)
+                it.backend = backend
+                configure(it)
+            }
+
+    /**
+     * Shut down the backend after the test.
+     *
+     * @param backend The backend to shut down
+     * @return The backend
+     */
+    fun register(backend: InMemoryBackend): InMemoryBackend {
+        backends.add(backend)
+        return backend
+    }
+
+    override fun after() {
+        backends.forEach { it.shutdown() }
+    }
+}
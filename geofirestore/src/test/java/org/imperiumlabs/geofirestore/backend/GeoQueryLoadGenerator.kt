@@ -0,0 +1,220 @@
+package org.imperiumlabs.geofirestore.backend
+
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.GeoQuery
+import org.imperiumlabs.geofirestore.listeners.GeoQueryEventListener
+import org.imperiumlabs.geofirestore.util.GeoUtils
+import java.util.Locale
+import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Simulates pointCount documents and queryCount queries moving at random in a square area,
+ * writing through a GeoFirestore backed by an InMemoryBackend, and reports the throughput,
+ * the latency of the events and the read amplification.
+ */
+class GeoQueryLoadGenerator @JvmOverloads constructor(
+        private val geoFirestore: GeoFirestore,
+        private val backend: InMemoryBackend,
+        private val pointCount: Int,
+        private val queryCount: Int,
+        // The radius of the queries, in kilometers
+        private val radius: Double = 1.0,
+        seed: Long = 42L) {
+
+    companion object {
+        // The center and the half side, in degrees, of the area of the points and of the queries
+        private const val CENTER_LATITUDE = 45.0
+        private const val CENTER_LONGITUDE = 9.0
+        private const val AREA_DEGREES = 0.05
+
+        // The largest move of a point or of a query in a tick, in degrees
+        private const val STEP_DEGREES = 0.002
+
+        // The time to wait for the queries to be ready, in seconds
+        private const val READY_TIMEOUT = 30L
+    }
+
+    /**
+     * The result of a run of the load generator.
+     *
+     * @param writes The number of locations written
+     * @param events The number of entered, moved and exited events received
+     * @param elapsedNanos The time of the run, until all the events were received
+     * @param latencies The sorted latencies, in nanoseconds, between a write and the moved events it caused
+     * @param documentsRead The number of documents read from the backend
+     */
+    class Report(val writes: Long, val events: Long, val elapsedNanos: Long,
+                 private val latencies: LongArray, val documentsRead: Long) {
+
+        val writesPerSecond get() = writes * 1e9 / elapsedNanos
+
+        val eventsPerSecond get() = events * 1e9 / elapsedNanos
+
+        /**
+         * The number of documents read for every event received.
+         */
+        val readAmplification get() = if (events == 0L) 0.0 else documentsRead.toDouble() / events
+
+        /**
+         * Get a percentile of the latency of the events.
+         *
+         * @param percentile The percentile, between 0 and 100
+         * @return The latency in milliseconds
+         */
+        fun latencyMillis(percentile: Double): Double {
+            if (latencies.isEmpty()) return 0.0
+            val index = Math.min(latencies.size - 1, (percentile / 100 * latencies.size).toInt())
+            return latencies[index] / 1e6
+        }
+
+        /**
+         * Get the report as a JSON object, with the same fields of the JMH results.
+         *
+         * @param name The name of the run
+         * @return The JSON object
+         */
+        fun toJson(name: String) = String.format(Locale.US, "{\"benchmark\": \"%s\", \"writes\": %d, " +
+                "\"writesPerSecond\": %.1f, \"events\": %d, \"eventsPerSecond\": %.1f, \"latencyP50Millis\": %.3f, " +
+                "\"latencyP99Millis\": %.3f, \"documentsRead\": %d, \"readAmplification\": %.3f}", name, writes,
+                writesPerSecond, events, eventsPerSecond, latencyMillis(50.0), latencyMillis(99.0), documentsRead,
+                readAmplification)
+
+        override fun toString() = String.format("%d writes (%.0f/s), %d events (%.0f/s), latency p50 %.2fms p99 %.2fms, " +
+                "%d documents read (%.2f per event)", writes, writesPerSecond, events, eventsPerSecond,
+                latencyMillis(50.0), latencyMillis(99.0), documentsRead, readAmplification)
+    }
+
+    /*
+     * Keep the documents entered in a query and the latency of the moved events
+     */
+    private inner class ResultSetListener(private val ready: CountDownLatch): GeoQueryEventListener {
+        val documentIDs: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+        override fun onKeyEntered(documentID: String, location: GeoPoint) {
+            documentIDs.add(documentID)
+            events.incrementAndGet()
+        }
+
+        override fun onKeyExited(documentID: String) {
+            documentIDs.remove(documentID)
+            events.incrementAndGet()
+        }
+
+        override fun onKeyMoved(documentID: String, location: GeoPoint) {
+            writeTimes[documentID]?.let { latencies.add(System.nanoTime() - it) }
+            events.incrementAndGet()
+        }
+
+        override fun onGeoQueryReady() {
+            ready.countDown()
+        }
+
+        override fun onGeoQueryError(exception: Exception) {
+            errors.add(exception)
+        }
+    }
+
+    private val random = Random(seed)
+    private val points = Array(pointCount) { randomLocation() }
+    private val queries = ArrayList<GeoQuery>()
+    private val listeners = ArrayList<ResultSetListener>()
+
+    private val writeTimes = ConcurrentHashMap<String, Long>()
+    private val latencies = java.util.Collections.synchronizedList(ArrayList<Long>())
+    private val events = AtomicLong()
+
+    /**
+     * The errors received by the queries.
+     */
+    val errors: MutableList<Exception> = java.util.Collections.synchronizedList(ArrayList<Exception>())
+
+    /**
+     * Write the points, start the queries and move them for some ticks.
+     *
+     * @param ticks The number of times every point and every query is moved
+     * @return The report of the moves, the initial load is not included
+     */
+    fun run(ticks: Int): Report {
+        for (i in points.indices) geoFirestore.setLocation(documentID(i), points[i])
+        awaitQuiescence()
+        val ready = CountDownLatch(queryCount)
+        for (i in 0 until queryCount) {
+            val query = geoFirestore.queryAtLocation(randomLocation(), radius)
+            val listener = ResultSetListener(ready)
+            query.addGeoQueryEventListener(listener)
+            queries.add(query)
+            listeners.add(listener)
+        }
+        if (!ready.await(READY_TIMEOUT, TimeUnit.SECONDS)) throw IllegalStateException("The queries are not ready")
+        awaitQuiescence()
+
+        events.set(0)
+        latencies.clear()
+        val documentsRead = backend.documentsRead.get()
+        val startTime = System.nanoTime()
+        for (tick in 0 until ticks) {
+            for (i in points.indices) {
+                points[i] = move(points[i])
+                writeTimes[documentID(i)] = System.nanoTime()
+                geoFirestore.setLocation(documentID(i), points[i])
+            }
+            for (query in queries) query.center = move(query.center)
+        }
+        awaitQuiescence()
+        val elapsed = System.nanoTime() - startTime
+        return Report(ticks.toLong() * pointCount, events.get(), elapsed,
+                synchronized(latencies) { latencies.toLongArray() }.apply { sort() },
+                backend.documentsRead.get() - documentsRead)
+    }
+
+    /**
+     * Get the documents received by every query, together with the documents expected
+     * from the current locations of the points.
+     *
+     * @return The pairs of received and expected documentIDs, one for every query
+     */
+    fun resultSets(): List<Pair<Set<String>, Set<String>>> = queries.indices.map { i ->
+        val center = queries[i].center
+        val expected = points.indices.filter { GeoUtils.distance(points[it].latitude, points[it].longitude,
+                center.latitude, center.longitude) <= radius * 1000 }.map { documentID(it) }.toSet()
+        HashSet(listeners[i].documentIDs) to expected
+    }
+
+    /**
+     * Remove the listeners of all the queries.
+     */
+    fun stop() {
+        for (query in queries) query.removeAllListeners()
+    }
+
+    /*
+     * Wait until the backend delivered every change and the events raised were run
+     */
+    private fun awaitQuiescence() {
+        backend.awaitIdle()
+        val raised = CountDownLatch(1)
+        geoFirestore.raiseEvent(Runnable { raised.countDown() })
+        raised.await()
+    }
+
+    private fun documentID(index: Int) = "point$index"
+
+    private fun randomLocation() = GeoPoint(
+            CENTER_LATITUDE + (random.nextDouble() * 2 - 1) * AREA_DEGREES,
+            CENTER_LONGITUDE + (random.nextDouble() * 2 - 1) * AREA_DEGREES)
+
+    /*
+     * Move a location at random, keeping it inside the area
+     */
+    private fun move(location: GeoPoint) = GeoPoint(
+            clamp(location.latitude + (random.nextDouble() * 2 - 1) * STEP_DEGREES, CENTER_LATITUDE),
+            clamp(location.longitude + (random.nextDouble() * 2 - 1) * STEP_DEGREES, CENTER_LONGITUDE))
+
+    private fun clamp(value: Double, center: Double) =
+            Math.max(center - AREA_DEGREES, Math.min(center + AREA_DEGREES, value))
+}
@@ -0,0 +1,96 @@
+package org.imperiumlabs.geofirestore.backend
+
+import com.google.firebase.firestore.GeoPoint
+import com.google.firebase.firestore.ListenerRegistration
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.imperiumlabs.geofirestore.core.QueryCostModel
+import org.imperiumlabs.geofirestore.listeners.GeoQueryEventListener
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TestName
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * Soak tests of GeoQuery against an InMemoryBackend, after moving the points and the queries
+ * every query must hold exactly the documents inside its circle.
+ */
+class GeoQueryLoadTest {
+
+    companion object {
+        private const val POINTS = 500
+        private const val QUERIES = 20
+        private const val TICKS = 10
+
+        // The notification latency and the churn of the backend
+        private const val LATENCY_MILLIS = 1L
+        private const val CHURN = 0.2
+
+        // The directory of the reports, next to the JMH results
+        private val REPORTS_DIR = File("build/reports/load")
+    }
+
+    @get:Rule
+    val testName = TestName()
+
+    @get:Rule
+    val fixture = GeoFirestoreRule(InMemoryBackend(LATENCY_MILLIS, CHURN))
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun rangeQueriesMatchTheCollection() {
+        runAndCheck()
+    }
+
+    @Test
+    fun prefixQueriesMatchTheCollection() {
+        geoFirestore.indexPrecisions = setOf(4, 5, 6)
+        geoFirestore.costModel = QueryCostModel(POINTS.toLong())
+        runAndCheck()
+    }
+
+    @Test
+    fun synchronousBackendIsReady() {
+        //A backend delivering the empty first batch of every range while attaching its listener
+        geoFirestore.backend = object : GeoFirestoreBackend by backend {
+            override fun addRangeListener(query: IndexQuery, listener: RangeListener): ListenerRegistration {
+                listener.onChanges(emptyList(), false)
+                return ListenerRegistration {}
+            }
+        }
+        geoFirestore.maxRangesInFlight = 1
+        val ready = CountDownLatch(1)
+        geoFirestore.queryAtLocation(GeoPoint(45.0, 9.0), 1.0).addGeoQueryEventListener(object : GeoQueryEventListener {
+            override fun onKeyEntered(documentID: String, location: GeoPoint) {}
+            override fun onKeyExited(documentID: String) {}
+            override fun onKeyMoved(documentID: String, location: GeoPoint) {}
+            override fun onGeoQueryError(exception: Exception) {}
+
+            override fun onGeoQueryReady() {
+                ready.countDown()
+            }
+        })
+        assertTrue(ready.await(5, TimeUnit.SECONDS))
+    }
+
+    private fun runAndCheck() {
+        val generator = GeoQueryLoadGenerator(geoFirestore, backend, POINTS, QUERIES)
+        val report = generator.run(TICKS)
+        REPORTS_DIR.mkdirs()
+        File(REPORTS_DIR, "${testName.methodName}.json").writeText(report.toJson(testName.methodName))
+
+        assertTrue("Errors ${generator.errors}", generator.errors.isEmpty())
+        assertEquals(POINTS.toLong() * TICKS, report.writes)
+        assertTrue("No events", report.events > 0)
+        assertTrue("No documents read", report.readAmplification > 0)
+        assertTrue(report.latencyMillis(50.0) <= report.latencyMillis(99.0))
+        for ((received, expected) in generator.resultSets())
+            assertEquals(expected, received)
+        generator.stop()
+        assertEquals(0, backend.listenerCount)
+    }
+}
@@ -0,0 +1,305 @@
+package org.imperiumlabs.geofirestore.backend
+
+import com.google.firebase.Timestamp
+import com.google.firebase.firestore.DocumentChange
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.FieldValue
+import com.google.firebase.firestore.ListenerRegistration
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.cluster.GeoCellCount
+import org.imperiumlabs.geofirestore.cluster.GeoCellCounters
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.mockito.Mockito
+import java.util.Date
+import java.util.Random
+import java.util.TreeMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A GeoFirestoreBackend keeping the collection in memory, used to load and soak test
+ * GeoQuery without a Firestore project.
+ *
+ * The documents are kept sorted by their geohash and the planned queries are answered as
+ * Firestore does, the changes are notified to the listeners in batches after latencyMillis
+ * on a single thread. A batch notifies with probability churn also an unchanged document
+ * as modified, like the echoes of the local writes. With cacheFirst the first batch of every
+ * listener is marked as read from the local cache, and it is confirmed by the server later.
+ * The counters of the geohash cells are kept in a single sorted map by documentID.
+ * The InMemoryBackend class is thread safe.
+ */
+class InMemoryBackend @JvmOverloads constructor(
+        // The delay of every read and notification, in milliseconds
+        private val latencyMillis: Long = 0,
+        // The probability that a batch of changes notifies also an unchanged document
+        private val churn: Double = 0.0,
+        seed: Long = 42L,
+        // True to deliver the first batch of every listener as read from the local cache, confirmed by an empty batch later
+        private val cacheFirst: Boolean = false): GeoFirestoreBackend {
+
+    private class IndexKey(val geoHash: String, val documentID: String): Comparable<IndexKey> {
+        override fun compareTo(other: IndexKey): Int {
+            val result = geoHash.compareTo(other.geoHash)
+            return if (result != 0) result else documentID.compareTo(other.documentID)
+        }
+    }
+
+    private class StoredDocument(val id: String, val data: Map<String, Any>) {
+        val geoHash = data[IndexQuery.GEOHASH_FIELD] as? String
+        val snapshot = snapshot(id, data)
+    }
+
+    private inner class Registration(val query: IndexQuery, val listener: RangeListener): ListenerRegistration {
+        // The documentIDs of the documents currently read by the query
+        val members = HashSet<String>()
+        val pending = ArrayList<GeoDocumentChange>()
+        // True once the first batch, containing every document of the query, is delivered
+        var delivered = false
+        // True until a batch confirmed by the server is delivered
+        var fromCache = cacheFirst
+        @Volatile
+        var active = true
+
+        override fun remove() {
+            synchronized(this@InMemoryBackend) {
+                active = false
+                registrations.remove(this)
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Build the snapshot of a document, getData copies the fields as Firestore converts
+         * the whole document on every call.
+         *
+         * @param id The ID of the document
+         * @param data The fields of the document, null for a deleted document
+         * @return The snapshot of the document
+         */
+        fun snapshot(id: String, data: Map<String, Any>?): DocumentSnapshot =
+                Mockito.mock(DocumentSnapshot::class.java, Mockito.withSettings().defaultAnswer { invocation ->
+                    val field = invocation.arguments.firstOrNull() as? String
+                    when (invocation.method.name) {
+                        "getId" -> id
+                        "exists" -> data != null
+                        "getData" -> data?.let { HashMap(it) }
+                        "contains" -> data?.containsKey(field) ?: false
+                        "get", "getString", "getGeoPoint", "getDouble", "getLong", "getTimestamp" -> data?.get(field)
+                        else -> Mockito.RETURNS_DEFAULTS.answer(invocation)
+                    }
+                })
+    }
+
+    private val random = Random(seed)
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private val scheduledTasks = AtomicLong()
+
+    private val documents = HashMap<String, StoredDocument>()
+    private val index = TreeMap<IndexKey, StoredDocument>()
+    private val registrations = LinkedHashSet<Registration>()
+    private val counters = TreeMap<String, Long>()
+
+    /**
+     * The number of documents read, as billed by Firestore: every document of a query
+     * result or of a notified change, except the removed ones.
+     */
+    val documentsRead = AtomicLong()
+
+    /**
+     * The number of writes of the documents.
+     */
+    val writes = AtomicLong()
+
+    /**
+     * The number of batched writes.
+     */
+    val batches = AtomicLong()
+
+    /**
+     * The exception the batched writes fail with, null to save them.
+     */
+    @Volatile
+    var batchFailure: Exception? = null
+
+    /**
+     * The number of listeners currently registered.
+     */
+    val listenerCount: Int
+        @Synchronized get() = registrations.size
+
+    override fun addRangeListener(query: IndexQuery, listener: RangeListener): ListenerRegistration {
+        synchronized(this) {
+            val registration = Registration(query, listener)
+            for (document in documentsOf(query)) {
+                registration.members.add(document.id)
+                registration.pending.add(GeoDocumentChange(DocumentChange.Type.ADDED, document.snapshot))
+            }
+            registrations.add(registration)
+            schedule { flush(registration) }
+            return registration
+        }
+    }
+
+    override fun getRanges(queries: List<IndexQuery>, callback: GeoFirestore.SingleGeoQueryDataEventCallback) {
+        val snapshots = synchronized(this) { queries.flatMap { query -> documentsOf(query).map { it.snapshot } } }
+        documentsRead.addAndGet(snapshots.size.toLong())
+        schedule { callback.onComplete(snapshots, null) }
+    }
+
+    override fun getDocument(documentID: String, callback: GeoFirestoreBackend.DocumentCallback) {
+        val snapshot = synchronized(this) { documents[documentID]?.snapshot } ?: snapshot(documentID, null)
+        documentsRead.incrementAndGet()
+        schedule { callback.onComplete(snapshot, null) }
+    }
+
+    override fun setFields(documentID: String, fields: Map<String, Any>, completionCallback: GeoFirestore.CompletionCallback?) {
+        synchronized(this) {
+            val oldDocument = documents[documentID]
+            val data = HashMap(oldDocument?.data ?: emptyMap())
+            for ((field, value) in fields) {
+                when (value) {
+                    FieldValue.delete() -> data.remove(field)
+                    FieldValue.serverTimestamp() -> data[field] = Timestamp(Date())
+                    else -> data[field] = value
+                }
+            }
+            val newDocument = StoredDocument(documentID, data)
+            oldDocument?.geoHash?.let { index.remove(IndexKey(it, documentID)) }
+            newDocument.geoHash?.let { index[IndexKey(it, documentID)] = newDocument }
+            documents[documentID] = newDocument
+            writes.incrementAndGet()
+
+            //Notify the change to the listeners of the queries reading the old or the new document
+            for (registration in registrations) {
+                val wasMember = registration.members.contains(documentID)
+                val isMember = matches(registration.query, data)
+                val change = when {
+                    !wasMember && isMember -> GeoDocumentChange(DocumentChange.Type.ADDED, newDocument.snapshot)
+                    wasMember && isMember -> GeoDocumentChange(DocumentChange.Type.MODIFIED, newDocument.snapshot)
+                    wasMember -> GeoDocumentChange(DocumentChange.Type.REMOVED, oldDocument!!.snapshot)
+                    else -> null
+                } ?: continue
+                if (isMember) registration.members.add(documentID) else registration.members.remove(documentID)
+                if (registration.pending.isEmpty())
+                    schedule { flush(registration) }
+                registration.pending.add(change)
+            }
+        }
+        schedule { completionCallback?.onComplete(null) }
+    }
+
+    override fun setFieldsInBatch(writes: Map<String, Map<String, Any>>, completionCallback: GeoFirestore.CompletionCallback?) {
+        val failure = batchFailure
+        if (failure == null) {
+            synchronized(this) {
+                for ((documentID, fields) in writes) setFields(documentID, fields, null)
+            }
+            batches.incrementAndGet()
+        }
+        schedule { completionCallback?.onComplete(failure) }
+    }
+
+    override fun getPage(startAfterDocumentID: String?, pageSize: Int, callback: GeoFirestore.SingleGeoQueryDataEventCallback) {
+        val snapshots = synchronized(this) {
+            documents.keys.filter { startAfterDocumentID == null || it > startAfterDocumentID }
+                    .sorted().take(pageSize).map { documents.getValue(it).snapshot }
+        }
+        documentsRead.addAndGet(snapshots.size.toLong())
+        schedule { callback.onComplete(snapshots, null) }
+    }
+
+    override fun setFieldsAndCounters(documentID: String, fields: Map<String, Any>, geoHash: String?,
+                                      counters: GeoCellCounters, completionCallback: GeoFirestore.CompletionCallback?) {
+        synchronized(this) {
+            val oldGeoHash = documents[documentID]?.geoHash
+            for ((counterID, increment) in counters.increments(oldGeoHash, geoHash)) {
+                this.counters[counterID] = (this.counters[counterID] ?: 0L) + increment
+                writes.incrementAndGet()
+            }
+            setFields(documentID, fields, completionCallback)
+        }
+    }
+
+    override fun getCounters(counters: GeoCellCounters, ranges: List<GeoHashQuery>, callback: GeoFirestore.CellCountsCallback) {
+        val counts = synchronized(this) {
+            ranges.flatMap { range -> this.counters.subMap(range.startValue, true, range.endValue, true).entries }
+                    .map { (counterID, count) -> GeoCellCount(GeoCellCounters.geoHashOf(counterID)!!, count) }
+        }
+        documentsRead.addAndGet(counts.size.toLong())
+        schedule { callback.onComplete(counts.filter { it.count > 0 }, null) }
+    }
+
+    /**
+     * Wait until every scheduled read and notification is delivered.
+     */
+    fun awaitIdle() {
+        //The tasks are run in order of delay, wait until the delivered ones don't schedule new tasks
+        do {
+            val scheduled = scheduledTasks.get()
+            executor.schedule({}, latencyMillis, TimeUnit.MILLISECONDS).get()
+        } while (scheduled != scheduledTasks.get())
+    }
+
+    /**
+     * Stop the delivery of the notifications.
+     */
+    fun shutdown() {
+        executor.shutdownNow()
+    }
+
+    /*
+     * Run a task on the delivery thread after latencyMillis
+     */
+    private fun schedule(task: () -> Unit) {
+        scheduledTasks.incrementAndGet()
+        executor.schedule(task, latencyMillis, TimeUnit.MILLISECONDS)
+    }
+
+    /*
+     * Deliver the pending changes of a listener in a single batch
+     */
+    private fun flush(registration: Registration) {
+        var fromCache = false
+        val changes = synchronized(this) {
+            if (!registration.active || (registration.delivered && registration.pending.isEmpty() && !registration.fromCache)) return
+            //The first batch of a cacheFirst backend comes from the cache, the following ones from the server
+            fromCache = registration.fromCache && !registration.delivered
+            registration.fromCache = fromCache
+            registration.delivered = true
+            if (registration.members.isNotEmpty() && random.nextDouble() < churn) {
+                val echo = documents[registration.members.elementAt(random.nextInt(registration.members.size))]!!
+                registration.pending.add(GeoDocumentChange(DocumentChange.Type.MODIFIED, echo.snapshot))
+            }
+            val changes = ArrayList(registration.pending)
+            registration.pending.clear()
+            changes
+        }
+        if (fromCache) schedule { flush(registration) }
+        documentsRead.addAndGet(changes.count { it.type != DocumentChange.Type.REMOVED }.toLong())
+        registration.listener.onChanges(changes, fromCache)
+    }
+
+    /*
+     * Get the documents read by a query, the ranges are read from the geohash index
+     */
+    private fun documentsOf(query: IndexQuery): List<StoredDocument> {
+        val range = query.range
+        val ranges = if (range != null) listOf(range.startValue to range.endValue) else query.values!!.map { it to "$it~" }
+        return ranges.flatMap { (start, end) ->
+            index.subMap(IndexKey(start, ""), true, IndexKey(end, "\uFFFF"), true).values
+                    .filter { matches(query, it.data) }
+        }
+    }
+
+    /*
+     * Check if a document is read by a query
+     */
+    private fun matches(query: IndexQuery, data: Map<String, Any>): Boolean {
+        val value = data[query.field] as? String ?: return false
+        val range = query.range
+        return if (range != null) value >= range.startValue && value <= range.endValue else value in query.values!!
+    }
+}
@@ -0,0 +1,107 @@
+package org.imperiumlabs.geofirestore.backend
+
+import org.imperiumlabs.geofirestore.util.Clock
+import java.util.PriorityQueue
+import java.util.concurrent.AbstractExecutorService
+import java.util.concurrent.Callable
+import java.util.concurrent.Delayed
+import java.util.concurrent.FutureTask
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * A clock moved only by the tests, used also as the scheduler of GeoFirestore: the tasks are
+ * run in order of time on the thread of the test while the clock moves, so the code depending
+ * on the time is tested without waiting. The ManualClock class is thread safe.
+ *
+ * @param startMillis The time of the clock, in milliseconds
+ */
+class ManualClock(startMillis: Long = 1_000_000L) : AbstractExecutorService(), ScheduledExecutorService, Clock {
+
+    private inner class Task<T>(callable: Callable<T>, val timeMillis: Long, val sequence: Long) :
+            FutureTask<T>(callable), ScheduledFuture<T> {
+
+        override fun getDelay(unit: TimeUnit) = unit.convert(timeMillis - currentTimeMillis(), TimeUnit.MILLISECONDS)
+
+        override fun compareTo(other: Delayed): Int {
+            val task = other as Task<*>
+            return if (timeMillis != task.timeMillis) timeMillis.compareTo(task.timeMillis) else sequence.compareTo(task.sequence)
+        }
+    }
+
+    private val tasks = PriorityQueue<Task<*>>()
+    private var nowMillis = startMillis
+    private var sequence = 0L
+    private var shutdown = false
+
+    @Synchronized
+    override fun currentTimeMillis() = nowMillis
+
+    override fun nanoTime() = TimeUnit.MILLISECONDS.toNanos(currentTimeMillis())
+
+    /**
+     * Move the clock forward, running the tasks due in the meantime in order of time.
+     *
+     * @param millis The time to move forward, in milliseconds
+     */
+    fun advance(millis: Long) {
+        val targetMillis = currentTimeMillis() + millis
+        while (true) {
+            val task = synchronized(this) {
+                val next = tasks.peek()
+                if (next == null || next.timeMillis > targetMillis) {
+                    nowMillis = targetMillis
+                    return
+                }
+                nowMillis = Math.max(nowMillis, next.timeMillis)
+                tasks.poll()
+            }
+            task.run()
+        }
+    }
+
+    /**
+     * Run the tasks already due, without moving the clock.
+     */
+    fun runDueTasks() = advance(0)
+
+    private fun <T> schedule(callable: Callable<T>, delayMillis: Long): ScheduledFuture<T> = synchronized(this) {
+        Task(callable, nowMillis + Math.max(0, delayMillis), sequence++).also { tasks.add(it) }
+    }
+
+    override fun schedule(command: Runnable, delay: Long, unit: TimeUnit): ScheduledFuture<*> =
+            schedule(Callable { command.run() }, unit.toMillis(delay))
+
+    override fun <V> schedule(callable: Callable<V>, delay: Long, unit: TimeUnit): ScheduledFuture<V> =
+            schedule(callable, unit.toMillis(delay))
+
+    override fun scheduleAtFixedRate(command: Runnable, initialDelay: Long, period: Long, unit: TimeUnit): ScheduledFuture<*> =
+            throw UnsupportedOperationException("The ManualClock runs only one-shot tasks!")
+
+    override fun scheduleWithFixedDelay(command: Runnable, initialDelay: Long, delay: Long, unit: TimeUnit): ScheduledFuture<*> =
+            throw UnsupportedOperationException("The ManualClock runs only one-shot tasks!")
+
+    override fun execute(command: Runnable) {
+        schedule(command, 0, TimeUnit.MILLISECONDS)
+    }
+
+    @Synchronized
+    override fun shutdown() {
+        shutdown = true
+    }
+
+    @Synchronized
+    override fun shutdownNow(): List<Runnable> {
+        shutdown = true
+        return tasks.toList().also { tasks.clear() }
+    }
+
+    @Synchronized
+    override fun isShutdown() = shutdown
+
+    @Synchronized
+    override fun isTerminated() = shutdown
+
+    override fun awaitTermination(timeout: Long, unit: TimeUnit) = isShutdown
+}
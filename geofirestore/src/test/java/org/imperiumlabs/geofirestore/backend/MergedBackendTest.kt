@@ -0,0 +1,160 @@
+package org.imperiumlabs.geofirestore.backend
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import com.google.firebase.firestore.ListenerRegistration
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.GeoQuery
+import org.imperiumlabs.geofirestore.core.IndexQuery
+import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of a GeoQuery over two shards with different latencies merged by a MergedBackend.
+ */
+class MergedBackendTest {
+
+    companion object {
+        private const val SLOW_LATENCY_MILLIS = 300L
+        private val CENTER = GeoPoint(45.0, 9.0)
+    }
+
+    @get:Rule
+    val fixture = GeoFirestoreRule(InMemoryBackend(10))
+    private val fastShard = fixture.backend
+    private val slowShard = fixture.register(InMemoryBackend(SLOW_LATENCY_MILLIS))
+    private val geoFirestore = fixture.geoFirestore.also {
+        it.backend = MergedBackend(listOf(fastShard, slowShard))
+    }
+
+    @Test
+    fun shardsAreReadyOnce() {
+        val query = writeShardsAndQuery()
+        val events = listen(query)
+
+        //Nothing is notified before the slow shard answers
+        assertEquals(null, events.poll(SLOW_LATENCY_MILLIS / 2, TimeUnit.MILLISECONDS))
+        assertEquals(listOf("entered fast", "entered slow"), listOf(events.next(), events.next()).sorted())
+        assertEquals("ready", events.next())
+        assertEquals(fastShard.listenerCount, slowShard.listenerCount)
+
+        query.removeAllListeners()
+        assertEquals(0, fastShard.listenerCount + slowShard.listenerCount)
+    }
+
+    @Test
+    fun changesOfEveryShardAreMerged() {
+        val query = writeShardsAndQuery()
+        val events = listen(query)
+        assertEquals(listOf("entered fast", "entered slow", "ready"), listOf(events.next(), events.next(), events.next()).sorted())
+
+        //The document leaving the ranges is looked up in every shard
+        slowShard.setFields("slow", hashMapOf<String, Any>("g" to "u0000000", "l" to GeoPoint(45.0, 0.0)), null)
+        assertEquals("exited slow", events.next())
+        fastShard.setFields("fast", hashMapOf<String, Any>("l" to GeoPoint(45.001, 9.0)), null)
+        assertEquals(listOf("moved fast", "changed fast"), listOf(events.next(), events.next()))
+        assertEquals(null, events.poll(2 * SLOW_LATENCY_MILLIS, TimeUnit.MILLISECONDS))
+    }
+
+    @Test
+    fun oneShotQueriesReadEveryShardAndWritesGoToTheFirst() {
+        writeShardsAndQuery()
+        val documents = LinkedBlockingQueue<List<String>>()
+        geoFirestore.getAtLocation(CENTER, 1.0, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                documents.add(documentSnapshots!!.map { it.id }.sorted())
+            }
+        })
+        assertEquals(listOf("fast", "slow"), documents.poll(5, TimeUnit.SECONDS))
+
+        val writes = slowShard.writes.get()
+        geoFirestore.setLocation("new", CENTER)
+        fastShard.awaitIdle()
+        assertEquals(writes, slowShard.writes.get())
+    }
+
+    @Test
+    fun failedShardDoesNotHoldBackTheOthers() {
+        writeShardsAndQuery()
+        //A shard whose listeners fail before their first snapshot
+        val failing = object : GeoFirestoreBackend by slowShard {
+            override fun addRangeListener(query: IndexQuery, listener: RangeListener): ListenerRegistration {
+                listener.onError(IllegalStateException("offline"))
+                return ListenerRegistration {}
+            }
+        }
+        geoFirestore.backend = MergedBackend(listOf(fastShard, failing))
+        val events = listen(geoFirestore.queryAtLocation(CENTER, 1.0))
+
+        assertEquals("error java.lang.IllegalStateException: offline", events.next())
+        val order = generateSequence { events.poll(2 * SLOW_LATENCY_MILLIS, TimeUnit.MILLISECONDS) }.toList()
+        assertEquals(listOf("entered fast", "ready"), order.filter { !it.startsWith("error") })
+    }
+
+    @Test
+    fun shardsReadFromTheCacheAreReadyOnceConfirmed() {
+        writeShardsAndQuery()
+        //A shard answering first from its cache, confirmed by the server with an empty batch
+        val cacheFirst = fixture.register(InMemoryBackend(10, cacheFirst = true))
+        fixture.geoFirestore(cacheFirst).setLocation("cached", GeoPoint(45.0, 9.001))
+        cacheFirst.awaitIdle()
+        geoFirestore.backend = MergedBackend(listOf(fastShard, cacheFirst))
+        val events = listen(geoFirestore.queryAtLocation(CENTER, 1.0))
+
+        assertEquals(listOf("entered cached", "entered fast"), listOf(events.next(), events.next()).sorted())
+        assertEquals("ready", events.next())
+    }
+
+    /*
+     * Write a document near the center in each shard
+     */
+    private fun writeShardsAndQuery(): GeoQuery {
+        fixture.geoFirestore(fastShard).apply {
+            setLocation("fast", GeoPoint(45.002, 9.0))
+            backend = slowShard
+            setLocation("slow", GeoPoint(45.0, 9.002))
+        }
+        fastShard.awaitIdle()
+        slowShard.awaitIdle()
+        return geoFirestore.queryAtLocation(CENTER, 1.0)
+    }
+
+    private fun LinkedBlockingQueue<String>.next() = poll(10, TimeUnit.SECONDS)!!
+
+    /*
+     * Listen to a query, recording its events in order
+     */
+    private fun listen(query: GeoQuery): LinkedBlockingQueue<String> {
+        val events = LinkedBlockingQueue<String>()
+        query.addGeoQueryDataEventListener(object : GeoQueryDataEventListener {
+            override fun onDocumentEntered(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("entered ${documentSnapshot.id}")
+            }
+
+            override fun onDocumentExited(documentSnapshot: DocumentSnapshot) {
+                events.add("exited ${documentSnapshot.id}")
+            }
+
+            override fun onDocumentMoved(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("moved ${documentSnapshot.id}")
+            }
+
+            override fun onDocumentChanged(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("changed ${documentSnapshot.id}")
+            }
+
+            override fun onGeoQueryReady() {
+                events.add("ready")
+            }
+
+            override fun onGeoQueryError(exception: Exception) {
+                events.add("error $exception")
+            }
+        })
+        return events
+    }
+}
@@ -0,0 +1,48 @@
+package org.imperiumlabs.geofirestore.backend
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * Tests of the references of the documents read from many sources, kept by documentID.
+ */
+class SourceReferencesTest {
+
+    private val references = SourceReferences<String>(maxReleased = 2)
+
+    @Test
+    fun collidingIDsAreRejected() {
+        assertTrue(references.acquire("driver", "eu/driver", "eu"))
+        assertTrue(references.acquire("driver", "eu/driver", "eu"))
+        assertFalse(references.acquire("driver", "us/driver", "us"))
+        assertFalse(references.remember("driver", "us/driver", "us"))
+        assertEquals("eu", references["driver"])
+
+        //Once every listener released it, the ID can be read from another path
+        references.release("driver")
+        references.release("driver")
+        assertTrue(references.acquire("driver", "us/driver", "us"))
+        assertEquals("us", references["driver"])
+    }
+
+    @Test
+    fun releasedReferencesAreBounded() {
+        for (i in 0 until 3) {
+            references.acquire("doc$i", "eu/doc$i", "eu$i")
+            references.release("doc$i")
+        }
+        assertEquals(0, references.size)
+        //The released references are still read again, the least recently used ones are dropped
+        assertNull(references["doc0"])
+        assertEquals("eu1", references["doc1"])
+        assertEquals("eu2", references["doc2"])
+
+        references.remember("doc3", "eu/doc3", "eu3")
+        references.forget("doc2")
+        assertNull(references["doc2"])
+        assertEquals("eu3", references["doc3"])
+    }
+}
@@ -0,0 +1,163 @@
+package org.imperiumlabs.geofirestore.backfill
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.listeners.GeoBackfillListener
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of GeoBackfill over a collection with the locations in another field, against an InMemoryBackend.
+ */
+class GeoBackfillTest {
+
+    companion object {
+        private const val DOCUMENTS = 250
+        private const val WITHOUT_LOCATION = 10
+    }
+
+    @get:Rule
+    val fixture = GeoFirestoreRule(InMemoryBackend(5)) {
+        it.indexPrecisions = setOf(4)
+    }
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun geoHashFieldsAreWrittenInBatches() {
+        writeCollection()
+        val backfill = GeoBackfill(geoFirestore, BackfillOptions("position", pageSize = 40, batchSize = 15, workers = 3))
+        val events = listen(backfill)
+        backfill.start()
+
+        val progress = events.complete()
+        assertEquals(DOCUMENTS.toLong(), progress.documentsRead)
+        assertEquals((DOCUMENTS - WITHOUT_LOCATION).toLong(), progress.documentsWritten)
+        assertEquals(WITHOUT_LOCATION.toLong(), progress.documentsSkipped)
+        assertEquals("doc%03d".format(DOCUMENTS - 1), progress.checkpoint)
+        //30 locations in the first page, 40 in the next five pages and 10 in the last one
+        assertEquals(2L + 5 * 3 + 1, backend.batches.get())
+        assertEquals(listOf("near"), inRegion())
+
+        //The fields are up to date, a second backfill writes nothing
+        backfill.start()
+        assertEquals(0L, events.complete().documentsWritten)
+        assertEquals(2L + 5 * 3 + 1, backend.batches.get())
+    }
+
+    @Test
+    fun backfillResumesFromTheCheckpoint() {
+        writeCollection()
+        val backfill = GeoBackfill(geoFirestore, BackfillOptions("position", pageSize = 50, workers = 2))
+        val events = listen(backfill)
+        backend.batchFailure = IllegalStateException("offline")
+        backfill.start()
+
+        val (exception, failed) = events.error()
+        assertEquals("offline", exception.message)
+        assertNull(failed.checkpoint)
+        assertTrue(!backfill.isRunning)
+
+        backend.batchFailure = null
+        backfill.start()
+        val firstPage = events.progress()
+        assertEquals("doc049", firstPage.checkpoint)
+        backfill.cancel()
+        backend.awaitIdle()
+        val writes = backend.writes.get()
+
+        backfill.start(firstPage.checkpoint)
+        val progress = events.complete()
+        assertEquals((DOCUMENTS - 50).toLong(), progress.documentsRead)
+        //Only the documents after the checkpoint are written again
+        assertEquals(writes + progress.documentsWritten, backend.writes.get())
+        assertEquals(listOf("near"), inRegion())
+    }
+
+    @Test
+    fun writesAreRateLimited() {
+        writeCollection()
+        val backfill = GeoBackfill(geoFirestore, BackfillOptions("position", pageSize = 100, batchSize = 20,
+                maxWritesPerSecond = 400.0))
+        val events = listen(backfill)
+        backfill.start()
+
+        //240 writes at 400 per second, the first batch is not delayed
+        assertTrue(events.complete().elapsedMillis >= 500)
+    }
+
+    /*
+     * Write documents with a location in the field "position" and without geohash, one of
+     * them near Milan, the others in Paris, some without a location
+     */
+    private fun writeCollection() {
+        for (i in 0 until DOCUMENTS) {
+            val fields = HashMap<String, Any>()
+            if (i >= WITHOUT_LOCATION)
+                fields["position"] = if (i == 100) GeoPoint(45.0, 9.0) else listOf(48.85 + i * 1e-4, 2.35)
+            fields["name"] = "document $i"
+            backend.setFields("doc%03d".format(i), fields, null)
+        }
+        backend.awaitIdle()
+    }
+
+    /*
+     * Get the documents near Milan
+     */
+    private fun inRegion(): List<String> {
+        val documents = LinkedBlockingQueue<List<String>>()
+        geoFirestore.getAtLocation(GeoPoint(45.0, 9.0), 1.0, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                documents.add(documentSnapshots!!.map { it.id })
+            }
+        })
+        return documents.poll(5, TimeUnit.SECONDS)!!.map { if (it == "doc100") "near" else it }
+    }
+
+    private fun LinkedBlockingQueue<Any>.next(): Any = poll(10, TimeUnit.SECONDS)!!
+
+    private fun LinkedBlockingQueue<Any>.progress() = next() as BackfillProgress
+
+    /*
+     * Skip the progress until the end of the backfill
+     */
+    private fun LinkedBlockingQueue<Any>.complete(): BackfillProgress {
+        while (true) {
+            val event = next()
+            if (event is Pair<*, *> && event.first == "complete") return event.second as BackfillProgress
+            if (event !is BackfillProgress) throw AssertionError("Unexpected $event")
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun LinkedBlockingQueue<Any>.error() = next() as Pair<Exception, BackfillProgress>
+
+    /*
+     * Listen to a backfill, recording the progress, the completion and the errors in order
+     */
+    private fun listen(backfill: GeoBackfill): LinkedBlockingQueue<Any> {
+        val events = LinkedBlockingQueue<Any>()
+        backfill.addGeoBackfillListener(object : GeoBackfillListener {
+            override fun onBackfillProgress(progress: BackfillProgress) {
+                events.add(progress)
+            }
+
+            override fun onBackfillComplete(progress: BackfillProgress) {
+                events.add("complete" to progress)
+            }
+
+            override fun onBackfillError(exception: Exception, progress: BackfillProgress) {
+                events.add(exception to progress)
+            }
+        })
+        return events
+    }
+}
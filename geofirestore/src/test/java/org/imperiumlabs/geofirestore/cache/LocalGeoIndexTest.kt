@@ -0,0 +1,79 @@
+package org.imperiumlabs.geofirestore.cache
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.core.GeoHashCovering
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+/**
+ * Tests of the ranges answered, expired and evicted by LocalGeoIndex and of its counters.
+ */
+class LocalGeoIndexTest {
+
+    companion object {
+        private const val TTL_MILLIS = 1000L
+    }
+
+    private val index = LocalGeoIndex(maxDocuments = 3, ttlMillis = TTL_MILLIS)
+
+    @Test
+    fun rangesInsideAReadRangeAreAnswered() {
+        index.put(listOf(range("u0n")), listOf(document("a", "u0nd"), document("b", "u0nd"), document("c", "u0ne")), nowMillis = 0)
+
+        assertEquals(listOf("a", "b"), index.get(range("u0nd"), 0)!!.map { it.id })
+        assertEquals(emptyList<String>(), index.get(range("u0nf"), 0)!!.map { it.id })
+        //A range only partly read must be read again
+        assertNull(index.get(GeoHashQuery("u0m", "u0n~"), 0))
+        assertNull(index.get(range("u0"), 0))
+
+        assertEquals(2, index.hitCount)
+        assertEquals(2, index.missCount)
+        assertEquals(2, index.savedReads)
+    }
+
+    @Test
+    fun rangesExpireAfterTheTtl() {
+        index.put(listOf(range("u0n")), listOf(document("a", "u0nd")), nowMillis = 0)
+
+        assertEquals(1, index.get(range("u0nd"), TTL_MILLIS)!!.size)
+        assertNull(index.get(range("u0nd"), TTL_MILLIS + 1))
+        //The expired range was dropped
+        assertNull(index.get(range("u0nd"), 0))
+    }
+
+    @Test
+    fun leastRecentlyUsedRangesAreEvicted() {
+        index.put(listOf(range("u0n")), listOf(document("a", "u0nd"), document("b", "u0ne")), nowMillis = 0)
+        index.put(listOf(range("u0p")), listOf(document("c", "u0pd")), nowMillis = 0)
+        //Touch the first range, the second one becomes the least recently used
+        index.get(range("u0nd"), 0)
+        index.put(listOf(range("u0q")), listOf(document("d", "u0qd")), nowMillis = 0)
+
+        assertNull(index.get(range("u0p"), 0))
+        assertEquals(listOf("a", "b"), index.get(range("u0n"), 0)!!.map { it.id })
+        assertEquals(listOf("d"), index.get(range("u0q"), 0)!!.map { it.id })
+    }
+
+    @Test
+    fun largerRangesReplaceTheRangesInside() {
+        index.put(listOf(range("u0nd")), listOf(document("a", "u0nd")), nowMillis = 0)
+        index.put(listOf(range("u0n")), listOf(document("b", "u0ne")), nowMillis = 0)
+
+        //The document a left the area since the first read
+        assertEquals(emptyList<String>(), index.get(range("u0nd"), 0)!!.map { it.id })
+    }
+
+    private fun range(cell: String) = GeoHashQuery(cell, "$cell~")
+
+    /*
+     * Create a document located at the center of a geohash cell
+     */
+    private fun document(id: String, cell: String): DocumentSnapshot {
+        val bounds = GeoHashCovering.cellBounds(cell)
+        return InMemoryBackend.snapshot(id, mapOf("l" to GeoPoint((bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2)))
+    }
+}
@@ -0,0 +1,190 @@
+package org.imperiumlabs.geofirestore.cache
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.ReadyPolicy
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.backend.ManualClock
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.core.GeoHashQuery
+import org.imperiumlabs.geofirestore.listeners.GeoQueryCacheListener
+import org.imperiumlabs.geofirestore.listeners.GeoQueryDataEventListener
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of PersistentGeoCache and of the warm start of GeoQuery against an InMemoryBackend.
+ */
+class PersistentGeoCacheTest {
+
+    companion object {
+        private const val LATENCY_MILLIS = 200L
+    }
+
+    @get:Rule
+    val fixture = GeoFirestoreRule()
+
+    private val file = File.createTempFile("geofirestore", ".cache")
+
+    @After
+    fun cleanUp() {
+        file.delete()
+    }
+
+    @Test
+    fun cachedDocumentsAreShownBeforeTheServerAndThenReconciled() {
+        //First run: read the area and save the cache
+        val first = geoFirestore(fixture.backend)
+        writeLocations(first, "near0", "near1")
+        val firstEvents = listen(first)
+        while (firstEvents.poll(10, TimeUnit.SECONDS) != "ready") continue
+        first.persistentCache!!.save()
+
+        //Second run: near0 was removed and near2 added while the app was closed
+        val second = geoFirestore(InMemoryBackend(LATENCY_MILLIS))
+        writeLocations(second, "near1", "near2")
+        val events = listen(second)
+
+        val beforeReady = ArrayList<String>()
+        while (true) {
+            val event = events.poll(10, TimeUnit.SECONDS)!!
+            if (event == "ready") break
+            beforeReady.add(event)
+        }
+        assertEquals(listOf("cached near0", "cached near1"), beforeReady.take(2).sorted())
+        assertTrue(beforeReady.containsAll(listOf("entered near1", "entered near2", "removed near0", "removed near1")))
+        assertTrue(beforeReady.indexOf("cached near0") < beforeReady.indexOf("removed near0"))
+    }
+
+    @Test
+    fun onlyTheRangesConfirmedByTheServerAreCached() {
+        val geoFirestore = geoFirestore(InMemoryBackend(LATENCY_MILLIS, cacheFirst = true))
+        geoFirestore.readyPolicy = ReadyPolicy.CACHE_THEN_SERVER
+        writeLocations(geoFirestore, "near0", "near1")
+        val events = listen(geoFirestore)
+        val cache = geoFirestore.persistentCache!!
+
+        //The snapshots from the local cache of Firestore may be partial, they are not stored
+        while (events.poll(10, TimeUnit.SECONDS) != "ready") continue
+        assertEquals(0, cache.get(listOf(GeoHashQuery.FULL_SCAN)).size)
+        while (events.poll(10, TimeUnit.SECONDS) != "ready") continue
+        assertEquals(listOf("near0", "near1"), cache.get(listOf(GeoHashQuery.FULL_SCAN)).map { it.documentID }.sorted())
+    }
+
+    @Test
+    fun corruptedFilesAreDiscarded() {
+        file.writeText("not a cache")
+        val cache = PersistentGeoCache(file)
+        cache.load()
+
+        assertEquals(0, cache.get(listOf(GeoHashQuery.FULL_SCAN)).size)
+    }
+
+    @Test
+    fun rangesStoredBeforeLoadingAreKept() {
+        val first = PersistentGeoCache(file)
+        first.load()
+        first.put(listOf(GeoHashQuery.FULL_SCAN), listOf(InMemoryBackend.snapshot("near0", mapOf("l" to GeoPoint(45.0, 9.0)))))
+        first.save()
+
+        //The cache is not saved before it is loaded, the file would lose the ranges not read yet
+        val second = PersistentGeoCache(file)
+        val prefix = GeoHash(45.0, 9.001, 3).geoHashString
+        val range = GeoHashQuery(prefix, prefix + "~")
+        second.put(listOf(range), listOf(InMemoryBackend.snapshot("near1", mapOf("l" to GeoPoint(45.0, 9.001)))))
+        second.save()
+        assertEquals(listOf("near1"), second.get(listOf(GeoHashQuery.FULL_SCAN)).map { it.documentID })
+
+        second.load()
+        assertEquals(listOf("near0", "near1"), second.get(listOf(GeoHashQuery.FULL_SCAN)).map { it.documentID }.sorted())
+        second.save()
+        val third = PersistentGeoCache(file)
+        third.load()
+        assertEquals(listOf("near0", "near1"), third.get(listOf(GeoHashQuery.FULL_SCAN)).map { it.documentID }.sorted())
+    }
+
+    @Test
+    fun rangesAreDatedByTheClockOfGeoFirestore() {
+        val clock = ManualClock()
+        val geoFirestore = fixture.geoFirestore(fixture.backend) {
+            it.clock = clock
+            it.persistentCache = PersistentGeoCache(file)
+        }
+        writeLocations(geoFirestore, "near0")
+        val events = listen(geoFirestore)
+        while (events.poll(10, TimeUnit.SECONDS) != "ready") continue
+        val cache = geoFirestore.persistentCache!!
+        assertEquals(listOf(clock.currentTimeMillis()), cache.get(listOf(GeoHashQuery.FULL_SCAN)).map { it.readAt })
+        cache.save()
+
+        //The ranges older than the time to live are dropped when the file is loaded
+        val expired = PersistentGeoCache(file)
+        expired.load(clock.currentTimeMillis() + PersistentGeoCache.DEFAULT_TTL_MILLIS + 1)
+        assertEquals(0, expired.get(listOf(GeoHashQuery.FULL_SCAN)).size)
+    }
+
+    @Test
+    fun fileAccessesDoNotDelayTheScheduler() {
+        val geoFirestore = geoFirestore(fixture.backend)
+        //A slow file holds the cache thread, the delayed tasks and the snapshots still run
+        val slowFile = CountDownLatch(1)
+        geoFirestore.executeCacheIO(Runnable { slowFile.await() })
+        val scheduled = CountDownLatch(1)
+        geoFirestore.schedule(Runnable { scheduled.countDown() }, 0)
+        assertTrue(scheduled.await(5, TimeUnit.SECONDS))
+        slowFile.countDown()
+    }
+
+    private fun geoFirestore(backend: InMemoryBackend) =
+            fixture.geoFirestore(backend) { it.persistentCache = PersistentGeoCache(file) }
+
+    private fun writeLocations(geoFirestore: GeoFirestore, vararg documentIDs: String) {
+        for (documentID in documentIDs)
+            geoFirestore.setLocation(documentID, GeoPoint(45.0, 9.0 + (documentID.last() - '0') * 0.001))
+        (geoFirestore.backend as InMemoryBackend).awaitIdle()
+    }
+
+    /*
+     * Listen to a query around the documents, recording its events in order
+     */
+    private fun listen(geoFirestore: GeoFirestore): LinkedBlockingQueue<String> {
+        val events = LinkedBlockingQueue<String>()
+        val query = geoFirestore.queryAtLocation(GeoPoint(45.0, 9.0), 1.0)
+        query.addGeoQueryCacheListener(object : GeoQueryCacheListener {
+            override fun onCachedDocumentEntered(document: CachedDocument) {
+                events.add("cached ${document.documentID}")
+            }
+
+            override fun onCachedDocumentRemoved(documentID: String) {
+                events.add("removed $documentID")
+            }
+        })
+        query.addGeoQueryDataEventListener(object : GeoQueryDataEventListener {
+            override fun onDocumentEntered(documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("entered ${documentSnapshot.id}")
+            }
+
+            override fun onDocumentExited(documentSnapshot: DocumentSnapshot) {}
+            override fun onDocumentMoved(documentSnapshot: DocumentSnapshot, location: GeoPoint) {}
+            override fun onDocumentChanged(documentSnapshot: DocumentSnapshot, location: GeoPoint) {}
+
+            override fun onGeoQueryReady() {
+                events.add("ready")
+            }
+
+            override fun onGeoQueryError(exception: Exception) {
+                events.add("error $exception")
+            }
+        })
+        return events
+    }
+}
@@ -0,0 +1,96 @@
+package org.imperiumlabs.geofirestore.cluster
+
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.region.BoundingBoxRegion
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of the server counters of the geohash cells against an InMemoryBackend.
+ */
+class GeoCellCountersTest {
+
+    companion object {
+        private val PARIS = GeoPoint(48.8566, 2.3522)
+        private val PARIS_EAST = GeoPoint(48.8600, 2.4200)
+        private val BERLIN = GeoPoint(52.5200, 13.4050)
+        private val EUROPE = BoundingBoxRegion(40.0, -5.0, 56.0, 20.0)
+        private val PARIS_REGION = BoundingBoxRegion(48.7, 2.2, 49.0, 2.6)
+    }
+
+    @get:Rule
+    val fixture = GeoFirestoreRule {
+        it.cellCounters = GeoCellCounters("cells", setOf(3, 5))
+    }
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun incrementsSkipTheSharedCells() {
+        val counters = GeoCellCounters("cells", setOf(3, 5))
+        val paris = hash(PARIS)
+        val parisEast = hash(PARIS_EAST)
+
+        assertEquals(mapOf("5_${paris.take(5)}" to -1L, "5_${parisEast.take(5)}" to 1L), counters.increments(paris, parisEast))
+        assertEquals(mapOf("3_${paris.take(3)}" to 1L, "5_${paris.take(5)}" to 1L), counters.increments(null, paris))
+        assertEquals(mapOf("3_${paris.take(3)}" to -1L, "5_${paris.take(5)}" to -1L), counters.increments(paris, null))
+        assertEquals(emptyMap<String, Long>(), counters.increments(paris, paris))
+        assertEquals("u09", GeoCellCounters.geoHashOf("3_u09"))
+        assertEquals(null, GeoCellCounters.geoHashOf("4_u09"))
+    }
+
+    @Test
+    fun countersFollowTheMovesBetweenCells() {
+        geoFirestore.setLocation("a", PARIS)
+        geoFirestore.setLocation("b", PARIS)
+        geoFirestore.setLocation("c", BERLIN)
+        assertEquals(mapOf(hash(PARIS).take(3) to 2L, hash(BERLIN).take(3) to 1L), counts(3))
+
+        geoFirestore.setLocation("b", BERLIN)
+        geoFirestore.setLocation("c", BERLIN)
+        assertEquals(mapOf(hash(PARIS).take(3) to 1L, hash(BERLIN).take(3) to 2L), counts(3))
+
+        geoFirestore.setLocation("a", PARIS_EAST)
+        assertEquals(mapOf(hash(PARIS).take(3) to 1L, hash(BERLIN).take(3) to 2L), counts(3))
+        assertEquals(mapOf(hash(PARIS_EAST).take(5) to 1L), counts(5, PARIS_REGION))
+
+        geoFirestore.removeLocation("a")
+        geoFirestore.removeLocation("a")
+        assertEquals(mapOf(hash(BERLIN).take(3) to 2L), counts(3))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun uncountedLevelIsRejected() {
+        geoFirestore.getCellCounts(EUROPE, 4, object : GeoFirestore.CellCountsCallback {
+            override fun onComplete(counts: List<GeoCellCount>?, exception: Exception?) {}
+        })
+    }
+
+    /*
+     * Encode a location with the precision of the documents
+     */
+    private fun hash(location: GeoPoint) =
+            GeoHash(GeoLocation(location.latitude, location.longitude), geoFirestore.precision).geoHashString
+
+    /*
+     * Read the counts of the cells of a level in a region
+     */
+    private fun counts(level: Int, region: BoundingBoxRegion = EUROPE): Map<String, Long> {
+        backend.awaitIdle()
+        val result = LinkedBlockingQueue<List<GeoCellCount>>()
+        geoFirestore.getCellCounts(region, level, object : GeoFirestore.CellCountsCallback {
+            override fun onComplete(counts: List<GeoCellCount>?, exception: Exception?) {
+                result.add(counts)
+            }
+        })
+        return result.poll(5, TimeUnit.SECONDS)!!.associate { it.geoHash to it.count }
+    }
+}
@@ -0,0 +1,82 @@
+package org.imperiumlabs.geofirestore.cluster
+
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.core.GeoHash
+import org.imperiumlabs.geofirestore.region.BoundingBoxRegion
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+
+/**
+ * Tests of GeoQueryClusters fed with random enter, exit and move events.
+ */
+class GeoQueryClustersTest {
+
+    companion object {
+        private const val SEED = 42L
+        private const val EVENTS = 5000
+        private const val DOCUMENTS = 500
+    }
+
+    private val clusters = GeoQueryClusters(6)
+
+    @Test
+    fun clustersMatchTheDocumentsAfterRandomEvents() {
+        val random = Random(SEED)
+        val locations = HashMap<String, GeoPoint>()
+        repeat(EVENTS) {
+            val documentID = "doc${random.nextInt(DOCUMENTS)}"
+            val location = GeoPoint(45.0 + random.nextDouble() * 0.5, 9.0 + random.nextDouble() * 0.5)
+            val snapshot = InMemoryBackend.snapshot(documentID, emptyMap())
+            when {
+                !locations.containsKey(documentID) -> clusters.onDocumentEntered(snapshot, location)
+                random.nextBoolean() -> clusters.onDocumentMoved(snapshot, location)
+                else -> {
+                    clusters.onDocumentExited(snapshot)
+                    locations.remove(documentID)
+                    return@repeat
+                }
+            }
+            locations[documentID] = location
+        }
+
+        assertEquals(locations.size, clusters.size)
+        for (precision in 1..6) {
+            val expected = locations.values.groupBy { GeoHash(it.latitude, it.longitude, precision).geoHashString }
+            val actual = clusters.clusters(precision).associateBy { it.geoHash }
+            assertEquals(expected.keys, actual.keys)
+            for ((geoHash, points) in expected) {
+                val cluster = actual.getValue(geoHash)
+                assertEquals(points.size, cluster.count)
+                assertEquals(points.map { it.latitude }.average(), cluster.centroid!!.latitude, 1e-3)
+                assertEquals(points.map { it.longitude }.average(), cluster.centroid!!.longitude, 1e-3)
+            }
+        }
+    }
+
+    @Test
+    fun onlyTheChangedClustersAreDrained() {
+        val first = InMemoryBackend.snapshot("first", emptyMap())
+        val second = InMemoryBackend.snapshot("second", emptyMap())
+        clusters.onDocumentEntered(first, GeoPoint(45.0, 9.0))
+        clusters.onDocumentEntered(second, GeoPoint(-33.9, 18.4))
+        assertEquals(2, clusters.drainChanges(3).size)
+        assertTrue(clusters.drainChanges(3).isEmpty())
+
+        clusters.onDocumentExited(second)
+        val changes = clusters.drainChanges(3)
+        assertEquals(listOf(GeoCluster(GeoHash(-33.9, 18.4, 3).geoHashString, 0, null)), changes)
+        assertEquals(1, clusters.clusters(3, BoundingBoxRegion(44.0, 8.0, 46.0, 10.0)).single().count)
+        assertTrue(clusters.clusters(3, BoundingBoxRegion(-40.0, 10.0, -30.0, 20.0)).isEmpty())
+    }
+
+    @Test
+    fun zoomLevelsMapToIncreasingPrecisions() {
+        val precisions = (0..20).map { GeoQueryClusters.precisionForZoom(it.toDouble(), 8) }
+        assertEquals(precisions.sorted(), precisions)
+        assertEquals(1, precisions.first())
+        assertEquals(8, precisions.last())
+    }
+}
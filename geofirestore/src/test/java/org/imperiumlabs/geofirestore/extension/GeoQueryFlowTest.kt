@@ -0,0 +1,92 @@
+package org.imperiumlabs.geofirestore.extension
+
+import com.google.firebase.firestore.GeoPoint
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.flow.takeWhile
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.listeners.GeoQueryEvent
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+
+/**
+ * Tests of the coroutine API of GeoFirestore and GeoQuery against an InMemoryBackend.
+ */
+@ExperimentalCoroutinesApi
+class GeoQueryFlowTest {
+
+    @get:Rule
+    val fixture = GeoFirestoreRule()
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun flowEmitsTheDocumentsUntilReadyAndRemovesTheListener() = runBlocking {
+        writeLocations()
+        val events = geoFirestore.queryAtLocation(GeoPoint(45.0, 9.0), 1.0).asFlow()
+                .takeWhile { it != GeoQueryEvent.Ready }
+                .toList()
+
+        assertEquals(setOf("near0", "near1"),
+                events.map { (it as GeoQueryEvent.DocumentEntered).documentSnapshot.id }.toSet())
+        backend.awaitIdle()
+        assertEquals(0, backend.listenerCount)
+    }
+
+    @Test
+    fun fullBufferFailsTheFlow() = runBlocking {
+        writeLocations(20)
+        try {
+            geoFirestore.queryAtLocation(GeoPoint(45.0, 9.0), 1.0).asFlow(capacity = 1).collect { delay(1000) }
+            fail("The events can't be dropped")
+        } catch (e: IllegalStateException) {
+            backend.awaitIdle()
+            assertEquals(0, backend.listenerCount)
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun eventsCantBeConflated() {
+        geoFirestore.queryAtLocation(GeoPoint(45.0, 9.0), 1.0).asFlow(capacity = Channel.CONFLATED)
+    }
+
+    @Test
+    fun resultSetFlowKeepsTheLatestDocuments() = runBlocking {
+        writeLocations(20)
+        val resultSet = geoFirestore.queryAtLocation(GeoPoint(45.0, 9.0), 1.0).resultSetFlow()
+                .onEach { delay(50) }
+                .first { it.size == 22 }
+
+        assertEquals(false, resultSet.results.any { it.documentSnapshot.id == "far" })
+    }
+
+    @Test
+    fun getAtLocationSuspendsUntilTheDocumentsAreRetrieved() = runBlocking {
+        writeLocations()
+        val documents = geoFirestore.getAtLocation(GeoPoint(45.0, 9.0), 1.0)
+
+        assertEquals(setOf("near0", "near1"), documents.map { it.id }.toSet())
+    }
+
+    /*
+     * Write two documents near the center, one far from it and some more near it
+     */
+    private fun writeLocations(more: Int = 0) {
+        geoFirestore.setLocation("near0", GeoPoint(45.001, 9.0))
+        geoFirestore.setLocation("near1", GeoPoint(45.0, 9.002))
+        geoFirestore.setLocation("far", GeoPoint(45.1, 9.0))
+        for (i in 0 until more)
+            geoFirestore.setLocation("more$i", GeoPoint(45.0, 9.0 + i * 1e-4))
+        backend.awaitIdle()
+    }
+}
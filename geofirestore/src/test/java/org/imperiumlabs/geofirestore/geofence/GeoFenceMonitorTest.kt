@@ -0,0 +1,130 @@
+package org.imperiumlabs.geofirestore.geofence
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import org.imperiumlabs.geofirestore.GeoLocation
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.backend.InMemoryBackend
+import org.imperiumlabs.geofirestore.listeners.GeoFenceEventListener
+import org.imperiumlabs.geofirestore.region.CircleRegion
+import org.imperiumlabs.geofirestore.region.PolygonRegion
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import java.util.Random
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tests of GeoFenceIndex and of GeoFenceMonitor against an InMemoryBackend.
+ */
+class GeoFenceMonitorTest {
+
+    companion object {
+        private const val DWELL_MILLIS = 300L
+        private val PARIS = GeoLocation(48.8566, 2.3522)
+        private val BERLIN = GeoLocation(52.5200, 13.4050)
+        private val FENCES = listOf(
+                GeoFence("paris", CircleRegion(PARIS, 2.0)),
+                GeoFence("center", PolygonRegion(listOf(
+                        GeoLocation(48.84, 2.33), GeoLocation(48.84, 2.37), GeoLocation(48.87, 2.37), GeoLocation(48.87, 2.33)))),
+                GeoFence("berlin", CircleRegion(BERLIN, 2.0)))
+    }
+
+    @get:Rule
+    val fixture = GeoFirestoreRule()
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun indexMatchesTheRegions() {
+        val random = Random(7)
+        val fences = (0 until 500).map {
+            GeoFence("fence$it", CircleRegion(GeoLocation(45 + random.nextDouble(), 9 + random.nextDouble()), 0.5 + 5 * random.nextDouble()))
+        }
+        val index = GeoFenceIndex(fences)
+        for (i in 0 until 2000) {
+            val latitude = 45 + random.nextDouble()
+            val longitude = 9 + random.nextDouble()
+            assertEquals(fences.filter { it.region.containsLocation(latitude, longitude) }.map { it.id }.sorted(),
+                    index.fencesAt(latitude, longitude).map { it.id }.sorted())
+        }
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun duplicatedIDsAreRejected() {
+        GeoFenceIndex(listOf(FENCES[0], GeoFence("paris", CircleRegion(BERLIN, 1.0))))
+    }
+
+    @Test
+    fun documentsEnterExitAndDwell() {
+        geoFirestore.setLocation("a", GeoPoint(PARIS.latitude, PARIS.longitude))
+        geoFirestore.setLocation("b", GeoPoint(45.0, 9.0))
+        backend.awaitIdle()
+        val monitor = GeoFenceMonitor(geoFirestore, FENCES, DWELL_MILLIS)
+        val events = listen(monitor)
+
+        assertEquals(listOf("entered center a", "entered paris a"), listOf(events.next(), events.next()).sorted())
+        assertEquals("ready", events.next())
+        assertEquals(listOf("center", "paris"), monitor.fencesOf("a").map { it.id }.sorted())
+
+        //Moving inside the circle but out of the polygon
+        geoFirestore.setLocation("a", GeoPoint(48.8566, 2.3750))
+        assertEquals("exited center a", events.next())
+
+        //The document stays in the circle for the dwell time
+        assertEquals("dwell paris a", events.poll(DWELL_MILLIS * 10, TimeUnit.MILLISECONDS))
+
+        geoFirestore.setLocation("a", GeoPoint(BERLIN.latitude, BERLIN.longitude))
+        assertEquals(listOf("entered berlin a", "exited paris a"), listOf(events.next(), events.next()).sorted())
+
+        geoFirestore.removeLocation("a")
+        assertEquals("exited berlin a", events.next())
+        assertEquals(emptyList<GeoFence>(), monitor.fencesOf("a"))
+        monitor.removeAllListeners()
+    }
+
+    @Test
+    fun exitCancelsTheDwell() {
+        geoFirestore.setLocation("a", GeoPoint(BERLIN.latitude, BERLIN.longitude))
+        backend.awaitIdle()
+        val events = listen(GeoFenceMonitor(geoFirestore, FENCES, DWELL_MILLIS))
+        assertEquals("entered berlin a", events.next())
+        assertEquals("ready", events.next())
+
+        geoFirestore.setLocation("a", GeoPoint(45.0, 9.0))
+        assertEquals("exited berlin a", events.next())
+        assertEquals(null, events.poll(DWELL_MILLIS * 3, TimeUnit.MILLISECONDS))
+    }
+
+    private fun LinkedBlockingQueue<String>.next() = poll(10, TimeUnit.SECONDS)!!
+
+    /*
+     * Listen to a monitor, recording its events in order
+     */
+    private fun listen(monitor: GeoFenceMonitor): LinkedBlockingQueue<String> {
+        val events = LinkedBlockingQueue<String>()
+        monitor.addGeoFenceEventListener(object : GeoFenceEventListener {
+            override fun onFenceEntered(fence: GeoFence, documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("entered ${fence.id} ${documentSnapshot.id}")
+            }
+
+            override fun onFenceExited(fence: GeoFence, documentSnapshot: DocumentSnapshot) {
+                events.add("exited ${fence.id} ${documentSnapshot.id}")
+            }
+
+            override fun onFenceDwell(fence: GeoFence, documentSnapshot: DocumentSnapshot, location: GeoPoint) {
+                events.add("dwell ${fence.id} ${documentSnapshot.id}")
+            }
+
+            override fun onGeoFenceMonitorReady() {
+                events.add("ready")
+            }
+
+            override fun onGeoFenceMonitorError(exception: Exception) {
+                events.add("error $exception")
+            }
+        })
+        return events
+    }
+}
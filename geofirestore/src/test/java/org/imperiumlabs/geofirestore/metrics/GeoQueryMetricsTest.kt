@@ -0,0 +1,177 @@
+package org.imperiumlabs.geofirestore.metrics
+
+import com.google.firebase.firestore.DocumentSnapshot
+import com.google.firebase.firestore.GeoPoint
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.imperiumlabs.geofirestore.GeoFirestore
+import org.imperiumlabs.geofirestore.backend.GeoFirestoreRule
+import org.imperiumlabs.geofirestore.listeners.GeoQueryEventListener
+import org.imperiumlabs.geofirestore.util.GeoUtils
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Tests of the values reported to GeoQueryMetrics by GeoFirestore and GeoQuery, and of
+ * their recording in a Micrometer registry.
+ */
+class GeoQueryMetricsTest {
+
+    companion object {
+        private const val SEED = 42L
+        private const val DOCUMENTS = 50
+        private val CENTER = GeoPoint(45.0, 9.0)
+    }
+
+    /*
+     * Metrics adding up every value reported
+     */
+    private class RecordingMetrics : NoOpGeoQueryMetrics() {
+        val queriesPlanned = AtomicInteger()
+        val documentsRead = AtomicInteger()
+        val documentsDiscarded = AtomicInteger()
+        val events = ConcurrentHashMap<GeoQueryEventType, AtomicInteger>()
+        val readyCount = AtomicInteger()
+        val replanCount = AtomicInteger()
+
+        override fun onQueriesPlanned(queryCount: Int) {
+            queriesPlanned.addAndGet(queryCount)
+        }
+
+        override fun onDocumentsRead(documentCount: Int) {
+            documentsRead.addAndGet(documentCount)
+        }
+
+        override fun onDocumentsDiscarded(documentCount: Int) {
+            documentsDiscarded.addAndGet(documentCount)
+        }
+
+        override fun onEventDispatched(type: GeoQueryEventType) {
+            events.getOrPut(type) { AtomicInteger() }.incrementAndGet()
+        }
+
+        override fun onQueryReady(nanos: Long) {
+            readyCount.incrementAndGet()
+        }
+
+        override fun onReplan(nanos: Long) {
+            replanCount.incrementAndGet()
+        }
+
+        fun eventCount(type: GeoQueryEventType) = events[type]?.get() ?: 0
+    }
+
+    private val metrics = RecordingMetrics()
+
+    @get:Rule
+    val fixture = GeoFirestoreRule {
+        it.metrics = metrics
+    }
+    private val backend = fixture.backend
+    private val geoFirestore = fixture.geoFirestore
+
+    @Test
+    fun oneShotQueriesReportTheReadsAndTheDiscards() {
+        writeLocations()
+        val reads = backend.documentsRead.get()
+
+        val results = LinkedBlockingQueue<List<DocumentSnapshot>>()
+        geoFirestore.getAtLocation(CENTER, 1.0, object : GeoFirestore.SingleGeoQueryDataEventCallback {
+            override fun onComplete(documentSnapshots: List<DocumentSnapshot>?, exception: Exception?) {
+                results.add(documentSnapshots!!)
+            }
+        })
+        val documents = results.poll(5, TimeUnit.SECONDS)!!
+
+        assertTrue(metrics.queriesPlanned.get() > 0)
+        assertEquals(backend.documentsRead.get() - reads, metrics.documentsRead.get().toLong())
+        assertTrue(metrics.documentsDiscarded.get() > 0)
+        assertEquals(metrics.documentsRead.get() - documents.size, metrics.documentsDiscarded.get())
+        //The location of every document is extracted once
+        for (document in documents) {
+            assertEquals(1, Mockito.mockingDetails(document).invocations.count { it.method.name == "get" && it.arguments[0] == "l" })
+        }
+    }
+
+    @Test
+    fun queriesReportTheEventsTheReadyLatencyAndTheReplans() {
+        val inside = writeLocations()
+        val query = geoFirestore.queryAtLocation(CENTER, 1.0)
+        val ready = CountDownLatch(1)
+        query.addGeoQueryEventListener(object : GeoQueryEventListener {
+            override fun onKeyEntered(documentID: String, location: GeoPoint) {}
+            override fun onKeyExited(documentID: String) {}
+            override fun onKeyMoved(documentID: String, location: GeoPoint) {}
+            override fun onGeoQueryError(exception: Exception) {}
+
+            override fun onGeoQueryReady() {
+                ready.countDown()
+            }
+        })
+        assertTrue(ready.await(5, TimeUnit.SECONDS))
+
+        assertEquals(inside, metrics.eventCount(GeoQueryEventType.ENTERED))
+        assertEquals(1, metrics.eventCount(GeoQueryEventType.READY))
+        assertEquals(1, metrics.readyCount.get())
+        val replans = metrics.replanCount.get()
+        query.center = GeoPoint(45.001, 9.0)
+        assertEquals(replans + 1, metrics.replanCount.get())
+        query.removeAllListeners()
+    }
+
+    @Test
+    fun micrometerRecordsTheValues() {
+        val registry = SimpleMeterRegistry()
+        val micrometer = MicrometerGeoQueryMetrics(registry)
+        micrometer.onQueriesPlanned(4)
+        micrometer.onDocumentsRead(10)
+        micrometer.onDocumentsDiscarded(3)
+        micrometer.onEventDispatched(GeoQueryEventType.ENTERED)
+        micrometer.onEventDispatched(GeoQueryEventType.ENTERED)
+        micrometer.onEventDispatched(GeoQueryEventType.READY)
+        micrometer.onQueryReady(TimeUnit.MILLISECONDS.toNanos(20))
+        micrometer.onReplan(TimeUnit.MILLISECONDS.toNanos(2))
+        micrometer.onChildRemovedLookup()
+        micrometer.onEventQueueDepth(7)
+
+        assertEquals(4.0, registry.get("geofirestore.plan.queries").summary().totalAmount(), 0.0)
+        assertEquals(10.0, registry.get("geofirestore.documents.read").counter().count(), 0.0)
+        assertEquals(3.0, registry.get("geofirestore.documents.discarded").counter().count(), 0.0)
+        assertEquals(2.0, registry.get("geofirestore.events").tag("type", "entered").counter().count(), 0.0)
+        assertEquals(1.0, registry.get("geofirestore.events").tag("type", "ready").counter().count(), 0.0)
+        assertEquals(0.0, registry.get("geofirestore.events").tag("type", "exited").counter().count(), 0.0)
+        assertEquals(20.0, registry.get("geofirestore.ready.latency").timer().totalTime(TimeUnit.MILLISECONDS), 0.0)
+        assertEquals(1, registry.get("geofirestore.replan.time").timer().count())
+        assertEquals(1.0, registry.get("geofirestore.removed.lookups").counter().count(), 0.0)
+        assertEquals(7.0, registry.get("geofirestore.event.queue.depth").gauge().value(), 0.0)
+    }
+
+    /*
+     * Write random locations within 3km of the center
+     *
+     * @return The number of locations within 1km of the center
+     */
+    private fun writeLocations(): Int {
+        val random = Random(SEED)
+        var inside = 0
+        for (i in 0 until DOCUMENTS) {
+            val location = GeoPoint(CENTER.latitude + (random.nextDouble() * 2 - 1) * 0.027,
+                    CENTER.longitude + (random.nextDouble() * 2 - 1) * 0.038)
+            if (distance(location) <= 1000) inside++
+            geoFirestore.setLocation("doc$i", location)
+        }
+        backend.awaitIdle()
+        return inside
+    }
+
+    private fun distance(location: GeoPoint) =
+            GeoUtils.distance(location.latitude, location.longitude, CENTER.latitude, CENTER.longitude)
+}